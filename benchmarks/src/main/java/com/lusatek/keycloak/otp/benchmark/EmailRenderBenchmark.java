@@ -0,0 +1,118 @@
+package com.lusatek.keycloak.otp.benchmark;
+
+import com.lusatek.keycloak.otp.benchmark.support.ClasspathTheme;
+import com.lusatek.keycloak.otp.benchmark.support.Stubs;
+import com.lusatek.keycloak.otp.service.EmailTemplateCache;
+import freemarker.template.Template;
+import org.keycloak.email.freemarker.beans.ProfileBean;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.theme.KeycloakSanitizerMethod;
+import org.keycloak.theme.Theme;
+import org.keycloak.theme.beans.MessageFormatterMethod;
+import org.keycloak.theme.freemarker.DefaultFreeMarkerProvider;
+import org.keycloak.theme.freemarker.FreeMarkerProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Render cost of one OTP email (subject, text and HTML body).
+ *
+ * - keycloakProvider: previous EmailService path, messages merged and rendered through Keycloak's
+ *   FreeMarkerProvider with its template cache enabled (production default)
+ * - keycloakProviderUncached: same with Keycloak's template cache disabled (development setting)
+ * - templateCache: current path through {@link EmailTemplateCache}
+ *
+ * Run with -prof gc to compare allocation per email (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmailRenderBenchmark {
+
+    private static final String TEMPLATE_NAME = "email-otp.ftl";
+    private static final String SUBJECT_KEY = "emailOtpSubject";
+
+    private Theme theme;
+    private RealmModel realm;
+    private UserModel user;
+    private Locale locale;
+    private FreeMarkerProvider cachingProvider;
+    private FreeMarkerProvider uncachedProvider;
+    private EmailTemplateCache templateCache;
+    private KeycloakSanitizerMethod sanitizer;
+
+    @Setup
+    public void setup() throws Exception {
+        theme = new ClasspathTheme();
+        realm = Stubs.realm("bench-realm", "bench");
+        user = Stubs.user("bench-user", "bench@example.com");
+        locale = Locale.ENGLISH;
+        sanitizer = new KeycloakSanitizerMethod();
+        cachingProvider = new DefaultFreeMarkerProvider(new ConcurrentHashMap<String, Template>(), sanitizer);
+        uncachedProvider = new DefaultFreeMarkerProvider(null, sanitizer);
+        templateCache = new EmailTemplateCache(TimeUnit.HOURS.toMillis(1), 16);
+    }
+
+    @Benchmark
+    public void keycloakProvider(Blackhole bh) throws Exception {
+        renderWithProvider(cachingProvider, bh);
+    }
+
+    @Benchmark
+    public void keycloakProviderUncached(Blackhole bh) throws Exception {
+        renderWithProvider(uncachedProvider, bh);
+    }
+
+    @Benchmark
+    public void templateCache(Blackhole bh) throws Exception {
+        EmailTemplateCache.Entry templates = templateCache.get(realm, theme, locale, TEMPLATE_NAME, SUBJECT_KEY);
+        Map<String, Object> attributes = attributes(templates.getMessageFormatter(), templates.getThemeProperties());
+        attributes.put("kcSanitize", sanitizer);
+        bh.consume(templates.getSubject());
+        bh.consume(templates.renderText(attributes));
+        bh.consume(templates.renderHtml(attributes));
+    }
+
+    private void renderWithProvider(FreeMarkerProvider provider, Blackhole bh) throws Exception {
+        Properties messages = theme.getEnhancedMessages(realm, locale);
+        Map<String, Object> attributes = attributes(new MessageFormatterMethod(locale, messages), theme.getProperties());
+        bh.consume(new MessageFormat(messages.getProperty(SUBJECT_KEY, SUBJECT_KEY), locale).format(new Object[0]));
+        bh.consume(provider.processTemplate(attributes, "text/" + TEMPLATE_NAME, theme));
+        bh.consume(provider.processTemplate(attributes, "html/" + TEMPLATE_NAME, theme));
+    }
+
+    private Map<String, Object> attributes(MessageFormatterMethod msg, Properties properties) {
+        Map<String, Object> attributes = new HashMap<>();
+        attributes.put("otpCode", "123456");
+        attributes.put("expiryMinutes", 10);
+        attributes.put("userName", user.getFirstName());
+        attributes.put("realmName", realm.getName());
+        attributes.put("companyName", "LUSATEK");
+        attributes.put("locale", locale);
+        attributes.put("msg", msg);
+        attributes.put("properties", properties);
+        attributes.put("user", new ProfileBean(user));
+        return attributes;
+    }
+}
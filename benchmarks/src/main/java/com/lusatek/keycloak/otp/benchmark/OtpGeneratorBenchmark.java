@@ -0,0 +1,55 @@
+package com.lusatek.keycloak.otp.benchmark;
+
+import com.lusatek.keycloak.otp.util.OtpGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of generating an OTP and of validating the format of a submitted code.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OtpGeneratorBenchmark {
+
+    /**
+     * Submitted codes: valid, wrong length and non-digit input take different exits
+     */
+    @State(Scope.Benchmark)
+    public static class Input {
+        @Param({"123456", "12345", "12a456"})
+        public String code;
+    }
+
+    @Benchmark
+    public String generateOtp() {
+        return OtpGenerator.generateOtp();
+    }
+
+    /**
+     * All threads share the SecureRandom instance
+     */
+    @Benchmark
+    @Threads(4)
+    public String generateOtpContended() {
+        return OtpGenerator.generateOtp();
+    }
+
+    @Benchmark
+    public boolean isValidOtpFormat(Input input) {
+        return OtpGenerator.isValidOtpFormat(input.code);
+    }
+}
@@ -0,0 +1,52 @@
+package com.lusatek.keycloak.otp.benchmark;
+
+import com.lusatek.keycloak.otp.metrics.OtpMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-request instrumentation overhead. Run with -prof gc: recording should not allocate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OtpMetricsBenchmark {
+
+    private OtpMetrics metrics;
+
+    @Setup
+    public void setup() {
+        metrics = new OtpMetrics(new SimpleMeterRegistry());
+    }
+
+    @Benchmark
+    public void countVerifyResult() {
+        metrics.verify(OtpMetrics.VerifyResult.INVALID_CODE);
+    }
+
+    @Benchmark
+    public void recordRequest() {
+        metrics.request(OtpMetrics.Endpoint.VERIFY, System.nanoTime());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordRequestContended() {
+        metrics.request(OtpMetrics.Endpoint.VERIFY, System.nanoTime());
+    }
+}
@@ -0,0 +1,97 @@
+package com.lusatek.keycloak.otp.benchmark;
+
+import com.lusatek.keycloak.otp.benchmark.support.BenchmarkLogging;
+import com.lusatek.keycloak.otp.benchmark.support.Stubs;
+import com.lusatek.keycloak.otp.metrics.OtpMetrics;
+import com.lusatek.keycloak.otp.service.OtpComponents;
+import com.lusatek.keycloak.otp.service.OtpPolicy;
+import com.lusatek.keycloak.otp.service.OtpPolicyCache;
+import com.lusatek.keycloak.otp.service.OtpService;
+import com.lusatek.keycloak.otp.store.InMemoryOtpStore;
+import com.lusatek.keycloak.otp.store.OtpEntry;
+import com.lusatek.keycloak.otp.store.OtpStore;
+import com.lusatek.keycloak.otp.util.OtpCodeFormat;
+import com.lusatek.keycloak.otp.util.OtpHasher;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link OtpService#verifyOtp} against a stubbed session, realm and user with the in-memory store.
+ *
+ * - verifyWrongCode: store a code and submit a wrong one, which is counted on the entry with a compare-and-replace
+ * - verifyMalformedCode: rejected by the format check before any lookup
+ * - issueAndVerify: store a code and verify it, so each operation consumes the OTP it created
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OtpServiceBenchmark {
+
+    private static final String CODE = "123456";
+    private static final int CODE_VALUE = 123456;
+
+    private OtpStore store;
+    private RealmModel realm;
+    private UserModel user;
+    private OtpHasher hasher;
+    private OtpEntry entry;
+    private OtpService otpService;
+
+    @Setup
+    public void setup() {
+        BenchmarkLogging.quiet();
+
+        store = new InMemoryOtpStore();
+        realm = Stubs.realm("bench-realm", "bench");
+        user = Stubs.user("bench-user", "bench@example.com");
+        KeycloakSession session = Stubs.proxy(KeycloakSession.class, (proxy, method, args) -> {
+            if ("getProvider".equals(method.getName()) && args.length == 1 && args[0] == OtpStore.class) {
+                return store;
+            }
+            return Stubs.defaultValue(method.getReturnType());
+        });
+        hasher = new OtpHasher("bench-secret".getBytes(StandardCharsets.UTF_8));
+        OtpComponents components = new OtpComponents(null, null, null, null,
+            new OtpMetrics(new SimpleMeterRegistry()), hasher, null, null, null, null,
+            new OtpPolicyCache(new OtpPolicy(OtpCodeFormat.DEFAULT, OtpPolicy.DEFAULT_TTL_SECONDS, 30, OtpPolicy.DEFAULT_MAX_ATTEMPTS,
+                OtpPolicy.DEFAULT_TEMPLATE, OtpPolicy.DEFAULT_COMPANY_NAME)), null, null, null, 0);
+        otpService = new OtpService(session, realm, components);
+        entry = hasher.newEntry(CODE_VALUE, 0L, Long.MAX_VALUE, null);
+    }
+
+    @Benchmark
+    public boolean verifyWrongCode() {
+        // A fresh entry each time, otherwise the attempt limit is reached after a few calls
+        store.put(realm.getId(), user.getId(), entry);
+        return otpService.verifyOtp(user, "654321");
+    }
+
+    @Benchmark
+    public boolean verifyMalformedCode() {
+        return otpService.verifyOtp(user, "12a456");
+    }
+
+    @Benchmark
+    public boolean issueAndVerify() {
+        store.put(realm.getId(), user.getId(), hasher.newEntry(CODE_VALUE, 0L, Long.MAX_VALUE, null));
+        return otpService.verifyOtp(user, CODE);
+    }
+}
@@ -0,0 +1,78 @@
+package com.lusatek.keycloak.otp.benchmark;
+
+import com.lusatek.keycloak.otp.store.OtpEntry;
+import com.lusatek.keycloak.otp.util.OtpGenerator;
+import com.lusatek.keycloak.otp.util.OtpHasher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The code check at the core of {@code OtpService.verifyOtp}, without store access or logging.
+ *
+ * - plaintextStrings: previous routine, regex format check, expiry parsed from a String attribute
+ *   and String.equals on the stored code
+ * - hashedEntry: current routine, char-scanning parse to an int, primitive expiry and
+ *   HMAC of the submitted code compared in constant time against the stored digest
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OtpVerifyBenchmark {
+
+    private static final String STORED_CODE = "123456";
+
+    // Matching code, wrong code, non-digit input
+    @Param({"123456", "654321", "12a456"})
+    public String submitted;
+
+    private String storedExpiry;
+    private OtpHasher hasher;
+    private OtpEntry entry;
+    private long now;
+
+    @Setup
+    public void setup() {
+        now = System.currentTimeMillis();
+        storedExpiry = String.valueOf(now + TimeUnit.MINUTES.toMillis(10));
+        hasher = new OtpHasher("bench-secret".getBytes(StandardCharsets.UTF_8));
+        entry = hasher.newEntry(OtpGenerator.parseOtp(STORED_CODE), now, now + TimeUnit.MINUTES.toMillis(10), null);
+    }
+
+    @Benchmark
+    public boolean plaintextStrings() {
+        if (submitted == null || submitted.length() != 6 || !submitted.matches("\\d{6}")) {
+            return false;
+        }
+        if (now > Long.parseLong(storedExpiry)) {
+            return false;
+        }
+        return STORED_CODE.equals(submitted);
+    }
+
+    @Benchmark
+    public boolean hashedEntry() {
+        int value = OtpGenerator.parseOtp(submitted);
+        if (value < 0) {
+            return false;
+        }
+        if (entry.isExpired(now)) {
+            return false;
+        }
+        return hasher.matches(entry, value);
+    }
+}
@@ -0,0 +1,124 @@
+package com.lusatek.keycloak.otp.benchmark;
+
+import com.lusatek.keycloak.otp.benchmark.support.BenchmarkLogging;
+import com.lusatek.keycloak.otp.util.LocalRateLimiter;
+import com.lusatek.keycloak.otp.util.LongSlidingWindowLimiter;
+import com.lusatek.keycloak.otp.util.PreLookupLimiter;
+import com.lusatek.keycloak.otp.util.RateLimiter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rate limiter decisions under contention.
+ *
+ * - hotKey: every thread checks the same user; once the key reaches the limit this measures the
+ *   rejection path of a user under attack
+ * - spreadKeys: threads walk a pool of users, exercising the sharded map and the admitting CAS
+ * - sendAndVerify: senders and verifiers run side by side on the same users
+ * - spreadAddressesContended: the pre-lookup address limit, parsing the address to its long key
+ *   and counting it in the primitive-keyed table
+ *
+ * Limits use the largest supported value so the pooled users stay on the admitted path, and the
+ * limiter is recreated for every iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RateLimiterBenchmark {
+
+    @Param({"10000"})
+    public int users;
+
+    // Largest limit the packed 16-bit window counters support
+    private static final int MAX_ATTEMPTS = 65535;
+
+    private RateLimiter limiter;
+    private LongSlidingWindowLimiter addressLimiter;
+    private String[] identifiers;
+    private String[] addresses;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        BenchmarkLogging.quiet();
+        limiter = new LocalRateLimiter(MAX_ATTEMPTS, MAX_ATTEMPTS,
+            TimeUnit.HOURS.toMillis(1), users * 2, 16);
+        addressLimiter = new LongSlidingWindowLimiter(MAX_ATTEMPTS, TimeUnit.HOURS.toMillis(1), users * 2, 16);
+        identifiers = new String[users];
+        addresses = new String[users];
+        for (int i = 0; i < users; i++) {
+            identifiers[i] = "user-" + i;
+            addresses[i] = (i % 2 == 0) ? "10." + (i >>> 16 & 0xFF) + '.' + (i >>> 8 & 0xFF) + '.' + (i & 0xFF)
+                : "2001:db8:" + Integer.toHexString(i) + "::1";
+        }
+    }
+
+    /**
+     * Per-thread cursor into the identifier pool
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        String next(String[] identifiers) {
+            String identifier = identifiers[next];
+            next = (next + 1) % identifiers.length;
+            return identifier;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean hotKeySingleThread() {
+        return limiter.allowSend("user-0");
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean hotKeyContended() {
+        return limiter.allowSend("user-0");
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean spreadKeysContended(Cursor cursor) {
+        return limiter.allowSend(cursor.next(identifiers));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean spreadAddressesContended(Cursor cursor) {
+        return addressLimiter.tryAcquire(PreLookupLimiter.addressKey(cursor.next(addresses)), System.currentTimeMillis());
+    }
+
+    @Benchmark
+    @Group("sendAndVerify")
+    @GroupThreads(4)
+    public boolean send(Cursor cursor) {
+        return limiter.allowSend(cursor.next(identifiers));
+    }
+
+    @Benchmark
+    @Group("sendAndVerify")
+    @GroupThreads(4)
+    public boolean verify(Cursor cursor) {
+        return limiter.allowVerify(cursor.next(identifiers));
+    }
+}
@@ -0,0 +1,102 @@
+package com.lusatek.keycloak.otp.benchmark;
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetup;
+import com.lusatek.keycloak.otp.benchmark.support.BenchmarkLogging;
+import com.lusatek.keycloak.otp.benchmark.support.Stubs;
+import com.lusatek.keycloak.otp.service.OtpEmail;
+import com.lusatek.keycloak.otp.service.SmtpConnection;
+import com.lusatek.keycloak.otp.service.SmtpConnectionPool;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivery of one OTP email to an in-process GreenMail SMTP server (plain SMTP, no auth):
+ * - connectPerMessage: connect, send, quit for every email, like Keycloak's default sender
+ * - pooled: lease a warm connection from SmtpConnectionPool
+ * Against a real server with STARTTLS and auth the gap is considerably larger.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SmtpDeliveryBenchmark {
+
+    private GreenMail greenMail;
+    private KeycloakSession session;
+    private OtpEmail email;
+    private SmtpConnectionPool pool;
+
+    @Setup
+    public void setup() throws IOException {
+        BenchmarkLogging.quiet();
+
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        greenMail = new GreenMail(new ServerSetup(port, "127.0.0.1", ServerSetup.PROTOCOL_SMTP));
+        greenMail.start();
+
+        Map<String, String> smtpConfig = new HashMap<>();
+        smtpConfig.put("host", "127.0.0.1");
+        smtpConfig.put("port", String.valueOf(port));
+        smtpConfig.put("from", "noreply@example.com");
+        email = new OtpEmail("bench-realm", "bench@example.com", smtpConfig,
+            "Your verification code", "Your code is 123456", "<p>Your code is <b>123456</b></p>");
+
+        // Only vault and truststore lookups use the session, and neither applies without auth and TLS
+        session = Stubs.proxy(KeycloakSession.class, (proxy, method, args) -> Stubs.defaultValue(method.getReturnType()));
+        pool = new SmtpConnectionPool(1, TimeUnit.MINUTES.toMillis(5), 5000, 5000);
+    }
+
+    @TearDown(Level.Iteration)
+    public void purge() throws Exception {
+        greenMail.purgeEmailFromAllMailboxes();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+        greenMail.stop();
+    }
+
+    @Benchmark
+    public void connectPerMessage() throws EmailException {
+        try (SmtpConnection connection = SmtpConnection.open(session, email.getSmtpConfig())) {
+            connection.send(email);
+        }
+    }
+
+    @Benchmark
+    public void pooled() throws EmailException {
+        SmtpConnectionPool.Lease lease = pool.borrow(session, email.getSmtpConfig());
+        boolean broken = true;
+        try {
+            lease.getConnection().send(email);
+            broken = false;
+        } finally {
+            pool.release(lease, broken);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.lusatek.keycloak.otp.benchmark.support;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the extension's log statements (e.g. one warning per rejected attempt) out of measurements.
+ * Must run before the first extension class is loaded.
+ */
+public final class BenchmarkLogging {
+
+    // Strong reference so the level is not lost to garbage collection
+    private static final Logger EXTENSION_LOGGER = Logger.getLogger("com.lusatek");
+
+    private BenchmarkLogging() {
+    }
+
+    public static void quiet() {
+        System.setProperty("org.jboss.logging.provider", "jdk");
+        EXTENSION_LOGGER.setLevel(Level.SEVERE);
+    }
+}
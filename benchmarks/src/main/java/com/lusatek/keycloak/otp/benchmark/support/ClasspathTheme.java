@@ -0,0 +1,101 @@
+package com.lusatek.keycloak.otp.benchmark.support;
+
+import org.keycloak.models.RealmModel;
+import org.keycloak.theme.Theme;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The extension's email theme loaded from the classpath. Behaves like a theme behind Keycloak's
+ * theme cache: message files are parsed once per locale, but enhanced messages are merged with
+ * the realm localization texts on every call as Keycloak does.
+ */
+public class ClasspathTheme implements Theme {
+
+    private static final String ROOT = "themes/lusatek-otp/email/";
+
+    private final ClassLoader classLoader = ClasspathTheme.class.getClassLoader();
+    private final Map<Locale, Properties> messages = new ConcurrentHashMap<>();
+    private final Properties properties;
+
+    public ClasspathTheme() throws IOException {
+        this.properties = load(ROOT + "theme.properties");
+    }
+
+    @Override
+    public String getName() {
+        return "lusatek-otp";
+    }
+
+    @Override
+    public String getParentName() {
+        return "base";
+    }
+
+    @Override
+    public String getImportName() {
+        return null;
+    }
+
+    @Override
+    public Type getType() {
+        return Type.EMAIL;
+    }
+
+    @Override
+    public URL getTemplate(String name) {
+        return classLoader.getResource(ROOT + name);
+    }
+
+    @Override
+    public InputStream getResourceAsStream(String path) {
+        return classLoader.getResourceAsStream(ROOT + "resources/" + path);
+    }
+
+    @Override
+    public Properties getMessages(Locale locale) throws IOException {
+        return getMessages("messages", locale);
+    }
+
+    @Override
+    public Properties getMessages(String baseBundlename, Locale locale) throws IOException {
+        Properties cached = messages.get(locale);
+        if (cached == null) {
+            cached = load(ROOT + "messages/" + baseBundlename + "_" + locale.getLanguage() + ".properties");
+            messages.put(locale, cached);
+        }
+        return cached;
+    }
+
+    @Override
+    public Properties getEnhancedMessages(RealmModel realm, Locale locale) throws IOException {
+        Properties enhanced = new Properties();
+        enhanced.putAll(getMessages(locale));
+        enhanced.putAll(realm.getRealmLocalizationTextsByLocale(locale.toLanguageTag()));
+        return enhanced;
+    }
+
+    @Override
+    public Properties getProperties() {
+        return properties;
+    }
+
+    private Properties load(String path) throws IOException {
+        Properties loaded = new Properties();
+        try (InputStream in = classLoader.getResourceAsStream(path)) {
+            if (in == null) {
+                throw new IOException("Missing theme resource " + path);
+            }
+            loaded.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,88 @@
+package com.lusatek.keycloak.otp.benchmark.support;
+
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal Keycloak model stubs for benchmarks. Only the methods used on the measured paths
+ * return meaningful values; everything else returns null, false or zero.
+ */
+public final class Stubs {
+
+    private Stubs() {
+    }
+
+    public static RealmModel realm(String id, String name) {
+        return realm(id, name, Collections.emptyMap());
+    }
+
+    public static RealmModel realm(String id, String name, Map<String, String> smtpConfig) {
+        return proxy(RealmModel.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getId":
+                    return id;
+                case "getName":
+                    return name;
+                case "getRealmLocalizationTextsByLocale":
+                case "getAttributes":
+                    return Collections.emptyMap();
+                case "getSmtpConfig":
+                    return smtpConfig;
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    public static UserModel user(String id, String email) {
+        Map<String, List<String>> attributes = new HashMap<>();
+        return proxy(UserModel.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getId":
+                    return id;
+                case "getEmail":
+                    return email;
+                case "getUsername":
+                    return email;
+                case "getFirstName":
+                    return "Bench";
+                case "getAttributes":
+                    return attributes;
+                case "getFirstAttribute":
+                    List<String> values = attributes.get((String) args[0]);
+                    return values == null || values.isEmpty() ? null : values.get(0);
+                case "setSingleAttribute":
+                    attributes.put((String) args[0], Collections.singletonList((String) args[1]));
+                    return null;
+                case "removeAttribute":
+                    attributes.remove((String) args[0]);
+                    return null;
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(Stubs.class.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    public static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,64 @@
+package com.lusatek.keycloak.otp.loadtest;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Latencies and outcomes of one endpoint, recorded by a single thread and merged after the run.
+ * Every latency is kept, so percentiles are exact; a minute at a few thousand requests per second
+ * needs a few megabytes.
+ */
+class EndpointStats {
+
+    private long[] latencies = new long[1024];
+    private int count;
+    // Outcome label ("202", "400 INVALID_CODE") -> count
+    private final Map<String, Long> outcomes = new TreeMap<>();
+
+    void record(long latencyNanos, String outcome) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = latencyNanos;
+        outcomes.merge(outcome, 1L, Long::sum);
+    }
+
+    static EndpointStats merge(Iterable<EndpointStats> parts) {
+        EndpointStats merged = new EndpointStats();
+        for (EndpointStats part : parts) {
+            if (merged.count + part.count > merged.latencies.length) {
+                merged.latencies = Arrays.copyOf(merged.latencies, merged.count + part.count);
+            }
+            System.arraycopy(part.latencies, 0, merged.latencies, merged.count, part.count);
+            merged.count += part.count;
+            part.outcomes.forEach((outcome, n) -> merged.outcomes.merge(outcome, n, Long::sum));
+        }
+        Arrays.sort(merged.latencies, 0, merged.count);
+        return merged;
+    }
+
+    int count() {
+        return count;
+    }
+
+    /**
+     * @param quantile Between 0 and 1; call on merged stats only, their latencies are sorted
+     * @return Latency in nanoseconds, nearest-rank
+     */
+    long percentile(double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(quantile * count);
+        return latencies[Math.min(count, Math.max(1, rank)) - 1];
+    }
+
+    long max() {
+        return count == 0 ? 0 : latencies[count - 1];
+    }
+
+    Map<String, Long> outcomes() {
+        return outcomes;
+    }
+}
@@ -0,0 +1,304 @@
+package com.lusatek.keycloak.otp.loadtest;
+
+import com.lusatek.keycloak.otp.benchmark.support.ClasspathTheme;
+import com.lusatek.keycloak.otp.benchmark.support.Stubs;
+import com.lusatek.keycloak.otp.metrics.OtpMetrics;
+import com.lusatek.keycloak.otp.resource.EmailOtpResource;
+import com.lusatek.keycloak.otp.service.AsyncRequestExecutor;
+import com.lusatek.keycloak.otp.service.EmailDispatcher;
+import com.lusatek.keycloak.otp.service.EmailTemplateCache;
+import com.lusatek.keycloak.otp.service.NegativeLookupCache;
+import com.lusatek.keycloak.otp.service.OtpComponents;
+import com.lusatek.keycloak.otp.service.OtpPolicy;
+import com.lusatek.keycloak.otp.service.OtpPolicyCache;
+import com.lusatek.keycloak.otp.service.SmtpConnectionPool;
+import com.lusatek.keycloak.otp.service.VerifiedTokenCache;
+import com.lusatek.keycloak.otp.store.InMemoryOtpStore;
+import com.lusatek.keycloak.otp.store.OtpStore;
+import com.lusatek.keycloak.otp.util.LinkTokenSigner;
+import com.lusatek.keycloak.otp.util.LocalRateLimiter;
+import com.lusatek.keycloak.otp.util.OtpCodeFormat;
+import com.lusatek.keycloak.otp.util.OtpHasher;
+import com.lusatek.keycloak.otp.util.PreLookupLimiter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import jakarta.ws.rs.core.MultivaluedMap;
+import org.infinispan.Cache;
+import org.keycloak.common.ClientConnection;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.models.ThemeManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.theme.Theme;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The extension's request path wired the way EmailOtpResourceProviderFactory wires it, on top of a
+ * stubbed Keycloak session stack: one realm whose SMTP settings point at the sink, a fixed set of
+ * users served from memory, the in-memory OTP store, a map standing in for the work cache and the
+ * email theme from the classpath. Everything behind the session (dispatcher, SMTP pool, limiters,
+ * caches, async pool) is the production code.
+ *
+ * The bearer token is accepted through the verified token cache, so token verification itself is
+ * not part of the measurement. The maintenance tasks the factory registers with Keycloak's timer
+ * run on a scheduled executor.
+ */
+public class InProcessKeycloak implements AutoCloseable {
+
+    static final String REALM_ID = "loadtest-realm";
+    static final String TOKEN = "loadtest-token";
+    static final String CLIENT_ID = "loadtest-client";
+
+    private final LoadTestOptions options;
+    private final RealmModel realm;
+    private final Map<String, UserModel> usersById = new HashMap<>();
+    private final Map<String, UserModel> usersByEmail = new HashMap<>();
+    private final OtpStore store = new InMemoryOtpStore();
+    // Shared by all sessions
+    private final UserProvider userProvider;
+    private final RealmProvider realmProvider;
+    private final ThemeManager themeManager;
+    private final InfinispanConnectionProvider infinispan;
+    private final KeycloakSessionFactory sessionFactory;
+    private final ScheduledExecutorService maintenance;
+    private final EmailDispatcher dispatcher;
+    private final AsyncRequestExecutor asyncExecutor;
+    private final OtpHasher hasher;
+    private final OtpComponents components;
+
+    public InProcessKeycloak(LoadTestOptions options, int smtpPort) throws IOException {
+        this.options = options;
+
+        Map<String, String> smtpConfig = new HashMap<>();
+        smtpConfig.put("host", "127.0.0.1");
+        smtpConfig.put("port", String.valueOf(smtpPort));
+        smtpConfig.put("from", "noreply@loadtest.example");
+        this.realm = Stubs.realm(REALM_ID, "loadtest", smtpConfig);
+        for (int i = 0; i < options.users; i++) {
+            UserModel user = Stubs.user(userId(i), email(i));
+            usersById.put(user.getId(), user);
+            usersByEmail.put(user.getEmail(), user);
+        }
+        this.userProvider = Stubs.proxy(UserProvider.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getUserById":
+                    return usersById.get((String) args[1]);
+                case "getUserByEmail":
+                    return usersByEmail.get(((String) args[1]).toLowerCase(Locale.ROOT));
+                default:
+                    return Stubs.defaultValue(method.getReturnType());
+            }
+        });
+        this.realmProvider = Stubs.proxy(RealmProvider.class, (proxy, method, args) ->
+            "getRealm".equals(method.getName()) && REALM_ID.equals(args[0]) ? realm : Stubs.defaultValue(method.getReturnType()));
+        Theme theme = new ClasspathTheme();
+        this.themeManager = Stubs.proxy(ThemeManager.class, (proxy, method, args) ->
+            "getTheme".equals(method.getName()) ? theme : Stubs.defaultValue(method.getReturnType()));
+        Cache<Object, Object> workCache = workCache();
+        this.infinispan = Stubs.proxy(InfinispanConnectionProvider.class, (proxy, method, args) ->
+            "getCache".equals(method.getName()) ? workCache : Stubs.defaultValue(method.getReturnType()));
+        this.sessionFactory = Stubs.proxy(KeycloakSessionFactory.class, (proxy, method, args) -> {
+            if ("create".equals(method.getName())) {
+                return newSession(null, null);
+            }
+            return Stubs.defaultValue(method.getReturnType());
+        });
+
+        OtpMetrics metrics = new OtpMetrics(new SimpleMeterRegistry());
+        SmtpConnectionPool smtpPool = new SmtpConnectionPool(options.smtpPoolMaxPerConfig,
+            TimeUnit.SECONDS.toMillis(60), 5000, 5000);
+        this.dispatcher = new EmailDispatcher(sessionFactory, metrics, smtpPool, options.dispatchWorkers,
+            options.dispatchQueueCapacity, TimeUnit.MINUTES.toMillis(15), 50);
+        this.hasher = new OtpHasher("loadtest-secret".getBytes(StandardCharsets.UTF_8));
+        long windowMs = TimeUnit.SECONDS.toMillis(options.rateLimitWindowSeconds);
+        LocalRateLimiter rateLimiter = new LocalRateLimiter(options.rateLimitMaxSend, options.rateLimitMaxVerify,
+            windowMs, 100000, 16);
+        PreLookupLimiter preLookupLimiter = new PreLookupLimiter(new OtpHasher(hasher.deriveKey("email-otp-rate-limit")),
+            options.rateLimitMaxPerAddress, options.rateLimitMaxPerClient, options.rateLimitMaxPerIdentifier,
+            TimeUnit.SECONDS.toMillis(60), 100000, 16);
+        NegativeLookupCache negativeLookupCache = new NegativeLookupCache(
+            new OtpHasher(hasher.deriveKey("email-otp-negative-lookup")),
+            TimeUnit.SECONDS.toMillis(options.negativeLookupTtlSeconds), 100000);
+        this.asyncExecutor = options.asyncWorkers > 0
+            ? new AsyncRequestExecutor(sessionFactory, options.asyncWorkers, options.asyncQueueCapacity)
+            : null;
+        OtpPolicyCache policyCache = new OtpPolicyCache(new OtpPolicy(OtpCodeFormat.DEFAULT, OtpPolicy.DEFAULT_TTL_SECONDS,
+            options.minResendIntervalSeconds, OtpPolicy.DEFAULT_MAX_ATTEMPTS, OtpPolicy.DEFAULT_TEMPLATE,
+            OtpPolicy.DEFAULT_COMPANY_NAME));
+
+        VerifiedTokenCache tokenCache = new VerifiedTokenCache(TimeUnit.DAYS.toMillis(1), 16);
+        // Expiry 0: valid for the cache TTL
+        tokenCache.put(tokenCache.key(REALM_ID, TOKEN), 0, CLIENT_ID);
+
+        this.components = new OtpComponents(dispatcher, rateLimiter, preLookupLimiter,
+            new EmailTemplateCache(TimeUnit.MINUTES.toMillis(5), 256), metrics, hasher,
+            new LinkTokenSigner(hasher.deriveKey("email-otp-link-token")), tokenCache, null, null,
+            policyCache, negativeLookupCache, asyncExecutor, null, 1000);
+
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "loadtest-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        maintenance.scheduleWithFixedDelay(rateLimiter::cleanup, 60, 60, TimeUnit.SECONDS);
+        maintenance.scheduleWithFixedDelay(preLookupLimiter::cleanup, 60, 60, TimeUnit.SECONDS);
+        maintenance.scheduleWithFixedDelay(negativeLookupCache::evictExpired, 30, 30, TimeUnit.SECONDS);
+        maintenance.scheduleWithFixedDelay(smtpPool::evictIdle, 30, 30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Resource for one HTTP request, as Keycloak creates it per request
+     * @param remoteAddress Client address seen by the request
+     */
+    public EmailOtpResource newRequest(String remoteAddress, HttpHeaders headers) {
+        return new EmailOtpResource(newSession(remoteAddress, headers), components);
+    }
+
+    /**
+     * Headers of an authenticated request, optionally carrying an Idempotency-Key
+     */
+    public static HttpHeaders headers(String idempotencyKey) {
+        MultivaluedMap<String, String> values = new MultivaluedHashMap<>();
+        values.putSingle(HttpHeaders.AUTHORIZATION, "Bearer " + TOKEN);
+        if (idempotencyKey != null) {
+            values.putSingle("Idempotency-Key", idempotencyKey);
+        }
+        return Stubs.proxy(HttpHeaders.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getRequestHeaders":
+                    return values;
+                case "getHeaderString":
+                    return values.getFirst((String) args[0]);
+                default:
+                    return Stubs.defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    /**
+     * Store an active OTP for a user, as a preceding /send would have
+     */
+    public void issue(String userId, long code) {
+        long now = System.currentTimeMillis();
+        store.put(REALM_ID, userId, hasher.newEntry(code, now, now + TimeUnit.MINUTES.toMillis(10), null));
+    }
+
+    /**
+     * @return Emails waiting for a dispatch worker
+     */
+    public int getDispatchBacklog() {
+        return dispatcher.getBacklog();
+    }
+
+    /**
+     * @return Requests waiting for an async worker, 0 when requests run inline
+     */
+    public int getAsyncBacklog() {
+        return asyncExecutor != null ? asyncExecutor.getBacklog() : 0;
+    }
+
+    static String userId(int index) {
+        return "user-" + index;
+    }
+
+    static String email(int index) {
+        return "user" + index + "@loadtest.example";
+    }
+
+    @Override
+    public void close() {
+        maintenance.shutdownNow();
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdown(TimeUnit.SECONDS.toMillis(options.drainSeconds));
+        }
+        dispatcher.shutdown(TimeUnit.SECONDS.toMillis(options.drainSeconds));
+    }
+
+    private KeycloakSession newSession(String remoteAddress, HttpHeaders headers) {
+        RealmModel[] contextRealm = { headers != null ? realm : null };
+        ClientConnection connection = Stubs.proxy(ClientConnection.class, (proxy, method, args) ->
+            "getRemoteAddr".equals(method.getName()) || "getRemoteHost".equals(method.getName())
+                ? remoteAddress : Stubs.defaultValue(method.getReturnType()));
+        KeycloakContext context = Stubs.proxy(KeycloakContext.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getRealm":
+                    return contextRealm[0];
+                case "setRealm":
+                    contextRealm[0] = (RealmModel) args[0];
+                    return null;
+                case "getConnection":
+                    return connection;
+                case "getRequestHeaders":
+                    return headers;
+                case "resolveLocale":
+                    return Locale.ENGLISH;
+                default:
+                    return Stubs.defaultValue(method.getReturnType());
+            }
+        });
+        return Stubs.proxy(KeycloakSession.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getContext":
+                    return context;
+                case "users":
+                    return userProvider;
+                case "realms":
+                    return realmProvider;
+                case "theme":
+                    return themeManager;
+                case "getTransactionManager":
+                    return TRANSACTIONS;
+                case "getKeycloakSessionFactory":
+                    return sessionFactory;
+                case "getProvider":
+                    if (args.length == 1 && args[0] == OtpStore.class) {
+                        return store;
+                    }
+                    if (args.length == 1 && args[0] == InfinispanConnectionProvider.class) {
+                        return infinispan;
+                    }
+                    return null;
+                default:
+                    return Stubs.defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    private static final KeycloakTransactionManager TRANSACTIONS = Stubs.proxy(KeycloakTransactionManager.class,
+        (proxy, method, args) -> Stubs.defaultValue(method.getReturnType()));
+
+    @SuppressWarnings("unchecked")
+    private static Cache<Object, Object> workCache() {
+        Map<Object, Object> entries = new ConcurrentHashMap<>();
+        return Stubs.proxy(Cache.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "get":
+                    return entries.get(args[0]);
+                case "put":
+                    return entries.put(args[0], args[1]);
+                case "putIfAbsent":
+                    return entries.putIfAbsent(args[0], args[1]);
+                case "remove":
+                    return args.length == 1 ? entries.remove(args[0]) : entries.remove(args[0], args[1]);
+                default:
+                    return Stubs.defaultValue(method.getReturnType());
+            }
+        });
+    }
+}
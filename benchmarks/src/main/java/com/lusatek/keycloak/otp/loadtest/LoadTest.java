@@ -0,0 +1,220 @@
+package com.lusatek.keycloak.otp.loadtest;
+
+import com.lusatek.keycloak.otp.benchmark.support.BenchmarkLogging;
+import com.lusatek.keycloak.otp.model.OtpResponse;
+import com.lusatek.keycloak.otp.model.SendOtpRequest;
+import com.lusatek.keycloak.otp.model.SendOtpResponse;
+import com.lusatek.keycloak.otp.model.VerifyOtpRequest;
+import com.lusatek.keycloak.otp.resource.EmailOtpResource;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.Response;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop load test of /send and /verify against the extension running in process (see
+ * {@link InProcessKeycloak}) with a discarding SMTP server.
+ *
+ * Request i is due at start + i / rps regardless of how earlier requests fared, and its latency is
+ * measured from that due time, so a stall shows up in the percentiles of every request it delays
+ * instead of lowering the request rate (no coordinated omission). Client threads claim requests in
+ * order; if all of them are busy, requests start late and the delay is counted.
+ *
+ * Verify requests are preceded by storing an OTP whose code the client knows, and submit it or a
+ * wrong one according to --verify-success-ratio; sends and verifies walk the user set in order so
+ * each user sees as few requests as the run allows, like a signup peak.
+ *
+ * Usage: java -cp target/benchmarks.jar com.lusatek.keycloak.otp.loadtest.LoadTest --rps=500 --duration-seconds=60
+ */
+public class LoadTest {
+
+    // Requests starting later than this after their due time are reported as late
+    private static final long LATE_START_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int UNKNOWN_EMAILS = 1000;
+
+    private final LoadTestOptions options;
+    private final InProcessKeycloak keycloak;
+    private final AtomicLong tickets = new AtomicLong();
+    private final AtomicLong lateStarts = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final List<EndpointStats> sendStats = new ArrayList<>();
+    private final List<EndpointStats> verifyStats = new ArrayList<>();
+
+    private long startNanos;
+    private long measureFromNanos;
+    private long endNanos;
+    private long intervalNanos;
+
+    LoadTest(LoadTestOptions options, InProcessKeycloak keycloak) {
+        this.options = options;
+        this.keycloak = keycloak;
+    }
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkLogging.quiet();
+
+        LoadTestOptions options;
+        try {
+            options = LoadTestOptions.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(LoadTestOptions.usage());
+            System.exit(2);
+            return;
+        }
+
+        try (SmtpSink sink = new SmtpSink(options.smtpDelayMs)) {
+            InProcessKeycloak keycloak = new InProcessKeycloak(options, sink.getPort());
+            LoadTest test = new LoadTest(options, keycloak);
+            System.out.printf("Running %d req/s for %d s (%d s warmup), %.0f%% verify, %d threads, %d async workers%n",
+                options.rps, options.durationSeconds, options.warmupSeconds, options.verifyRatio * 100,
+                options.threads, options.asyncWorkers);
+            test.run();
+
+            int dispatchBacklog = keycloak.getDispatchBacklog();
+            int asyncBacklog = keycloak.getAsyncBacklog();
+            keycloak.close();
+            test.report(System.out);
+            System.out.printf("%nDispatch backlog at end: %d, async backlog at end: %d%n", dispatchBacklog, asyncBacklog);
+            System.out.printf("SMTP sink: %d messages over %d connections%n", sink.getMessages(), sink.getConnections());
+        }
+    }
+
+    void run() throws InterruptedException {
+        intervalNanos = TimeUnit.SECONDS.toNanos(1) / options.rps;
+        startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        measureFromNanos = startNanos + TimeUnit.SECONDS.toNanos(options.warmupSeconds);
+        endNanos = startNanos + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+
+        List<Thread> threads = new ArrayList<>(options.threads);
+        for (int i = 0; i < options.threads; i++) {
+            EndpointStats send = new EndpointStats();
+            EndpointStats verify = new EndpointStats();
+            sendStats.add(send);
+            verifyStats.add(verify);
+            long seed = i;
+            Thread thread = new Thread(() -> clientLoop(new SplittableRandom(seed), send, verify), "loadtest-client-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void clientLoop(SplittableRandom random, EndpointStats sendStats, EndpointStats verifyStats) {
+        while (true) {
+            long ticket = tickets.getAndIncrement();
+            long due = startNanos + ticket * intervalNanos;
+            if (due >= endNanos) {
+                return;
+            }
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            boolean measured = due >= measureFromNanos;
+            if (measured && -wait > LATE_START_NANOS) {
+                lateStarts.incrementAndGet();
+            }
+
+            boolean verify = random.nextDouble() < options.verifyRatio;
+            String outcome;
+            try {
+                outcome = verify ? verify(ticket, random) : send(ticket, random);
+            } catch (RuntimeException e) {
+                failures.incrementAndGet();
+                outcome = "exception " + e.getClass().getSimpleName();
+            }
+            long latency = System.nanoTime() - due;
+            if (measured) {
+                (verify ? verifyStats : sendStats).record(latency, outcome);
+            }
+        }
+    }
+
+    private String send(long ticket, SplittableRandom random) {
+        SendOtpRequest request = new SendOtpRequest();
+        request.setEmail(email(ticket, random));
+        HttpHeaders headers = InProcessKeycloak.headers(null);
+        EmailOtpResource resource = keycloak.newRequest(address(ticket), headers);
+        return outcome(resource.sendOtp(request, headers).toCompletableFuture().join());
+    }
+
+    private String verify(long ticket, SplittableRandom random) {
+        VerifyOtpRequest request = new VerifyOtpRequest();
+        String email = email(ticket, random);
+        request.setEmail(email);
+        int code = random.nextInt(1000000);
+        if (!email.startsWith("unknown")) {
+            keycloak.issue(InProcessKeycloak.userId((int) (ticket % options.users)), code);
+        }
+        boolean correct = random.nextDouble() < options.verifySuccessRatio;
+        request.setCode(String.format("%06d", correct ? code : (code + 1) % 1000000));
+        EmailOtpResource resource = keycloak.newRequest(address(ticket), InProcessKeycloak.headers(null));
+        return outcome(resource.verifyOtp(request).toCompletableFuture().join());
+    }
+
+    private String email(long ticket, SplittableRandom random) {
+        if (options.unknownUserRatio > 0 && random.nextDouble() < options.unknownUserRatio) {
+            // A bounded set, so repeated probes for missing accounts occur as they do in practice
+            return "unknown" + random.nextInt(UNKNOWN_EMAILS) + "@loadtest.example";
+        }
+        return InProcessKeycloak.email((int) (ticket % options.users));
+    }
+
+    private String address(long ticket) {
+        int index = (int) (ticket % options.addresses);
+        return "10." + (index >>> 16 & 0xFF) + '.' + (index >>> 8 & 0xFF) + '.' + (index & 0xFF);
+    }
+
+    private static String outcome(Response response) {
+        Object entity = response.getEntity();
+        String detail = null;
+        if (entity instanceof OtpResponse) {
+            detail = ((OtpResponse) entity).getErrorCode();
+            if (detail == null && entity instanceof SendOtpResponse) {
+                detail = ((SendOtpResponse) entity).getStatus();
+            }
+        }
+        return detail != null ? response.getStatus() + " " + detail : String.valueOf(response.getStatus());
+    }
+
+    void report(PrintStream out) {
+        double seconds = (double) (endNanos - measureFromNanos) / TimeUnit.SECONDS.toNanos(1);
+        out.printf("%nMeasured %.0f s after warmup; %d requests started more than %d ms late, %d client-side failures%n%n",
+            seconds, lateStarts.get(), TimeUnit.NANOSECONDS.toMillis(LATE_START_NANOS), failures.get());
+        out.printf("%-8s %10s %10s %10s %10s %10s %10s%n", "endpoint", "requests", "req/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms");
+        EndpointStats send = EndpointStats.merge(sendStats);
+        EndpointStats verify = EndpointStats.merge(verifyStats);
+        reportLine(out, "send", send, seconds);
+        reportLine(out, "verify", verify, seconds);
+        reportOutcomes(out, "send", send);
+        reportOutcomes(out, "verify", verify);
+    }
+
+    private static void reportLine(PrintStream out, String name, EndpointStats stats, double seconds) {
+        out.printf("%-8s %10d %10.1f %10.2f %10.2f %10.2f %10.2f%n", name, stats.count(), stats.count() / seconds,
+            millis(stats.percentile(0.50)), millis(stats.percentile(0.99)), millis(stats.percentile(0.999)),
+            millis(stats.max()));
+    }
+
+    private static void reportOutcomes(PrintStream out, String name, EndpointStats stats) {
+        out.printf("%n%s responses:%n", name);
+        for (Map.Entry<String, Long> entry : stats.outcomes().entrySet()) {
+            out.printf("  %-32s %10d  %5.1f%%%n", entry.getKey(), entry.getValue(),
+                100.0 * entry.getValue() / Math.max(1, stats.count()));
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -0,0 +1,116 @@
+package com.lusatek.keycloak.otp.loadtest;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Locale;
+
+/**
+ * Command line options of the load test, given as --name=value with the field name in kebab case
+ * (e.g. --verify-ratio=0.3). Extension settings use the names and defaults of the provider
+ * configuration keys, except where noted.
+ */
+public class LoadTestOptions {
+
+    // Load shape
+    /** Requests started per second over all endpoints */
+    public int rps = 200;
+    public int durationSeconds = 60;
+    /** Leading part of the run that is executed but not reported */
+    public int warmupSeconds = 10;
+    /** Client threads; must cover rps x latency or requests start late (and are reported late) */
+    public int threads = 64;
+    public int users = 100000;
+    /** Share of requests going to /verify, the rest go to /send */
+    public double verifyRatio = 0.5;
+    /** Share of verifications submitting the right code */
+    public double verifySuccessRatio = 0.9;
+    /** Share of requests for an email that has no account */
+    public double unknownUserRatio = 0.0;
+    /** Distinct client addresses the requests come from */
+    public int addresses = 1000;
+    /** Time the SMTP sink waits before accepting a message */
+    public long smtpDelayMs = 0;
+    /** Time given to queued requests and emails to finish after the run */
+    public int drainSeconds = 30;
+
+    // Extension settings
+    public int asyncWorkers = 0;
+    public int asyncQueueCapacity = 1000;
+    public int dispatchWorkers = 4;
+    public int dispatchQueueCapacity = 1000;
+    public int smtpPoolMaxPerConfig = 4;
+    public int minResendIntervalSeconds = 30;
+    public int rateLimitMaxSend = 5;
+    public int rateLimitMaxVerify = 10;
+    public int rateLimitWindowSeconds = 3600;
+    public int rateLimitMaxPerAddress = 1200;
+    /** Disabled by default: all load comes from one client, which the server default caps at 100 req/s */
+    public int rateLimitMaxPerClient = 0;
+    public int rateLimitMaxPerIdentifier = 20;
+    public int negativeLookupTtlSeconds = 30;
+
+    /**
+     * @throws IllegalArgumentException on an unknown option or a malformed value
+     */
+    public static LoadTestOptions parse(String[] args) {
+        LoadTestOptions options = new LoadTestOptions();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got: " + arg);
+            }
+            options.set(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        if (options.rps <= 0 || options.threads <= 0 || options.users <= 0 || options.addresses <= 0) {
+            throw new IllegalArgumentException("rps, threads, users and addresses must be positive");
+        }
+        if (options.warmupSeconds >= options.durationSeconds) {
+            throw new IllegalArgumentException("warmup-seconds must be shorter than duration-seconds");
+        }
+        return options;
+    }
+
+    /**
+     * @return Usage text listing every option with its current value
+     */
+    public static String usage() {
+        StringBuilder usage = new StringBuilder("Options (--name=value):\n");
+        LoadTestOptions defaults = new LoadTestOptions();
+        for (Field field : LoadTestOptions.class.getFields()) {
+            if (!Modifier.isStatic(field.getModifiers())) {
+                try {
+                    usage.append(String.format("  --%-32s %s%n", optionName(field.getName()), field.get(defaults)));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return usage.toString();
+    }
+
+    private void set(String name, String value) {
+        for (Field field : LoadTestOptions.class.getFields()) {
+            if (!Modifier.isStatic(field.getModifiers()) && optionName(field.getName()).equals(name)) {
+                try {
+                    if (field.getType() == int.class) {
+                        field.setInt(this, Integer.parseInt(value));
+                    } else if (field.getType() == long.class) {
+                        field.setLong(this, Long.parseLong(value));
+                    } else {
+                        field.setDouble(this, Double.parseDouble(value));
+                    }
+                    return;
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid value for --" + name + ": " + value);
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        throw new IllegalArgumentException("Unknown option: --" + name);
+    }
+
+    private static String optionName(String fieldName) {
+        return fieldName.replaceAll("([A-Z])", "-$1").toLowerCase(Locale.ROOT);
+    }
+}
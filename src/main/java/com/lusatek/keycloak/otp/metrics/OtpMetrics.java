@@ -0,0 +1,204 @@
+package com.lusatek.keycloak.otp.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Micrometer instrumentation of the OTP send and verify pipelines.
+ *
+ * Every meter is registered up front with a fixed set of tag values, so recording on the request
+ * path is a field access plus an increment: no meter lookup, tag building or string concatenation.
+ * Durations are recorded from {@link System#nanoTime()} deltas to avoid allocating timer samples.
+ * When Keycloak metrics are disabled the registry has no backing registries and meters are no-ops.
+ */
+public class OtpMetrics {
+
+    private static final String PREFIX = "email.otp.";
+
+    /**
+     * Why an OTP email was not sent
+     */
+    public enum SendFailure {
+        RENDER, QUEUE_FULL, SMTP
+    }
+
+    /**
+     * Outcome of a verification attempt
+     */
+    public enum VerifyResult {
+        VERIFIED, INVALID_CODE, ATTEMPTS_EXCEEDED, EXPIRED, NOT_FOUND, MALFORMED, REPLAYED
+    }
+
+    /**
+     * Rate-limited operation, or the scope of the limit applied before the user lookup
+     */
+    public enum LimitKind {
+        SEND, VERIFY, ADDRESS, CLIENT, IDENTIFIER
+    }
+
+    /**
+     * Endpoint whose total request time is measured
+     */
+    public enum Endpoint {
+        SEND, SEND_BATCH, VERIFY, VERIFY_BATCH, STATUS
+    }
+
+    private final MeterRegistry registry;
+    private final Counter sent;
+    private final Counter[] sendFailed;
+    private final Counter[] verify;
+    private final Counter[] rateLimited;
+    private final Timer userLookup;
+    private final Counter userLookupCachedMiss;
+    private final Timer smtpSend;
+    private final Counter expiredPurged;
+    private final Timer sweep;
+    private final Counter eventsDropped;
+    private final Timer eventFlush;
+    private final Timer[] request;
+
+    public OtpMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        this.sent = Counter.builder(PREFIX + "sent")
+            .description("OTP emails accepted by the SMTP server")
+            .register(registry);
+
+        this.sendFailed = new Counter[SendFailure.values().length];
+        for (SendFailure failure : SendFailure.values()) {
+            sendFailed[failure.ordinal()] = Counter.builder(PREFIX + "send.failed")
+                .description("OTP emails that could not be sent")
+                .tag("reason", tagValue(failure))
+                .register(registry);
+        }
+
+        this.verify = new Counter[VerifyResult.values().length];
+        for (VerifyResult result : VerifyResult.values()) {
+            verify[result.ordinal()] = Counter.builder(PREFIX + "verify")
+                .description("OTP verification attempts by result")
+                .tag("result", tagValue(result))
+                .register(registry);
+        }
+
+        this.rateLimited = new Counter[LimitKind.values().length];
+        for (LimitKind kind : LimitKind.values()) {
+            rateLimited[kind.ordinal()] = Counter.builder(PREFIX + "rate.limited")
+                .description("Requests rejected by the rate limiter")
+                .tag("kind", tagValue(kind))
+                .register(registry);
+        }
+
+        this.userLookup = timer(PREFIX + "user.lookup", "User resolution by email or id");
+        this.userLookupCachedMiss = Counter.builder(PREFIX + "user.lookup.cached.miss")
+            .description("Lookups of unknown users answered from the negative lookup cache")
+            .register(registry);
+        this.smtpSend = timer(PREFIX + "smtp.send", "Delivery of one OTP email over SMTP");
+        this.expiredPurged = Counter.builder(PREFIX + "expired.purged")
+            .description("Expired OTP user attribute rows deleted by the background sweep")
+            .register(registry);
+        this.sweep = timer(PREFIX + "sweep", "Run of the expired OTP sweep on the node holding the cluster lock");
+        this.eventsDropped = Counter.builder(PREFIX + "events.dropped")
+            .description("OTP events dropped because the event queue was full")
+            .register(registry);
+        this.eventFlush = timer(PREFIX + "event.flush", "Delivery of one batch of OTP events to the event store and listeners");
+
+        this.request = new Timer[Endpoint.values().length];
+        for (Endpoint endpoint : Endpoint.values()) {
+            request[endpoint.ordinal()] = Timer.builder(PREFIX + "request")
+                .description("Total request processing time")
+                .tag("endpoint", tagValue(endpoint))
+                .publishPercentileHistogram()
+                .register(registry);
+        }
+    }
+
+    /**
+     * Register gauges sampled on scrape; suppliers must be cheap and thread-safe
+     */
+    public void bindGauges(Supplier<Number> rateLimiterKeys, Supplier<Number> dispatchBacklog) {
+        Gauge.builder(PREFIX + "rate.limiter.keys", rateLimiterKeys)
+            .description("Identifiers tracked by the rate limiter on this node")
+            .strongReference(true)
+            .register(registry);
+        Gauge.builder(PREFIX + "dispatch.backlog", dispatchBacklog)
+            .description("OTP emails waiting for a dispatch worker")
+            .strongReference(true)
+            .register(registry);
+    }
+
+    public void sent() {
+        sent.increment();
+    }
+
+    public void sendFailed(SendFailure failure) {
+        sendFailed[failure.ordinal()].increment();
+    }
+
+    public void verify(VerifyResult result) {
+        verify[result.ordinal()].increment();
+    }
+
+    public void rateLimited(LimitKind kind) {
+        rateLimited[kind.ordinal()].increment();
+    }
+
+    /**
+     * @param startNanos Value of {@link System#nanoTime()} taken before the lookup
+     */
+    public void userLookup(long startNanos) {
+        userLookup.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void userLookupCachedMiss() {
+        userLookupCachedMiss.increment();
+    }
+
+    /**
+     * @param startNanos Value of {@link System#nanoTime()} taken before the SMTP send
+     */
+    public void smtpSend(long startNanos) {
+        smtpSend.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param startNanos Value of {@link System#nanoTime()} taken when the sweep started
+     * @param rows Attribute rows deleted by the sweep
+     */
+    public void expiredPurged(long startNanos, int rows) {
+        sweep.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        expiredPurged.increment(rows);
+    }
+
+    public void eventDropped() {
+        eventsDropped.increment();
+    }
+
+    /**
+     * @param startNanos Value of {@link System#nanoTime()} taken before the batch was delivered
+     */
+    public void eventFlush(long startNanos) {
+        eventFlush.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param startNanos Value of {@link System#nanoTime()} taken when the request started
+     */
+    public void request(Endpoint endpoint, long startNanos) {
+        request[endpoint.ordinal()].record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Timer timer(String name, String description) {
+        return Timer.builder(name)
+            .description(description)
+            .publishPercentileHistogram()
+            .register(registry);
+    }
+
+    private static String tagValue(Enum<?> value) {
+        return value.name().toLowerCase();
+    }
+}
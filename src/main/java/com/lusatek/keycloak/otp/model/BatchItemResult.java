@@ -0,0 +1,109 @@
+package com.lusatek.keycloak.otp.model;
+
+/**
+ * Outcome of a single entry of a batch OTP send or verify
+ */
+public class BatchItemResult {
+    private int index;
+    private String email;
+    private String userId;
+    private boolean success;
+    private String message;
+    private String errorCode;
+    private String dispatchId;
+    private String status;
+
+    public BatchItemResult() {
+    }
+
+    public BatchItemResult(int index, String email, String userId) {
+        this.index = index;
+        this.email = email;
+        this.userId = userId;
+    }
+
+    public BatchItemResult queued(String message, String dispatchId, String status) {
+        this.success = true;
+        this.message = message;
+        this.dispatchId = dispatchId;
+        this.status = status;
+        return this;
+    }
+
+    public BatchItemResult succeeded(String message) {
+        this.success = true;
+        this.message = message;
+        return this;
+    }
+
+    public BatchItemResult failed(String message, String errorCode) {
+        this.success = false;
+        this.message = message;
+        this.errorCode = errorCode;
+        return this;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public void setEmail(String email) {
+        this.email = email;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public void setSuccess(boolean success) {
+        this.success = success;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    public String getErrorCode() {
+        return errorCode;
+    }
+
+    public void setErrorCode(String errorCode) {
+        this.errorCode = errorCode;
+    }
+
+    public String getDispatchId() {
+        return dispatchId;
+    }
+
+    public void setDispatchId(String dispatchId) {
+        this.dispatchId = dispatchId;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+}
@@ -0,0 +1,51 @@
+package com.lusatek.keycloak.otp.model;
+
+import java.util.List;
+
+/**
+ * Response model for batch OTP sends, verifications and status queries
+ */
+public class BatchOtpResponse extends OtpResponse {
+    private int succeeded;
+    private int failed;
+    private List<? extends BatchItemResult> results;
+
+    public BatchOtpResponse() {
+    }
+
+    public BatchOtpResponse(List<? extends BatchItemResult> results) {
+        super(true, "Batch processed");
+        this.results = results;
+        for (BatchItemResult result : results) {
+            if (result.isSuccess()) {
+                succeeded++;
+            } else {
+                failed++;
+            }
+        }
+    }
+
+    public int getSucceeded() {
+        return succeeded;
+    }
+
+    public void setSucceeded(int succeeded) {
+        this.succeeded = succeeded;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public void setFailed(int failed) {
+        this.failed = failed;
+    }
+
+    public List<? extends BatchItemResult> getResults() {
+        return results;
+    }
+
+    public void setResults(List<? extends BatchItemResult> results) {
+        this.results = results;
+    }
+}
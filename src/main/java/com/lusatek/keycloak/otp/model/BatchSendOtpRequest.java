@@ -0,0 +1,30 @@
+package com.lusatek.keycloak.otp.model;
+
+import java.util.List;
+
+/**
+ * Request model for sending OTPs to many users at once
+ */
+public class BatchSendOtpRequest {
+    private List<SendOtpRequest> items;
+    private String clientId;
+
+    public BatchSendOtpRequest() {
+    }
+
+    public List<SendOtpRequest> getItems() {
+        return items;
+    }
+
+    public void setItems(List<SendOtpRequest> items) {
+        this.items = items;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public void setClientId(String clientId) {
+        this.clientId = clientId;
+    }
+}
@@ -0,0 +1,30 @@
+package com.lusatek.keycloak.otp.model;
+
+import java.util.List;
+
+/**
+ * Request model for verifying the OTPs of many users at once
+ */
+public class BatchVerifyOtpRequest {
+    private List<VerifyOtpRequest> items;
+    private String clientId;
+
+    public BatchVerifyOtpRequest() {
+    }
+
+    public List<VerifyOtpRequest> getItems() {
+        return items;
+    }
+
+    public void setItems(List<VerifyOtpRequest> items) {
+        this.items = items;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public void setClientId(String clientId) {
+        this.clientId = clientId;
+    }
+}
@@ -0,0 +1,42 @@
+package com.lusatek.keycloak.otp.model;
+
+import java.util.Map;
+
+/**
+ * Response model for the readiness probe
+ */
+public class HealthResponse extends OtpResponse {
+    private Map<String, String> checks;
+    private long checkedAt;
+
+    public HealthResponse() {
+    }
+
+    public HealthResponse(boolean ready, String message, Map<String, String> checks, long checkedAt) {
+        super(ready, message);
+        this.checks = checks;
+        this.checkedAt = checkedAt;
+    }
+
+    /**
+     * @return Status per check (UP, DOWN or PENDING)
+     */
+    public Map<String, String> getChecks() {
+        return checks;
+    }
+
+    public void setChecks(Map<String, String> checks) {
+        this.checks = checks;
+    }
+
+    /**
+     * @return Time of the background check run the statuses come from, in epoch milliseconds
+     */
+    public long getCheckedAt() {
+        return checkedAt;
+    }
+
+    public void setCheckedAt(long checkedAt) {
+        this.checkedAt = checkedAt;
+    }
+}
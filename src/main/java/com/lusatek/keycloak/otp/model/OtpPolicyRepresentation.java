@@ -0,0 +1,92 @@
+package com.lusatek.keycloak.otp.model;
+
+/**
+ * Realm OTP policy as read and written by the admin endpoint.
+ * On update, a missing value resets the setting to the server default.
+ */
+public class OtpPolicyRepresentation {
+    private Integer codeLength;
+    private String codeAlphabet;
+    private Integer ttlSeconds;
+    private Integer resendIntervalSeconds;
+    private Integer maxAttempts;
+    private String template;
+    private String companyName;
+    private String mode;
+    private String linkUrl;
+
+    public OtpPolicyRepresentation() {
+    }
+
+    public Integer getCodeLength() {
+        return codeLength;
+    }
+
+    public void setCodeLength(Integer codeLength) {
+        this.codeLength = codeLength;
+    }
+
+    public String getCodeAlphabet() {
+        return codeAlphabet;
+    }
+
+    public void setCodeAlphabet(String codeAlphabet) {
+        this.codeAlphabet = codeAlphabet;
+    }
+
+    public Integer getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    public void setTtlSeconds(Integer ttlSeconds) {
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    public Integer getResendIntervalSeconds() {
+        return resendIntervalSeconds;
+    }
+
+    public void setResendIntervalSeconds(Integer resendIntervalSeconds) {
+        this.resendIntervalSeconds = resendIntervalSeconds;
+    }
+
+    public Integer getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public void setMaxAttempts(Integer maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    public void setTemplate(String template) {
+        this.template = template;
+    }
+
+    public String getCompanyName() {
+        return companyName;
+    }
+
+    public void setCompanyName(String companyName) {
+        this.companyName = companyName;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public void setMode(String mode) {
+        this.mode = mode;
+    }
+
+    public String getLinkUrl() {
+        return linkUrl;
+    }
+
+    public void setLinkUrl(String linkUrl) {
+        this.linkUrl = linkUrl;
+    }
+}
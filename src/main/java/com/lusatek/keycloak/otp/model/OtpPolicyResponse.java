@@ -0,0 +1,24 @@
+package com.lusatek.keycloak.otp.model;
+
+/**
+ * Response model for the realm OTP policy endpoint, holding the effective policy
+ */
+public class OtpPolicyResponse extends OtpResponse {
+    private OtpPolicyRepresentation policy;
+
+    public OtpPolicyResponse() {
+    }
+
+    public OtpPolicyResponse(boolean success, String message, OtpPolicyRepresentation policy) {
+        super(success, message);
+        this.policy = policy;
+    }
+
+    public OtpPolicyRepresentation getPolicy() {
+        return policy;
+    }
+
+    public void setPolicy(OtpPolicyRepresentation policy) {
+        this.policy = policy;
+    }
+}
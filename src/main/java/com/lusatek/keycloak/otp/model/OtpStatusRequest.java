@@ -0,0 +1,31 @@
+package com.lusatek.keycloak.otp.model;
+
+import java.util.List;
+
+/**
+ * Request model for querying the verification status of many users; entries name a user
+ * by email or userId like send entries
+ */
+public class OtpStatusRequest {
+    private List<SendOtpRequest> items;
+    private String clientId;
+
+    public OtpStatusRequest() {
+    }
+
+    public List<SendOtpRequest> getItems() {
+        return items;
+    }
+
+    public void setItems(List<SendOtpRequest> items) {
+        this.items = items;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public void setClientId(String clientId) {
+        this.clientId = clientId;
+    }
+}
@@ -0,0 +1,50 @@
+package com.lusatek.keycloak.otp.model;
+
+/**
+ * Verification status of a single entry of a status query
+ */
+public class OtpStatusResult extends BatchItemResult {
+    private Boolean emailVerified;
+    private Boolean pending;
+    private Long expiresIn;
+    private Long resendAfter;
+
+    public OtpStatusResult() {
+    }
+
+    public OtpStatusResult(int index, String email, String userId) {
+        super(index, email, userId);
+    }
+
+    public Boolean getEmailVerified() {
+        return emailVerified;
+    }
+
+    public void setEmailVerified(Boolean emailVerified) {
+        this.emailVerified = emailVerified;
+    }
+
+    public Boolean getPending() {
+        return pending;
+    }
+
+    public void setPending(Boolean pending) {
+        this.pending = pending;
+    }
+
+    public Long getExpiresIn() {
+        return expiresIn;
+    }
+
+    public void setExpiresIn(Long expiresIn) {
+        this.expiresIn = expiresIn;
+    }
+
+    public Long getResendAfter() {
+        return resendAfter;
+    }
+
+    public void setResendAfter(Long resendAfter) {
+        this.resendAfter = resendAfter;
+    }
+}
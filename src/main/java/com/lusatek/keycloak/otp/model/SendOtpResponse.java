@@ -0,0 +1,58 @@
+package com.lusatek.keycloak.otp.model;
+
+/**
+ * Response model for queued OTP emails and dispatch status lookups
+ */
+public class SendOtpResponse extends OtpResponse {
+    private String dispatchId;
+    private String status;
+    private Long expiresIn;
+    private Long resendAfter;
+
+    public SendOtpResponse() {
+    }
+
+    public SendOtpResponse(boolean success, String message, String dispatchId, String status) {
+        super(success, message);
+        this.dispatchId = dispatchId;
+        this.status = status;
+    }
+
+    public String getDispatchId() {
+        return dispatchId;
+    }
+
+    public void setDispatchId(String dispatchId) {
+        this.dispatchId = dispatchId;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    /**
+     * @return Seconds until the active OTP expires; only set on /send responses
+     */
+    public Long getExpiresIn() {
+        return expiresIn;
+    }
+
+    public void setExpiresIn(Long expiresIn) {
+        this.expiresIn = expiresIn;
+    }
+
+    /**
+     * @return Seconds until /send issues a new OTP instead of reporting the active one; only set on /send responses
+     */
+    public Long getResendAfter() {
+        return resendAfter;
+    }
+
+    public void setResendAfter(Long resendAfter) {
+        this.resendAfter = resendAfter;
+    }
+}
@@ -7,6 +7,7 @@ public class VerifyOtpRequest {
     private String email;
     private String userId;
     private String code;
+    private String token;
     private String clientId;
 
     public VerifyOtpRequest() {
@@ -36,6 +37,14 @@ public class VerifyOtpRequest {
         this.code = code;
     }
 
+    public String getToken() {
+        return token;
+    }
+
+    public void setToken(String token) {
+        this.token = token;
+    }
+
     public String getClientId() {
         return clientId;
     }
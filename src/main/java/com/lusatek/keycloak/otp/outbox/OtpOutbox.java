@@ -0,0 +1,143 @@
+package com.lusatek.keycloak.otp.outbox;
+
+import com.lusatek.keycloak.otp.service.EmailDispatcher;
+import com.lusatek.keycloak.otp.service.OtpEmail;
+import jakarta.persistence.EntityManager;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Durable outbox for OTP emails. Rendered emails are written to the EMAIL_OTP_OUTBOX table in the
+ * request's transaction, so they survive node restarts and SMTP outages, and are delivered by the
+ * {@link OutboxWorker} of any node with retries and backoff. A newer OTP for the same user
+ * supersedes emails of older codes that have not been sent yet.
+ */
+public class OtpOutbox {
+
+    static final String PENDING = "PENDING";
+    static final String SENDING = "SENDING";
+    static final String SENT = "SENT";
+    static final String FAILED = "FAILED";
+    static final String SUPERSEDED = "SUPERSEDED";
+
+    static final String PAYLOAD_SUBJECT = "subject";
+    static final String PAYLOAD_TEXT = "text";
+    static final String PAYLOAD_HTML = "html";
+
+    private final OutboxCipher cipher;
+    private OutboxWorker worker;
+
+    /**
+     * @param encryptionKey 256-bit key for the stored payloads; all nodes must use the same key
+     */
+    public OtpOutbox(byte[] encryptionKey) {
+        this.cipher = new OutboxCipher(encryptionKey);
+    }
+
+    OutboxCipher getCipher() {
+        return cipher;
+    }
+
+    /**
+     * @param worker Local worker to wake up once a new email is committed
+     */
+    public void setWorker(OutboxWorker worker) {
+        this.worker = worker;
+    }
+
+    /**
+     * Record an email for delivery in the current transaction
+     * @param session Session whose transaction the row joins
+     * @param email Rendered email
+     * @param userId Recipient user, used to supersede emails of older codes
+     * @param expiresAt Expiry of the OTP in the email; it is not delivered after that
+     * @return Dispatch id that can be used to look up the delivery status
+     */
+    public String enqueue(KeycloakSession session, OtpEmail email, String userId, long expiresAt) {
+        EntityManager em = entityManager(session);
+        long now = System.currentTimeMillis();
+
+        em.createNamedQuery("emailOtpOutboxSupersede")
+            .setParameter("superseded", SUPERSEDED)
+            .setParameter("now", now)
+            .setParameter("realmId", email.getRealmId())
+            .setParameter("userId", userId)
+            .setParameter("pending", PENDING)
+            .executeUpdate();
+
+        OtpOutboxEntity entity = new OtpOutboxEntity();
+        entity.setId(UUID.randomUUID().toString());
+        entity.setRealmId(email.getRealmId());
+        entity.setUserId(userId);
+        entity.setRecipient(email.getRecipient());
+        entity.setPayload(encryptPayload(email));
+        entity.setStatus(PENDING);
+        entity.setNextAttemptAt(now);
+        entity.setExpiresAt(expiresAt);
+        entity.setCreatedAt(now);
+        entity.setUpdatedAt(now);
+        em.persist(entity);
+
+        OutboxWorker localWorker = worker;
+        if (localWorker != null) {
+            session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+                @Override
+                protected void commitImpl() {
+                    localWorker.wakeUp();
+                }
+
+                @Override
+                protected void rollbackImpl() {
+                }
+            });
+        }
+        return entity.getId();
+    }
+
+    /**
+     * Look up the delivery status of an outbox email
+     * @return Current status, or null if unknown, already cleaned up or belonging to another realm
+     */
+    public EmailDispatcher.Status getStatus(KeycloakSession session, String realmId, String dispatchId) {
+        OtpOutboxEntity entity = entityManager(session).find(OtpOutboxEntity.class, dispatchId);
+        if (entity == null || !entity.getRealmId().equals(realmId)) {
+            return null;
+        }
+        switch (entity.getStatus()) {
+            case PENDING:
+                return EmailDispatcher.Status.QUEUED;
+            case SENDING:
+                return EmailDispatcher.Status.SENDING;
+            case SENT:
+                return EmailDispatcher.Status.SENT;
+            case SUPERSEDED:
+                return EmailDispatcher.Status.SUPERSEDED;
+            default:
+                return EmailDispatcher.Status.FAILED;
+        }
+    }
+
+    private String encryptPayload(OtpEmail email) {
+        Map<String, String> payload = new HashMap<>();
+        payload.put(PAYLOAD_SUBJECT, email.getSubject());
+        payload.put(PAYLOAD_TEXT, email.getTextBody());
+        payload.put(PAYLOAD_HTML, email.getHtmlBody());
+        try {
+            return cipher.encrypt(JsonSerialization.writeValueAsString(payload));
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot encrypt outbox payload", e);
+        }
+    }
+
+    static EntityManager entityManager(KeycloakSession session) {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+}
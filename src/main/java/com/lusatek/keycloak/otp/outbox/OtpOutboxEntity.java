@@ -0,0 +1,195 @@
+package com.lusatek.keycloak.otp.outbox;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+/**
+ * Pending or recently delivered OTP email. The rendered subject and bodies carry the code, so they
+ * are kept encrypted in {@code payload} and dropped once the email reaches a final state.
+ * {@code version} is bumped on every state change so only one node can claim or complete a row.
+ */
+@Entity
+@Table(name = "EMAIL_OTP_OUTBOX")
+@NamedQueries({
+    @NamedQuery(name = "emailOtpOutboxDue", query = "select o from OtpOutboxEntity o"
+        + " where (o.status = :pending and o.nextAttemptAt <= :now)"
+        + " or (o.status = :sending and o.claimedUntil < :now)"
+        + " order by o.nextAttemptAt"),
+    @NamedQuery(name = "emailOtpOutboxClaim", query = "update OtpOutboxEntity o"
+        + " set o.status = :sending, o.claimedUntil = :claimedUntil, o.updatedAt = :now, o.version = o.version + 1"
+        + " where o.id = :id and o.version = :version"),
+    @NamedQuery(name = "emailOtpOutboxFinish", query = "update OtpOutboxEntity o"
+        + " set o.status = :status, o.attempts = :attempts, o.lastError = :lastError, o.payload = null,"
+        + " o.updatedAt = :now, o.version = o.version + 1"
+        + " where o.id = :id and o.version = :version"),
+    @NamedQuery(name = "emailOtpOutboxRetry", query = "update OtpOutboxEntity o"
+        + " set o.status = :pending, o.attempts = :attempts, o.lastError = :lastError, o.nextAttemptAt = :nextAttemptAt,"
+        + " o.updatedAt = :now, o.version = o.version + 1"
+        + " where o.id = :id and o.version = :version"),
+    @NamedQuery(name = "emailOtpOutboxSupersede", query = "update OtpOutboxEntity o"
+        + " set o.status = :superseded, o.payload = null, o.updatedAt = :now, o.version = o.version + 1"
+        + " where o.realmId = :realmId and o.userId = :userId and o.status = :pending"),
+    @NamedQuery(name = "emailOtpOutboxDeleteFinished", query = "delete from OtpOutboxEntity o"
+        + " where o.status in :finished and o.updatedAt < :cutoff")
+})
+public class OtpOutboxEntity {
+
+    @Id
+    @Column(name = "ID", length = 36)
+    private String id;
+
+    @Column(name = "REALM_ID", length = 36, nullable = false)
+    private String realmId;
+
+    @Column(name = "USER_ID", length = 36, nullable = false)
+    private String userId;
+
+    @Column(name = "RECIPIENT", nullable = false)
+    private String recipient;
+
+    @Column(name = "PAYLOAD", length = 25500)
+    private String payload;
+
+    @Column(name = "STATUS", length = 16, nullable = false)
+    private String status;
+
+    @Column(name = "ATTEMPTS", nullable = false)
+    private int attempts;
+
+    @Column(name = "NEXT_ATTEMPT_AT", nullable = false)
+    private long nextAttemptAt;
+
+    @Column(name = "CLAIMED_UNTIL", nullable = false)
+    private long claimedUntil;
+
+    @Column(name = "EXPIRES_AT", nullable = false)
+    private long expiresAt;
+
+    @Column(name = "CREATED_AT", nullable = false)
+    private long createdAt;
+
+    @Column(name = "UPDATED_AT", nullable = false)
+    private long updatedAt;
+
+    @Column(name = "LAST_ERROR")
+    private String lastError;
+
+    @Column(name = "VERSION", nullable = false)
+    private int version;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public void setRealmId(String realmId) {
+        this.realmId = realmId;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public void setRecipient(String recipient) {
+        this.recipient = recipient;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    public void setPayload(String payload) {
+        this.payload = payload;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public long getNextAttemptAt() {
+        return nextAttemptAt;
+    }
+
+    public void setNextAttemptAt(long nextAttemptAt) {
+        this.nextAttemptAt = nextAttemptAt;
+    }
+
+    public long getClaimedUntil() {
+        return claimedUntil;
+    }
+
+    public void setClaimedUntil(long claimedUntil) {
+        this.claimedUntil = claimedUntil;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(long updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+}
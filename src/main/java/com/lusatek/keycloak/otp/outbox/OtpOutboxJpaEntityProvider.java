@@ -0,0 +1,31 @@
+package com.lusatek.keycloak.otp.outbox;
+
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Registers the outbox entity and its Liquibase changelog with Keycloak's persistence unit
+ */
+public class OtpOutboxJpaEntityProvider implements JpaEntityProvider {
+
+    @Override
+    public List<Class<?>> getEntities() {
+        return Collections.singletonList(OtpOutboxEntity.class);
+    }
+
+    @Override
+    public String getChangelogLocation() {
+        return "META-INF/email-otp-changelog-master.xml";
+    }
+
+    @Override
+    public String getFactoryId() {
+        return OtpOutboxJpaEntityProviderFactory.PROVIDER_ID;
+    }
+
+    @Override
+    public void close() {
+    }
+}
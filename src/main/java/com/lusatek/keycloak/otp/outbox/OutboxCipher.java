@@ -0,0 +1,52 @@
+package com.lusatek.keycloak.otp.outbox;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * AES-GCM encryption of outbox payloads, so rendered emails (and the codes in them) are not readable in the database
+ */
+class OutboxCipher {
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKeySpec key;
+
+    /**
+     * @param key 256-bit key
+     */
+    OutboxCipher(byte[] key) {
+        this.key = new SecretKeySpec(key, "AES");
+    }
+
+    String encrypt(String plaintext) throws GeneralSecurityException {
+        byte[] iv = new byte[IV_BYTES];
+        RANDOM.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+        byte[] ciphertext = cipher.doFinal(plaintext.getBytes(StandardCharsets.UTF_8));
+
+        byte[] out = new byte[IV_BYTES + ciphertext.length];
+        System.arraycopy(iv, 0, out, 0, IV_BYTES);
+        System.arraycopy(ciphertext, 0, out, IV_BYTES, ciphertext.length);
+        return Base64.getEncoder().encodeToString(out);
+    }
+
+    String decrypt(String encoded) throws GeneralSecurityException {
+        byte[] in = Base64.getDecoder().decode(encoded);
+        if (in.length <= IV_BYTES) {
+            throw new GeneralSecurityException("Outbox payload too short");
+        }
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, in, 0, IV_BYTES));
+        return new String(cipher.doFinal(in, IV_BYTES, in.length - IV_BYTES), StandardCharsets.UTF_8);
+    }
+}
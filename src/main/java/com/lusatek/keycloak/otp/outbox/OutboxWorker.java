@@ -0,0 +1,331 @@
+package com.lusatek.keycloak.otp.outbox;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.lusatek.keycloak.otp.metrics.OtpMetrics;
+import com.lusatek.keycloak.otp.service.EmailDispatcher;
+import com.lusatek.keycloak.otp.service.OtpEmail;
+import com.lusatek.keycloak.otp.service.SmtpConnection;
+import jakarta.persistence.EntityManager;
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Delivers outbox emails in batches on a dedicated thread. Each node polls for due rows and claims them
+ * with a version check, so a row is delivered by one node at a time; a claim that is not completed in
+ * time (e.g. the node died) makes the row due again. Failed deliveries are retried with exponential
+ * backoff and jitter until the attempt limit or the OTP expiry is reached, unless the email may already have
+ * been handed to the server.
+ *
+ * Database work happens in short transactions before and after delivery, never around SMTP calls.
+ */
+public class OutboxWorker {
+
+    private static final Logger logger = Logger.getLogger(OutboxWorker.class);
+
+    private static final long CLEANUP_INTERVAL_MS = 60_000L;
+    private static final int MAX_ERROR_LENGTH = 255;
+    private static final TypeReference<Map<String, String>> PAYLOAD_TYPE = new TypeReference<Map<String, String>>() {
+    };
+
+    /**
+     * Row claimed by this node, with everything needed to deliver it outside a transaction
+     */
+    private static class Claim {
+        final String id;
+        final int version;
+        final int attempts;
+        final long expiresAt;
+        OtpEmail email;
+        String outcome;
+        String error;
+        long nextAttemptAt;
+
+        Claim(OtpOutboxEntity entity) {
+            this.id = entity.getId();
+            // The claim update bumped the version
+            this.version = entity.getVersion() + 1;
+            this.attempts = entity.getAttempts() + 1;
+            this.expiresAt = entity.getExpiresAt();
+        }
+    }
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final OtpOutbox outbox;
+    private final EmailDispatcher dispatcher;
+    private final OtpMetrics metrics;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long backoffBaseMs;
+    private final long backoffMaxMs;
+    private final long claimTimeoutMs;
+    private final long retentionMs;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean wakeUpPending = new AtomicBoolean();
+    private volatile long lastCleanup;
+    private volatile boolean stopped;
+
+    public OutboxWorker(KeycloakSessionFactory sessionFactory, OtpOutbox outbox, EmailDispatcher dispatcher,
+                        OtpMetrics metrics, int batchSize, int maxAttempts, long backoffBaseMs, long backoffMaxMs,
+                        long claimTimeoutMs, long retentionMs) {
+        this.sessionFactory = sessionFactory;
+        this.outbox = outbox;
+        this.dispatcher = dispatcher;
+        this.metrics = metrics;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.backoffBaseMs = backoffBaseMs;
+        this.backoffMaxMs = backoffMaxMs;
+        this.claimTimeoutMs = claimTimeoutMs;
+        this.retentionMs = retentionMs;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "email-otp-outbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start polling for due emails
+     * @param pollIntervalMs Time between polls when nothing wakes the worker up earlier
+     */
+    public void start(long pollIntervalMs) {
+        executor.scheduleWithFixedDelay(this::drain, pollIntervalMs, pollIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Deliver newly committed emails without waiting for the next poll
+     */
+    public void wakeUp() {
+        if (!stopped && wakeUpPending.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (RuntimeException e) {
+                wakeUpPending.set(false);
+            }
+        }
+    }
+
+    /**
+     * Stop polling and wait for the current batch; unsent rows are picked up again after restart
+     * @param timeoutMs Maximum time to wait
+     */
+    public void shutdown(long timeoutMs) {
+        stopped = true;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Deliver all due emails; runs on the worker thread, or directly in tests
+     */
+    void drain() {
+        wakeUpPending.set(false);
+        try {
+            int claimed;
+            do {
+                List<Claim> claims = claim();
+                claimed = claims.size();
+                if (!claims.isEmpty()) {
+                    deliver(claims);
+                    record(claims);
+                }
+            } while (claimed == batchSize && !stopped);
+
+            long now = System.currentTimeMillis();
+            if (now - lastCleanup >= CLEANUP_INTERVAL_MS) {
+                lastCleanup = now;
+                cleanup(now);
+            }
+        } catch (RuntimeException e) {
+            // Rows stay claimed until the claim times out and are retried then
+            logger.errorf(e, "Email OTP outbox run failed");
+        }
+    }
+
+    private List<Claim> claim() {
+        List<Claim> claims = new ArrayList<>();
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            EntityManager em = OtpOutbox.entityManager(session);
+            long now = System.currentTimeMillis();
+            List<OtpOutboxEntity> due = em.createNamedQuery("emailOtpOutboxDue", OtpOutboxEntity.class)
+                .setParameter("pending", OtpOutbox.PENDING)
+                .setParameter("sending", OtpOutbox.SENDING)
+                .setParameter("now", now)
+                .setMaxResults(batchSize)
+                .getResultList();
+
+            Map<String, Map<String, String>> smtpConfigs = new HashMap<>();
+            for (OtpOutboxEntity entity : due) {
+                int updated = em.createNamedQuery("emailOtpOutboxClaim")
+                    .setParameter("sending", OtpOutbox.SENDING)
+                    .setParameter("claimedUntil", now + claimTimeoutMs)
+                    .setParameter("now", now)
+                    .setParameter("id", entity.getId())
+                    .setParameter("version", entity.getVersion())
+                    .executeUpdate();
+                if (updated != 1) {
+                    // Claimed by another node in the meantime
+                    continue;
+                }
+
+                Claim claim = new Claim(entity);
+                claims.add(claim);
+                if (now > entity.getExpiresAt()) {
+                    claim.outcome = OtpOutbox.FAILED;
+                    claim.error = "OTP expired before delivery";
+                    continue;
+                }
+                Map<String, String> smtpConfig = smtpConfigs.computeIfAbsent(entity.getRealmId(), realmId -> {
+                    RealmModel realm = session.realms().getRealm(realmId);
+                    return realm != null ? realm.getSmtpConfig() : null;
+                });
+                if (smtpConfig == null) {
+                    claim.outcome = OtpOutbox.FAILED;
+                    claim.error = "Realm not found";
+                    continue;
+                }
+                try {
+                    Map<String, String> payload = JsonSerialization.readValue(
+                        outbox.getCipher().decrypt(entity.getPayload()), PAYLOAD_TYPE);
+                    claim.email = new OtpEmail(entity.getRealmId(), entity.getRecipient(), smtpConfig,
+                        payload.get(OtpOutbox.PAYLOAD_SUBJECT), payload.get(OtpOutbox.PAYLOAD_TEXT),
+                        payload.get(OtpOutbox.PAYLOAD_HTML));
+                } catch (IOException | GeneralSecurityException | RuntimeException e) {
+                    // Typically a hash-secret that differs between nodes or changed since the row was written
+                    logger.errorf(e, "Cannot decrypt outbox email %s", entity.getId());
+                    claim.outcome = OtpOutbox.FAILED;
+                    claim.error = "Payload cannot be decrypted";
+                }
+            }
+        });
+        return claims;
+    }
+
+    private void deliver(List<Claim> claims) {
+        try (KeycloakSession session = sessionFactory.create()) {
+            for (Claim claim : claims) {
+                if (claim.outcome != null) {
+                    continue;
+                }
+                try {
+                    dispatcher.deliverNow(session, claim.id, claim.email);
+                    claim.outcome = OtpOutbox.SENT;
+                    logger.debugf("Outbox email %s delivered on attempt %d", claim.id, claim.attempts);
+                } catch (SmtpConnection.PossiblyDeliveredException e) {
+                    // The server may already have accepted it; another attempt could deliver the code twice
+                    claim.outcome = OtpOutbox.SENT;
+                    claim.error = describe(e);
+                    logger.warnf("Outbox email %s failed after it was handed to the server, not retrying: %s",
+                        claim.id, claim.error);
+                } catch (EmailException | RuntimeException e) {
+                    claim.error = describe(e);
+                    long nextAttemptAt = System.currentTimeMillis() + backoff(claim.attempts);
+                    if (claim.attempts >= maxAttempts || nextAttemptAt > claim.expiresAt) {
+                        claim.outcome = OtpOutbox.FAILED;
+                        logger.errorf(e, "Giving up on outbox email %s after %d attempts", claim.id, claim.attempts);
+                    } else {
+                        claim.outcome = OtpOutbox.PENDING;
+                        claim.nextAttemptAt = nextAttemptAt;
+                        logger.warnf("Outbox email %s failed on attempt %d, retrying in %d ms: %s",
+                            claim.id, claim.attempts, nextAttemptAt - System.currentTimeMillis(), claim.error);
+                    }
+                }
+            }
+        }
+    }
+
+    private void record(List<Claim> claims) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            EntityManager em = OtpOutbox.entityManager(session);
+            long now = System.currentTimeMillis();
+            for (Claim claim : claims) {
+                int updated;
+                if (OtpOutbox.PENDING.equals(claim.outcome)) {
+                    updated = em.createNamedQuery("emailOtpOutboxRetry")
+                        .setParameter("pending", OtpOutbox.PENDING)
+                        .setParameter("attempts", claim.attempts)
+                        .setParameter("lastError", claim.error)
+                        .setParameter("nextAttemptAt", claim.nextAttemptAt)
+                        .setParameter("now", now)
+                        .setParameter("id", claim.id)
+                        .setParameter("version", claim.version)
+                        .executeUpdate();
+                } else {
+                    updated = em.createNamedQuery("emailOtpOutboxFinish")
+                        .setParameter("status", claim.outcome)
+                        .setParameter("attempts", claim.attempts)
+                        .setParameter("lastError", claim.error)
+                        .setParameter("now", now)
+                        .setParameter("id", claim.id)
+                        .setParameter("version", claim.version)
+                        .executeUpdate();
+                    if (OtpOutbox.SENT.equals(claim.outcome)) {
+                        metrics.sent();
+                    } else {
+                        metrics.sendFailed(OtpMetrics.SendFailure.SMTP);
+                    }
+                }
+                if (updated != 1) {
+                    logger.debugf("Outbox email %s was taken over by another node before its outcome was recorded", claim.id);
+                }
+            }
+        });
+    }
+
+    private void cleanup(long now) {
+        List<String> finished = Arrays.asList(OtpOutbox.SENT, OtpOutbox.FAILED, OtpOutbox.SUPERSEDED);
+        int[] removed = new int[1];
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> removed[0] = OtpOutbox.entityManager(session)
+            .createNamedQuery("emailOtpOutboxDeleteFinished")
+            .setParameter("finished", finished)
+            .setParameter("cutoff", now - retentionMs)
+            .executeUpdate());
+        if (removed[0] > 0) {
+            logger.debugf("Removed %d finished outbox emails", removed[0]);
+        }
+    }
+
+    /**
+     * Exponential backoff with equal jitter: half the delay is fixed, the other half random
+     */
+    private long backoff(int attempts) {
+        long delay = backoffBaseMs << Math.min(attempts - 1, 30);
+        delay = Math.min(backoffMaxMs, delay < 0 ? backoffMaxMs : delay);
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    private static String describe(Throwable e) {
+        Throwable cause = e;
+        while (cause.getCause() != null && cause.getCause() != cause) {
+            cause = cause.getCause();
+        }
+        String message = cause.getClass().getSimpleName() + ": " + cause.getMessage();
+        return message.length() > MAX_ERROR_LENGTH ? message.substring(0, MAX_ERROR_LENGTH) : message;
+    }
+}
@@ -0,0 +1,67 @@
+package com.lusatek.keycloak.otp.provider;
+
+import com.lusatek.keycloak.otp.service.NegativeLookupCache;
+import org.jboss.logging.Logger;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * LUSATEK Email OTP Event Listener
+ * Invalidates the realm's negative user lookups when users are created or change their email.
+ * Keycloak calls it after the transaction that created the user has committed.
+ */
+public class EmailOtpEventListenerProvider implements EventListenerProvider {
+
+    private static final Logger logger = Logger.getLogger(EmailOtpEventListenerProvider.class);
+
+    private final KeycloakSession session;
+
+    public EmailOtpEventListenerProvider(KeycloakSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public void onEvent(Event event) {
+        if (event.getError() != null || event.getRealmId() == null) {
+            return;
+        }
+        EventType type = event.getType();
+        if (type == EventType.REGISTER || type == EventType.IDENTITY_PROVIDER_FIRST_LOGIN
+                || type == EventType.UPDATE_EMAIL || type == EventType.UPDATE_PROFILE) {
+            invalidate(event.getRealmId());
+        }
+    }
+
+    @Override
+    public void onEvent(AdminEvent event, boolean includeRepresentation) {
+        if (event.getError() != null || event.getRealmId() == null) {
+            return;
+        }
+        ResourceType resource = event.getResourceType();
+        OperationType operation = event.getOperationType();
+        // User created or edited by an admin, or imported by a federation sync
+        if ((resource == ResourceType.USER && (operation == OperationType.CREATE || operation == OperationType.UPDATE))
+                || (resource == ResourceType.USER_FEDERATION_PROVIDER && operation == OperationType.ACTION)) {
+            invalidate(event.getRealmId());
+        }
+    }
+
+    private void invalidate(String realmId) {
+        try {
+            NegativeLookupCache.invalidateRealm(session, realmId);
+        } catch (RuntimeException e) {
+            // Cached misses still expire after their TTL
+            logger.warnf(e, "Failed to invalidate negative user lookups of realm %s", realmId);
+        }
+    }
+
+    @Override
+    public void close() {
+        // No resources to close
+    }
+}
@@ -0,0 +1,38 @@
+package com.lusatek.keycloak.otp.provider;
+
+import org.keycloak.Config;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * LUSATEK Email OTP Event Listener Factory
+ * Enable "email-otp" in the realm's event listeners so new users are found immediately
+ */
+public class EmailOtpEventListenerProviderFactory implements EventListenerProviderFactory {
+
+    public static final String PROVIDER_ID = "email-otp";
+
+    @Override
+    public EventListenerProvider create(KeycloakSession session) {
+        return new EmailOtpEventListenerProvider(session);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -1,5 +1,6 @@
 package com.lusatek.keycloak.otp.provider;
 
+import com.lusatek.keycloak.otp.service.OtpComponents;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.services.resource.RealmResourceProvider;
 
@@ -10,14 +11,16 @@ import org.keycloak.services.resource.RealmResourceProvider;
 public class EmailOtpResourceProvider implements RealmResourceProvider {
 
     private final KeycloakSession session;
+    private final OtpComponents components;
 
-    public EmailOtpResourceProvider(KeycloakSession session) {
+    public EmailOtpResourceProvider(KeycloakSession session, OtpComponents components) {
         this.session = session;
+        this.components = components;
     }
 
     @Override
     public Object getResource() {
-        return new com.lusatek.keycloak.otp.resource.EmailOtpResource(session);
+        return new com.lusatek.keycloak.otp.resource.EmailOtpResource(session, components);
     }
 
     @Override
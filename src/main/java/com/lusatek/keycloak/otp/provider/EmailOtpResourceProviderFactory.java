@@ -1,36 +1,431 @@
 package com.lusatek.keycloak.otp.provider;
 
+import com.lusatek.keycloak.otp.metrics.OtpMetrics;
+import com.lusatek.keycloak.otp.outbox.OtpOutbox;
+import com.lusatek.keycloak.otp.outbox.OutboxWorker;
+import com.lusatek.keycloak.otp.service.AsyncRequestExecutor;
+import com.lusatek.keycloak.otp.service.EmailDispatcher;
+import com.lusatek.keycloak.otp.service.EmailTemplateCache;
+import com.lusatek.keycloak.otp.service.ExpiredOtpSweeper;
+import com.lusatek.keycloak.otp.service.HealthMonitor;
+import com.lusatek.keycloak.otp.service.NegativeLookupCache;
+import com.lusatek.keycloak.otp.service.OtpComponents;
+import com.lusatek.keycloak.otp.service.OtpEventPublisher;
+import com.lusatek.keycloak.otp.service.OtpPolicy;
+import com.lusatek.keycloak.otp.service.OtpPolicyCache;
+import com.lusatek.keycloak.otp.service.SmtpConnectionPool;
+import com.lusatek.keycloak.otp.service.VerifiedTokenCache;
+import com.lusatek.keycloak.otp.util.ClusterRateLimiter;
+import com.lusatek.keycloak.otp.util.LinkTokenSigner;
+import com.lusatek.keycloak.otp.util.LocalRateLimiter;
+import com.lusatek.keycloak.otp.util.OtpCodeFormat;
+import com.lusatek.keycloak.otp.util.OtpHasher;
+import com.lusatek.keycloak.otp.util.PreLookupLimiter;
+import com.lusatek.keycloak.otp.util.RateLimiter;
+import io.micrometer.core.instrument.Metrics;
+import org.infinispan.Cache;
+import org.jboss.logging.Logger;
 import org.keycloak.Config;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.services.resource.RealmResourceProvider;
 import org.keycloak.services.resource.RealmResourceProviderFactory;
+import org.keycloak.services.scheduled.ClusterAwareScheduledTaskRunner;
+import org.keycloak.timer.TimerProvider;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
 
 /**
  * LUSATEK Email OTP Resource Provider Factory
+ *
+ * Reads the provider options, builds the node-wide components handed to every request through
+ * {@link OtpComponents}, schedules their maintenance tasks and shuts them down in order.
  */
 public class EmailOtpResourceProviderFactory implements RealmResourceProviderFactory {
 
+    private static final Logger logger = Logger.getLogger(EmailOtpResourceProviderFactory.class);
+
     public static final String PROVIDER_ID = "email-otp";
 
+    // Configuration keys (--spi-realm-restapi-extension-email-otp-<key>=<value>)
+    private static final String CONFIG_ASYNC_WORKERS = "async-workers";
+    private static final String CONFIG_ASYNC_QUEUE_CAPACITY = "async-queue-capacity";
+    private static final String CONFIG_DISPATCH_WORKERS = "dispatch-workers";
+    private static final String CONFIG_DISPATCH_QUEUE_CAPACITY = "dispatch-queue-capacity";
+    private static final String CONFIG_DISPATCH_DRAIN_TIMEOUT_SECONDS = "dispatch-drain-timeout-seconds";
+    private static final String CONFIG_DISPATCH_STATUS_RETENTION_MINUTES = "dispatch-status-retention-minutes";
+    private static final String CONFIG_SMTP_POOL_MAX_PER_CONFIG = "smtp-pool-max-per-config";
+    private static final String CONFIG_SMTP_POOL_IDLE_TIMEOUT_SECONDS = "smtp-pool-idle-timeout-seconds";
+    private static final String CONFIG_SMTP_POOL_VALIDATE_AFTER_MS = "smtp-pool-validate-after-ms";
+    private static final String CONFIG_SMTP_POOL_BORROW_TIMEOUT_MS = "smtp-pool-borrow-timeout-ms";
+    private static final String CONFIG_OUTBOX_ENABLED = "outbox-enabled";
+    private static final String CONFIG_OUTBOX_POLL_INTERVAL_MS = "outbox-poll-interval-ms";
+    private static final String CONFIG_OUTBOX_BATCH_SIZE = "outbox-batch-size";
+    private static final String CONFIG_OUTBOX_MAX_ATTEMPTS = "outbox-max-attempts";
+    private static final String CONFIG_OUTBOX_BACKOFF_BASE_MS = "outbox-backoff-base-ms";
+    private static final String CONFIG_OUTBOX_BACKOFF_MAX_MS = "outbox-backoff-max-ms";
+    private static final String CONFIG_OUTBOX_CLAIM_TIMEOUT_SECONDS = "outbox-claim-timeout-seconds";
+    private static final String CONFIG_MIN_RESEND_INTERVAL_SECONDS = "min-resend-interval-seconds";
+    private static final String CONFIG_BATCH_CHUNK_SIZE = "batch-chunk-size";
+    private static final String CONFIG_BATCH_MAX_ITEMS = "batch-max-items";
+    private static final String CONFIG_TEMPLATE_CACHE_TTL_SECONDS = "template-cache-ttl-seconds";
+    private static final String CONFIG_TEMPLATE_CACHE_MAX_ENTRIES = "template-cache-max-entries";
+    private static final String CONFIG_HASH_SECRET = "hash-secret";
+    private static final String CONFIG_AUTH_CACHE_TTL_SECONDS = "auth-cache-ttl-seconds";
+    private static final String CONFIG_AUTH_CACHE_MAX_ENTRIES = "auth-cache-max-entries";
+    private static final String CONFIG_NEGATIVE_LOOKUP_TTL_SECONDS = "negative-lookup-ttl-seconds";
+    private static final String CONFIG_NEGATIVE_LOOKUP_MAX_ENTRIES = "negative-lookup-max-entries";
+    private static final String CONFIG_HEALTH_CHECK_INTERVAL_SECONDS = "health-check-interval-seconds";
+    private static final String CONFIG_HEALTH_SMTP_TIMEOUT_MS = "health-smtp-timeout-ms";
+    private static final String CONFIG_HEALTH_MAX_QUEUE_PERCENT = "health-max-queue-percent";
+    private static final String CONFIG_EXPIRED_SWEEP_INTERVAL_SECONDS = "expired-sweep-interval-seconds";
+    private static final String CONFIG_EXPIRED_SWEEP_PAGE_SIZE = "expired-sweep-page-size";
+    private static final String CONFIG_EXPIRED_SWEEP_MAX_PER_RUN = "expired-sweep-max-per-run";
+    private static final String CONFIG_EVENT_QUEUE_CAPACITY = "event-queue-capacity";
+    private static final String CONFIG_EVENT_BATCH_SIZE = "event-batch-size";
+    private static final String CONFIG_EVENT_FLUSH_INTERVAL_MS = "event-flush-interval-ms";
+    private static final String CONFIG_RATE_LIMIT_MODE = "rate-limit-mode";
+    private static final String CONFIG_RATE_LIMIT_MAX_SEND = "rate-limit-max-send";
+    private static final String CONFIG_RATE_LIMIT_MAX_VERIFY = "rate-limit-max-verify";
+    private static final String CONFIG_RATE_LIMIT_WINDOW_SECONDS = "rate-limit-window-seconds";
+    private static final String CONFIG_RATE_LIMIT_MAX_KEYS = "rate-limit-max-keys";
+    private static final String CONFIG_RATE_LIMIT_SHARDS = "rate-limit-shards";
+    private static final String CONFIG_RATE_LIMIT_EVICTION_INTERVAL_SECONDS = "rate-limit-eviction-interval-seconds";
+    private static final String CONFIG_RATE_LIMIT_FLUSH_INTERVAL_MS = "rate-limit-flush-interval-ms";
+    private static final String CONFIG_RATE_LIMIT_MAX_PER_ADDRESS = "rate-limit-max-per-address";
+    private static final String CONFIG_RATE_LIMIT_MAX_PER_CLIENT = "rate-limit-max-per-client";
+    private static final String CONFIG_RATE_LIMIT_MAX_PER_IDENTIFIER = "rate-limit-max-per-identifier";
+    private static final String CONFIG_RATE_LIMIT_PRE_LOOKUP_WINDOW_SECONDS = "rate-limit-pre-lookup-window-seconds";
+
+    private static final String RATE_LIMIT_MODE_LOCAL = "local";
+    private static final String RATE_LIMIT_MODE_CLUSTER = "cluster";
+
+    private static final String RATE_LIMIT_EVICTION_TASK = "email-otp-rate-limit-eviction";
+    private static final String PRE_LOOKUP_LIMIT_EVICTION_TASK = "email-otp-pre-lookup-limit-eviction";
+    private static final String SMTP_POOL_EVICTION_TASK = "email-otp-smtp-pool-eviction";
+    private static final String NEGATIVE_LOOKUP_EVICTION_TASK = "email-otp-negative-lookup-eviction";
+    private static final String EXPIRED_SWEEP_TASK = "email-otp-expired-sweep";
+
+    // Work cache key of the generated hash secret shared by the cluster when none is configured
+    private static final String HASH_SECRET_CACHE_KEY = "email-otp:hash-secret";
+    private static final int GENERATED_SECRET_BYTES = 32;
+
+    private int asyncWorkers;
+    private int asyncQueueCapacity;
+    private int dispatchWorkers;
+    private int dispatchQueueCapacity;
+    private long dispatchDrainTimeoutMs;
+    private long dispatchStatusRetentionMs;
+    private int smtpPoolMaxPerConfig;
+    private long smtpPoolIdleTimeoutMs;
+    private long smtpPoolValidateAfterMs;
+    private long smtpPoolBorrowTimeoutMs;
+    private boolean outboxEnabled;
+    private long outboxPollIntervalMs;
+    private int outboxBatchSize;
+    private int outboxMaxAttempts;
+    private long outboxBackoffBaseMs;
+    private long outboxBackoffMaxMs;
+    private long outboxClaimTimeoutMs;
+    private OtpPolicy defaultPolicy;
+    private int batchChunkSize;
+    private int batchMaxItems;
+    private long templateCacheTtlMs;
+    private int templateCacheMaxEntries;
+    private String hashSecret;
+    private long authCacheTtlMs;
+    private int authCacheMaxEntries;
+    private long negativeLookupTtlMs;
+    private int negativeLookupMaxEntries;
+    private long healthCheckIntervalMs;
+    private int healthSmtpTimeoutMs;
+    private int healthMaxQueuePercent;
+    private long expiredSweepIntervalMs;
+    private int expiredSweepPageSize;
+    private int expiredSweepMaxPerRun;
+    private int eventQueueCapacity;
+    private int eventBatchSize;
+    private long eventFlushIntervalMs;
+    private String rateLimitMode;
+    private int rateLimitMaxSend;
+    private int rateLimitMaxVerify;
+    private long rateLimitWindowMs;
+    private int rateLimitMaxKeys;
+    private int rateLimitShards;
+    private long rateLimitEvictionIntervalMs;
+    private long rateLimitFlushIntervalMs;
+    private int rateLimitMaxPerAddress;
+    private int rateLimitMaxPerClient;
+    private int rateLimitMaxPerIdentifier;
+    private long rateLimitPreLookupWindowMs;
+
+    private AsyncRequestExecutor asyncExecutor;
+    private OtpEventPublisher eventPublisher;
+    private EmailDispatcher dispatcher;
+    private RateLimiter rateLimiter;
+    private PreLookupLimiter preLookupLimiter;
+    private NegativeLookupCache negativeLookupCache;
+    private EmailTemplateCache templateCache;
+    private OtpPolicyCache policyCache;
+    private HealthMonitor healthMonitor;
+    private OutboxWorker outboxWorker;
+    private OtpComponents components;
+
     @Override
     public RealmResourceProvider create(KeycloakSession session) {
-        return new EmailOtpResourceProvider(session);
+        return new EmailOtpResourceProvider(session, components);
     }
 
+    /**
+     * Read the provider options; nothing is started yet
+     */
     @Override
     public void init(Config.Scope config) {
-        // No initialization required
+        asyncWorkers = config.getInt(CONFIG_ASYNC_WORKERS, 0);
+        asyncQueueCapacity = config.getInt(CONFIG_ASYNC_QUEUE_CAPACITY, 1000);
+        dispatchWorkers = config.getInt(CONFIG_DISPATCH_WORKERS, 4);
+        dispatchQueueCapacity = config.getInt(CONFIG_DISPATCH_QUEUE_CAPACITY, 1000);
+        dispatchDrainTimeoutMs = config.getLong(CONFIG_DISPATCH_DRAIN_TIMEOUT_SECONDS, 30L) * 1000;
+        dispatchStatusRetentionMs = config.getLong(CONFIG_DISPATCH_STATUS_RETENTION_MINUTES, 15L) * 60 * 1000;
+        // One connection per worker by default, so every worker can keep its connection warm
+        smtpPoolMaxPerConfig = config.getInt(CONFIG_SMTP_POOL_MAX_PER_CONFIG, dispatchWorkers);
+        smtpPoolIdleTimeoutMs = config.getLong(CONFIG_SMTP_POOL_IDLE_TIMEOUT_SECONDS, 60L) * 1000;
+        smtpPoolValidateAfterMs = config.getLong(CONFIG_SMTP_POOL_VALIDATE_AFTER_MS, 5000L);
+        smtpPoolBorrowTimeoutMs = config.getLong(CONFIG_SMTP_POOL_BORROW_TIMEOUT_MS, 5000L);
+        hashSecret = config.get(CONFIG_HASH_SECRET);
+        boolean hasHashSecret = hashSecret != null && !hashSecret.isEmpty();
+        // The outbox key is derived from the secret; a generated one lives only in the work cache,
+        // so stored emails could no longer be decrypted after a full cluster restart
+        outboxEnabled = config.getBoolean(CONFIG_OUTBOX_ENABLED, hasHashSecret);
+        if (outboxEnabled && !hasHashSecret) {
+            logger.warnf("%s is set but no %s is configured; using the in-memory dispatch queue instead",
+                CONFIG_OUTBOX_ENABLED, CONFIG_HASH_SECRET);
+            outboxEnabled = false;
+        }
+        outboxPollIntervalMs = config.getLong(CONFIG_OUTBOX_POLL_INTERVAL_MS, 1000L);
+        outboxBatchSize = config.getInt(CONFIG_OUTBOX_BATCH_SIZE, 50);
+        outboxMaxAttempts = config.getInt(CONFIG_OUTBOX_MAX_ATTEMPTS, 8);
+        outboxBackoffBaseMs = config.getLong(CONFIG_OUTBOX_BACKOFF_BASE_MS, 2000L);
+        outboxBackoffMaxMs = config.getLong(CONFIG_OUTBOX_BACKOFF_MAX_MS, 60000L);
+        outboxClaimTimeoutMs = config.getLong(CONFIG_OUTBOX_CLAIM_TIMEOUT_SECONDS, 120L) * 1000;
+        // Realms override these through their emailOtp.* attributes
+        defaultPolicy = new OtpPolicy(OtpCodeFormat.DEFAULT, OtpPolicy.DEFAULT_TTL_SECONDS,
+            config.getInt(CONFIG_MIN_RESEND_INTERVAL_SECONDS, 30), OtpPolicy.DEFAULT_MAX_ATTEMPTS,
+            OtpPolicy.DEFAULT_TEMPLATE, OtpPolicy.DEFAULT_COMPANY_NAME);
+        batchChunkSize = config.getInt(CONFIG_BATCH_CHUNK_SIZE, 50);
+        batchMaxItems = config.getInt(CONFIG_BATCH_MAX_ITEMS, 1000);
+        templateCacheTtlMs = config.getLong(CONFIG_TEMPLATE_CACHE_TTL_SECONDS, 300L) * 1000;
+        templateCacheMaxEntries = config.getInt(CONFIG_TEMPLATE_CACHE_MAX_ENTRIES, 256);
+        // Follow Keycloak's theme setting so template edits show up immediately in development
+        if (!Config.scope("theme").getBoolean("cacheTemplates", true)) {
+            templateCacheTtlMs = 0;
+        }
+
+        authCacheTtlMs = config.getLong(CONFIG_AUTH_CACHE_TTL_SECONDS, 30L) * 1000;
+        authCacheMaxEntries = config.getInt(CONFIG_AUTH_CACHE_MAX_ENTRIES, 10000);
+        // Off by default: misses are only forgotten early by the email-otp event listener, which realms must enable
+        negativeLookupTtlMs = config.getLong(CONFIG_NEGATIVE_LOOKUP_TTL_SECONDS, 0L) * 1000;
+        negativeLookupMaxEntries = config.getInt(CONFIG_NEGATIVE_LOOKUP_MAX_ENTRIES, 100000);
+        healthCheckIntervalMs = config.getLong(CONFIG_HEALTH_CHECK_INTERVAL_SECONDS, 30L) * 1000;
+        healthSmtpTimeoutMs = config.getInt(CONFIG_HEALTH_SMTP_TIMEOUT_MS, 3000);
+        healthMaxQueuePercent = config.getInt(CONFIG_HEALTH_MAX_QUEUE_PERCENT, 90);
+        expiredSweepIntervalMs = config.getLong(CONFIG_EXPIRED_SWEEP_INTERVAL_SECONDS, 3600L) * 1000;
+        expiredSweepPageSize = config.getInt(CONFIG_EXPIRED_SWEEP_PAGE_SIZE, 500);
+        expiredSweepMaxPerRun = config.getInt(CONFIG_EXPIRED_SWEEP_MAX_PER_RUN, 10000);
+        eventQueueCapacity = config.getInt(CONFIG_EVENT_QUEUE_CAPACITY, 10000);
+        eventBatchSize = config.getInt(CONFIG_EVENT_BATCH_SIZE, 200);
+        eventFlushIntervalMs = config.getLong(CONFIG_EVENT_FLUSH_INTERVAL_MS, 1000L);
+
+        rateLimitMode = config.get(CONFIG_RATE_LIMIT_MODE, RATE_LIMIT_MODE_LOCAL);
+        if (!RATE_LIMIT_MODE_LOCAL.equals(rateLimitMode) && !RATE_LIMIT_MODE_CLUSTER.equals(rateLimitMode)) {
+            throw new IllegalArgumentException("Unsupported " + CONFIG_RATE_LIMIT_MODE + ": " + rateLimitMode);
+        }
+        rateLimitMaxSend = config.getInt(CONFIG_RATE_LIMIT_MAX_SEND, 5);
+        rateLimitMaxVerify = config.getInt(CONFIG_RATE_LIMIT_MAX_VERIFY, 10);
+        rateLimitWindowMs = config.getLong(CONFIG_RATE_LIMIT_WINDOW_SECONDS, 3600L) * 1000;
+        rateLimitMaxKeys = config.getInt(CONFIG_RATE_LIMIT_MAX_KEYS, 100000);
+        rateLimitShards = config.getInt(CONFIG_RATE_LIMIT_SHARDS, 16);
+        rateLimitEvictionIntervalMs = config.getLong(CONFIG_RATE_LIMIT_EVICTION_INTERVAL_SECONDS, 60L) * 1000;
+        rateLimitFlushIntervalMs = config.getLong(CONFIG_RATE_LIMIT_FLUSH_INTERVAL_MS, 1000L);
+        rateLimitMaxPerAddress = config.getInt(CONFIG_RATE_LIMIT_MAX_PER_ADDRESS, 1200);
+        rateLimitMaxPerClient = config.getInt(CONFIG_RATE_LIMIT_MAX_PER_CLIENT, 6000);
+        rateLimitMaxPerIdentifier = config.getInt(CONFIG_RATE_LIMIT_MAX_PER_IDENTIFIER, 20);
+        rateLimitPreLookupWindowMs = config.getLong(CONFIG_RATE_LIMIT_PRE_LOOKUP_WINDOW_SECONDS, 60L) * 1000;
     }
 
+    /**
+     * Start the shared components: email dispatch and outbox, rate limiters, caches, health checks,
+     * async request pool and event publisher. Tasks that only clean up node-local state run on every
+     * node; the expired OTP sweep runs on one node per interval.
+     */
     @Override
     public void postInit(KeycloakSessionFactory factory) {
-        // No post-initialization required
+        // Keycloak adds its Prometheus registry to the global registry when metrics are enabled
+        OtpMetrics metrics = new OtpMetrics(Metrics.globalRegistry);
+
+        SmtpConnectionPool smtpPool = new SmtpConnectionPool(smtpPoolMaxPerConfig, smtpPoolIdleTimeoutMs,
+            smtpPoolValidateAfterMs, smtpPoolBorrowTimeoutMs);
+        dispatcher = new EmailDispatcher(factory, metrics, smtpPool, dispatchWorkers, dispatchQueueCapacity,
+            dispatchStatusRetentionMs, batchChunkSize);
+        logger.infof("Email OTP dispatcher started with %d workers and queue capacity %d",
+            dispatchWorkers, dispatchQueueCapacity);
+
+        templateCache = new EmailTemplateCache(templateCacheTtlMs, templateCacheMaxEntries);
+        policyCache = new OtpPolicyCache(defaultPolicy);
+        healthMonitor = new HealthMonitor(factory, dispatcher, healthSmtpTimeoutMs, healthMaxQueuePercent);
+        factory.register(event -> {
+            if (event instanceof RealmModel.RealmRemovedEvent) {
+                String realmId = ((RealmModel.RealmRemovedEvent) event).getRealm().getId();
+                templateCache.invalidateRealm(realmId);
+                policyCache.invalidateRealm(realmId);
+                healthMonitor.forgetRealm(realmId);
+            }
+        });
+
+        OtpHasher[] hasher = new OtpHasher[1];
+        KeycloakModelUtils.runJobInTransaction(factory, session -> {
+            hasher[0] = new OtpHasher(resolveHashSecret(session));
+
+            long maintenanceIntervalMs;
+            if (RATE_LIMIT_MODE_CLUSTER.equals(rateLimitMode)) {
+                Cache<String, Integer> cache = session.getProvider(InfinispanConnectionProvider.class)
+                    .getCache(InfinispanConnectionProvider.WORK_CACHE_NAME);
+                rateLimiter = new ClusterRateLimiter(cache, rateLimitMaxSend, rateLimitMaxVerify,
+                    rateLimitWindowMs, rateLimitFlushIntervalMs, rateLimitMaxKeys);
+                // Maintenance doubles as the batched counter replication
+                maintenanceIntervalMs = rateLimitFlushIntervalMs;
+            } else {
+                rateLimiter = new LocalRateLimiter(rateLimitMaxSend, rateLimitMaxVerify,
+                    rateLimitWindowMs, rateLimitMaxKeys, rateLimitShards);
+                maintenanceIntervalMs = rateLimitEvictionIntervalMs;
+            }
+            logger.infof("Email OTP rate limiter running in %s mode", rateLimitMode);
+
+            TimerProvider timer = session.getProvider(TimerProvider.class);
+            timer.schedule(() -> {
+                int removed = rateLimiter.cleanup();
+                if (removed > 0) {
+                    logger.debugf("Evicted %d idle rate limit entries", removed);
+                }
+            }, maintenanceIntervalMs, RATE_LIMIT_EVICTION_TASK);
+
+            // Always node-local: it only sheds load before the per-user limit, which may be cluster-wide
+            preLookupLimiter = new PreLookupLimiter(new OtpHasher(hasher[0].deriveKey("email-otp-rate-limit")),
+                rateLimitMaxPerAddress, rateLimitMaxPerClient, rateLimitMaxPerIdentifier,
+                rateLimitPreLookupWindowMs, rateLimitMaxKeys, rateLimitShards);
+            timer.schedule(() -> {
+                int removed = preLookupLimiter.cleanup();
+                if (removed > 0) {
+                    logger.debugf("Evicted %d idle pre-lookup rate limit entries", removed);
+                }
+            }, rateLimitEvictionIntervalMs, PRE_LOOKUP_LIMIT_EVICTION_TASK);
+
+            negativeLookupCache = new NegativeLookupCache(new OtpHasher(hasher[0].deriveKey("email-otp-negative-lookup")),
+                negativeLookupTtlMs, negativeLookupMaxEntries);
+            if (negativeLookupTtlMs > 0) {
+                timer.schedule(negativeLookupCache::evictExpired, negativeLookupTtlMs, NEGATIVE_LOOKUP_EVICTION_TASK);
+            }
+
+            if (smtpPool.isEnabled()) {
+                timer.schedule(smtpPool::evictIdle, Math.max(1000L, smtpPoolIdleTimeoutMs / 2), SMTP_POOL_EVICTION_TASK);
+            }
+
+            // Cluster-aware: only the node that takes the cluster lock for an interval runs the sweep
+            if (expiredSweepIntervalMs > 0) {
+                timer.schedule(new ClusterAwareScheduledTaskRunner(factory,
+                    new ExpiredOtpSweeper(metrics, expiredSweepPageSize, expiredSweepMaxPerRun), expiredSweepIntervalMs),
+                    expiredSweepIntervalMs, EXPIRED_SWEEP_TASK);
+            }
+        });
+
+        OtpOutbox outbox = null;
+        if (outboxEnabled) {
+            // Payloads are encrypted with a key derived from the cluster-wide hash secret
+            outbox = new OtpOutbox(hasher[0].deriveKey("email-otp-outbox"));
+            outboxWorker = new OutboxWorker(factory, outbox, dispatcher, metrics, outboxBatchSize, outboxMaxAttempts,
+                outboxBackoffBaseMs, outboxBackoffMaxMs, outboxClaimTimeoutMs, dispatchStatusRetentionMs);
+            outbox.setWorker(outboxWorker);
+            outboxWorker.start(outboxPollIntervalMs);
+            logger.infof("Email OTP outbox enabled, polling every %d ms", outboxPollIntervalMs);
+        }
+
+        if (asyncWorkers > 0) {
+            asyncExecutor = new AsyncRequestExecutor(factory, asyncWorkers, asyncQueueCapacity);
+            logger.infof("Email OTP requests run on %d async workers, queue capacity %d", asyncWorkers, asyncQueueCapacity);
+        }
+
+        if (eventQueueCapacity > 0) {
+            eventPublisher = new OtpEventPublisher(factory, metrics, eventQueueCapacity, eventBatchSize);
+            eventPublisher.start(eventFlushIntervalMs);
+            logger.infof("Email OTP events flushed in batches of %d every %d ms, queue capacity %d",
+                eventBatchSize, eventFlushIntervalMs, eventQueueCapacity);
+        }
+
+        metrics.bindGauges(() -> rateLimiter.size() + preLookupLimiter.size(), dispatcher::getBacklog);
+        components = new OtpComponents(dispatcher, rateLimiter, preLookupLimiter, templateCache, metrics, hasher[0],
+            new LinkTokenSigner(hasher[0].deriveKey("email-otp-link-token")),
+            new VerifiedTokenCache(authCacheTtlMs, authCacheMaxEntries), healthMonitor, outbox,
+            policyCache, negativeLookupCache, asyncExecutor, eventPublisher, batchMaxItems);
+        healthMonitor.start(healthCheckIntervalMs);
+    }
+
+    /**
+     * Use the configured secret, or a random one generated once and shared through the replicated
+     * work cache; the latter only happens with the outbox disabled
+     */
+    private byte[] resolveHashSecret(KeycloakSession session) {
+        if (hashSecret != null && !hashSecret.isEmpty()) {
+            return hashSecret.getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] generated = new byte[GENERATED_SECRET_BYTES];
+        new SecureRandom().nextBytes(generated);
+        Cache<String, String> cache = session.getProvider(InfinispanConnectionProvider.class)
+            .getCache(InfinispanConnectionProvider.WORK_CACHE_NAME);
+        String existing = cache.putIfAbsent(HASH_SECRET_CACHE_KEY, Base64.getEncoder().encodeToString(generated));
+        if (existing != null) {
+            return Base64.getDecoder().decode(existing);
+        }
+        logger.warnf("No %s configured, generated one for this cluster; pending OTPs become invalid after a full restart",
+            CONFIG_HASH_SECRET);
+        return generated;
     }
 
+    /**
+     * Stop the components in dependency order, giving queued work until the drain timeout
+     */
     @Override
     public void close() {
-        // No resources to close
+        if (outboxWorker != null) {
+            outboxWorker.shutdown(dispatchDrainTimeoutMs);
+            outboxWorker = null;
+        }
+        if (asyncExecutor != null) {
+            // Requests still running may queue emails, so finish them before the dispatcher
+            asyncExecutor.shutdown(dispatchDrainTimeoutMs);
+            asyncExecutor = null;
+        }
+        if (eventPublisher != null) {
+            // After the requests, which may still publish events
+            eventPublisher.shutdown(dispatchDrainTimeoutMs);
+            eventPublisher = null;
+        }
+        if (healthMonitor != null) {
+            healthMonitor.shutdown();
+            healthMonitor = null;
+        }
+        if (dispatcher != null) {
+            dispatcher.shutdown(dispatchDrainTimeoutMs);
+            dispatcher = null;
+        }
+        if (rateLimiter != null) {
+            // Push any counters not yet replicated before the node leaves the cluster
+            rateLimiter.cleanup();
+        }
     }
 
     @Override
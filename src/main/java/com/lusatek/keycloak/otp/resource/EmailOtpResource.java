@@ -1,20 +1,69 @@
 package com.lusatek.keycloak.otp.resource;
 
+import com.lusatek.keycloak.otp.metrics.OtpMetrics;
+import com.lusatek.keycloak.otp.model.BatchItemResult;
+import com.lusatek.keycloak.otp.model.BatchOtpResponse;
+import com.lusatek.keycloak.otp.model.BatchSendOtpRequest;
+import com.lusatek.keycloak.otp.model.BatchVerifyOtpRequest;
+import com.lusatek.keycloak.otp.model.OtpPolicyRepresentation;
+import com.lusatek.keycloak.otp.model.OtpPolicyResponse;
 import com.lusatek.keycloak.otp.model.OtpResponse;
+import com.lusatek.keycloak.otp.model.OtpStatusRequest;
 import com.lusatek.keycloak.otp.model.SendOtpRequest;
+import com.lusatek.keycloak.otp.model.SendOtpResponse;
 import com.lusatek.keycloak.otp.model.VerifyOtpRequest;
+import com.lusatek.keycloak.otp.service.AsyncRequestExecutor;
+import com.lusatek.keycloak.otp.service.BatchOtpService;
+import com.lusatek.keycloak.otp.service.DispatchRejectedException;
+import com.lusatek.keycloak.otp.service.EmailDispatcher;
+import com.lusatek.keycloak.otp.service.HealthMonitor;
+import com.lusatek.keycloak.otp.service.NegativeLookupCache;
+import com.lusatek.keycloak.otp.service.OtpComponents;
+import com.lusatek.keycloak.otp.service.OtpEventPublisher;
+import com.lusatek.keycloak.otp.service.OtpPolicy;
 import com.lusatek.keycloak.otp.service.OtpService;
+import com.lusatek.keycloak.otp.service.UserLookupService;
+import com.lusatek.keycloak.otp.service.VerifiedTokenCache;
+import com.lusatek.keycloak.otp.store.OtpEntry;
+import com.lusatek.keycloak.otp.util.LinkTokenSigner;
+import com.lusatek.keycloak.otp.util.PreLookupLimiter;
 import com.lusatek.keycloak.otp.util.RateLimiter;
 import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.HttpHeaders;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
 import org.jboss.logging.Logger;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
 import org.keycloak.models.ClientModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.services.managers.AppAuthManager;
 import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resources.admin.AdminAuth;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+import org.keycloak.services.resources.admin.permissions.AdminPermissions;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
 
 /**
  * LUSATEK Email OTP REST Resource
@@ -22,19 +71,57 @@ import org.keycloak.services.managers.AuthenticationManager;
  * 
  * Endpoints:
  * - POST /realms/{realm}/email-otp/send - Send OTP to user's email
+ * - POST /realms/{realm}/email-otp/send/batch - Send OTPs to many users at once
+ * - GET /realms/{realm}/email-otp/send/status/{dispatchId} - Delivery status of a sent OTP
  * - POST /realms/{realm}/email-otp/verify - Verify OTP code
+ *
+ * With async-workers configured, /send and /verify run on a dedicated pool after the bearer
+ * token has been checked, and complete their response from there.
+ *
+ * Every /send and /verify produces a Keycloak event (SEND_VERIFY_EMAIL or VERIFY_EMAIL, or their
+ * _ERROR variants, with an otp_event detail) delivered in the background by the OtpEventPublisher.
  */
 @Path("/")
 public class EmailOtpResource {
     
     private static final Logger logger = Logger.getLogger(EmailOtpResource.class);
+
+    private static final String APPLICATION_NDJSON = "application/x-ndjson";
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
     
     private final KeycloakSession session;
-    private final AuthenticationManager.AuthResult auth;
+    private final OtpComponents components;
+    private final EmailDispatcher dispatcher;
+    private final RateLimiter rateLimiter;
+    private final OtpMetrics metrics;
+    private final VerifiedTokenCache tokenCache;
+    // Resolved on first use so unauthenticated endpoints such as /health skip token verification
+    private Boolean authenticated;
+    // Client the bearer token was issued to, once authenticated
+    private String clientId;
+    private String remoteAddress;
+    // User the request resolved to, reported in its event
+    private UserModel resolvedUser;
 
-    public EmailOtpResource(KeycloakSession session) {
+    public EmailOtpResource(KeycloakSession session, OtpComponents components) {
         this.session = session;
-        this.auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+        this.components = components;
+        this.dispatcher = components.getDispatcher();
+        this.rateLimiter = components.getRateLimiter();
+        this.metrics = components.getMetrics();
+        this.tokenCache = components.getTokenCache();
+    }
+
+    /**
+     * Resource running an offloaded request in its own session, with the state taken from the HTTP request
+     */
+    private EmailOtpResource(KeycloakSession session, OtpComponents components, boolean authenticated,
+                             String clientId, String remoteAddress) {
+        this(session, components);
+        this.authenticated = authenticated;
+        this.clientId = clientId;
+        this.remoteAddress = remoteAddress;
     }
 
     /**
@@ -48,20 +135,31 @@ public class EmailOtpResource {
      *   "clientId": "client-id"        // Optional, for additional validation
      * }
      * 
-     * Response:
+     * Response (202 Accepted, email is delivered asynchronously):
      * {
      *   "success": true,
-     *   "message": "OTP sent successfully"
+     *   "message": "OTP sent successfully",
+     *   "dispatchId": "uuid",
+     *   "status": "QUEUED"
      * }
      */
     @POST
     @Path("/send")
     @Produces(MediaType.APPLICATION_JSON)
     @Consumes(MediaType.APPLICATION_JSON)
-    public Response sendOtp(SendOtpRequest request) {
+    public CompletionStage<Response> sendOtp(SendOtpRequest request, @Context HttpHeaders headers) {
+        long start = System.nanoTime();
+        String idempotencyKey = headers.getHeaderString(IDEMPOTENCY_KEY_HEADER);
+        // A missing body is answered like one without identifiers
+        SendOtpRequest body = request != null ? request : new SendOtpRequest();
+        return offload(resource -> resource.publishEvent(false, resource.send(body, idempotencyKey, start),
+            body.getEmail(), null, start));
+    }
+
+    private Response send(SendOtpRequest request, String idempotencyKey, long start) {
         try {
             // Validate authentication
-            if (auth == null) {
+            if (!isAuthenticated()) {
                 logger.warn("Unauthenticated request to send OTP");
                 return Response.status(Response.Status.UNAUTHORIZED)
                     .entity(new OtpResponse(false, "Authentication required", "AUTH_REQUIRED"))
@@ -76,9 +174,22 @@ public class EmailOtpResource {
                     .entity(new OtpResponse(false, "Email or userId is required", "MISSING_IDENTIFIER"))
                     .build();
             }
+            if (idempotencyKey != null && (idempotencyKey.isEmpty() || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH)) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(new OtpResponse(false, "Idempotency-Key must be 1 to " + MAX_IDEMPOTENCY_KEY_LENGTH + " characters",
+                        "INVALID_IDEMPOTENCY_KEY"))
+                    .build();
+            }
+
+            // Shed abusive callers before the user lookup hits the database
+            Response limited = checkPreLookupLimits(realm, request.getEmail(), request.getUserId());
+            if (limited != null) {
+                return limited;
+            }
 
             // Find user
             UserModel user = findUser(realm, request.getEmail(), request.getUserId());
+            resolvedUser = user;
             if (user == null) {
                 logger.warnf("User not found for email/userId: %s/%s", request.getEmail(), request.getUserId());
                 return Response.status(Response.Status.NOT_FOUND)
@@ -93,15 +204,6 @@ public class EmailOtpResource {
                     .build();
             }
 
-            // Check rate limiting
-            String identifier = user.getId();
-            if (!RateLimiter.allowSend(identifier)) {
-                logger.warnf("Rate limit exceeded for user: %s", user.getEmail());
-                return Response.status(Response.Status.TOO_MANY_REQUESTS)
-                    .entity(new OtpResponse(false, "Too many attempts. Please try again later.", "RATE_LIMIT_EXCEEDED"))
-                    .build();
-            }
-
             // Validate client if provided
             if (request.getClientId() != null && !request.getClientId().isEmpty()) {
                 ClientModel client = realm.getClientByClientId(request.getClientId());
@@ -112,13 +214,55 @@ public class EmailOtpResource {
                 }
             }
 
-            // Generate and send OTP
-            OtpService otpService = new OtpService(session, realm);
-            boolean success = otpService.generateAndSendOtp(user);
+            // Report the active OTP instead of issuing another one for retries and quick resends;
+            // checked before the rate limit so a suppressed request does not use up the send budget
+            OtpService otpService = new OtpService(session, realm, components);
+            long minResendIntervalMs = otpService.getPolicy().getResendIntervalMs();
+            OtpEntry active = otpService.findReusableOtp(user, idempotencyKey);
+            if (active != null) {
+                logger.debugf("Active OTP reused for user: %s", user.getEmail());
+                SendOtpResponse response = new SendOtpResponse(true, "OTP already sent to " + maskEmail(user.getEmail()),
+                    null, OtpService.ALREADY_SENT);
+                setTimings(response, active, minResendIntervalMs);
+                return Response.ok(response).build();
+            }
+
+            // Check rate limiting
+            String identifier = user.getId();
+            if (!rateLimiter.allowSend(identifier)) {
+                metrics.rateLimited(OtpMetrics.LimitKind.SEND);
+                logger.warnf("Rate limit exceeded for user: %s", user.getEmail());
+                return Response.status(Response.Status.TOO_MANY_REQUESTS)
+                    .entity(new OtpResponse(false, "Too many attempts. Please try again later.", "RATE_LIMIT_EXCEEDED"))
+                    .build();
+            }
+
+            // Generate OTP and queue email
+            String dispatchId;
+            try {
+                dispatchId = otpService.generateAndSendOtp(user, idempotencyKey);
+            } catch (DispatchRejectedException e) {
+                logger.warnf("Email dispatch queue full, rejecting OTP send for user: %s", user.getEmail());
+                return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .header("Retry-After", 5)
+                    .entity(new OtpResponse(false, "Email service is busy. Please try again shortly.", "QUEUE_FULL"))
+                    .build();
+            }
 
-            if (success) {
-                logger.infof("OTP sent successfully to user: %s", user.getEmail());
-                return Response.ok(new OtpResponse(true, "OTP sent successfully to " + maskEmail(user.getEmail()))).build();
+            if (dispatchId != null) {
+                logger.infof("OTP queued for delivery to user: %s", user.getEmail());
+                SendOtpResponse response = new SendOtpResponse(true, "OTP sent successfully to " + maskEmail(user.getEmail()),
+                    dispatchId, EmailDispatcher.Status.QUEUED.name());
+                if (otpService.getPolicy().isLinkMode()) {
+                    // Nothing is stored for a link; it expires a full TTL from now
+                    response.setExpiresIn(otpService.getPolicy().getTtlMs() / 1000);
+                } else {
+                    OtpEntry issued = otpService.getPendingOtp(user);
+                    if (issued != null) {
+                        setTimings(response, issued, minResendIntervalMs);
+                    }
+                }
+                return Response.accepted(response).build();
             } else {
                 logger.errorf("Failed to send OTP to user: %s", user.getEmail());
                 return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
@@ -131,18 +275,146 @@ public class EmailOtpResource {
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
                 .entity(new OtpResponse(false, "Internal server error", "INTERNAL_ERROR"))
                 .build();
+        } finally {
+            metrics.request(OtpMetrics.Endpoint.SEND, start);
         }
     }
 
     /**
-     * Verify OTP code
+     * Send OTP codes to many users at once
+     * POST /realms/{realm}/email-otp/send/batch
+     *
+     * Users are resolved in bulk, the send rate limit applies per entry and emails are
+     * delivered in chunks over pooled SMTP connections. With "Accept: application/x-ndjson"
+     * one result line is streamed per entry as each chunk completes.
+     *
+     * Request body:
+     * {
+     *   "items": [ { "email": "user@example.com" }, { "userId": "user-id" } ],
+     *   "clientId": "client-id"        // Optional, for additional validation
+     * }
+     *
+     * Response (200 OK, per-entry outcome):
+     * {
+     *   "success": true,
+     *   "message": "Batch processed",
+     *   "succeeded": 1,
+     *   "failed": 1,
+     *   "results": [ { "index": 0, "success": true, "dispatchId": "uuid", "status": "QUEUED" }, ... ]
+     * }
+     */
+    @POST
+    @Path("/send/batch")
+    @Produces({MediaType.APPLICATION_JSON, APPLICATION_NDJSON})
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response sendOtpBatch(BatchSendOtpRequest request, @Context HttpHeaders headers) {
+        long start = System.nanoTime();
+        boolean streamed = false;
+        try {
+            Response invalid = validateBatch(request != null ? request.getItems() : null,
+                request != null ? request.getClientId() : null, "send OTP batch");
+            if (invalid != null) {
+                return invalid;
+            }
+
+            RealmModel realm = session.getContext().getRealm();
+            List<SendOtpRequest> items = request.getItems();
+            int chunkSize = dispatcher.getBatchChunkSize();
+            Set<String> seenUserIds = new HashSet<>();
+
+            if (acceptsNdjson(headers)) {
+                // Each chunk runs in its own transaction since the body is written after this method returns
+                KeycloakSessionFactory sessionFactory = session.getKeycloakSessionFactory();
+                String realmId = realm.getId();
+                StreamingOutput stream = output -> {
+                    try {
+                        for (int offset = 0; offset < items.size(); offset += chunkSize) {
+                            List<SendOtpRequest> chunk = items.subList(offset, Math.min(items.size(), offset + chunkSize));
+                            int chunkOffset = offset;
+                            List<BatchItemResult> results = new ArrayList<>(chunk.size());
+                            KeycloakModelUtils.runJobInTransaction(sessionFactory, chunkSession -> {
+                                RealmModel chunkRealm = chunkSession.realms().getRealm(realmId);
+                                chunkSession.getContext().setRealm(chunkRealm);
+                                results.addAll(new BatchOtpService(chunkSession, chunkRealm, components)
+                                    .sendChunk(chunk, chunkOffset, seenUserIds));
+                            });
+                            writeNdjson(output, results);
+                        }
+                    } finally {
+                        metrics.request(OtpMetrics.Endpoint.SEND_BATCH, start);
+                    }
+                };
+                streamed = true;
+                return Response.ok(stream, APPLICATION_NDJSON).build();
+            }
+
+            BatchOtpService batchService = new BatchOtpService(session, realm, components);
+            List<BatchItemResult> results = new ArrayList<>(items.size());
+            for (int offset = 0; offset < items.size(); offset += chunkSize) {
+                results.addAll(batchService.sendChunk(
+                    items.subList(offset, Math.min(items.size(), offset + chunkSize)), offset, seenUserIds));
+            }
+            return Response.ok(new BatchOtpResponse(results)).build();
+
+        } catch (Exception e) {
+            logger.errorf(e, "Error processing batch send OTP request");
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                .entity(new OtpResponse(false, "Internal server error", "INTERNAL_ERROR"))
+                .build();
+        } finally {
+            // Streamed batches are timed once the last chunk has been written
+            if (!streamed) {
+                metrics.request(OtpMetrics.Endpoint.SEND_BATCH, start);
+            }
+        }
+    }
+
+    /**
+     * Delivery status of a queued OTP email
+     * GET /realms/{realm}/email-otp/send/status/{dispatchId}
+     *
+     * Response:
+     * {
+     *   "success": true,
+     *   "message": "Dispatch status",
+     *   "dispatchId": "uuid",
+     *   "status": "QUEUED" | "SENDING" | "SENT" | "FAILED"
+     * }
+     */
+    @GET
+    @Path("/send/status/{dispatchId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response sendStatus(@PathParam("dispatchId") String dispatchId) {
+        if (!isAuthenticated()) {
+            logger.warn("Unauthenticated request to dispatch status");
+            return Response.status(Response.Status.UNAUTHORIZED)
+                .entity(new OtpResponse(false, "Authentication required", "AUTH_REQUIRED"))
+                .build();
+        }
+
+        RealmModel realm = session.getContext().getRealm();
+        EmailDispatcher.Status status = dispatcher.getStatus(realm.getId(), dispatchId);
+        if (status == null && components.getOutbox() != null) {
+            status = components.getOutbox().getStatus(session, realm.getId(), dispatchId);
+        }
+        if (status == null) {
+            return Response.status(Response.Status.NOT_FOUND)
+                .entity(new OtpResponse(false, "Unknown or expired dispatch id", "DISPATCH_NOT_FOUND"))
+                .build();
+        }
+        return Response.ok(new SendOtpResponse(true, "Dispatch status", dispatchId, status.name())).build();
+    }
+
+    /**
+     * Verify OTP code, or the token of a verification link
      * POST /realms/{realm}/email-otp/verify
      * 
      * Request body:
      * {
-     *   "email": "user@example.com",  // Optional if userId provided
-     *   "userId": "user-id",           // Optional if email provided
-     *   "code": "123456",              // 6-digit OTP code
+     *   "email": "user@example.com",  // Optional if userId or token provided
+     *   "userId": "user-id",           // Optional if email or token provided
+     *   "code": "123456",              // 6-digit OTP code, unless token provided
+     *   "token": "...",                // Token from a verification link (link mode)
      *   "clientId": "client-id"        // Optional, for additional validation
      * }
      * 
@@ -156,10 +428,18 @@ public class EmailOtpResource {
     @Path("/verify")
     @Produces(MediaType.APPLICATION_JSON)
     @Consumes(MediaType.APPLICATION_JSON)
-    public Response verifyOtp(VerifyOtpRequest request) {
+    public CompletionStage<Response> verifyOtp(VerifyOtpRequest request) {
+        long start = System.nanoTime();
+        // A missing body is answered like one without identifiers
+        VerifyOtpRequest body = request != null ? request : new VerifyOtpRequest();
+        return offload(resource -> resource.publishEvent(true, resource.verify(body, start),
+            body.getEmail(), body.getToken() != null ? "link" : "code", start));
+    }
+
+    private Response verify(VerifyOtpRequest request, long start) {
         try {
             // Validate authentication
-            if (auth == null) {
+            if (!isAuthenticated()) {
                 logger.warn("Unauthenticated request to verify OTP");
                 return Response.status(Response.Status.UNAUTHORIZED)
                     .entity(new OtpResponse(false, "Authentication required", "AUTH_REQUIRED"))
@@ -168,23 +448,46 @@ public class EmailOtpResource {
 
             RealmModel realm = session.getContext().getRealm();
 
-            // Validate request
-            if (request.getEmail() == null && request.getUserId() == null) {
-                return Response.status(Response.Status.BAD_REQUEST)
-                    .entity(new OtpResponse(false, "Email or userId is required", "MISSING_IDENTIFIER"))
-                    .build();
+            // A link token names its user; the identifiers of the request are not needed then
+            String email = request.getEmail();
+            String userId = request.getUserId();
+            LinkTokenSigner.Claims claims = null;
+            if (request.getToken() != null) {
+                claims = components.getLinkTokenSigner().parse(request.getToken());
+                if (claims == null || (userId != null && !userId.equals(claims.getUserId()))) {
+                    return invalidToken();
+                }
+                email = null;
+                userId = claims.getUserId();
+            } else {
+                // Validate request
+                if (email == null && userId == null) {
+                    return Response.status(Response.Status.BAD_REQUEST)
+                        .entity(new OtpResponse(false, "Email or userId is required", "MISSING_IDENTIFIER"))
+                        .build();
+                }
+
+                if (request.getCode() == null || request.getCode().isEmpty()) {
+                    return Response.status(Response.Status.BAD_REQUEST)
+                        .entity(new OtpResponse(false, "OTP code is required", "MISSING_CODE"))
+                        .build();
+                }
             }
 
-            if (request.getCode() == null || request.getCode().isEmpty()) {
-                return Response.status(Response.Status.BAD_REQUEST)
-                    .entity(new OtpResponse(false, "OTP code is required", "MISSING_CODE"))
-                    .build();
+            // Shed abusive callers before the user lookup hits the database
+            Response limited = checkPreLookupLimits(realm, email, userId);
+            if (limited != null) {
+                return limited;
             }
 
             // Find user
-            UserModel user = findUser(realm, request.getEmail(), request.getUserId());
+            UserModel user = findUser(realm, email, userId);
+            resolvedUser = user;
             if (user == null) {
-                logger.warnf("User not found for email/userId: %s/%s", request.getEmail(), request.getUserId());
+                logger.warnf("User not found for email/userId: %s/%s", email, userId);
+                if (claims != null) {
+                    return invalidToken();
+                }
                 return Response.status(Response.Status.NOT_FOUND)
                     .entity(new OtpResponse(false, "User not found", "USER_NOT_FOUND"))
                     .build();
@@ -192,7 +495,8 @@ public class EmailOtpResource {
 
             // Check rate limiting
             String identifier = user.getId();
-            if (!RateLimiter.allowVerify(identifier)) {
+            if (!rateLimiter.allowVerify(identifier)) {
+                metrics.rateLimited(OtpMetrics.LimitKind.VERIFY);
                 logger.warnf("Rate limit exceeded for verification, user: %s", user.getEmail());
                 return Response.status(Response.Status.TOO_MANY_REQUESTS)
                     .entity(new OtpResponse(false, "Too many attempts. Please try again later.", "RATE_LIMIT_EXCEEDED"))
@@ -210,12 +514,24 @@ public class EmailOtpResource {
             }
 
             // Verify OTP
-            OtpService otpService = new OtpService(session, realm);
-            boolean verified = otpService.verifyOtp(user, request.getCode());
+            OtpService otpService = new OtpService(session, realm, components);
+            OtpMetrics.VerifyResult result = claims != null
+                ? otpService.verifyLink(user, claims)
+                : otpService.verify(user, request.getCode());
 
-            if (verified) {
+            if (result == OtpMetrics.VerifyResult.VERIFIED) {
                 logger.infof("OTP verified successfully for user: %s", user.getEmail());
                 return Response.ok(new OtpResponse(true, "Email verified successfully")).build();
+            } else if (result == OtpMetrics.VerifyResult.ATTEMPTS_EXCEEDED) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(new OtpResponse(false, "Too many incorrect codes. Please request a new code.", "ATTEMPTS_EXCEEDED"))
+                    .build();
+            } else if (result == OtpMetrics.VerifyResult.REPLAYED) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(new OtpResponse(false, "This verification link has already been used", "TOKEN_ALREADY_USED"))
+                    .build();
+            } else if (claims != null) {
+                return invalidToken();
             } else {
                 logger.warnf("Invalid or expired OTP for user: %s", user.getEmail());
                 return Response.status(Response.Status.BAD_REQUEST)
@@ -228,30 +544,512 @@ public class EmailOtpResource {
             return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
                 .entity(new OtpResponse(false, "Internal server error", "INTERNAL_ERROR"))
                 .build();
+        } finally {
+            metrics.request(OtpMetrics.Endpoint.VERIFY, start);
         }
     }
 
     /**
-     * Health check endpoint
+     * Verify the OTP codes of many users at once
+     * POST /realms/{realm}/email-otp/verify/batch
+     *
+     * Users are resolved in bulk and their OTPs read from the store in one call; the verify
+     * rate limit and the wrong-code limit apply per entry as for /verify.
+     *
+     * Request body:
+     * {
+     *   "items": [ { "email": "user@example.com", "code": "123456" }, { "token": "..." } ],
+     *   "clientId": "client-id"        // Optional, for additional validation
+     * }
+     *
+     * Response (200 OK, per-entry outcome):
+     * {
+     *   "success": true,
+     *   "message": "Batch processed",
+     *   "succeeded": 1,
+     *   "failed": 1,
+     *   "results": [ { "index": 0, "success": true, "message": "Email verified successfully" }, ... ]
+     * }
+     */
+    @POST
+    @Path("/verify/batch")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response verifyOtpBatch(BatchVerifyOtpRequest request) {
+        long start = System.nanoTime();
+        try {
+            Response invalid = validateBatch(request != null ? request.getItems() : null,
+                request != null ? request.getClientId() : null, "verify OTP batch");
+            if (invalid != null) {
+                return invalid;
+            }
+            RealmModel realm = session.getContext().getRealm();
+            return Response.ok(new BatchOtpResponse(
+                new BatchOtpService(session, realm, components).verify(request.getItems()))).build();
+        } catch (Exception e) {
+            logger.errorf(e, "Error processing batch verify OTP request");
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                .entity(new OtpResponse(false, "Internal server error", "INTERNAL_ERROR"))
+                .build();
+        } finally {
+            metrics.request(OtpMetrics.Endpoint.VERIFY_BATCH, start);
+        }
+    }
+
+    /**
+     * Verification status of many users: whether the email is verified and whether an OTP is pending
+     * POST /realms/{realm}/email-otp/status
+     *
+     * Request body:
+     * {
+     *   "items": [ { "email": "user@example.com" }, { "userId": "user-id" } ],
+     *   "clientId": "client-id"        // Optional, for additional validation
+     * }
+     *
+     * Response (200 OK, per-entry status):
+     * {
+     *   "success": true,
+     *   "message": "Batch processed",
+     *   "succeeded": 2,
+     *   "failed": 0,
+     *   "results": [ { "index": 0, "success": true, "emailVerified": false, "pending": true,
+     *                  "expiresIn": 420, "resendAfter": 0 }, ... ]
+     * }
+     */
+    @POST
+    @Path("/status")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response otpStatus(OtpStatusRequest request) {
+        long start = System.nanoTime();
+        try {
+            Response invalid = validateBatch(request != null ? request.getItems() : null,
+                request != null ? request.getClientId() : null, "OTP status");
+            if (invalid != null) {
+                return invalid;
+            }
+            RealmModel realm = session.getContext().getRealm();
+            return Response.ok(new BatchOtpResponse(
+                new BatchOtpService(session, realm, components).status(request.getItems()))).build();
+        } catch (Exception e) {
+            logger.errorf(e, "Error processing OTP status request");
+            return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                .entity(new OtpResponse(false, "Internal server error", "INTERNAL_ERROR"))
+                .build();
+        } finally {
+            metrics.request(OtpMetrics.Endpoint.STATUS, start);
+        }
+    }
+
+    /**
+     * Checks shared by the batch endpoints: authentication, batch size, the optional client and
+     * the limits before the user lookup; a batch counts once against the address and client
+     * limits, entries are limited per user
+     * @return Error response, or null if the batch may be processed
+     */
+    private Response validateBatch(List<?> items, String requestClientId, String description) {
+        if (!isAuthenticated()) {
+            logger.warnf("Unauthenticated request to %s", description);
+            return Response.status(Response.Status.UNAUTHORIZED)
+                .entity(new OtpResponse(false, "Authentication required", "AUTH_REQUIRED"))
+                .build();
+        }
+        if (items == null || items.isEmpty()) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                .entity(new OtpResponse(false, "At least one item is required", "MISSING_ITEMS"))
+                .build();
+        }
+        int maxItems = components.getBatchMaxItems();
+        if (items.size() > maxItems) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                .entity(new OtpResponse(false, "Batch exceeds " + maxItems + " items", "BATCH_TOO_LARGE"))
+                .build();
+        }
+        RealmModel realm = session.getContext().getRealm();
+        Response limited = checkPreLookupLimits(realm, null, null);
+        if (limited != null) {
+            return limited;
+        }
+        // Validate client once for the whole batch
+        if (requestClientId != null && !requestClientId.isEmpty()) {
+            ClientModel client = realm.getClientByClientId(requestClientId);
+            if (client == null || !client.isEnabled()) {
+                return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(new OtpResponse(false, "Invalid client", "INVALID_CLIENT"))
+                    .build();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Liveness probe, also served at /health/live
      * GET /realms/{realm}/email-otp/health
      */
     @GET
     @Path("/health")
     @Produces(MediaType.APPLICATION_JSON)
     public Response health() {
-        return Response.ok(new OtpResponse(true, "LUSATEK Email OTP service is running")).build();
+        return Response.ok(components.getHealthMonitor().getLiveBody()).build();
+    }
+
+    /**
+     * Liveness probe: constant, pre-serialized response
+     * GET /realms/{realm}/email-otp/health/live
+     */
+    @GET
+    @Path("/health/live")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response live() {
+        return Response.ok(components.getHealthMonitor().getLiveBody()).build();
+    }
+
+    /**
+     * Readiness probe: latest results of the background checks, never runs a check inline
+     * GET /realms/{realm}/email-otp/health/ready
+     *
+     * Response (200 OK when ready, 503 otherwise):
+     * {
+     *   "success": true,
+     *   "message": "LUSATEK Email OTP service is ready",
+     *   "checks": { "smtp": "UP", "dispatchQueue": "UP", "otpStore": "UP" },
+     *   "checkedAt": 1700000000000
+     * }
+     */
+    @GET
+    @Path("/health/ready")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response ready() {
+        HealthMonitor.Report report = components.getHealthMonitor()
+            .getReadiness(session.getContext().getRealm().getId());
+        return Response.status(report.isReady() ? Response.Status.OK : Response.Status.SERVICE_UNAVAILABLE)
+            .entity(report.getBody())
+            .build();
+    }
+
+    /**
+     * Effective OTP policy of the realm; requires the view-realm permission
+     * GET /realms/{realm}/email-otp/policy
+     *
+     * Response:
+     * {
+     *   "success": true,
+     *   "message": "OTP policy",
+     *   "policy": { "codeLength": 6, "codeAlphabet": "numeric", "ttlSeconds": 600, ... }
+     * }
+     */
+    @GET
+    @Path("/policy")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getPolicy() {
+        AdminPermissionEvaluator permissions = adminPermissions();
+        if (permissions == null) {
+            return Response.status(Response.Status.UNAUTHORIZED)
+                .entity(new OtpResponse(false, "Authentication required", "AUTH_REQUIRED"))
+                .build();
+        }
+        if (!permissions.realm().canViewRealm()) {
+            return Response.status(Response.Status.FORBIDDEN)
+                .entity(new OtpResponse(false, "Not allowed to view the realm", "FORBIDDEN"))
+                .build();
+        }
+        OtpPolicy policy = components.getPolicyCache().get(session.getContext().getRealm());
+        return Response.ok(new OtpPolicyResponse(true, "OTP policy", policy.toRepresentation())).build();
+    }
+
+    /**
+     * Replace the OTP policy of the realm; requires the manage-realm permission.
+     * Omitted values reset the setting to the server default.
+     * PUT /realms/{realm}/email-otp/policy
+     *
+     * Request body:
+     * {
+     *   "codeLength": 8,
+     *   "codeAlphabet": "alphanumeric",
+     *   "ttlSeconds": 300,
+     *   "resendIntervalSeconds": 30,
+     *   "template": "email-otp.ftl",
+     *   "companyName": "ACME"
+     * }
+     */
+    @PUT
+    @Path("/policy")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response updatePolicy(OtpPolicyRepresentation request) {
+        AdminPermissionEvaluator permissions = adminPermissions();
+        if (permissions == null) {
+            return Response.status(Response.Status.UNAUTHORIZED)
+                .entity(new OtpResponse(false, "Authentication required", "AUTH_REQUIRED"))
+                .build();
+        }
+        if (!permissions.realm().canManageRealm()) {
+            return Response.status(Response.Status.FORBIDDEN)
+                .entity(new OtpResponse(false, "Not allowed to manage the realm", "FORBIDDEN"))
+                .build();
+        }
+        if (request == null) {
+            request = new OtpPolicyRepresentation();
+        }
+
+        RealmModel realm = session.getContext().getRealm();
+        OtpPolicy policy;
+        try {
+            policy = components.getPolicyCache().update(realm, request);
+        } catch (IllegalArgumentException e) {
+            return Response.status(Response.Status.BAD_REQUEST)
+                .entity(new OtpResponse(false, e.getMessage(), "INVALID_POLICY"))
+                .build();
+        }
+        logger.infof("OTP policy of realm %s updated: %s code, %d s TTL", realm.getName(),
+            policy.getCodeFormat(), policy.getTtlSeconds());
+        return Response.ok(new OtpPolicyResponse(true, "OTP policy updated", policy.toRepresentation())).build();
+    }
+
+    /**
+     * Fully verify the bearer token for an admin operation (not cached, these calls are rare)
+     * @return Permissions of the token's user, or null if the request is not authenticated
+     */
+    private AdminPermissionEvaluator adminPermissions() {
+        String token = AppAuthManager.extractAuthorizationHeaderTokenOrReturnNull(
+            session.getContext().getRequestHeaders());
+        if (token == null) {
+            return null;
+        }
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session)
+            .setTokenString(token)
+            .authenticate();
+        if (auth == null) {
+            return null;
+        }
+        RealmModel realm = session.getContext().getRealm();
+        AdminAuth adminAuth = new AdminAuth(realm, auth.getToken(), auth.getUser(), auth.getClient());
+        return AdminPermissions.evaluator(session, realm, adminAuth);
+    }
+
+    /**
+     * Check the bearer token, reusing a recent successful verification of the same token
+     */
+    private boolean isAuthenticated() {
+        if (authenticated == null) {
+            authenticated = authenticate();
+        }
+        return authenticated;
+    }
+
+    private boolean authenticate() {
+        String token = AppAuthManager.extractAuthorizationHeaderTokenOrReturnNull(
+            session.getContext().getRequestHeaders());
+        if (token == null) {
+            return false;
+        }
+        String cacheKey = tokenCache.key(session.getContext().getRealm().getId(), token);
+        clientId = tokenCache.getClientId(cacheKey);
+        if (clientId != null) {
+            return true;
+        }
+
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session)
+            .setTokenString(token)
+            .authenticate();
+        if (auth == null) {
+            return false;
+        }
+        Long exp = auth.getToken().getExp();
+        clientId = auth.getClient() != null ? auth.getClient().getClientId() : auth.getToken().getIssuedFor();
+        if (clientId == null) {
+            clientId = "";
+        }
+        tokenCache.put(cacheKey, exp != null ? exp * 1000 : 0, clientId);
+        return true;
+    }
+
+    private String remoteAddress() {
+        if (remoteAddress == null) {
+            remoteAddress = session.getContext().getConnection().getRemoteAddr();
+        }
+        return remoteAddress;
+    }
+
+    /**
+     * Run a request handler here, or on the async request pool if one is configured. Everything
+     * the handler needs from the HTTP request is resolved before leaving its thread.
+     */
+    private CompletionStage<Response> offload(Function<EmailOtpResource, Response> handler) {
+        AsyncRequestExecutor executor = components.getAsyncExecutor();
+        // Unauthenticated requests are answered right away
+        if (executor == null || !isAuthenticated()) {
+            return CompletableFuture.completedFuture(handler.apply(this));
+        }
+        String requestClientId = clientId;
+        String requestRemoteAddress = remoteAddress();
+        return executor.submit(session.getContext().getRealm().getId(), jobSession ->
+                handler.apply(new EmailOtpResource(jobSession, components, true, requestClientId, requestRemoteAddress)))
+            .exceptionally(e -> {
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                if (cause instanceof RejectedExecutionException) {
+                    logger.warn("Async OTP request queue full, rejecting request");
+                    return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                        .header("Retry-After", 1)
+                        .entity(new OtpResponse(false, "Service is busy. Please try again shortly.", "SERVER_BUSY"))
+                        .build();
+                }
+                logger.errorf(cause, "Error completing async OTP request");
+                return Response.status(Response.Status.INTERNAL_SERVER_ERROR)
+                    .entity(new OtpResponse(false, "Internal server error", "INTERNAL_ERROR"))
+                    .build();
+            });
+    }
+
+    /**
+     * Queue the event of a /send or /verify request for background delivery; the outcome is taken
+     * from the response, so every return path is covered
+     * @param verify true for /verify, false for /send
+     * @param requestedEmail Email from the request, reported when no user was resolved
+     * @param method "code" or "link" for /verify, null for /send
+     * @return The response, unchanged
+     */
+    private Response publishEvent(boolean verify, Response response, String requestedEmail, String method, long start) {
+        OtpEventPublisher publisher = components.getEventPublisher();
+        RealmModel realm = session.getContext().getRealm();
+        if (publisher == null || realm == null) {
+            return response;
+        }
+        try {
+            Object entity = response.getEntity();
+            String errorCode = entity instanceof OtpResponse ? ((OtpResponse) entity).getErrorCode() : null;
+            boolean failed = response.getStatus() >= 400;
+            String outcome;
+            if (failed) {
+                outcome = errorCode != null ? errorCode : String.valueOf(response.getStatus());
+            } else if (entity instanceof SendOtpResponse) {
+                outcome = ((SendOtpResponse) entity).getStatus();
+            } else {
+                outcome = "VERIFIED";
+            }
+
+            EventType type = verify
+                ? (failed ? EventType.VERIFY_EMAIL_ERROR : EventType.VERIFY_EMAIL)
+                : (failed ? EventType.SEND_VERIFY_EMAIL_ERROR : EventType.SEND_VERIFY_EMAIL);
+            String step = "RATE_LIMIT_EXCEEDED".equals(errorCode) ? OtpEventPublisher.OTP_RATE_LIMITED
+                : verify ? OtpEventPublisher.OTP_VERIFY : OtpEventPublisher.OTP_SEND;
+            // Built directly: EventBuilder would resolve the realm's event store and listeners on every request,
+            // which the publisher does once per batch
+            Map<String, String> details = new HashMap<>();
+            details.put(OtpEventPublisher.DETAIL_OTP_EVENT, step);
+            details.put("outcome", outcome);
+            details.put("latency_ms", String.valueOf((System.nanoTime() - start) / 1_000_000));
+            String email = resolvedUser != null ? resolvedUser.getEmail() : requestedEmail;
+            if (email != null) {
+                details.put("email", maskEmail(email));
+            }
+            if (method != null) {
+                details.put("method", method);
+            }
+            if (entity instanceof SendOtpResponse && ((SendOtpResponse) entity).getDispatchId() != null) {
+                details.put("dispatch_id", ((SendOtpResponse) entity).getDispatchId());
+            }
+
+            Event event = new Event();
+            event.setType(type);
+            event.setRealmId(realm.getId());
+            event.setIpAddress(remoteAddress());
+            if (clientId != null && !clientId.isEmpty()) {
+                event.setClientId(clientId);
+            }
+            if (resolvedUser != null) {
+                event.setUserId(resolvedUser.getId());
+            }
+            if (failed) {
+                event.setError(outcome.toLowerCase(Locale.ROOT));
+            }
+            event.setDetails(details);
+            publisher.publish(event);
+        } catch (RuntimeException e) {
+            logger.warnf(e, "Failed to record OTP event");
+        }
+        return response;
     }
 
     /**
-     * Find user by email or userId
+     * Count the request against the address, client and identifier limits
+     * @return 429 response if one of them is exceeded, otherwise null
+     */
+    private Response checkPreLookupLimits(RealmModel realm, String email, String userId) {
+        PreLookupLimiter.Scope exceeded = components.getPreLookupLimiter().check(
+            remoteAddress(), realm.getId(), clientId, email, userId);
+        if (exceeded == null) {
+            return null;
+        }
+        // Logged once here and at debug level: under a flood these are counted by the rate_limited metric
+        logger.debugf("Pre-lookup rate limit exceeded for %s, address: %s", exceeded, remoteAddress());
+        switch (exceeded) {
+            case ADDRESS:
+                metrics.rateLimited(OtpMetrics.LimitKind.ADDRESS);
+                break;
+            case CLIENT:
+                metrics.rateLimited(OtpMetrics.LimitKind.CLIENT);
+                break;
+            default:
+                metrics.rateLimited(OtpMetrics.LimitKind.IDENTIFIER);
+                break;
+        }
+        return Response.status(Response.Status.TOO_MANY_REQUESTS)
+            .entity(new OtpResponse(false, "Too many attempts. Please try again later.", "RATE_LIMIT_EXCEEDED"))
+            .build();
+    }
+
+    /**
+     * Find user by email or userId; recent misses are answered from memory
      */
     private UserModel findUser(RealmModel realm, String email, String userId) {
-        if (userId != null && !userId.isEmpty()) {
-            return session.users().getUserById(realm, userId);
-        } else if (email != null && !email.isEmpty()) {
-            return session.users().getUserByEmail(realm, email);
+        NegativeLookupCache negativeCache = components.getNegativeLookupCache();
+        // Read before the lookup so a user created meanwhile invalidates the miss recorded below
+        long generation = negativeCache.generation(session, realm.getId());
+        if (negativeCache.isKnownMissing(realm.getId(), email, userId, generation)) {
+            metrics.userLookupCachedMiss();
+            return null;
         }
-        return null;
+        long start = System.nanoTime();
+        UserModel user = new UserLookupService(session, realm).findUser(email, userId);
+        metrics.userLookup(start);
+        if (user == null) {
+            negativeCache.recordMiss(realm.getId(), email, userId, generation);
+        }
+        return user;
+    }
+
+    private static boolean acceptsNdjson(HttpHeaders headers) {
+        for (MediaType type : headers.getAcceptableMediaTypes()) {
+            if (APPLICATION_NDJSON.equalsIgnoreCase(type.getType() + "/" + type.getSubtype())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void writeNdjson(OutputStream output, List<BatchItemResult> results) throws IOException {
+        for (BatchItemResult result : results) {
+            output.write(JsonSerialization.writeValueAsBytes(result));
+            output.write('\n');
+        }
+        output.flush();
+    }
+
+    private static Response invalidToken() {
+        return Response.status(Response.Status.BAD_REQUEST)
+            .entity(new OtpResponse(false, "Invalid or expired verification link", "INVALID_TOKEN"))
+            .build();
+    }
+
+    /**
+     * Fill in the remaining lifetime of the active OTP and when a new one may be requested, in whole seconds
+     */
+    private static void setTimings(SendOtpResponse response, OtpEntry entry, long minResendIntervalMs) {
+        long now = System.currentTimeMillis();
+        response.setExpiresIn(Math.max(0, (entry.getExpiresAt() - now + 999) / 1000));
+        long resendAt = entry.getIssuedAt() > 0 ? entry.getIssuedAt() + minResendIntervalMs : now;
+        response.setResendAfter(Math.max(0, (resendAt - now + 999) / 1000));
     }
 
     /**
@@ -0,0 +1,100 @@
+package com.lusatek.keycloak.otp.service;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Bounded pool running the blocking part of OTP requests (user lookup, OTP store, outbox) in a
+ * Keycloak transaction of its own, so endpoints can return a pending CompletionStage and release
+ * the HTTP worker thread. Keycloak's persistence and cache APIs block and its sessions are bound
+ * to the thread that uses them, so the work is moved rather than made non-blocking; the queue
+ * bounds the number of requests in flight and rejects the excess immediately.
+ */
+public class AsyncRequestExecutor {
+
+    private static final Logger logger = Logger.getLogger(AsyncRequestExecutor.class);
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param workers Threads running requests; each may hold a database connection
+     * @param queueCapacity Requests waiting for a thread before new ones are rejected
+     */
+    public AsyncRequestExecutor(KeycloakSessionFactory sessionFactory, int workers, int queueCapacity) {
+        this.sessionFactory = sessionFactory;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                Thread thread = new Thread(runnable, "email-otp-request-" + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run a job in a new session whose context points at the realm
+     * @param realmId Realm of the originating request
+     * @param job Work to run; its result completes the returned future once the transaction committed
+     * @return Future completed with the job's result, or exceptionally with a
+     *         {@link RejectedExecutionException} if the queue is full, or with the failure of the job or commit
+     */
+    public <T> CompletableFuture<T> submit(String realmId, Function<KeycloakSession, T> job) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    Object[] result = new Object[1];
+                    KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                        RealmModel realm = session.realms().getRealm(realmId);
+                        session.getContext().setRealm(realm);
+                        result[0] = job.apply(session);
+                    });
+                    @SuppressWarnings("unchecked")
+                    T value = (T) result[0];
+                    future.complete(value);
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * @return Requests waiting for a thread
+     */
+    public int getBacklog() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stop accepting requests and wait for running ones to finish
+     */
+    public void shutdown(long timeoutMs) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                int dropped = executor.shutdownNow().size();
+                logger.warnf("Async OTP requests did not finish in %d ms, %d dropped", timeoutMs, dropped);
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
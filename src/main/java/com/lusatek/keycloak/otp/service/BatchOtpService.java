@@ -0,0 +1,357 @@
+package com.lusatek.keycloak.otp.service;
+
+import com.lusatek.keycloak.otp.metrics.OtpMetrics;
+import com.lusatek.keycloak.otp.model.BatchItemResult;
+import com.lusatek.keycloak.otp.model.OtpStatusResult;
+import com.lusatek.keycloak.otp.model.SendOtpRequest;
+import com.lusatek.keycloak.otp.model.VerifyOtpRequest;
+import com.lusatek.keycloak.otp.store.OtpEntry;
+import com.lusatek.keycloak.otp.util.LinkTokenSigner;
+import com.lusatek.keycloak.otp.util.RateLimiter;
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Handles many users per request, resolving all of them with one bulk user lookup.
+ * Each entry is held to the same per-identifier and per-user limits as a single request.
+ * Sends report a recently issued OTP instead of sending another, like /send, and queue the
+ * rendered emails together so the dispatcher delivers them as one task over pooled SMTP
+ * connections; verifications and status queries read the OTPs of all users from the store at once.
+ */
+public class BatchOtpService {
+
+    private static final Logger logger = Logger.getLogger(BatchOtpService.class);
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final OtpComponents components;
+    private final EmailDispatcher dispatcher;
+    private final RateLimiter rateLimiter;
+    private final OtpMetrics metrics;
+
+    public BatchOtpService(KeycloakSession session, RealmModel realm, OtpComponents components) {
+        this.session = session;
+        this.realm = realm;
+        this.components = components;
+        this.dispatcher = components.getDispatcher();
+        this.rateLimiter = components.getRateLimiter();
+        this.metrics = components.getMetrics();
+    }
+
+    /**
+     * Process one chunk of batch entries
+     * @param items Entries of this chunk
+     * @param offset Index of the first entry within the whole batch
+     * @param seenUserIds Users already handled earlier in the batch; updated with the users of this chunk
+     * @return One result per entry, in input order
+     */
+    public List<BatchItemResult> sendChunk(List<SendOtpRequest> items, int offset, Set<String> seenUserIds) {
+        int size = items.size();
+        String[] emails = new String[size];
+        String[] userIds = new String[size];
+        List<BatchItemResult> results = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            SendOtpRequest item = items.get(i);
+            emails[i] = item != null ? item.getEmail() : null;
+            userIds[i] = item != null ? item.getUserId() : null;
+            BatchItemResult result = new BatchItemResult(offset + i, emails[i], userIds[i]);
+            results.add(result);
+            if (isEmpty(emails[i]) && isEmpty(userIds[i])) {
+                result.failed("Email or userId is required", "MISSING_IDENTIFIER");
+            } else {
+                checkIdentifierLimit(emails[i], userIds[i], result);
+            }
+        }
+
+        UserLookupService.BulkResult users = findUsers(emails, userIds, results);
+        Map<String, UserModel> accepted = new LinkedHashMap<>();
+        UserModel[] resolved = new UserModel[size];
+        for (int i = 0; i < size; i++) {
+            BatchItemResult result = results.get(i);
+            if (result.getErrorCode() != null) {
+                continue;
+            }
+            UserModel user = users.get(emails[i], userIds[i]);
+            if (user == null) {
+                result.failed("User not found", "USER_NOT_FOUND");
+            } else if (user.getEmail() == null || user.getEmail().isEmpty()) {
+                result.failed("User does not have an email address", "NO_EMAIL");
+            } else if (!seenUserIds.add(user.getId())) {
+                // A second code for the same user would only invalidate the first one
+                result.failed("User already listed earlier in this batch", "DUPLICATE_ENTRY");
+            } else {
+                accepted.put(user.getId(), user);
+                resolved[i] = user;
+            }
+        }
+
+        OtpService otpService = new OtpService(session, realm, components);
+        Map<String, OtpEntry> active = otpService.getPendingOtps(accepted.values());
+        List<BatchItemResult> pendingResults = new ArrayList<>();
+        List<UserModel> pendingUsers = new ArrayList<>();
+        List<OtpEmail> pendingEmails = new ArrayList<>();
+
+        for (int i = 0; i < size; i++) {
+            UserModel user = resolved[i];
+            if (user == null) {
+                continue;
+            }
+            BatchItemResult result = results.get(i);
+            // Same as /send: a recent OTP is reported instead of issuing another one, without using up the send budget
+            if (otpService.reusableOrNull(active.get(user.getId()), null) != null) {
+                result.queued("OTP already sent", null, OtpService.ALREADY_SENT);
+                continue;
+            }
+            if (!rateLimiter.allowSend(user.getId())) {
+                metrics.rateLimited(OtpMetrics.LimitKind.SEND);
+                result.failed("Too many attempts. Please try again later.", "RATE_LIMIT_EXCEEDED");
+                continue;
+            }
+
+            try {
+                pendingEmails.add(otpService.issueOtp(user));
+                pendingUsers.add(user);
+                pendingResults.add(result);
+            } catch (EmailException | RuntimeException e) {
+                logger.errorf(e, "Failed to render OTP email for user: %s", user.getEmail());
+                metrics.sendFailed(OtpMetrics.SendFailure.RENDER);
+                result.failed("Failed to send OTP. Please check email configuration.", "SEND_FAILED");
+            }
+        }
+
+        if (!pendingEmails.isEmpty() && components.getOutbox() != null) {
+            for (int i = 0; i < pendingEmails.size(); i++) {
+                String dispatchId = otpService.enqueue(pendingUsers.get(i), pendingEmails.get(i));
+                pendingResults.get(i).queued("OTP sent successfully", dispatchId, EmailDispatcher.Status.QUEUED.name());
+            }
+        } else if (!pendingEmails.isEmpty()) {
+            List<String> dispatchIds = dispatcher.submitBatch(pendingEmails);
+            for (int i = 0; i < dispatchIds.size(); i++) {
+                String dispatchId = dispatchIds.get(i);
+                if (dispatchId != null) {
+                    pendingResults.get(i).queued("OTP sent successfully", dispatchId, EmailDispatcher.Status.QUEUED.name());
+                } else {
+                    otpService.discardIssued(pendingUsers.get(i));
+                    metrics.sendFailed(OtpMetrics.SendFailure.QUEUE_FULL);
+                    pendingResults.get(i).failed("Email service is busy. Please try again shortly.", "QUEUE_FULL");
+                }
+            }
+        }
+
+        logger.infof("Batch chunk at offset %d: %d of %d OTPs queued", offset, countQueued(results), items.size());
+        return results;
+    }
+
+    /**
+     * Verify the codes, or link tokens, of many users
+     * @param items Entries to verify
+     * @return One result per entry, in input order
+     */
+    public List<BatchItemResult> verify(List<VerifyOtpRequest> items) {
+        LinkTokenSigner linkTokenSigner = components.getLinkTokenSigner();
+        int size = items.size();
+        String[] emails = new String[size];
+        String[] userIds = new String[size];
+        LinkTokenSigner.Claims[] claims = new LinkTokenSigner.Claims[size];
+        List<BatchItemResult> results = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++) {
+            VerifyOtpRequest item = items.get(i);
+            emails[i] = item != null ? item.getEmail() : null;
+            userIds[i] = item != null ? item.getUserId() : null;
+            BatchItemResult result = new BatchItemResult(i, emails[i], userIds[i]);
+            results.add(result);
+            if (item == null) {
+                result.failed("Email or userId is required", "MISSING_IDENTIFIER");
+            } else if (item.getToken() != null) {
+                // A link token names its user
+                claims[i] = linkTokenSigner.parse(item.getToken());
+                if (claims[i] == null || (userIds[i] != null && !userIds[i].equals(claims[i].getUserId()))) {
+                    result.failed("Invalid or expired verification link", "INVALID_TOKEN");
+                } else {
+                    emails[i] = null;
+                    userIds[i] = claims[i].getUserId();
+                }
+            } else if (isEmpty(emails[i]) && isEmpty(userIds[i])) {
+                result.failed("Email or userId is required", "MISSING_IDENTIFIER");
+            } else if (isEmpty(item.getCode())) {
+                result.failed("OTP code is required", "MISSING_CODE");
+            }
+            if (result.getErrorCode() == null) {
+                checkIdentifierLimit(emails[i], userIds[i], result);
+            }
+        }
+
+        UserLookupService.BulkResult users = findUsers(emails, userIds, results);
+        Map<String, UserModel> accepted = new LinkedHashMap<>();
+        UserModel[] resolved = new UserModel[size];
+        for (int i = 0; i < size; i++) {
+            BatchItemResult result = results.get(i);
+            if (result.getErrorCode() != null) {
+                continue;
+            }
+            UserModel user = users.get(emails[i], userIds[i]);
+            if (user == null) {
+                if (claims[i] != null) {
+                    result.failed("Invalid or expired verification link", "INVALID_TOKEN");
+                } else {
+                    result.failed("User not found", "USER_NOT_FOUND");
+                }
+            } else if (accepted.putIfAbsent(user.getId(), user) != null) {
+                // The second entry would be checked against the first entry's outcome
+                result.failed("User already listed earlier in this batch", "DUPLICATE_ENTRY");
+            } else if (!rateLimiter.allowVerify(user.getId())) {
+                metrics.rateLimited(OtpMetrics.LimitKind.VERIFY);
+                result.failed("Too many attempts. Please try again later.", "RATE_LIMIT_EXCEEDED");
+            } else {
+                resolved[i] = user;
+            }
+        }
+
+        OtpService otpService = new OtpService(session, realm, components);
+        Map<String, OtpEntry> stored = otpService.loadStoredOtps(accepted.values());
+        for (int i = 0; i < size; i++) {
+            UserModel user = resolved[i];
+            if (user == null) {
+                continue;
+            }
+            OtpMetrics.VerifyResult outcome = claims[i] != null
+                ? otpService.verifyLink(user, claims[i])
+                : otpService.verify(user, items.get(i).getCode(), stored.get(user.getId()));
+            BatchItemResult result = results.get(i);
+            if (outcome == OtpMetrics.VerifyResult.VERIFIED) {
+                result.succeeded("Email verified successfully");
+            } else if (outcome == OtpMetrics.VerifyResult.ATTEMPTS_EXCEEDED) {
+                result.failed("Too many incorrect codes. Please request a new code.", "ATTEMPTS_EXCEEDED");
+            } else if (outcome == OtpMetrics.VerifyResult.REPLAYED) {
+                result.failed("This verification link has already been used", "TOKEN_ALREADY_USED");
+            } else if (claims[i] != null) {
+                result.failed("Invalid or expired verification link", "INVALID_TOKEN");
+            } else {
+                result.failed("Invalid or expired OTP code", "INVALID_CODE");
+            }
+        }
+
+        logger.infof("Batch verify: %d of %d entries verified", countQueued(results), size);
+        return results;
+    }
+
+    /**
+     * Report whether many users have verified their email and have an active OTP
+     * @param items Entries naming the users
+     * @return One result per entry, in input order
+     */
+    public List<OtpStatusResult> status(List<SendOtpRequest> items) {
+        int size = items.size();
+        String[] emails = new String[size];
+        String[] userIds = new String[size];
+        List<OtpStatusResult> results = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            SendOtpRequest item = items.get(i);
+            emails[i] = item != null ? item.getEmail() : null;
+            userIds[i] = item != null ? item.getUserId() : null;
+            OtpStatusResult result = new OtpStatusResult(i, emails[i], userIds[i]);
+            results.add(result);
+            if (isEmpty(emails[i]) && isEmpty(userIds[i])) {
+                result.failed("Email or userId is required", "MISSING_IDENTIFIER");
+            }
+        }
+
+        UserLookupService.BulkResult users = findUsers(emails, userIds, results);
+        Map<String, UserModel> found = new LinkedHashMap<>();
+        UserModel[] resolved = new UserModel[size];
+        for (int i = 0; i < size; i++) {
+            if (results.get(i).getErrorCode() != null) {
+                continue;
+            }
+            resolved[i] = users.get(emails[i], userIds[i]);
+            if (resolved[i] == null) {
+                results.get(i).failed("User not found", "USER_NOT_FOUND");
+            } else {
+                found.putIfAbsent(resolved[i].getId(), resolved[i]);
+            }
+        }
+
+        OtpService otpService = new OtpService(session, realm, components);
+        Map<String, OtpEntry> pending = otpService.getPendingOtps(found.values());
+        long resendIntervalMs = otpService.getPolicy().getResendIntervalMs();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < size; i++) {
+            UserModel user = resolved[i];
+            if (user == null) {
+                continue;
+            }
+            OtpStatusResult result = results.get(i);
+            OtpEntry entry = pending.get(user.getId());
+            result.succeeded(entry != null ? "OTP pending" : "No pending OTP");
+            result.setEmailVerified(user.isEmailVerified());
+            result.setPending(entry != null);
+            if (entry != null) {
+                result.setExpiresIn(Math.max(0, (entry.getExpiresAt() - now + 999) / 1000));
+                long resendAt = entry.getIssuedAt() > 0 ? entry.getIssuedAt() + resendIntervalMs : now;
+                result.setResendAfter(Math.max(0, (resendAt - now + 999) / 1000));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Count an entry against the per-identifier pre-lookup limit, like a single request; the
+     * address and client limits were checked once for the whole batch
+     */
+    private void checkIdentifierLimit(String email, String userId, BatchItemResult result) {
+        if (!components.getPreLookupLimiter().allowIdentifier(realm.getId(), email, userId)) {
+            metrics.rateLimited(OtpMetrics.LimitKind.IDENTIFIER);
+            result.failed("Too many attempts. Please try again later.", "RATE_LIMIT_EXCEEDED");
+        }
+    }
+
+    /**
+     * Bulk lookup of the identifiers of entries that have not failed yet
+     */
+    private UserLookupService.BulkResult findUsers(String[] emails, String[] userIds,
+                                                   Collection<? extends BatchItemResult> results) {
+        Set<String> emailSet = new LinkedHashSet<>();
+        Set<String> userIdSet = new LinkedHashSet<>();
+        int i = 0;
+        for (BatchItemResult result : results) {
+            if (result.getErrorCode() == null) {
+                if (!isEmpty(userIds[i])) {
+                    userIdSet.add(userIds[i]);
+                } else {
+                    emailSet.add(emails[i]);
+                }
+            }
+            i++;
+        }
+        long lookupStart = System.nanoTime();
+        UserLookupService.BulkResult users = new UserLookupService(session, realm).findUsers(emailSet, userIdSet);
+        metrics.userLookup(lookupStart);
+        return users;
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.isEmpty();
+    }
+
+    private static int countQueued(List<BatchItemResult> results) {
+        int queued = 0;
+        for (BatchItemResult result : results) {
+            if (result.isSuccess()) {
+                queued++;
+            }
+        }
+        return queued;
+    }
+}
@@ -0,0 +1,11 @@
+package com.lusatek.keycloak.otp.service;
+
+/**
+ * Thrown when the email dispatch queue is full and cannot accept another message
+ */
+public class DispatchRejectedException extends Exception {
+
+    public DispatchRejectedException(String message) {
+        super(message);
+    }
+}
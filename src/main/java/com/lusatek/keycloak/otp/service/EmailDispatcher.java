@@ -0,0 +1,314 @@
+package com.lusatek.keycloak.otp.service;
+
+import com.lusatek.keycloak.otp.metrics.OtpMetrics;
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded in-process queue that delivers rendered OTP emails off the request thread. Workers run on
+ * virtual threads when the JVM supports them (Java 21+), otherwise on a fixed pool of daemon platform
+ * threads, and a batch is queued as one task per chunk of emails. Each email is sent over a pooled SMTP
+ * connection; only if it never reached the server is it sent again with Keycloak's sender. The delivery
+ * outcome is kept for a limited time so clients can poll it by dispatch id.
+ */
+public class EmailDispatcher {
+
+    private static final Logger logger = Logger.getLogger(EmailDispatcher.class);
+
+    // Prune finished records every N submissions
+    private static final int PRUNE_INTERVAL = 256;
+
+    /**
+     * Delivery state of a dispatched email
+     */
+    public enum Status {
+        QUEUED, SENDING, SENT, FAILED,
+        /** Outbox only: not sent because a newer code was requested for the same user */
+        SUPERSEDED
+    }
+
+    private static class DispatchRecord {
+        final String realmId;
+        volatile Status status = Status.QUEUED;
+        volatile long updatedAt = System.currentTimeMillis();
+
+        DispatchRecord(String realmId) {
+            this.realmId = realmId;
+        }
+
+        void update(Status status) {
+            this.status = status;
+            this.updatedAt = System.currentTimeMillis();
+        }
+
+        boolean isFinished() {
+            return status == Status.SENT || status == Status.FAILED;
+        }
+    }
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final OtpMetrics metrics;
+    private final SmtpConnectionPool smtpPool;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, DispatchRecord> records = new ConcurrentHashMap<>();
+    private final AtomicInteger submissions = new AtomicInteger();
+    private final long statusRetentionMs;
+    private final int batchChunkSize;
+    private final int queueCapacity;
+
+    public EmailDispatcher(KeycloakSessionFactory sessionFactory, OtpMetrics metrics, SmtpConnectionPool smtpPool,
+                           int workers, int queueCapacity, long statusRetentionMs, int batchChunkSize) {
+        this.sessionFactory = sessionFactory;
+        this.metrics = metrics;
+        this.smtpPool = smtpPool;
+        this.statusRetentionMs = statusRetentionMs;
+        this.batchChunkSize = Math.max(1, batchChunkSize);
+        this.queueCapacity = queueCapacity;
+        this.executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueCapacity), createThreadFactory(),
+            new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue a rendered email for delivery
+     * @param email Rendered OTP email
+     * @return Dispatch id that can be used to look up the delivery status
+     * @throws DispatchRejectedException if the queue is full or the dispatcher is shutting down
+     */
+    public String submit(OtpEmail email) throws DispatchRejectedException {
+        String dispatchId = UUID.randomUUID().toString();
+        DispatchRecord record = new DispatchRecord(email.getRealmId());
+        records.put(dispatchId, record);
+
+        try {
+            executor.execute(() -> deliver(dispatchId, record, email));
+        } catch (RejectedExecutionException e) {
+            records.remove(dispatchId);
+            throw new DispatchRejectedException("Email dispatch queue is full");
+        }
+
+        if (submissions.incrementAndGet() % PRUNE_INTERVAL == 0) {
+            prune();
+        }
+        return dispatchId;
+    }
+
+    /**
+     * Queue a batch of rendered emails, split into chunks that are each delivered by one task
+     * @param emails Rendered OTP emails
+     * @return Dispatch ids aligned with the input; null entries mark emails rejected because the queue was full
+     */
+    public List<String> submitBatch(List<OtpEmail> emails) {
+        List<String> dispatchIds = new ArrayList<>(emails.size());
+        for (int start = 0; start < emails.size(); start += batchChunkSize) {
+            List<OtpEmail> chunk = emails.subList(start, Math.min(emails.size(), start + batchChunkSize));
+            List<String> chunkIds = new ArrayList<>(chunk.size());
+            List<DispatchRecord> chunkRecords = new ArrayList<>(chunk.size());
+            for (OtpEmail email : chunk) {
+                String dispatchId = UUID.randomUUID().toString();
+                DispatchRecord record = new DispatchRecord(email.getRealmId());
+                records.put(dispatchId, record);
+                chunkIds.add(dispatchId);
+                chunkRecords.add(record);
+            }
+
+            try {
+                executor.execute(() -> deliverChunk(chunkIds, chunkRecords, chunk));
+                dispatchIds.addAll(chunkIds);
+            } catch (RejectedExecutionException e) {
+                chunkIds.forEach(records::remove);
+                for (int i = 0; i < chunk.size(); i++) {
+                    dispatchIds.add(null);
+                }
+            }
+        }
+
+        int before = submissions.getAndAdd(emails.size());
+        if (before / PRUNE_INTERVAL != (before + emails.size()) / PRUNE_INTERVAL) {
+            prune();
+        }
+        return dispatchIds;
+    }
+
+    /**
+     * @return Number of emails delivered by one task in batch mode
+     */
+    public int getBatchChunkSize() {
+        return batchChunkSize;
+    }
+
+    /**
+     * Look up the delivery status of a dispatched email
+     * @param realmId Realm the lookup is performed in
+     * @param dispatchId Id returned by {@link #submit(OtpEmail)}
+     * @return Current status, or null if unknown, expired or belonging to another realm
+     */
+    public Status getStatus(String realmId, String dispatchId) {
+        DispatchRecord record = records.get(dispatchId);
+        if (record == null || !record.realmId.equals(realmId)) {
+            return null;
+        }
+        return record.status;
+    }
+
+    /**
+     * @return Number of emails waiting for a free worker
+     */
+    public int getBacklog() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return Maximum number of emails waiting for a free worker
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Stop accepting new emails and wait for queued ones to be delivered
+     * @param timeoutMs Maximum time to wait for the queue to drain
+     */
+    public void shutdown(long timeoutMs) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                int dropped = executor.shutdownNow().size();
+                logger.warnf("Email dispatch queue did not drain in %d ms, %d emails dropped", timeoutMs, dropped);
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        smtpPool.shutdown();
+    }
+
+    private void deliver(String dispatchId, DispatchRecord record, OtpEmail email) {
+        record.update(Status.SENDING);
+        try (KeycloakSession session = sessionFactory.create()) {
+            long start = System.nanoTime();
+            send(session, dispatchId, email);
+            metrics.smtpSend(start);
+            markSent(record);
+            logger.debugf("OTP email %s delivered", dispatchId);
+        } catch (EmailException e) {
+            markFailed(record);
+            logger.errorf(e, "Failed to deliver OTP email %s", dispatchId);
+        } catch (Exception e) {
+            markFailed(record);
+            logger.errorf(e, "Unexpected error delivering OTP email %s", dispatchId);
+        }
+    }
+
+    private void deliverChunk(List<String> dispatchIds, List<DispatchRecord> chunkRecords, List<OtpEmail> emails) {
+        try (KeycloakSession session = sessionFactory.create()) {
+            for (int i = 0; i < emails.size(); i++) {
+                DispatchRecord record = chunkRecords.get(i);
+                record.update(Status.SENDING);
+                long start = System.nanoTime();
+                try {
+                    send(session, dispatchIds.get(i), emails.get(i));
+                    metrics.smtpSend(start);
+                    markSent(record);
+                } catch (EmailException e) {
+                    markFailed(record);
+                    logger.errorf(e, "Failed to deliver OTP email %s", dispatchIds.get(i));
+                }
+            }
+        } catch (Exception e) {
+            for (DispatchRecord record : chunkRecords) {
+                if (!record.isFinished()) {
+                    markFailed(record);
+                }
+            }
+            logger.errorf(e, "Unexpected error delivering OTP email batch");
+        }
+    }
+
+    /**
+     * Send over a pooled connection. If the email was not handed to the server (no connection,
+     * authentication failed, sender or recipients refused), fall back to Keycloak's sender; after
+     * that point it may already be on its way, and sending it again could deliver it twice.
+     */
+    private void send(KeycloakSession session, String dispatchId, OtpEmail email) throws EmailException {
+        if (smtpPool.isEnabled()) {
+            try {
+                SmtpConnectionPool.Lease lease = smtpPool.borrow(session, email.getSmtpConfig());
+                boolean broken = true;
+                try {
+                    lease.getConnection().send(email);
+                    broken = false;
+                    return;
+                } finally {
+                    smtpPool.release(lease, broken);
+                }
+            } catch (SmtpConnection.PossiblyDeliveredException e) {
+                throw e;
+            } catch (EmailException e) {
+                logger.warnf(e, "Pooled SMTP delivery of %s failed, retrying with default sender", dispatchId);
+            }
+        }
+        EmailService.deliver(session, email);
+    }
+
+    /**
+     * Deliver an email on the calling thread, over the SMTP pool with fallback to Keycloak's sender.
+     * Used by the outbox worker, which tracks delivery state itself.
+     * @throws EmailException if the email could not be delivered
+     */
+    public void deliverNow(KeycloakSession session, String dispatchId, OtpEmail email) throws EmailException {
+        long start = System.nanoTime();
+        send(session, dispatchId, email);
+        metrics.smtpSend(start);
+    }
+
+    private void markSent(DispatchRecord record) {
+        record.update(Status.SENT);
+        metrics.sent();
+    }
+
+    private void markFailed(DispatchRecord record) {
+        record.update(Status.FAILED);
+        metrics.sendFailed(OtpMetrics.SendFailure.SMTP);
+    }
+
+    private void prune() {
+        long cutoff = System.currentTimeMillis() - statusRetentionMs;
+        records.values().removeIf(record -> record.isFinished() && record.updatedAt < cutoff);
+    }
+
+    /**
+     * Use virtual threads when running on Java 21+, platform daemon threads otherwise
+     */
+    private static ThreadFactory createThreadFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class)
+                .invoke(builder, "email-otp-dispatch-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger counter = new AtomicInteger();
+            return runnable -> {
+                Thread thread = new Thread(runnable, "email-otp-dispatch-" + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+    }
+}
@@ -2,59 +2,108 @@ package com.lusatek.keycloak.otp.service;
 
 import org.jboss.logging.Logger;
 import org.keycloak.email.EmailException;
-import org.keycloak.email.EmailTemplateProvider;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.email.freemarker.beans.ProfileBean;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
+import org.keycloak.theme.FreeMarkerException;
+import org.keycloak.theme.KeycloakSanitizerMethod;
+import org.keycloak.theme.Theme;
 
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 /**
- * Service for sending OTP emails using Keycloak's email system
+ * Service for rendering and sending OTP emails using Keycloak's email system.
+ * Templates and message bundles come from the shared {@link EmailTemplateCache}.
  */
 public class EmailService {
-    
+
     private static final Logger logger = Logger.getLogger(EmailService.class);
-    
+
+    private static final String THEME_NAME = "lusatek-otp";
+    private static final String SUBJECT_KEY = "emailOtpSubject";
+    private static final String LINK_SUBJECT_KEY = "emailOtpLinkSubject";
+
+    // Stateless, shared like Keycloak's FreeMarker provider does
+    private static final KeycloakSanitizerMethod SANITIZER = new KeycloakSanitizerMethod();
+
     private final KeycloakSession session;
     private final RealmModel realm;
+    private final EmailTemplateCache templateCache;
 
-    public EmailService(KeycloakSession session, RealmModel realm) {
+    public EmailService(KeycloakSession session, RealmModel realm, EmailTemplateCache templateCache) {
         this.session = session;
         this.realm = realm;
+        this.templateCache = templateCache;
     }
 
     /**
-     * Send OTP code via email
+     * Render the OTP email for a user (text and HTML bodies, localized subject)
      * @param user User to send email to
-     * @param otpCode 6-digit OTP code
-     * @param expiryMinutes Expiry time in minutes
-     * @throws EmailException if email sending fails
+     * @param otpCode OTP code as shown to the user
+     * @param policy Realm policy providing the template, expiry and company name
+     * @return Rendered email ready for delivery
+     * @throws EmailException if the templates cannot be rendered
+     */
+    public OtpEmail renderOtpEmail(UserModel user, String otpCode, OtpPolicy policy) throws EmailException {
+        return render(user, policy, SUBJECT_KEY, "otpCode", otpCode);
+    }
+
+    /**
+     * Render the verification link email for a user, using the same template as codes
+     * @param user User to send email to
+     * @param link Verification link carrying the signed token
+     * @param policy Realm policy providing the template, expiry and company name
+     * @return Rendered email ready for delivery
+     * @throws EmailException if the templates cannot be rendered
      */
-    public void sendOtpEmail(UserModel user, String otpCode, int expiryMinutes) throws EmailException {
+    public OtpEmail renderLinkEmail(UserModel user, String link, OtpPolicy policy) throws EmailException {
+        return render(user, policy, LINK_SUBJECT_KEY, "verificationLink", link);
+    }
+
+    private OtpEmail render(UserModel user, OtpPolicy policy, String subjectKey, String secretName, String secret)
+            throws EmailException {
         try {
-            EmailTemplateProvider emailProvider = session.getProvider(EmailTemplateProvider.class);
-            emailProvider.setRealm(realm);
-            emailProvider.setUser(user);
-            
-            // Set the custom theme programmatically to ensure templates are found
-            emailProvider.setAttribute("theme", "lusatek-otp");
+            // Use the custom theme explicitly so templates are found regardless of the realm email theme
+            Theme theme = session.theme().getTheme(THEME_NAME, Theme.Type.EMAIL);
+            Locale locale = session.getContext().resolveLocale(user);
+            EmailTemplateCache.Entry templates = templateCache.get(realm, theme, locale, policy.getTemplate(), subjectKey);
 
             Map<String, Object> attributes = new HashMap<>();
-            attributes.put("otpCode", otpCode);
-            attributes.put("expiryMinutes", expiryMinutes);
+            attributes.put(secretName, secret);
+            attributes.put("expiryMinutes", policy.getTtlMinutes());
             attributes.put("userName", user.getFirstName() != null ? user.getFirstName() : user.getUsername());
             attributes.put("realmName", realm.getDisplayName() != null ? realm.getDisplayName() : realm.getName());
-            attributes.put("companyName", "LUSATEK");
-
-            // Send email using custom template (without .ftl extension - Keycloak will find html/text versions)
-            emailProvider.send("emailOtpSubject", "email-otp", attributes);
-            
-            logger.infof("OTP email sent successfully to user: %s", user.getEmail());
-        } catch (EmailException e) {
-            logger.errorf(e, "Failed to send OTP email to user: %s", user.getEmail());
-            throw e;
+            attributes.put("companyName", policy.getCompanyName());
+            attributes.put("locale", locale);
+            attributes.put("msg", templates.getMessageFormatter());
+            attributes.put("properties", templates.getThemeProperties());
+            attributes.put("user", new ProfileBean(user));
+            attributes.put("kcSanitize", SANITIZER);
+
+            String textBody = templates.renderText(attributes);
+            String htmlBody = templates.renderHtml(attributes);
+
+            return new OtpEmail(realm.getId(), user.getEmail(), realm.getSmtpConfig(), templates.getSubject(), textBody, htmlBody);
+        } catch (IOException | FreeMarkerException e) {
+            logger.errorf(e, "Failed to render OTP email for user: %s", user.getEmail());
+            throw new EmailException("Failed to render OTP email", e);
         }
     }
+
+    /**
+     * Deliver a rendered OTP email over SMTP
+     * @param session Session used to obtain the email sender
+     * @param email Rendered email
+     * @throws EmailException if email sending fails
+     */
+    public static void deliver(KeycloakSession session, OtpEmail email) throws EmailException {
+        EmailSenderProvider sender = session.getProvider(EmailSenderProvider.class);
+        sender.send(email.getSmtpConfig(), email.getRecipient(), email.getSubject(), email.getTextBody(), email.getHtmlBody());
+        logger.infof("OTP email sent successfully to: %s", email.getRecipient());
+    }
 }
@@ -0,0 +1,208 @@
+package com.lusatek.keycloak.otp.service;
+
+import freemarker.cache.URLTemplateLoader;
+import freemarker.core.HTMLOutputFormat;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import org.jboss.logging.Logger;
+import org.keycloak.models.RealmModel;
+import org.keycloak.theme.FreeMarkerException;
+import org.keycloak.theme.Theme;
+import org.keycloak.theme.beans.MessageFormatterMethod;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URL;
+import java.text.MessageFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of compiled OTP email templates and resolved message bundles.
+ *
+ * Entries are keyed by (realm, theme, locale, template) and hold everything that does not depend
+ * on the recipient: the compiled text and HTML templates, the realm-enhanced message bundle, the
+ * formatted subject and the theme properties. A hot send therefore only builds the per-user
+ * attributes and runs the templates. An entry is reloaded as soon as the realm's localization texts
+ * for its locale change, and is dropped when the realm is removed; theme changes are picked up once
+ * the entry's TTL has elapsed.
+ *
+ * Templates are compiled with the same FreeMarker settings as Keycloak's DefaultFreeMarkerProvider
+ * so cached and uncached rendering produce identical output.
+ */
+public class EmailTemplateCache {
+
+    private static final Logger logger = Logger.getLogger(EmailTemplateCache.class);
+
+    private static final char KEY_SEPARATOR = '\u0000';
+
+    /**
+     * Recipient independent part of a rendered OTP email
+     */
+    public static class Entry {
+        private final String realmId;
+        private final Map<String, String> realmTexts;
+        private final Template textTemplate;
+        private final Template htmlTemplate;
+        private final MessageFormatterMethod messageFormatter;
+        private final Properties themeProperties;
+        private final String subject;
+        private final long loadedAt;
+
+        Entry(String realmId, Map<String, String> realmTexts, Template textTemplate, Template htmlTemplate,
+              MessageFormatterMethod messageFormatter, Properties themeProperties, String subject, long loadedAt) {
+            this.realmId = realmId;
+            this.realmTexts = realmTexts;
+            this.textTemplate = textTemplate;
+            this.htmlTemplate = htmlTemplate;
+            this.messageFormatter = messageFormatter;
+            this.themeProperties = themeProperties;
+            this.subject = subject;
+            this.loadedAt = loadedAt;
+        }
+
+        public MessageFormatterMethod getMessageFormatter() {
+            return messageFormatter;
+        }
+
+        public Properties getThemeProperties() {
+            return themeProperties;
+        }
+
+        public String getSubject() {
+            return subject;
+        }
+
+        public String renderText(Map<String, Object> attributes) throws FreeMarkerException {
+            return render(textTemplate, attributes);
+        }
+
+        public String renderHtml(Map<String, Object> attributes) throws FreeMarkerException {
+            return render(htmlTemplate, attributes);
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final long ttlMs;
+    private final int maxEntries;
+
+    /**
+     * @param ttlMs How long an entry is reused; 0 disables caching
+     * @param maxEntries Upper bound on cached (realm, theme, locale, template) combinations
+     */
+    public EmailTemplateCache(long ttlMs, int maxEntries) {
+        this.ttlMs = ttlMs;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Get the cached entry for a template, compiling and resolving it on a miss
+     * @param realm Realm whose localization texts enhance the theme messages
+     * @param theme Email theme holding the template
+     * @param locale Recipient locale
+     * @param templateName Template name below the text/ and html/ directories
+     * @param subjectKey Message key of the email subject
+     * @return Entry ready for rendering
+     * @throws IOException if the templates or messages cannot be loaded
+     */
+    public Entry get(RealmModel realm, Theme theme, Locale locale, String templateName, String subjectKey)
+            throws IOException {
+        String key = realm.getId() + KEY_SEPARATOR + theme.getName() + KEY_SEPARATOR
+            + locale.toLanguageTag() + KEY_SEPARATOR + templateName + KEY_SEPARATOR + subjectKey;
+        long now = System.currentTimeMillis();
+
+        // Served from the realm cache; a new instance means the realm was updated
+        Map<String, String> realmTexts = realm.getRealmLocalizationTextsByLocale(locale.toLanguageTag());
+
+        Entry entry = entries.get(key);
+        if (entry != null && now - entry.loadedAt < ttlMs
+                && (entry.realmTexts == realmTexts || entry.realmTexts.equals(realmTexts))) {
+            return entry;
+        }
+
+        entry = load(realm, realmTexts, theme, locale, templateName, subjectKey, now);
+        if (ttlMs > 0) {
+            if (entries.size() >= maxEntries && !entries.containsKey(key)) {
+                // Combinations are few in practice; start over rather than track recency
+                logger.debugf("Email template cache reached %d entries, clearing", maxEntries);
+                entries.clear();
+            }
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Drop all entries of a realm
+     */
+    public void invalidateRealm(String realmId) {
+        entries.values().removeIf(entry -> entry.realmId.equals(realmId));
+    }
+
+    /**
+     * Drop all entries
+     */
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    /**
+     * @return Number of cached entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private static Entry load(RealmModel realm, Map<String, String> realmTexts, Theme theme, Locale locale,
+                              String templateName, String subjectKey, long now) throws IOException {
+        Properties messages = theme.getEnhancedMessages(realm, locale);
+        String subject = new MessageFormat(messages.getProperty(subjectKey, subjectKey), locale).format(new Object[0]);
+        return new Entry(realm.getId(), realmTexts,
+            compile(theme, "text/" + templateName),
+            compile(theme, "html/" + templateName),
+            new MessageFormatterMethod(locale, messages),
+            theme.getProperties(),
+            subject,
+            now);
+    }
+
+    private static Template compile(Theme theme, String templateName) throws IOException {
+        Configuration cfg = new Configuration(Configuration.VERSION_2_3_0);
+        // Same as Keycloak: *.ftl files are treated as HTML so values are escaped
+        if (templateName.toLowerCase().endsWith(".ftl")) {
+            cfg.setOutputFormat(HTMLOutputFormat.INSTANCE);
+        }
+        cfg.setTemplateLoader(new ThemeTemplateLoader(theme));
+        return cfg.getTemplate(templateName, "UTF-8");
+    }
+
+    private static String render(Template template, Map<String, Object> attributes) throws FreeMarkerException {
+        try {
+            StringWriter writer = new StringWriter();
+            template.process(attributes, writer);
+            return writer.toString();
+        } catch (TemplateException | IOException e) {
+            throw new FreeMarkerException("Failed to process template " + template.getName(), e);
+        }
+    }
+
+    private static class ThemeTemplateLoader extends URLTemplateLoader {
+        private final Theme theme;
+
+        ThemeTemplateLoader(Theme theme) {
+            this.theme = theme;
+        }
+
+        @Override
+        protected URL getURL(String name) {
+            try {
+                return theme.getTemplate(name);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+    }
+}
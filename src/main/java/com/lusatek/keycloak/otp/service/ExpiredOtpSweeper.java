@@ -0,0 +1,131 @@
+package com.lusatek.keycloak.otp.service;
+
+import com.lusatek.keycloak.otp.metrics.OtpMetrics;
+import jakarta.persistence.EntityManager;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.ScheduledTask;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Deletes expired OTPs that older versions kept in the otp_code/otp_expiry user attributes and that
+ * were never verified, so they stop being loaded with the user by every other flow. OTPs in the
+ * OtpStore expire on their own and are not touched.
+ *
+ * Meant to run through Keycloak's ClusterAwareScheduledTaskRunner, so one node sweeps at a time.
+ * Users are purged in pages, each in its own short transaction with one bulk delete, and a run stops
+ * after its budget of users; a large backlog is worked off over several runs.
+ */
+public class ExpiredOtpSweeper implements ScheduledTask {
+
+    private static final Logger logger = Logger.getLogger(ExpiredOtpSweeper.class);
+
+    private static final List<String> LEGACY_ATTRIBUTES = Arrays.asList(OtpService.ATTR_OTP_CODE, OtpService.ATTR_OTP_EXPIRY);
+
+    // Expiry values are 13-digit epoch milliseconds, so string order is numeric order and the
+    // comparison is served by Keycloak's index on attribute name and value
+    private static final String SELECT_LOCAL =
+        "select a.user.id, a.user.realmId from UserAttributeEntity a where a.name = :name and a.value < :cutoff";
+    private static final String DELETE_LOCAL =
+        "delete from UserAttributeEntity a where a.user.id in :userIds and a.name in :names";
+    // Attributes of federated users that are not imported live in a separate table
+    private static final String SELECT_FEDERATED =
+        "select a.userId, a.realmId from FederatedUserAttributeEntity a where a.name = :name and a.value < :cutoff";
+    private static final String DELETE_FEDERATED =
+        "delete from FederatedUserAttributeEntity a where a.userId in :userIds and a.name in :names";
+
+    private final OtpMetrics metrics;
+    private final int pageSize;
+    private final int maxUsersPerRun;
+
+    /**
+     * @param pageSize Users purged per transaction
+     * @param maxUsersPerRun Users purged per run at most
+     */
+    public ExpiredOtpSweeper(OtpMetrics metrics, int pageSize, int maxUsersPerRun) {
+        this.metrics = metrics;
+        this.pageSize = pageSize;
+        this.maxUsersPerRun = maxUsersPerRun;
+    }
+
+    @Override
+    public void run(KeycloakSession session) {
+        if (session.getProvider(JpaConnectionProvider.class) == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        String cutoff = Long.toString(System.currentTimeMillis());
+        KeycloakSessionFactory factory = session.getKeycloakSessionFactory();
+
+        int[] purged = new int[2];
+        sweep(factory, SELECT_LOCAL, DELETE_LOCAL, cutoff, purged);
+        sweep(factory, SELECT_FEDERATED, DELETE_FEDERATED, cutoff, purged);
+
+        metrics.expiredPurged(start, purged[1]);
+        if (purged[0] > 0) {
+            logger.debugf("Purged expired OTP attributes of %d users (%d rows)%s", purged[0], purged[1],
+                purged[0] >= maxUsersPerRun ? ", more are left for the next run" : "");
+        }
+    }
+
+    /**
+     * Purge pages until none is full or the run's budget is used up
+     * @param purged Users and attribute rows purged so far in this run; updated
+     */
+    private void sweep(KeycloakSessionFactory factory, String select, String delete, String cutoff, int[] purged) {
+        while (purged[0] < maxUsersPerRun) {
+            int limit = Math.min(pageSize, maxUsersPerRun - purged[0]);
+            int[] page = new int[2];
+            KeycloakModelUtils.runJobInTransaction(factory, session -> purgePage(session, select, delete, cutoff, limit, page));
+            purged[0] += page[0];
+            purged[1] += page[1];
+            if (page[0] < limit) {
+                return;
+            }
+        }
+    }
+
+    private static void purgePage(KeycloakSession session, String select, String delete, String cutoff, int limit,
+                                  int[] page) {
+        EntityManager em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+        List<Object[]> expired = em.createQuery(select, Object[].class)
+            .setParameter("name", OtpService.ATTR_OTP_EXPIRY)
+            .setParameter("cutoff", cutoff)
+            .setMaxResults(limit)
+            .getResultList();
+        if (expired.isEmpty()) {
+            return;
+        }
+
+        List<String> userIds = new ArrayList<>(expired.size());
+        for (Object[] row : expired) {
+            userIds.add((String) row[0]);
+        }
+        page[0] = expired.size();
+        page[1] = em.createQuery(delete)
+            .setParameter("userIds", userIds)
+            .setParameter("names", LEGACY_ATTRIBUTES)
+            .executeUpdate();
+
+        // The bulk delete bypasses the user cache; invalidations are sent when the transaction commits
+        UserCache userCache = session.getProvider(UserCache.class);
+        if (userCache != null) {
+            for (Object[] row : expired) {
+                RealmModel realm = session.realms().getRealm((String) row[1]);
+                UserModel user = realm != null ? session.users().getUserById(realm, (String) row[0]) : null;
+                if (user != null) {
+                    userCache.evict(realm, user);
+                }
+            }
+        }
+    }
+}
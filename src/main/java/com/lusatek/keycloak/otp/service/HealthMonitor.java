@@ -0,0 +1,230 @@
+package com.lusatek.keycloak.otp.service;
+
+import com.lusatek.keycloak.otp.model.HealthResponse;
+import com.lusatek.keycloak.otp.model.OtpResponse;
+import com.lusatek.keycloak.otp.store.OtpEntry;
+import com.lusatek.keycloak.otp.store.OtpStore;
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background liveness/readiness checks whose results are served pre-serialized to probes.
+ * Checks run on a dedicated daemon thread so slow SMTP servers never block a probe or Keycloak's timer:
+ * - smtp: TCP connect to the SMTP server of each realm that has been probed
+ * - dispatchQueue: backlog below the configured share of the queue capacity
+ * - otpStore: put, get and remove of a probe entry
+ */
+public class HealthMonitor {
+
+    private static final Logger logger = Logger.getLogger(HealthMonitor.class);
+
+    public static final String UP = "UP";
+    public static final String DOWN = "DOWN";
+    public static final String PENDING = "PENDING";
+
+    private static final String CHECK_SMTP = "smtp";
+    private static final String CHECK_DISPATCH_QUEUE = "dispatchQueue";
+    private static final String CHECK_OTP_STORE = "otpStore";
+
+    private static final String PROBE_REALM_ID = "email-otp-health";
+    private static final int DEFAULT_SMTP_PORT = 25;
+    private static final int DEFAULT_SMTP_SSL_PORT = 465;
+    // Let the server finish starting before the first run touches the store
+    private static final long INITIAL_DELAY_MS = 5000;
+
+    /**
+     * Readiness of one realm, serialized once per check run
+     */
+    public static class Report {
+        private final boolean ready;
+        private final byte[] body;
+
+        Report(boolean ready, byte[] body) {
+            this.ready = ready;
+            this.body = body;
+        }
+
+        public boolean isReady() {
+            return ready;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+
+    private final byte[] liveBody;
+    private final KeycloakSessionFactory sessionFactory;
+    private final EmailDispatcher dispatcher;
+    private final int smtpTimeoutMs;
+    private final int maxBacklogPercent;
+    private final String probeUserId = UUID.randomUUID().toString();
+    private final ScheduledExecutorService executor;
+
+    private final Map<String, Report> reports = new ConcurrentHashMap<>();
+    private final Map<String, String> smtpStatus = new ConcurrentHashMap<>();
+    private volatile String queueStatus = PENDING;
+    private volatile String storeStatus = PENDING;
+    private volatile long checkedAt;
+
+    public HealthMonitor(KeycloakSessionFactory sessionFactory, EmailDispatcher dispatcher,
+                         int smtpTimeoutMs, int maxBacklogPercent) {
+        this.sessionFactory = sessionFactory;
+        this.dispatcher = dispatcher;
+        this.smtpTimeoutMs = smtpTimeoutMs;
+        this.maxBacklogPercent = maxBacklogPercent;
+        this.liveBody = serialize(new OtpResponse(true, "LUSATEK Email OTP service is running"));
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "email-otp-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start running the checks periodically
+     * @param intervalMs Time between check runs
+     */
+    public void start(long intervalMs) {
+        executor.scheduleWithFixedDelay(this::runChecks, Math.min(INITIAL_DELAY_MS, intervalMs), intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return Constant liveness response body
+     */
+    public byte[] getLiveBody() {
+        return liveBody;
+    }
+
+    /**
+     * Latest readiness of a realm. The first probe of a realm registers it for SMTP checks
+     * and reports its SMTP check as pending until the next run.
+     */
+    public Report getReadiness(String realmId) {
+        Report report = reports.get(realmId);
+        if (report == null) {
+            report = reports.computeIfAbsent(realmId, this::buildReport);
+        }
+        return report;
+    }
+
+    /**
+     * Stop checking a realm, e.g. after it was removed
+     */
+    public void forgetRealm(String realmId) {
+        reports.remove(realmId);
+        smtpStatus.remove(realmId);
+    }
+
+    void runChecks() {
+        try {
+            queueStatus = checkQueue();
+            storeStatus = checkStore();
+            for (String realmId : reports.keySet()) {
+                smtpStatus.put(realmId, checkSmtp(realmId));
+            }
+            checkedAt = System.currentTimeMillis();
+            for (String realmId : reports.keySet()) {
+                reports.computeIfPresent(realmId, (id, previous) -> buildReport(id));
+            }
+        } catch (RuntimeException e) {
+            // Keep the schedule alive; the previous results stay in place
+            logger.errorf(e, "Email OTP health checks failed");
+        }
+    }
+
+    private String checkQueue() {
+        int capacity = dispatcher.getQueueCapacity();
+        return (long) dispatcher.getBacklog() * 100 < (long) capacity * maxBacklogPercent ? UP : DOWN;
+    }
+
+    private String checkStore() {
+        try {
+            boolean[] ok = new boolean[1];
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                OtpStore store = session.getProvider(OtpStore.class);
+                OtpEntry probe = new OtpEntry(0L, 0L, 0L, 0L, System.currentTimeMillis() + 60_000L, null, 0);
+                store.put(PROBE_REALM_ID, probeUserId, probe);
+                ok[0] = store.get(PROBE_REALM_ID, probeUserId) != null;
+                store.remove(PROBE_REALM_ID, probeUserId);
+            });
+            return ok[0] ? UP : DOWN;
+        } catch (RuntimeException e) {
+            logger.warnf(e, "OTP store health check failed");
+            return DOWN;
+        }
+    }
+
+    private String checkSmtp(String realmId) {
+        Map<String, String> config = new LinkedHashMap<>();
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                if (realm != null && realm.getSmtpConfig() != null) {
+                    config.putAll(realm.getSmtpConfig());
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.warnf(e, "Cannot read SMTP configuration of realm %s", realmId);
+            return DOWN;
+        }
+
+        String host = config.get("host");
+        if (host == null || host.isEmpty()) {
+            return DOWN;
+        }
+        int port = "true".equals(config.get("ssl")) ? DEFAULT_SMTP_SSL_PORT : DEFAULT_SMTP_PORT;
+        String configuredPort = config.get("port");
+        if (configuredPort != null && !configuredPort.isEmpty()) {
+            try {
+                port = Integer.parseInt(configuredPort);
+            } catch (NumberFormatException e) {
+                return DOWN;
+            }
+        }
+
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), smtpTimeoutMs);
+            return UP;
+        } catch (IOException e) {
+            logger.debugf("SMTP server %s:%d of realm %s not reachable: %s", host, port, realmId, e.getMessage());
+            return DOWN;
+        }
+    }
+
+    private Report buildReport(String realmId) {
+        Map<String, String> checks = new LinkedHashMap<>();
+        checks.put(CHECK_SMTP, smtpStatus.getOrDefault(realmId, PENDING));
+        checks.put(CHECK_DISPATCH_QUEUE, queueStatus);
+        checks.put(CHECK_OTP_STORE, storeStatus);
+        boolean ready = !checks.containsValue(DOWN);
+        String message = ready ? "LUSATEK Email OTP service is ready" : "LUSATEK Email OTP service is not ready";
+        return new Report(ready, serialize(new HealthResponse(ready, message, checks, checkedAt)));
+    }
+
+    private static byte[] serialize(Object response) {
+        try {
+            return JsonSerialization.writeValueAsBytes(response);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot serialize health response", e);
+        }
+    }
+}
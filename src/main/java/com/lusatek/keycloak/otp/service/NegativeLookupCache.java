@@ -0,0 +1,130 @@
+package com.lusatek.keycloak.otp.service;
+
+import com.lusatek.keycloak.otp.util.OtpHasher;
+import org.infinispan.Cache;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Short-lived record of emails and user ids that were recently looked up without a match, so
+ * repeated probes for a missing account are answered without a database query (Keycloak's user
+ * cache only holds users that exist).
+ *
+ * Identifiers are kept as a keyed 64-bit hash. Every entry carries the generation of its realm,
+ * a random value in the replicated work cache that {@link #invalidateRealm(KeycloakSession, String)}
+ * replaces whenever users are created or change email; entries of an older generation are
+ * ignored on every node. The generation is read before the database lookup, so a user created
+ * while a lookup is running never leaves a valid negative entry behind.
+ *
+ * Once full, new misses are not recorded until expired entries have been dropped by
+ * {@link #evictExpired()}, so a flood of distinct unknown identifiers cannot displace the
+ * repeated ones.
+ */
+public class NegativeLookupCache {
+
+    private static final String GENERATION_KEY_PREFIX = "email-otp-user-gen:";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final class Entry {
+        final long expiresAt;
+        final long generation;
+
+        Entry(long expiresAt, long generation) {
+            this.expiresAt = expiresAt;
+            this.generation = generation;
+        }
+    }
+
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+    private final OtpHasher keyHasher;
+    private final long ttlMs;
+    private final int maxEntries;
+
+    /**
+     * @param keyHasher Hasher with a key dedicated to this cache
+     * @param ttlMs How long a miss is remembered; 0 disables the cache
+     * @param maxEntries Upper bound on remembered misses
+     */
+    public NegativeLookupCache(OtpHasher keyHasher, long ttlMs, int maxEntries) {
+        this.keyHasher = keyHasher;
+        this.ttlMs = ttlMs;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Current generation of a realm, to be read before the lookup it guards
+     * @return Generation, 0 if users of the realm have not changed since the cluster started
+     */
+    public long generation(KeycloakSession session, String realmId) {
+        if (ttlMs <= 0) {
+            return 0;
+        }
+        // Replicated cache: served from the local copy
+        Long generation = cache(session).get(GENERATION_KEY_PREFIX + realmId);
+        return generation != null ? generation : 0;
+    }
+
+    /**
+     * @param generation Value of {@link #generation(KeycloakSession, String)} for the realm
+     * @return true if the identifier was looked up without a match recently and no user was created since
+     */
+    public boolean isKnownMissing(String realmId, String email, String userId, long generation) {
+        if (ttlMs <= 0) {
+            return false;
+        }
+        Entry entry = entries.get(key(realmId, email, userId));
+        return entry != null && entry.generation == generation && System.currentTimeMillis() < entry.expiresAt;
+    }
+
+    /**
+     * Remember a lookup without a match
+     * @param generation Value of {@link #generation(KeycloakSession, String)} read before the lookup
+     */
+    public void recordMiss(String realmId, String email, String userId, long generation) {
+        if (ttlMs <= 0 || entries.size() >= maxEntries) {
+            return;
+        }
+        entries.put(key(realmId, email, userId), new Entry(System.currentTimeMillis() + ttlMs, generation));
+    }
+
+    /**
+     * Drop expired entries
+     * @return Number of entries removed
+     */
+    public int evictExpired() {
+        long now = System.currentTimeMillis();
+        int before = entries.size();
+        entries.values().removeIf(entry -> entry.expiresAt <= now);
+        return before - entries.size();
+    }
+
+    /**
+     * @return Number of remembered misses
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Invalidate all misses of a realm on every node
+     */
+    public static void invalidateRealm(KeycloakSession session, String realmId) {
+        cache(session).put(GENERATION_KEY_PREFIX + realmId, RANDOM.nextLong());
+    }
+
+    private long key(String realmId, String email, String userId) {
+        // Same precedence as the user lookup
+        return keyHasher.hashIdentifier(userId != null && !userId.isEmpty() ? "u:" + realmId + ':' + userId
+            : "e:" + realmId + ':' + (email != null ? email.toLowerCase(Locale.ROOT) : ""));
+    }
+
+    private static Cache<String, Long> cache(KeycloakSession session) {
+        return session.getProvider(InfinispanConnectionProvider.class)
+            .getCache(InfinispanConnectionProvider.WORK_CACHE_NAME);
+    }
+}
@@ -0,0 +1,130 @@
+package com.lusatek.keycloak.otp.service;
+
+import com.lusatek.keycloak.otp.metrics.OtpMetrics;
+import com.lusatek.keycloak.otp.outbox.OtpOutbox;
+import com.lusatek.keycloak.otp.util.LinkTokenSigner;
+import com.lusatek.keycloak.otp.util.OtpHasher;
+import com.lusatek.keycloak.otp.util.PreLookupLimiter;
+import com.lusatek.keycloak.otp.util.RateLimiter;
+
+/**
+ * Node-wide components shared by all requests, created and owned by the provider factory
+ */
+public class OtpComponents {
+
+    private final EmailDispatcher dispatcher;
+    private final RateLimiter rateLimiter;
+    private final PreLookupLimiter preLookupLimiter;
+    private final EmailTemplateCache templateCache;
+    private final OtpMetrics metrics;
+    private final OtpHasher hasher;
+    private final LinkTokenSigner linkTokenSigner;
+    private final VerifiedTokenCache tokenCache;
+    private final HealthMonitor healthMonitor;
+    private final OtpOutbox outbox;
+    private final OtpPolicyCache policyCache;
+    private final NegativeLookupCache negativeLookupCache;
+    private final AsyncRequestExecutor asyncExecutor;
+    private final OtpEventPublisher eventPublisher;
+    private final int batchMaxItems;
+
+    public OtpComponents(EmailDispatcher dispatcher, RateLimiter rateLimiter, PreLookupLimiter preLookupLimiter,
+                         EmailTemplateCache templateCache,
+                         OtpMetrics metrics, OtpHasher hasher, LinkTokenSigner linkTokenSigner, VerifiedTokenCache tokenCache, HealthMonitor healthMonitor, OtpOutbox outbox,
+                         OtpPolicyCache policyCache, NegativeLookupCache negativeLookupCache, AsyncRequestExecutor asyncExecutor,
+                         OtpEventPublisher eventPublisher, int batchMaxItems) {
+        this.dispatcher = dispatcher;
+        this.rateLimiter = rateLimiter;
+        this.preLookupLimiter = preLookupLimiter;
+        this.templateCache = templateCache;
+        this.metrics = metrics;
+        this.hasher = hasher;
+        this.linkTokenSigner = linkTokenSigner;
+        this.tokenCache = tokenCache;
+        this.healthMonitor = healthMonitor;
+        this.outbox = outbox;
+        this.policyCache = policyCache;
+        this.negativeLookupCache = negativeLookupCache;
+        this.asyncExecutor = asyncExecutor;
+        this.eventPublisher = eventPublisher;
+        this.batchMaxItems = batchMaxItems;
+    }
+
+    public EmailDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * @return Address, client and identifier limits checked before the user lookup
+     */
+    public PreLookupLimiter getPreLookupLimiter() {
+        return preLookupLimiter;
+    }
+
+    public EmailTemplateCache getTemplateCache() {
+        return templateCache;
+    }
+
+    public OtpMetrics getMetrics() {
+        return metrics;
+    }
+
+    public OtpHasher getHasher() {
+        return hasher;
+    }
+
+    /**
+     * @return Signer of the tokens in verification links
+     */
+    public LinkTokenSigner getLinkTokenSigner() {
+        return linkTokenSigner;
+    }
+
+    public VerifiedTokenCache getTokenCache() {
+        return tokenCache;
+    }
+
+    public HealthMonitor getHealthMonitor() {
+        return healthMonitor;
+    }
+
+    /**
+     * @return Durable outbox, or null if emails go straight to the in-memory dispatch queue
+     */
+    public OtpOutbox getOutbox() {
+        return outbox;
+    }
+
+    public OtpPolicyCache getPolicyCache() {
+        return policyCache;
+    }
+
+    public NegativeLookupCache getNegativeLookupCache() {
+        return negativeLookupCache;
+    }
+
+    /**
+     * @return Pool running /send and /verify off the HTTP worker thread, or null if they run inline
+     */
+    public AsyncRequestExecutor getAsyncExecutor() {
+        return asyncExecutor;
+    }
+
+    /**
+     * @return Publisher of OTP lifecycle events, or null if events are disabled
+     */
+    public OtpEventPublisher getEventPublisher() {
+        return eventPublisher;
+    }
+
+    /**
+     * @return Largest number of entries accepted by one batch send
+     */
+    public int getBatchMaxItems() {
+        return batchMaxItems;
+    }
+}
@@ -0,0 +1,54 @@
+package com.lusatek.keycloak.otp.service;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fully rendered OTP email, ready to be handed to the SMTP sender.
+ * Carries a snapshot of the realm SMTP configuration so delivery does not
+ * need access to the originating request or realm model.
+ */
+public class OtpEmail {
+
+    private final String realmId;
+    private final String recipient;
+    private final Map<String, String> smtpConfig;
+    private final String subject;
+    private final String textBody;
+    private final String htmlBody;
+
+    public OtpEmail(String realmId, String recipient, Map<String, String> smtpConfig,
+                    String subject, String textBody, String htmlBody) {
+        this.realmId = realmId;
+        this.recipient = recipient;
+        this.smtpConfig = Collections.unmodifiableMap(new HashMap<>(smtpConfig));
+        this.subject = subject;
+        this.textBody = textBody;
+        this.htmlBody = htmlBody;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public Map<String, String> getSmtpConfig() {
+        return smtpConfig;
+    }
+
+    public String getSubject() {
+        return subject;
+    }
+
+    public String getTextBody() {
+        return textBody;
+    }
+
+    public String getHtmlBody() {
+        return htmlBody;
+    }
+}
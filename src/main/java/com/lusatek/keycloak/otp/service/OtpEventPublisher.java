@@ -0,0 +1,209 @@
+package com.lusatek.keycloak.otp.service;
+
+import com.lusatek.keycloak.otp.metrics.OtpMetrics;
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventBuilder;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventStoreProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * Delivers OTP lifecycle events to Keycloak's event store and event listeners in batches on a
+ * dedicated thread, so a request never waits for an event insert. Requests build plain {@link Event}s
+ * and hand them here instead of sending them with {@link EventBuilder}; each batch is then delivered in
+ * one transaction the way EventBuilder would, honouring the realm's "save events" setting, its enabled
+ * event types and its event listeners.
+ *
+ * The queue is bounded: when it is full, events are dropped and counted rather than slowing requests
+ * down. Events still queued on shutdown are flushed before the thread stops.
+ */
+public class OtpEventPublisher {
+
+    private static final Logger logger = Logger.getLogger(OtpEventPublisher.class);
+
+    /**
+     * Detail naming the OTP lifecycle step, since Keycloak's event types are a fixed set
+     */
+    public static final String DETAIL_OTP_EVENT = "otp_event";
+    public static final String OTP_SEND = "OTP_SEND";
+    public static final String OTP_VERIFY = "OTP_VERIFY";
+    public static final String OTP_RATE_LIMITED = "OTP_RATE_LIMITED";
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final OtpMetrics metrics;
+    private final BlockingQueue<Event> queue;
+    private final int batchSize;
+    private final ScheduledExecutorService executor;
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+
+    /**
+     * @param capacity Events held for delivery at most
+     * @param batchSize Events delivered per transaction; a full batch is flushed without waiting for the interval
+     */
+    public OtpEventPublisher(KeycloakSessionFactory sessionFactory, OtpMetrics metrics, int capacity, int batchSize) {
+        this.sessionFactory = sessionFactory;
+        this.metrics = metrics;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = Math.max(1, batchSize);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "email-otp-events");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start flushing queued events
+     * @param flushIntervalMs Longest time an event waits for delivery while its batch is not full
+     */
+    public void start(long flushIntervalMs) {
+        executor.scheduleWithFixedDelay(this::flush, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue an event for delivery; never blocks
+     * @param event Event of a request, without id and time
+     */
+    public void publish(Event event) {
+        // Set as EventBuilder would when sending, so the event keeps the time of the request
+        event.setTime(Time.currentTimeMillis());
+        event.setId(UUID.randomUUID().toString());
+        if (!queue.offer(event)) {
+            metrics.eventDropped();
+            return;
+        }
+        if (queue.size() >= batchSize && flushPending.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::flush);
+            } catch (RejectedExecutionException e) {
+                flushPending.set(false);
+            }
+        }
+    }
+
+    /**
+     * @return Events waiting for delivery
+     */
+    public int getBacklog() {
+        return queue.size();
+    }
+
+    /**
+     * Flush the remaining events and stop
+     * @param timeoutMs Maximum time to wait for the last flush
+     */
+    public void shutdown(long timeoutMs) {
+        try {
+            executor.execute(this::flush);
+        } catch (RejectedExecutionException e) {
+            // Already shut down
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        if (!queue.isEmpty()) {
+            logger.warnf("Dropped %d OTP events on shutdown", queue.size());
+        }
+    }
+
+    private void flush() {
+        flushPending.set(false);
+        List<Event> batch = new ArrayList<>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            long start = System.nanoTime();
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> deliver(session, batch));
+            } catch (RuntimeException e) {
+                // Not retried: a failing event store must not pile up events in memory
+                logger.warnf(e, "Failed to deliver %d OTP events", batch.size());
+            }
+            metrics.eventFlush(start);
+            batch.clear();
+        }
+    }
+
+    private static void deliver(KeycloakSession session, List<Event> batch) {
+        Map<String, Destination> destinations = new HashMap<>();
+        for (Event event : batch) {
+            destinations.computeIfAbsent(event.getRealmId(), realmId -> Destination.of(session, realmId)).send(event);
+        }
+    }
+
+    /**
+     * Event store and listeners of one realm, resolved once per batch
+     */
+    private static final class Destination {
+        private static final Destination NONE = new Destination(null, Collections.emptySet(), Collections.emptyList());
+
+        private final EventStoreProvider store;
+        private final Set<String> enabledTypes;
+        private final List<EventListenerProvider> listeners;
+
+        private Destination(EventStoreProvider store, Set<String> enabledTypes, List<EventListenerProvider> listeners) {
+            this.store = store;
+            this.enabledTypes = enabledTypes;
+            this.listeners = listeners;
+        }
+
+        static Destination of(KeycloakSession session, String realmId) {
+            RealmModel realm = realmId != null ? session.realms().getRealm(realmId) : null;
+            // Realm removed since the request
+            if (realm == null) {
+                return NONE;
+            }
+            EventStoreProvider store = realm.isEventsEnabled() ? session.getProvider(EventStoreProvider.class) : null;
+            Set<String> enabledTypes = store != null
+                ? realm.getEnabledEventTypesStream().collect(Collectors.toSet())
+                : Collections.emptySet();
+            List<EventListenerProvider> listeners = realm.getEventsListenersStream()
+                .map(id -> session.getProvider(EventListenerProvider.class, id))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+            return new Destination(store, enabledTypes, listeners);
+        }
+
+        void send(Event event) {
+            // Same rule as EventBuilder: no enabled types configured means the types saved by default
+            if (store != null && (enabledTypes.isEmpty()
+                    ? event.getType().isSaveByDefault()
+                    : enabledTypes.contains(event.getType().name()))) {
+                store.onEvent(event);
+            }
+            for (EventListenerProvider listener : listeners) {
+                try {
+                    listener.onEvent(event);
+                } catch (RuntimeException e) {
+                    logger.errorf(e, "Failed to send OTP event to event listener %s", listener.getClass().getName());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.lusatek.keycloak.otp.service;
+
+import com.lusatek.keycloak.otp.model.OtpPolicyRepresentation;
+import com.lusatek.keycloak.otp.util.OtpCodeFormat;
+import org.jboss.logging.Logger;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable per-realm OTP policy. Realms override the node defaults through realm attributes
+ * prefixed with "emailOtp."; snapshots are built by the {@link OtpPolicyCache}.
+ */
+public final class OtpPolicy {
+
+    private static final Logger logger = Logger.getLogger(OtpPolicy.class);
+
+    public static final String ATTR_CODE_LENGTH = "emailOtp.codeLength";
+    public static final String ATTR_CODE_ALPHABET = "emailOtp.codeAlphabet";
+    public static final String ATTR_TTL_SECONDS = "emailOtp.ttlSeconds";
+    public static final String ATTR_RESEND_INTERVAL_SECONDS = "emailOtp.resendIntervalSeconds";
+    public static final String ATTR_MAX_ATTEMPTS = "emailOtp.maxAttempts";
+    public static final String ATTR_TEMPLATE = "emailOtp.template";
+    public static final String ATTR_COMPANY_NAME = "emailOtp.companyName";
+    public static final String ATTR_MODE = "emailOtp.mode";
+    public static final String ATTR_LINK_URL = "emailOtp.linkUrl";
+
+    public static final int DEFAULT_TTL_SECONDS = 600;
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final String DEFAULT_TEMPLATE = "email-otp.ftl";
+    public static final String DEFAULT_COMPANY_NAME = "LUSATEK";
+
+    public static final int MIN_TTL_SECONDS = 30;
+    public static final int MAX_TTL_SECONDS = 86400;
+    public static final int MAX_ATTEMPTS_LIMIT = 100;
+    public static final int MAX_COMPANY_NAME_LENGTH = 100;
+    public static final int MAX_LINK_URL_LENGTH = 2048;
+
+    /**
+     * Placeholder in the link URL that is replaced with the signed token
+     */
+    public static final String LINK_TOKEN_PLACEHOLDER = "{token}";
+
+    /**
+     * What the email carries
+     */
+    public enum Mode {
+        /** A code stored on the server, entered by the user */
+        CODE,
+        /** A link with a signed token; nothing is stored until the link is used */
+        LINK;
+
+        /**
+         * @throws IllegalArgumentException if the value is not "code" or "link"
+         */
+        public static Mode of(String value) {
+            for (Mode mode : values()) {
+                if (mode.name().equalsIgnoreCase(value)) {
+                    return mode;
+                }
+            }
+            throw new IllegalArgumentException("Mode must be \"code\" or \"link\"");
+        }
+
+        public String value() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private static final Pattern TEMPLATE_PATTERN = Pattern.compile("[A-Za-z0-9_-]{1,64}\\.ftl");
+
+    private final OtpCodeFormat codeFormat;
+    private final int ttlSeconds;
+    private final int resendIntervalSeconds;
+    private final int maxAttempts;
+    private final String template;
+    private final String companyName;
+    private final Mode mode;
+    private final String linkUrl;
+
+    /**
+     * Policy sending codes
+     * @throws IllegalArgumentException if a value is out of range
+     */
+    public OtpPolicy(OtpCodeFormat codeFormat, int ttlSeconds, int resendIntervalSeconds, int maxAttempts,
+                     String template, String companyName) {
+        this(codeFormat, ttlSeconds, resendIntervalSeconds, maxAttempts, template, companyName, Mode.CODE, null);
+    }
+
+    /**
+     * @param linkUrl Absolute http(s) URL containing {@link #LINK_TOKEN_PLACEHOLDER}; required in link mode
+     * @throws IllegalArgumentException if a value is out of range
+     */
+    public OtpPolicy(OtpCodeFormat codeFormat, int ttlSeconds, int resendIntervalSeconds, int maxAttempts,
+                     String template, String companyName, Mode mode, String linkUrl) {
+        if (ttlSeconds < MIN_TTL_SECONDS || ttlSeconds > MAX_TTL_SECONDS) {
+            throw new IllegalArgumentException("TTL must be between " + MIN_TTL_SECONDS + " and " + MAX_TTL_SECONDS + " seconds");
+        }
+        if (resendIntervalSeconds < 0 || resendIntervalSeconds > ttlSeconds) {
+            throw new IllegalArgumentException("Resend interval must be between 0 and the TTL");
+        }
+        if (maxAttempts < 1 || maxAttempts > MAX_ATTEMPTS_LIMIT) {
+            throw new IllegalArgumentException("Max attempts must be between 1 and " + MAX_ATTEMPTS_LIMIT);
+        }
+        if (template == null || !TEMPLATE_PATTERN.matcher(template).matches()) {
+            throw new IllegalArgumentException("Template must be a file name ending in .ftl");
+        }
+        if (companyName == null || companyName.length() > MAX_COMPANY_NAME_LENGTH) {
+            throw new IllegalArgumentException("Company name must be at most " + MAX_COMPANY_NAME_LENGTH + " characters");
+        }
+        if (linkUrl != null && (linkUrl.length() > MAX_LINK_URL_LENGTH || !linkUrl.contains(LINK_TOKEN_PLACEHOLDER)
+                || !(linkUrl.startsWith("https://") || linkUrl.startsWith("http://")))) {
+            throw new IllegalArgumentException("Link URL must be an http(s) URL of at most " + MAX_LINK_URL_LENGTH
+                + " characters containing " + LINK_TOKEN_PLACEHOLDER);
+        }
+        if (mode == Mode.LINK && linkUrl == null) {
+            throw new IllegalArgumentException("Link mode requires a link URL");
+        }
+        this.codeFormat = codeFormat;
+        this.ttlSeconds = ttlSeconds;
+        this.resendIntervalSeconds = resendIntervalSeconds;
+        this.maxAttempts = maxAttempts;
+        this.template = template;
+        this.companyName = companyName;
+        this.mode = mode;
+        this.linkUrl = linkUrl;
+    }
+
+    /**
+     * Build the policy of a realm from its attributes
+     * @param realmName Realm name, for logging
+     * @param attributes Realm attributes
+     * @param defaults Values used for attributes that are not set
+     * @return Realm policy; the defaults if the realm's attributes do not form a valid policy
+     */
+    public static OtpPolicy fromAttributes(String realmName, Map<String, String> attributes, OtpPolicy defaults) {
+        try {
+            OtpCodeFormat format = defaults.codeFormat;
+            String alphabet = attributes.get(ATTR_CODE_ALPHABET);
+            String length = attributes.get(ATTR_CODE_LENGTH);
+            if (alphabet != null || length != null) {
+                format = OtpCodeFormat.of(alphabet != null ? alphabet : format.getAlphabet(),
+                    length != null ? Integer.parseInt(length) : format.getLength());
+            }
+            return new OtpPolicy(format,
+                intAttribute(attributes, ATTR_TTL_SECONDS, defaults.ttlSeconds),
+                intAttribute(attributes, ATTR_RESEND_INTERVAL_SECONDS, defaults.resendIntervalSeconds),
+                intAttribute(attributes, ATTR_MAX_ATTEMPTS, defaults.maxAttempts),
+                attributes.getOrDefault(ATTR_TEMPLATE, defaults.template),
+                attributes.getOrDefault(ATTR_COMPANY_NAME, defaults.companyName),
+                attributes.containsKey(ATTR_MODE) ? Mode.of(attributes.get(ATTR_MODE)) : defaults.mode,
+                attributes.getOrDefault(ATTR_LINK_URL, defaults.linkUrl));
+        } catch (IllegalArgumentException e) {
+            logger.warnf("Invalid email OTP policy in realm %s, using defaults: %s", realmName, e.getMessage());
+            return defaults;
+        }
+    }
+
+    /**
+     * Build a policy from an admin update
+     * @param representation Requested values; missing ones are taken from the defaults
+     * @param defaults Server defaults
+     * @return Validated policy
+     * @throws IllegalArgumentException if a value is invalid
+     */
+    public static OtpPolicy fromRepresentation(OtpPolicyRepresentation representation, OtpPolicy defaults) {
+        OtpCodeFormat format = OtpCodeFormat.of(
+            representation.getCodeAlphabet() != null ? representation.getCodeAlphabet() : defaults.codeFormat.getAlphabet(),
+            representation.getCodeLength() != null ? representation.getCodeLength() : defaults.codeFormat.getLength());
+        return new OtpPolicy(format,
+            representation.getTtlSeconds() != null ? representation.getTtlSeconds() : defaults.ttlSeconds,
+            representation.getResendIntervalSeconds() != null ? representation.getResendIntervalSeconds() : defaults.resendIntervalSeconds,
+            representation.getMaxAttempts() != null ? representation.getMaxAttempts() : defaults.maxAttempts,
+            representation.getTemplate() != null ? representation.getTemplate() : defaults.template,
+            representation.getCompanyName() != null ? representation.getCompanyName() : defaults.companyName,
+            representation.getMode() != null ? Mode.of(representation.getMode()) : defaults.mode,
+            representation.getLinkUrl() != null ? representation.getLinkUrl() : defaults.linkUrl);
+    }
+
+    /**
+     * @return All values of this policy
+     */
+    public OtpPolicyRepresentation toRepresentation() {
+        OtpPolicyRepresentation representation = new OtpPolicyRepresentation();
+        representation.setCodeLength(codeFormat.getLength());
+        representation.setCodeAlphabet(codeFormat.getAlphabet());
+        representation.setTtlSeconds(ttlSeconds);
+        representation.setResendIntervalSeconds(resendIntervalSeconds);
+        representation.setMaxAttempts(maxAttempts);
+        representation.setTemplate(template);
+        representation.setCompanyName(companyName);
+        representation.setMode(mode.value());
+        representation.setLinkUrl(linkUrl);
+        return representation;
+    }
+
+    private static int intAttribute(Map<String, String> attributes, String name, int defaultValue) {
+        String value = attributes.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    public OtpCodeFormat getCodeFormat() {
+        return codeFormat;
+    }
+
+    public int getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    public long getTtlMs() {
+        return ttlSeconds * 1000L;
+    }
+
+    /**
+     * @return Expiry shown in the email, rounded up to whole minutes
+     */
+    public int getTtlMinutes() {
+        return (ttlSeconds + 59) / 60;
+    }
+
+    public int getResendIntervalSeconds() {
+        return resendIntervalSeconds;
+    }
+
+    /**
+     * @return Minimum time between two codes for the same user, during which /send reports the active one
+     */
+    public long getResendIntervalMs() {
+        return resendIntervalSeconds * 1000L;
+    }
+
+    /**
+     * @return Wrong codes accepted per OTP; the OTP is unusable once this many were submitted
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @return Template name below the email theme's text/ and html/ directories
+     */
+    public String getTemplate() {
+        return template;
+    }
+
+    public String getCompanyName() {
+        return companyName;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public boolean isLinkMode() {
+        return mode == Mode.LINK;
+    }
+
+    /**
+     * @param token Signed token from {@link com.lusatek.keycloak.otp.util.LinkTokenSigner}
+     * @return Link URL carrying the token; only valid in link mode
+     */
+    public String linkFor(String token) {
+        return linkUrl.replace(LINK_TOKEN_PLACEHOLDER, token);
+    }
+}
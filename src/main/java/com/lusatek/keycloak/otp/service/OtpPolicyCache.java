@@ -0,0 +1,106 @@
+package com.lusatek.keycloak.otp.service;
+
+import com.lusatek.keycloak.otp.model.OtpPolicyRepresentation;
+import org.keycloak.models.RealmModel;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-realm snapshots of the {@link OtpPolicy}.
+ *
+ * A snapshot is rebuilt only when the realm's attribute map changes. With Keycloak's realm cache
+ * the map is the same instance until the realm is updated on any node, so the hot path costs a
+ * map lookup and a reference comparison; without the realm cache the maps are compared by value.
+ */
+public class OtpPolicyCache {
+
+    private static class Snapshot {
+        final Map<String, String> attributes;
+        final OtpPolicy policy;
+
+        Snapshot(Map<String, String> attributes, OtpPolicy policy) {
+            this.attributes = attributes;
+            this.policy = policy;
+        }
+    }
+
+    private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+    private final OtpPolicy defaults;
+
+    /**
+     * @param defaults Policy of realms that do not override any value
+     */
+    public OtpPolicyCache(OtpPolicy defaults) {
+        this.defaults = defaults;
+    }
+
+    /**
+     * @return Policy of realms that do not override any value
+     */
+    public OtpPolicy getDefaults() {
+        return defaults;
+    }
+
+    /**
+     * Get the realm's policy, rebuilding the snapshot if the realm was updated
+     * @param realm Realm of the current request
+     * @return Current policy
+     */
+    public OtpPolicy get(RealmModel realm) {
+        // Served from the realm cache; a new instance means the realm was updated
+        Map<String, String> attributes = realm.getAttributes();
+        Snapshot snapshot = snapshots.get(realm.getId());
+        if (snapshot != null && (snapshot.attributes == attributes || snapshot.attributes.equals(attributes))) {
+            return snapshot.policy;
+        }
+        OtpPolicy policy = OtpPolicy.fromAttributes(realm.getName(), attributes, defaults);
+        snapshots.put(realm.getId(), new Snapshot(attributes, policy));
+        return policy;
+    }
+
+    /**
+     * Store a new policy in the realm's attributes
+     * @param realm Realm to update, in the current transaction
+     * @param representation Requested values; missing ones reset the setting to the server default
+     * @return Effective policy after the update
+     * @throws IllegalArgumentException if a value is invalid; the realm is left unchanged
+     */
+    public OtpPolicy update(RealmModel realm, OtpPolicyRepresentation representation) {
+        OtpPolicy policy = OtpPolicy.fromRepresentation(representation, defaults);
+        setAttribute(realm, OtpPolicy.ATTR_CODE_LENGTH, representation.getCodeLength());
+        setAttribute(realm, OtpPolicy.ATTR_CODE_ALPHABET, representation.getCodeAlphabet());
+        setAttribute(realm, OtpPolicy.ATTR_TTL_SECONDS, representation.getTtlSeconds());
+        setAttribute(realm, OtpPolicy.ATTR_RESEND_INTERVAL_SECONDS, representation.getResendIntervalSeconds());
+        setAttribute(realm, OtpPolicy.ATTR_MAX_ATTEMPTS, representation.getMaxAttempts());
+        setAttribute(realm, OtpPolicy.ATTR_TEMPLATE, representation.getTemplate());
+        setAttribute(realm, OtpPolicy.ATTR_COMPANY_NAME, representation.getCompanyName());
+        setAttribute(realm, OtpPolicy.ATTR_MODE, representation.getMode() != null ? policy.getMode().value() : null);
+        setAttribute(realm, OtpPolicy.ATTR_LINK_URL, representation.getLinkUrl());
+        // Other nodes notice the update through the realm cache invalidation
+        invalidateRealm(realm.getId());
+        return policy;
+    }
+
+    private static void setAttribute(RealmModel realm, String name, Object value) {
+        if (value != null) {
+            realm.setAttribute(name, value.toString());
+        } else {
+            realm.removeAttribute(name);
+        }
+    }
+
+    /**
+     * Drop the snapshot of a realm
+     */
+    public void invalidateRealm(String realmId) {
+        snapshots.remove(realmId);
+    }
+
+    /**
+     * @return Number of cached snapshots
+     */
+    public int size() {
+        return snapshots.size();
+    }
+}
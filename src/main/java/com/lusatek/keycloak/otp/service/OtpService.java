@@ -1,70 +1,211 @@
 package com.lusatek.keycloak.otp.service;
 
+import com.lusatek.keycloak.otp.metrics.OtpMetrics;
+import com.lusatek.keycloak.otp.outbox.OtpOutbox;
+import com.lusatek.keycloak.otp.store.OtpEntry;
+import com.lusatek.keycloak.otp.store.OtpStore;
+import com.lusatek.keycloak.otp.util.LinkTokenSigner;
+import com.lusatek.keycloak.otp.util.OtpCodeFormat;
 import com.lusatek.keycloak.otp.util.OtpGenerator;
+import com.lusatek.keycloak.otp.util.OtpHasher;
 import org.jboss.logging.Logger;
 import org.keycloak.email.EmailException;
+import org.keycloak.models.AbstractKeycloakTransaction;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
- * Service for managing OTP lifecycle (generation, storage, verification)
+ * Service for managing OTP lifecycle (generation, storage, verification).
+ * In link mode nothing is stored on issue: the emailed link carries a signed token that is checked
+ * by computation, and only its nonce is recorded once used.
  */
 public class OtpService {
-    
+
     private static final Logger logger = Logger.getLogger(OtpService.class);
-    
-    // User attribute keys
-    private static final String ATTR_OTP_CODE = "otp_code";
-    private static final String ATTR_OTP_EXPIRY = "otp_expiry";
-    private static final String ATTR_EMAIL_VERIFIED = "emailVerified";
-    
-    // Configuration
-    private static final int OTP_EXPIRY_MINUTES = 10;
-    
+
+    // Legacy user attribute keys (OTPs issued before the OtpStore was introduced)
+    /**
+     * Status reported instead of a dispatch when an active OTP makes sending another one unnecessary
+     */
+    public static final String ALREADY_SENT = "ALREADY_SENT";
+
+    static final String ATTR_OTP_CODE = "otp_code";
+    static final String ATTR_OTP_EXPIRY = "otp_expiry";
+
     private final KeycloakSession session;
     private final RealmModel realm;
     private final EmailService emailService;
+    private final EmailDispatcher dispatcher;
+    private final OtpOutbox outbox;
+    private final OtpMetrics metrics;
+    private final OtpHasher hasher;
+    private final LinkTokenSigner linkTokenSigner;
+    private final OtpStore store;
+    private final OtpPolicy policy;
 
-    public OtpService(KeycloakSession session, RealmModel realm) {
+    public OtpService(KeycloakSession session, RealmModel realm, OtpComponents components) {
         this.session = session;
         this.realm = realm;
-        this.emailService = new EmailService(session, realm);
+        this.emailService = new EmailService(session, realm, components.getTemplateCache());
+        this.dispatcher = components.getDispatcher();
+        this.outbox = components.getOutbox();
+        this.metrics = components.getMetrics();
+        this.hasher = components.getHasher();
+        this.linkTokenSigner = components.getLinkTokenSigner();
+        this.store = session.getProvider(OtpStore.class);
+        this.policy = components.getPolicyCache().get(realm);
+    }
+
+    /**
+     * @return OTP policy of the realm, fixed for the lifetime of this service
+     */
+    public OtpPolicy getPolicy() {
+        return policy;
     }
 
     /**
-     * Generate and send OTP to user
+     * Generate OTP, render the email and hand it to the outbox or dispatch queue
      * @param user User to send OTP to
-     * @return true if OTP was generated and sent successfully
+     * @return Dispatch id of the queued email, or null if the email could not be rendered
+     * @throws DispatchRejectedException if the dispatch queue is full
      */
-    public boolean generateAndSendOtp(UserModel user) {
+    public String generateAndSendOtp(UserModel user) throws DispatchRejectedException {
+        return generateAndSendOtp(user, null);
+    }
+
+    /**
+     * Generate OTP, render the email and hand it to the outbox or dispatch queue
+     * @param user User to send OTP to
+     * @param idempotencyKey Idempotency-Key of the request, stored with the OTP; may be null
+     * @return Dispatch id of the queued email, or null if the email could not be rendered
+     * @throws DispatchRejectedException if the dispatch queue is full
+     */
+    public String generateAndSendOtp(UserModel user, String idempotencyKey) throws DispatchRejectedException {
         try {
-            // Generate OTP
-            String otpCode = OtpGenerator.generateOtp();
-            long expiryTime = System.currentTimeMillis() + (OTP_EXPIRY_MINUTES * 60 * 1000);
-            
-            // Store OTP in user attributes
-            user.setSingleAttribute(ATTR_OTP_CODE, otpCode);
-            user.setSingleAttribute(ATTR_OTP_EXPIRY, String.valueOf(expiryTime));
-            
-            logger.infof("Generated OTP for user %s, expires at %d", user.getEmail(), expiryTime);
-            
-            // Send email
-            emailService.sendOtpEmail(user, otpCode, OTP_EXPIRY_MINUTES);
-            
-            return true;
+            OtpEmail email = issueOtp(user, idempotencyKey);
+
+            // Record in the outbox (same transaction as the request) or queue in memory
+            if (outbox != null) {
+                return enqueue(user, email);
+            }
+            try {
+                return dispatcher.submit(email);
+            } catch (DispatchRejectedException e) {
+                discardIssued(user);
+                metrics.sendFailed(OtpMetrics.SendFailure.QUEUE_FULL);
+                throw e;
+            }
         } catch (EmailException e) {
-            logger.errorf(e, "Failed to send OTP email to user: %s", user.getEmail());
-            return false;
-        } catch (Exception e) {
+            logger.errorf(e, "Failed to render OTP email for user: %s", user.getEmail());
+            metrics.sendFailed(OtpMetrics.SendFailure.RENDER);
+            return null;
+        } catch (RuntimeException e) {
             logger.errorf(e, "Unexpected error generating OTP for user: %s", user.getEmail());
-            return false;
+            metrics.sendFailed(OtpMetrics.SendFailure.RENDER);
+            return null;
         }
     }
 
+    /**
+     * Generate and store a new OTP and render its email, without queueing it
+     * @param user User to issue OTP for
+     * @return Rendered email carrying the new code
+     * @throws EmailException if the email cannot be rendered (no OTP is stored in that case)
+     */
+    public OtpEmail issueOtp(UserModel user) throws EmailException {
+        return issueOtp(user, null);
+    }
+
+    /**
+     * Generate and store a new OTP and render its email, without queueing it
+     * @param user User to issue OTP for
+     * @param idempotencyKey Idempotency-Key of the request, stored with the OTP; may be null
+     * @return Rendered email carrying the new code
+     * @throws EmailException if the email cannot be rendered (no OTP is stored in that case)
+     */
+    public OtpEmail issueOtp(UserModel user, String idempotencyKey) throws EmailException {
+        if (policy.isLinkMode()) {
+            return issueLink(user);
+        }
+
+        // Generate OTP
+        OtpCodeFormat format = policy.getCodeFormat();
+        long otpCode = format.nextValue();
+        long issuedAt = System.currentTimeMillis();
+        long expiryTime = issuedAt + policy.getTtlMs();
+
+        // Render before storing so a template problem leaves no orphaned OTP behind
+        OtpEmail email = emailService.renderOtpEmail(user, format.format(otpCode), policy);
+
+        // Store only the salted digest; a newer code supersedes any legacy one kept in user attributes
+        store.put(realm.getId(), user.getId(), hasher.newEntry(otpCode, issuedAt, expiryTime, idempotencyKey));
+        clearLegacyOtp(user);
+
+        logger.infof("Generated OTP for user %s, expires at %d", user.getEmail(), expiryTime);
+        return email;
+    }
+
+    /**
+     * Sign a verification token and render the link email; nothing is stored
+     */
+    private OtpEmail issueLink(UserModel user) throws EmailException {
+        long expiryTime = System.currentTimeMillis() + policy.getTtlMs();
+        String token = linkTokenSigner.sign(realm.getId(), user.getId(), user.getEmail(), expiryTime);
+        OtpEmail email = emailService.renderLinkEmail(user, policy.linkFor(token), policy);
+
+        logger.infof("Generated verification link for user %s, expires at %d", user.getEmail(), expiryTime);
+        return email;
+    }
+
+    /**
+     * Undo an issue whose email could not be queued. Links cannot be withdrawn; they were never sent.
+     * @param user User the OTP was issued for
+     */
+    public void discardIssued(UserModel user) {
+        if (!policy.isLinkMode()) {
+            clearOtp(user);
+        }
+    }
+
+    /**
+     * Record an issued email in the durable outbox; delivery happens after the transaction commits.
+     *
+     * The OTP store is not part of the database transaction: the OTP was stored by
+     * {@link #issueOtp(UserModel)} before the outbox row is written. If the transaction rolls back,
+     * the OTP is removed again, unless it was replaced in the meantime, so it cannot suppress the
+     * resend of a code whose email was never recorded.
+     * @param user Recipient user
+     * @param email Email returned by {@link #issueOtp(UserModel)}
+     * @return Dispatch id of the outbox entry
+     */
+    public String enqueue(UserModel user, OtpEmail email) {
+        if (!policy.isLinkMode()) {
+            OtpEntry issued = store.get(realm.getId(), user.getId());
+            if (issued != null) {
+                String realmId = realm.getId();
+                String userId = user.getId();
+                session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+                    @Override
+                    protected void commitImpl() {
+                    }
+
+                    @Override
+                    protected void rollbackImpl() {
+                        store.remove(realmId, userId, issued);
+                    }
+                });
+            }
+        }
+        return outbox.enqueue(session, email, user.getId(), System.currentTimeMillis() + policy.getTtlMs());
+    }
+
     /**
      * Verify OTP code for user
      * @param user User to verify OTP for
@@ -72,54 +213,145 @@ public class OtpService {
      * @return true if OTP is valid and not expired
      */
     public boolean verifyOtp(UserModel user, String code) {
-        if (code == null || !OtpGenerator.isValidOtpFormat(code)) {
+        return verify(user, code) == OtpMetrics.VerifyResult.VERIFIED;
+    }
+
+    /**
+     * Verify OTP code for user. A wrong code is counted on the OTP itself with a compare-and-replace,
+     * so concurrent guesses on any node cannot exceed the policy's attempt limit; once it is reached
+     * the OTP is rejected without checking the code until it expires or a new one is issued.
+     * @param user User to verify OTP for
+     * @param code OTP code to verify
+     * @return Outcome of the verification
+     */
+    public OtpMetrics.VerifyResult verify(UserModel user, String code) {
+        long submitted = parseCode(user, code);
+        if (submitted < 0) {
+            return verifyResult(OtpMetrics.VerifyResult.MALFORMED);
+        }
+        return verify(user, submitted, store.get(realm.getId(), user.getId()));
+    }
+
+    /**
+     * Verify OTP code for user against an OTP read beforehand with {@link #loadStoredOtps(Collection)},
+     * so a batch costs one store read instead of one per user. A stale entry is harmless: counting a
+     * wrong code re-reads the store when the OTP changed in the meantime.
+     * @param user User to verify OTP for
+     * @param code OTP code to verify
+     * @param stored OTP read from the store for this user, or null if it had none
+     * @return Outcome of the verification
+     */
+    public OtpMetrics.VerifyResult verify(UserModel user, String code, OtpEntry stored) {
+        long submitted = parseCode(user, code);
+        if (submitted < 0) {
+            return verifyResult(OtpMetrics.VerifyResult.MALFORMED);
+        }
+        return verify(user, submitted, stored);
+    }
+
+    private long parseCode(UserModel user, String code) {
+        long submitted = policy.getCodeFormat().parse(code);
+        if (submitted < 0) {
             logger.warnf("Invalid OTP format for user: %s", user.getEmail());
-            return false;
         }
-        
-        String storedCode = user.getFirstAttribute(ATTR_OTP_CODE);
-        String expiryStr = user.getFirstAttribute(ATTR_OTP_EXPIRY);
-        
-        if (storedCode == null || expiryStr == null) {
-            logger.warnf("No OTP found for user: %s", user.getEmail());
-            return false;
+        return submitted;
+    }
+
+    private OtpMetrics.VerifyResult verify(UserModel user, long submitted, OtpEntry stored) {
+        OtpEntry entry = stored;
+        // Legacy codes have no attempt counter; the rate limiter still applies to them
+        boolean counted = entry != null;
+        if (!counted) {
+            entry = loadLegacyOtp(user);
         }
-        
-        // Check expiry
-        try {
-            long expiryTime = Long.parseLong(expiryStr);
-            if (System.currentTimeMillis() > expiryTime) {
+
+        while (true) {
+            if (entry == null) {
+                logger.warnf("No OTP found for user: %s", user.getEmail());
+                return verifyResult(OtpMetrics.VerifyResult.NOT_FOUND);
+            }
+
+            // Check expiry; only the stale entry is removed, never a code issued since it was read
+            if (entry.isExpired(System.currentTimeMillis())) {
                 logger.warnf("OTP expired for user: %s", user.getEmail());
-                clearOtp(user);
-                return false;
+                if (counted) {
+                    store.remove(realm.getId(), user.getId(), entry);
+                } else {
+                    clearLegacyOtp(user);
+                }
+                return verifyResult(OtpMetrics.VerifyResult.EXPIRED);
             }
-        } catch (NumberFormatException e) {
-            logger.errorf("Invalid expiry time format for user: %s", user.getEmail());
-            clearOtp(user);
-            return false;
-        }
-        
-        // Verify code
-        if (!storedCode.equals(code)) {
-            logger.warnf("Invalid OTP code for user: %s", user.getEmail());
-            return false;
+
+            if (entry.getFailedAttempts() >= policy.getMaxAttempts()) {
+                logger.warnf("OTP attempts exhausted for user: %s", user.getEmail());
+                return verifyResult(OtpMetrics.VerifyResult.ATTEMPTS_EXCEEDED);
+            }
+
+            // Verify code (keyed hash, constant-time comparison)
+            if (hasher.matches(entry, submitted)) {
+                // Consume the exact entry checked, so concurrent guesses cannot outrun the attempt counter
+                if (!counted || store.remove(realm.getId(), user.getId(), entry)) {
+                    break;
+                }
+                // Another request changed the OTP in the meantime; check again against the current one
+                entry = store.get(realm.getId(), user.getId());
+                continue;
+            }
+            if (!counted) {
+                logger.warnf("Invalid OTP code for user: %s", user.getEmail());
+                return verifyResult(OtpMetrics.VerifyResult.INVALID_CODE);
+            }
+
+            OtpEntry failed = entry.withFailedAttempt();
+            if (store.replace(realm.getId(), user.getId(), entry, failed)) {
+                logger.warnf("Invalid OTP code for user: %s (attempt %d of %d)", user.getEmail(),
+                    failed.getFailedAttempts(), policy.getMaxAttempts());
+                return verifyResult(failed.getFailedAttempts() >= policy.getMaxAttempts()
+                    ? OtpMetrics.VerifyResult.ATTEMPTS_EXCEEDED : OtpMetrics.VerifyResult.INVALID_CODE);
+            }
+            // Another request changed the OTP in the meantime (counted a failure or issued a new code)
+            entry = store.get(realm.getId(), user.getId());
         }
-        
-        // OTP is valid - mark email as verified and clear OTP
+
+        // OTP is valid and consumed - mark email as verified
         user.setEmailVerified(true);
-        clearOtp(user);
-        
+        clearLegacyOtp(user);
+
         logger.infof("OTP verified successfully for user: %s", user.getEmail());
-        return true;
+        return verifyResult(OtpMetrics.VerifyResult.VERIFIED);
     }
 
     /**
-     * Clear OTP from user attributes
-     * @param user User to clear OTP for
+     * Verify a token from a verification link. Links issued in either mode stay valid until they
+     * expire, so switching the realm back to codes does not break emails already sent.
+     * @param user User named in the token
+     * @param claims Parsed token
+     * @return VERIFIED, INVALID_CODE if the signature does not match this realm and the user's
+     *         current email, EXPIRED, or REPLAYED if the link was used before
      */
-    private void clearOtp(UserModel user) {
-        user.removeAttribute(ATTR_OTP_CODE);
-        user.removeAttribute(ATTR_OTP_EXPIRY);
+    public OtpMetrics.VerifyResult verifyLink(UserModel user, LinkTokenSigner.Claims claims) {
+        if (!linkTokenSigner.verify(realm.getId(), claims, user.getEmail())) {
+            logger.warnf("Invalid verification link for user: %s", user.getEmail());
+            return verifyResult(OtpMetrics.VerifyResult.INVALID_CODE);
+        }
+        if (System.currentTimeMillis() > claims.getExpiresAt()) {
+            logger.warnf("Verification link expired for user: %s", user.getEmail());
+            return verifyResult(OtpMetrics.VerifyResult.EXPIRED);
+        }
+        // Checked last so forged or expired tokens never reach the store
+        if (!store.markUsed(realm.getId(), claims.getTokenId(), claims.getExpiresAt())) {
+            logger.warnf("Verification link reused for user: %s", user.getEmail());
+            return verifyResult(OtpMetrics.VerifyResult.REPLAYED);
+        }
+
+        user.setEmailVerified(true);
+        logger.infof("Verification link accepted for user: %s", user.getEmail());
+        return verifyResult(OtpMetrics.VerifyResult.VERIFIED);
+    }
+
+    private OtpMetrics.VerifyResult verifyResult(OtpMetrics.VerifyResult result) {
+        metrics.verify(result);
+        return result;
     }
 
     /**
@@ -128,18 +360,142 @@ public class OtpService {
      * @return true if user has a non-expired OTP
      */
     public boolean hasPendingOtp(UserModel user) {
+        return getPendingOtp(user) != null;
+    }
+
+    /**
+     * Get the user's active OTP
+     * @param user User to check
+     * @return Non-expired OTP entry with attempts left, or null if none exists
+     */
+    public OtpEntry getPendingOtp(UserModel user) {
+        return pendingOrNull(loadOtp(user), System.currentTimeMillis());
+    }
+
+    /**
+     * Get the active OTPs of many users with one store read
+     * @param users Users to check
+     * @return Non-expired OTP entries with attempts left, keyed by user id; always empty in link mode
+     */
+    public Map<String, OtpEntry> getPendingOtps(Collection<UserModel> users) {
+        Map<String, OtpEntry> pending = new HashMap<>();
+        if (policy.isLinkMode()) {
+            return pending;
+        }
+        Map<String, OtpEntry> stored = loadStoredOtps(users);
+        long now = System.currentTimeMillis();
+        for (UserModel user : users) {
+            OtpEntry entry = stored.get(user.getId());
+            entry = pendingOrNull(entry != null ? entry : loadLegacyOtp(user), now);
+            if (entry != null) {
+                pending.put(user.getId(), entry);
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Read the stored OTPs of many users at once, for {@link #verify(UserModel, String, OtpEntry)}
+     * @param users Users to read OTPs for
+     * @return Unexpired OTPs keyed by user id; legacy codes in user attributes are not included
+     */
+    public Map<String, OtpEntry> loadStoredOtps(Collection<UserModel> users) {
+        List<String> userIds = new ArrayList<>(users.size());
+        for (UserModel user : users) {
+            userIds.add(user.getId());
+        }
+        return store.getAll(realm.getId(), userIds);
+    }
+
+    private OtpEntry pendingOrNull(OtpEntry entry, long now) {
+        if (entry == null || entry.isExpired(now) || entry.getFailedAttempts() >= policy.getMaxAttempts()) {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Find an active OTP that makes issuing a new one for this /send request unnecessary
+     * @param user User to check
+     * @param idempotencyKey Idempotency-Key of the request; may be null
+     * @return Active OTP issued with the same idempotency key or less than the policy's resend
+     *         interval ago, otherwise null; always null in link mode, which keeps no state
+     */
+    public OtpEntry findReusableOtp(UserModel user, String idempotencyKey) {
+        if (policy.isLinkMode()) {
+            return null;
+        }
+        return reusableOrNull(getPendingOtp(user), idempotencyKey);
+    }
+
+    /**
+     * Apply the rule of {@link #findReusableOtp(UserModel, String)} to an OTP already read
+     * @param entry Active OTP from {@link #getPendingOtps(Collection)}, or null
+     * @param idempotencyKey Idempotency-Key of the request; may be null
+     * @return The entry if it makes issuing a new one unnecessary, otherwise null
+     */
+    public OtpEntry reusableOrNull(OtpEntry entry, String idempotencyKey) {
+        if (entry == null) {
+            return null;
+        }
+        if (idempotencyKey != null && idempotencyKey.equals(entry.getIdempotencyKey())) {
+            return entry;
+        }
+        // Legacy codes carry no issue time and never suppress a resend
+        if (entry.getIssuedAt() > 0 && System.currentTimeMillis() - entry.getIssuedAt() < policy.getResendIntervalMs()) {
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * Load the user's OTP from the store, falling back to legacy user attributes
+     * @param user User to load OTP for
+     * @return OTP entry, or null if none exists
+     */
+    private OtpEntry loadOtp(UserModel user) {
+        OtpEntry entry = store.get(realm.getId(), user.getId());
+        if (entry != null) {
+            return entry;
+        }
+        return loadLegacyOtp(user);
+    }
+
+    private OtpEntry loadLegacyOtp(UserModel user) {
         String storedCode = user.getFirstAttribute(ATTR_OTP_CODE);
         String expiryStr = user.getFirstAttribute(ATTR_OTP_EXPIRY);
-        
         if (storedCode == null || expiryStr == null) {
-            return false;
+            return null;
         }
-        
-        try {
-            long expiryTime = Long.parseLong(expiryStr);
-            return System.currentTimeMillis() <= expiryTime;
-        } catch (NumberFormatException e) {
-            return false;
+        int storedValue = OtpGenerator.parseOtp(storedCode);
+        if (storedValue >= 0) {
+            try {
+                return hasher.newEntry(storedValue, 0L, Long.parseLong(expiryStr), null);
+            } catch (NumberFormatException e) {
+                // Handled below together with an invalid code
+            }
+        }
+        logger.errorf("Invalid legacy OTP format for user: %s", user.getEmail());
+        clearLegacyOtp(user);
+        return null;
+    }
+
+    /**
+     * Clear OTP from the store and any legacy user attributes
+     * @param user User to clear OTP for
+     */
+    public void clearOtp(UserModel user) {
+        store.remove(realm.getId(), user.getId());
+        clearLegacyOtp(user);
+    }
+
+    /**
+     * Remove legacy OTP attributes, only touching the user when they are present
+     */
+    private void clearLegacyOtp(UserModel user) {
+        if (user.getFirstAttribute(ATTR_OTP_CODE) != null || user.getFirstAttribute(ATTR_OTP_EXPIRY) != null) {
+            user.removeAttribute(ATTR_OTP_CODE);
+            user.removeAttribute(ATTR_OTP_EXPIRY);
         }
     }
 }
@@ -0,0 +1,223 @@
+package com.lusatek.keycloak.otp.service;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Multipart;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.internet.MimeUtility;
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.truststore.HostnameVerificationPolicy;
+import org.keycloak.truststore.JSSETruststoreConfigurator;
+import org.keycloak.vault.VaultStringSecret;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Authenticated SMTP connection that can deliver several OTP emails without reconnecting.
+ * Builds messages the same way as Keycloak's DefaultEmailSenderProvider and honours the
+ * realm SMTP settings (SSL/STARTTLS, auth, vault passwords, truststore, envelope sender).
+ */
+public class SmtpConnection implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(SmtpConnection.class);
+
+    private static final String SUPPORTED_SSL_PROTOCOLS = "TLSv1.2 TLSv1.3";
+    private static final String SMTP_TIMEOUT_MS = "10000";
+
+    /**
+     * Failure after the message content started going to the server, which may have accepted it
+     */
+    public static class PossiblyDeliveredException extends EmailException {
+        PossiblyDeliveredException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Message recording whether the transport started writing it, which it only does once the
+     * server accepted the sender, the recipients and the DATA command
+     */
+    private static final class TrackedMessage extends MimeMessage {
+        private boolean written;
+
+        TrackedMessage(Session session) {
+            super(session);
+        }
+
+        @Override
+        public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+            written = true;
+            super.writeTo(os, ignoreList);
+        }
+    }
+
+    private final Map<String, String> config;
+    private final Session mailSession;
+    private final Transport transport;
+
+    private SmtpConnection(Map<String, String> config, Session mailSession, Transport transport) {
+        this.config = config;
+        this.mailSession = mailSession;
+        this.transport = transport;
+    }
+
+    /**
+     * Open and authenticate a connection for the given realm SMTP configuration
+     * @param session Session used to resolve vault secrets and the truststore
+     * @param config Realm SMTP configuration
+     * @return Connected SMTP connection
+     * @throws EmailException if the connection cannot be established
+     */
+    public static SmtpConnection open(KeycloakSession session, Map<String, String> config) throws EmailException {
+        Properties props = new Properties();
+        if (config.containsKey("host")) {
+            props.setProperty("mail.smtp.host", config.get("host"));
+        }
+        if (config.containsKey("port") && config.get("port") != null) {
+            props.setProperty("mail.smtp.port", config.get("port"));
+        }
+
+        boolean auth = "true".equals(config.get("auth"));
+        boolean ssl = "true".equals(config.get("ssl"));
+        boolean starttls = "true".equals(config.get("starttls"));
+        if (auth) {
+            props.setProperty("mail.smtp.auth", "true");
+        }
+        if (ssl) {
+            props.setProperty("mail.smtp.ssl.enable", "true");
+        }
+        if (starttls) {
+            props.setProperty("mail.smtp.starttls.enable", "true");
+        }
+        if (ssl || starttls) {
+            props.put("mail.smtp.ssl.protocols", SUPPORTED_SSL_PROTOCOLS);
+            setupTruststore(session, props);
+        }
+        props.setProperty("mail.smtp.timeout", SMTP_TIMEOUT_MS);
+        props.setProperty("mail.smtp.connectiontimeout", SMTP_TIMEOUT_MS);
+
+        String envelopeFrom = config.get("envelopeFrom");
+        if (envelopeFrom != null && !envelopeFrom.trim().isEmpty()) {
+            props.setProperty("mail.smtp.from", envelopeFrom);
+        }
+
+        Session mailSession = Session.getInstance(props);
+        Transport transport = null;
+        try {
+            transport = mailSession.getTransport("smtp");
+            if (auth) {
+                try (VaultStringSecret password = session.vault().getStringSecret(config.get("password"))) {
+                    transport.connect(config.get("user"), password.get().orElse(config.get("password")));
+                }
+            } else {
+                transport.connect();
+            }
+            return new SmtpConnection(config, mailSession, transport);
+        } catch (MessagingException e) {
+            closeQuietly(transport);
+            throw new EmailException("Failed to connect to SMTP server", e);
+        }
+    }
+
+    /**
+     * Send one OTP email over this connection
+     * @param email Rendered email
+     * @throws PossiblyDeliveredException if the failure came after the message content was handed
+     *         to the server, so it may be delivered anyway
+     * @throws EmailException if the message was not handed over: it could not be built, or the
+     *         connection failed or the server refused it before DATA
+     */
+    public void send(OtpEmail email) throws EmailException {
+        TrackedMessage message = new TrackedMessage(mailSession);
+        try {
+            Multipart multipart = new MimeMultipart("alternative");
+            if (email.getTextBody() != null) {
+                MimeBodyPart textPart = new MimeBodyPart();
+                textPart.setText(email.getTextBody(), "UTF-8");
+                multipart.addBodyPart(textPart);
+            }
+            if (email.getHtmlBody() != null) {
+                MimeBodyPart htmlPart = new MimeBodyPart();
+                htmlPart.setContent(email.getHtmlBody(), "text/html; charset=UTF-8");
+                multipart.addBodyPart(htmlPart);
+            }
+
+            message.setFrom(toInternetAddress(config.get("from"), config.get("fromDisplayName")));
+            String replyTo = config.get("replyTo");
+            if (replyTo != null && !replyTo.trim().isEmpty()) {
+                message.setReplyTo(new InternetAddress[] { toInternetAddress(replyTo, config.get("replyToDisplayName")) });
+            }
+            message.setHeader("To", email.getRecipient());
+            message.setSubject(MimeUtility.encodeText(email.getSubject(), StandardCharsets.UTF_8.name(), null));
+            message.setContent(multipart);
+            message.saveChanges();
+            message.setSentDate(new Date());
+
+            transport.sendMessage(message, new InternetAddress[] { new InternetAddress(email.getRecipient()) });
+        } catch (MessagingException | UnsupportedEncodingException e) {
+            if (message.written) {
+                throw new PossiblyDeliveredException("Failed to send OTP email after handing it to the server", e);
+            }
+            throw new EmailException("Failed to send OTP email", e);
+        }
+    }
+
+    /**
+     * @return true if the underlying transport is still connected
+     */
+    public boolean isConnected() {
+        return transport.isConnected();
+    }
+
+    @Override
+    public void close() {
+        closeQuietly(transport);
+    }
+
+    private static InternetAddress toInternetAddress(String address, String displayName)
+            throws UnsupportedEncodingException, MessagingException, EmailException {
+        if (address == null || address.trim().isEmpty()) {
+            throw new EmailException("Please provide a valid address", null);
+        }
+        if (displayName == null || displayName.trim().isEmpty()) {
+            return new InternetAddress(address);
+        }
+        return new InternetAddress(address, displayName, "utf-8");
+    }
+
+    private static void setupTruststore(KeycloakSession session, Properties props) {
+        JSSETruststoreConfigurator configurator = new JSSETruststoreConfigurator(session);
+        SSLSocketFactory factory = configurator.getSSLSocketFactory();
+        if (factory != null) {
+            props.put("mail.smtp.ssl.socketFactory", factory);
+            if (configurator.getProvider().getPolicy() == HostnameVerificationPolicy.ANY) {
+                props.setProperty("mail.smtp.ssl.trust", "*");
+                props.put("mail.smtp.ssl.checkserveridentity", Boolean.FALSE.toString());
+            }
+        }
+    }
+
+    private static void closeQuietly(Transport transport) {
+        if (transport == null) {
+            return;
+        }
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            logger.warn("Failed to close SMTP transport", e);
+        }
+    }
+}
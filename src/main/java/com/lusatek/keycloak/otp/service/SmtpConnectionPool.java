@@ -0,0 +1,191 @@
+package com.lusatek.keycloak.otp.service;
+
+import org.jboss.logging.Logger;
+import org.keycloak.email.EmailException;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pools of authenticated SMTP connections, one pool per distinct realm SMTP configuration.
+ * Connections are reused most-recently-used first so a few stay warm, are checked with a NOOP when
+ * they sat idle for a while, and are closed by {@link #evictIdle()} once idle for too long.
+ * A configuration change simply leads to a new pool; the old one drains through idle eviction.
+ */
+public class SmtpConnectionPool {
+
+    private static final Logger logger = Logger.getLogger(SmtpConnectionPool.class);
+
+    /**
+     * Connection leased from the pool; must be handed back with {@link #release(Lease, boolean)}
+     */
+    public static class Lease {
+        private final Pool pool;
+        private final SmtpConnection connection;
+        private volatile long lastUsed;
+
+        Lease(Pool pool, SmtpConnection connection) {
+            this.pool = pool;
+            this.connection = connection;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        public SmtpConnection getConnection() {
+            return connection;
+        }
+    }
+
+    private static class Pool {
+        final Map<String, String> config;
+        final Deque<Lease> idle = new ConcurrentLinkedDeque<>();
+        final Semaphore permits;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Pool(Map<String, String> config, int maxConnections) {
+            this.config = config;
+            this.permits = new Semaphore(maxConnections);
+        }
+    }
+
+    private final Map<Map<String, String>, Pool> pools = new ConcurrentHashMap<>();
+    private final int maxPerConfig;
+    private final long idleTimeoutMs;
+    private final long validateAfterMs;
+    private final long borrowTimeoutMs;
+    private volatile boolean closed;
+
+    /**
+     * @param maxPerConfig Connections per SMTP configuration; 0 disables pooling
+     * @param idleTimeoutMs Idle time after which a connection is closed
+     * @param validateAfterMs Idle time after which a connection is checked with a NOOP before reuse
+     * @param borrowTimeoutMs How long to wait for a free connection before giving up
+     */
+    public SmtpConnectionPool(int maxPerConfig, long idleTimeoutMs, long validateAfterMs, long borrowTimeoutMs) {
+        this.maxPerConfig = maxPerConfig;
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.validateAfterMs = validateAfterMs;
+        this.borrowTimeoutMs = borrowTimeoutMs;
+    }
+
+    /**
+     * @return false if pooling is disabled and emails go through Keycloak's sender
+     */
+    public boolean isEnabled() {
+        return maxPerConfig > 0 && !closed;
+    }
+
+    /**
+     * Lease a connection for the given SMTP configuration, reusing an idle one when possible
+     * @param session Session used to resolve vault secrets and the truststore when connecting
+     * @param config Realm SMTP configuration (immutable snapshot)
+     * @return Leased connection
+     * @throws EmailException if no connection becomes available in time or connecting fails
+     */
+    public Lease borrow(KeycloakSession session, Map<String, String> config) throws EmailException {
+        if (!isEnabled()) {
+            throw new EmailException("SMTP connection pool is disabled", null);
+        }
+        Pool pool = pools.computeIfAbsent(config, key -> new Pool(key, maxPerConfig));
+        try {
+            if (!pool.permits.tryAcquire(borrowTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new EmailException("No SMTP connection available within " + borrowTimeoutMs + " ms", null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EmailException("Interrupted while waiting for an SMTP connection", e);
+        }
+        long now = System.currentTimeMillis();
+        pool.lastUsed = now;
+
+        try {
+            Lease lease;
+            while ((lease = pool.idle.pollFirst()) != null) {
+                // isConnected() sends a NOOP, only worth it when the server may have dropped us
+                if (now - lease.lastUsed < validateAfterMs || lease.connection.isConnected()) {
+                    return lease;
+                }
+                lease.connection.close();
+            }
+            return new Lease(pool, SmtpConnection.open(session, config));
+        } catch (EmailException | RuntimeException e) {
+            pool.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Hand a connection back
+     * @param lease Lease from {@link #borrow(KeycloakSession, Map)}
+     * @param broken true if sending failed, so the connection is closed instead of reused
+     */
+    public void release(Lease lease, boolean broken) {
+        try {
+            // A pool dropped by eviction while this lease was out is not reused
+            if (broken || closed || pools.get(lease.pool.config) != lease.pool) {
+                lease.connection.close();
+            } else {
+                lease.lastUsed = System.currentTimeMillis();
+                lease.pool.idle.offerFirst(lease);
+            }
+        } finally {
+            lease.pool.permits.release();
+        }
+    }
+
+    /**
+     * Close connections idle for longer than the idle timeout and drop pools no longer in use
+     * @return Number of connections closed
+     */
+    public int evictIdle() {
+        long cutoff = System.currentTimeMillis() - idleTimeoutMs;
+        int closedCount = 0;
+        for (Map.Entry<Map<String, String>, Pool> entry : pools.entrySet()) {
+            Pool pool = entry.getValue();
+            // Least recently used connections sit at the tail
+            Lease lease;
+            while ((lease = pool.idle.peekLast()) != null && lease.lastUsed < cutoff) {
+                if (pool.idle.removeLastOccurrence(lease)) {
+                    lease.connection.close();
+                    closedCount++;
+                }
+            }
+            if (pool.idle.isEmpty() && pool.lastUsed < cutoff && pool.permits.availablePermits() == maxPerConfig) {
+                pools.remove(entry.getKey(), pool);
+            }
+        }
+        if (closedCount > 0) {
+            logger.debugf("Closed %d idle SMTP connections", closedCount);
+        }
+        return closedCount;
+    }
+
+    /**
+     * @return Number of idle pooled connections
+     */
+    public int idleCount() {
+        int count = 0;
+        for (Pool pool : pools.values()) {
+            count += pool.idle.size();
+        }
+        return count;
+    }
+
+    /**
+     * Close all idle connections; leased ones are closed when released
+     */
+    public void shutdown() {
+        closed = true;
+        for (Pool pool : pools.values()) {
+            Lease lease;
+            while ((lease = pool.idle.pollFirst()) != null) {
+                lease.connection.close();
+            }
+        }
+        pools.clear();
+    }
+}
@@ -0,0 +1,174 @@
+package com.lusatek.keycloak.otp.service;
+
+import jakarta.persistence.EntityManager;
+import org.jboss.logging.Logger;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.jpa.entities.UserEntity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Resolves users by email or id, one at a time or in bulk.
+ * Bulk lookups prefetch local users with a few IN queries so the per-user
+ * resolution afterwards is served from the persistence context; identifiers
+ * that are not found locally are resolved individually so federated users still work.
+ */
+public class UserLookupService {
+
+    private static final Logger logger = Logger.getLogger(UserLookupService.class);
+
+    // Keep IN lists well below database bind parameter limits
+    private static final int IN_CLAUSE_CHUNK_SIZE = 500;
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+
+    public UserLookupService(KeycloakSession session, RealmModel realm) {
+        this.session = session;
+        this.realm = realm;
+    }
+
+    /**
+     * Find user by userId, or by email when no userId is given
+     * @return User, or null if not found
+     */
+    public UserModel findUser(String email, String userId) {
+        if (userId != null && !userId.isEmpty()) {
+            return session.users().getUserById(realm, userId);
+        } else if (email != null && !email.isEmpty()) {
+            return session.users().getUserByEmail(realm, email);
+        }
+        return null;
+    }
+
+    /**
+     * Resolve many users at once
+     * @param emails Emails to look up (matched case-insensitively)
+     * @param userIds User ids to look up
+     * @return Resolved users keyed by lowercased email and by id; unknown identifiers are absent
+     */
+    public BulkResult findUsers(Set<String> emails, Set<String> userIds) {
+        BulkResult result = new BulkResult();
+        Map<String, String> idByEmail = new HashMap<>();
+        Set<String> prefetchedIds = new LinkedHashSet<>();
+
+        Set<String> lowerEmails = new LinkedHashSet<>();
+        for (String email : emails) {
+            lowerEmails.add(email.toLowerCase(Locale.ROOT));
+        }
+
+        EntityManager em = entityManager();
+        if (em != null) {
+            for (List<String> chunk : chunks(userIds)) {
+                for (UserEntity entity : em.createQuery(
+                        "select u from UserEntity u where u.realmId = :realmId and u.id in :ids", UserEntity.class)
+                        .setParameter("realmId", realm.getId())
+                        .setParameter("ids", chunk)
+                        .getResultList()) {
+                    prefetchedIds.add(entity.getId());
+                }
+            }
+            for (List<String> chunk : chunks(lowerEmails)) {
+                for (UserEntity entity : em.createQuery(
+                        "select u from UserEntity u where u.realmId = :realmId and u.email in :emails", UserEntity.class)
+                        .setParameter("realmId", realm.getId())
+                        .setParameter("emails", chunk)
+                        .getResultList()) {
+                    prefetchedIds.add(entity.getId());
+                    if (entity.getEmail() != null) {
+                        idByEmail.put(entity.getEmail().toLowerCase(Locale.ROOT), entity.getId());
+                    }
+                }
+            }
+        }
+
+        // Resolve through the user provider so caching, federation and model wrapping still apply
+        for (String id : prefetchedIds) {
+            UserModel user = session.users().getUserById(realm, id);
+            if (user != null) {
+                result.byId.put(user.getId(), user);
+            }
+        }
+        for (Map.Entry<String, String> entry : idByEmail.entrySet()) {
+            UserModel user = result.byId.get(entry.getValue());
+            if (user != null) {
+                result.byEmail.put(entry.getKey(), user);
+            }
+        }
+
+        // Misses may live in a user federation provider
+        int misses = 0;
+        for (String userId : userIds) {
+            if (!result.byId.containsKey(userId)) {
+                UserModel user = session.users().getUserById(realm, userId);
+                if (user != null) {
+                    result.byId.put(userId, user);
+                }
+                misses++;
+            }
+        }
+        for (String email : lowerEmails) {
+            if (!result.byEmail.containsKey(email)) {
+                UserModel user = session.users().getUserByEmail(realm, email);
+                if (user != null) {
+                    result.byEmail.put(email, user);
+                }
+                misses++;
+            }
+        }
+
+        logger.debugf("Bulk user lookup resolved %d ids and %d emails, %d looked up individually",
+            userIds.size(), lowerEmails.size(), misses);
+        return result;
+    }
+
+    private EntityManager entityManager() {
+        JpaConnectionProvider jpa = session.getProvider(JpaConnectionProvider.class);
+        return jpa != null ? jpa.getEntityManager() : null;
+    }
+
+    private static List<List<String>> chunks(Set<String> values) {
+        List<List<String>> chunks = new ArrayList<>();
+        List<String> current = new ArrayList<>(Math.min(values.size(), IN_CLAUSE_CHUNK_SIZE));
+        for (String value : values) {
+            current.add(value);
+            if (current.size() == IN_CLAUSE_CHUNK_SIZE) {
+                chunks.add(current);
+                current = new ArrayList<>(IN_CLAUSE_CHUNK_SIZE);
+            }
+        }
+        if (!current.isEmpty()) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
+
+    /**
+     * Users resolved by {@link #findUsers(Set, Set)}
+     */
+    public static class BulkResult {
+        private final Map<String, UserModel> byEmail = new HashMap<>();
+        private final Map<String, UserModel> byId = new HashMap<>();
+
+        /**
+         * Same precedence as {@link UserLookupService#findUser(String, String)}: userId first, then email
+         */
+        public UserModel get(String email, String userId) {
+            if (userId != null && !userId.isEmpty()) {
+                return byId.get(userId);
+            } else if (email != null && !email.isEmpty()) {
+                return byEmail.get(email.toLowerCase(Locale.ROOT));
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.lusatek.keycloak.otp.service;
+
+import org.jboss.logging.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Short-lived record of bearer tokens that passed full verification.
+ * Entries are keyed by realm and the SHA-256 of the token, so raw tokens are never kept, and
+ * expire at the token's own expiry or after the TTL, whichever comes first. Within the TTL a
+ * revoked token (logout, disabled client) is still accepted, so keep it short.
+ */
+public class VerifiedTokenCache {
+
+    private static final Logger logger = Logger.getLogger(VerifiedTokenCache.class);
+
+    private static final class Entry {
+        final long expiresAt;
+        final String clientId;
+
+        Entry(long expiresAt, String clientId) {
+            this.expiresAt = expiresAt;
+            this.clientId = clientId;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final long ttlMs;
+    private final int maxEntries;
+
+    /**
+     * @param ttlMs How long a verified token is trusted without re-verification; 0 disables caching
+     * @param maxEntries Upper bound on cached tokens
+     */
+    public VerifiedTokenCache(long ttlMs, int maxEntries) {
+        this.ttlMs = ttlMs;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return Cache key for a token, or null if caching is disabled
+     */
+    public String key(String realmId, String token) {
+        if (ttlMs <= 0 || token == null) {
+            return null;
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return realmId + ':' + Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * @param key Key from {@link #key(String, String)}
+     * @return Client the token was issued to if it was verified recently and has not expired since, otherwise null
+     */
+    public String getClientId(String key) {
+        if (key == null) {
+            return null;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= entry.expiresAt) {
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry.clientId;
+    }
+
+    /**
+     * Remember a token that passed full verification
+     * @param key Key from {@link #key(String, String)}
+     * @param tokenExpiresAt Token expiry in epoch milliseconds, or 0 if the token does not expire
+     * @param clientId Client the token was issued to
+     */
+    public void put(String key, long tokenExpiresAt, String clientId) {
+        if (key == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = now + ttlMs;
+        if (tokenExpiresAt > 0) {
+            expiresAt = Math.min(expiresAt, tokenExpiresAt);
+        }
+        if (expiresAt <= now) {
+            return;
+        }
+        if (entries.size() >= maxEntries && !entries.containsKey(key)) {
+            entries.values().removeIf(entry -> entry.expiresAt <= now);
+            if (entries.size() >= maxEntries) {
+                logger.debugf("Verified token cache reached %d entries, clearing", maxEntries);
+                entries.clear();
+            }
+        }
+        entries.put(key, new Entry(expiresAt, clientId));
+    }
+
+    /**
+     * @return Number of cached tokens
+     */
+    public int size() {
+        return entries.size();
+    }
+}
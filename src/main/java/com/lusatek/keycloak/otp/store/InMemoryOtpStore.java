@@ -0,0 +1,111 @@
+package com.lusatek.keycloak.otp.store;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node-local OTP store.
+ * Entries live in a hash map for lookups and in an expiry-ordered index so that
+ * a single periodic sweep can drop everything that has expired without per-entry timers.
+ * Only suitable for single-node deployments or sticky routing of /send and /verify.
+ */
+public class InMemoryOtpStore implements OtpStore {
+
+    private static class ExpiryMark {
+        final String key;
+        final OtpEntry entry;
+        final long sequence;
+
+        ExpiryMark(String key, OtpEntry entry, long sequence) {
+            this.key = key;
+            this.entry = entry;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final Comparator<ExpiryMark> EXPIRY_ORDER = Comparator
+        .comparingLong((ExpiryMark mark) -> mark.entry.getExpiresAt())
+        .thenComparingLong(mark -> mark.sequence);
+
+    private final Map<String, OtpEntry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListSet<ExpiryMark> expiryIndex = new ConcurrentSkipListSet<>(EXPIRY_ORDER);
+    private final AtomicLong sequence = new AtomicLong();
+    // Consumed link token -> its expiry; only holds tokens verified within their lifetime
+    private final Map<String, Long> usedTokens = new ConcurrentHashMap<>();
+
+    @Override
+    public void put(String realmId, String userId, OtpEntry entry) {
+        String key = key(realmId, userId);
+        entries.put(key, entry);
+        expiryIndex.add(new ExpiryMark(key, entry, sequence.incrementAndGet()));
+    }
+
+    @Override
+    public OtpEntry get(String realmId, String userId) {
+        OtpEntry entry = entries.get(key(realmId, userId));
+        if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+        return entry;
+    }
+
+    @Override
+    public boolean replace(String realmId, String userId, OtpEntry expected, OtpEntry updated) {
+        String key = key(realmId, userId);
+        // get() hands out the stored instance, so identity is the comparison needed here
+        if (!entries.replace(key, expected, updated)) {
+            return false;
+        }
+        expiryIndex.add(new ExpiryMark(key, updated, sequence.incrementAndGet()));
+        return true;
+    }
+
+    @Override
+    public void remove(String realmId, String userId) {
+        // The expiry mark stays behind and is discarded by the next sweep
+        entries.remove(key(realmId, userId));
+    }
+
+    @Override
+    public boolean remove(String realmId, String userId, OtpEntry expected) {
+        return entries.remove(key(realmId, userId), expected);
+    }
+
+    @Override
+    public boolean markUsed(String realmId, String tokenId, long expiresAt) {
+        return usedTokens.putIfAbsent(key(realmId, tokenId), expiresAt) == null;
+    }
+
+    /**
+     * Drop all entries and consumed tokens whose expiry time has passed
+     * @param now Current time in epoch milliseconds
+     * @return Number of entries removed
+     */
+    public int sweep(long now) {
+        int removed = 0;
+        ExpiryMark mark;
+        while ((mark = expiryIndex.pollFirst()) != null) {
+            if (mark.entry.getExpiresAt() >= now) {
+                expiryIndex.add(mark);
+                break;
+            }
+            // Only remove if the entry was not replaced in the meantime
+            if (entries.remove(mark.key, mark.entry)) {
+                removed++;
+            }
+        }
+        usedTokens.values().removeIf(expiresAt -> expiresAt < now);
+        return removed;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private static String key(String realmId, String userId) {
+        return realmId + ':' + userId;
+    }
+}
@@ -0,0 +1,56 @@
+package com.lusatek.keycloak.otp.store;
+
+import org.jboss.logging.Logger;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.TimerProvider;
+
+/**
+ * Factory for the node-local {@link InMemoryOtpStore}.
+ * All sessions share one store instance, swept periodically by Keycloak's timer.
+ */
+public class InMemoryOtpStoreProviderFactory implements OtpStoreProviderFactory {
+
+    private static final Logger logger = Logger.getLogger(InMemoryOtpStoreProviderFactory.class);
+
+    public static final String PROVIDER_ID = "memory";
+
+    private static final String SWEEP_TASK_NAME = "email-otp-memory-store-sweep";
+
+    private final InMemoryOtpStore store = new InMemoryOtpStore();
+    private long sweepIntervalMs;
+
+    @Override
+    public OtpStore create(KeycloakSession session) {
+        return store;
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        sweepIntervalMs = config.getLong("sweep-interval-seconds", 30L) * 1000;
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        KeycloakModelUtils.runJobInTransaction(factory, session -> {
+            TimerProvider timer = session.getProvider(TimerProvider.class);
+            timer.schedule(() -> {
+                int removed = store.sweep(System.currentTimeMillis());
+                if (removed > 0) {
+                    logger.debugf("Removed %d expired OTPs from memory store", removed);
+                }
+            }, sweepIntervalMs, SWEEP_TASK_NAME);
+        });
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
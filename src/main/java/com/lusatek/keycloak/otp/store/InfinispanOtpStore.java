@@ -0,0 +1,154 @@
+package com.lusatek.keycloak.otp.store;
+
+import org.infinispan.Cache;
+import org.infinispan.context.Flag;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cluster-wide OTP store backed by Keycloak's replicated Infinispan work cache. Each OTP is a
+ * single string value (salt and digest as hex, never the plain code) that expires through the
+ * cache lifespan. Being a plain string, the value can be compared and replaced atomically, which
+ * keeps the failed-attempt counter in the same entry as the code.
+ *
+ * Consumed verification links are recorded under their token id until the token expires.
+ */
+public class InfinispanOtpStore implements OtpStore {
+
+    private static final String KEY_PREFIX = "email-otp-code:";
+    private static final String USED_TOKEN_KEY_PREFIX = "email-otp-used:";
+    private static final char SEPARATOR = '|';
+
+    private final KeycloakSession session;
+
+    public InfinispanOtpStore(KeycloakSession session) {
+        this.session = session;
+    }
+
+    @Override
+    public void put(String realmId, String userId, OtpEntry entry) {
+        writeCache().put(key(realmId, userId), encode(entry), lifespanMs(entry), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public OtpEntry get(String realmId, String userId) {
+        String value = cache().get(key(realmId, userId));
+        OtpEntry entry = value != null ? decode(value) : null;
+        if (entry == null || entry.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+        return entry;
+    }
+
+    @Override
+    public Map<String, OtpEntry> getAll(String realmId, Collection<String> userIds) {
+        Set<String> keys = new LinkedHashSet<>();
+        for (String userId : userIds) {
+            keys.add(key(realmId, userId));
+        }
+        // One call instead of one per user; with a distributed work cache, one remote get per owner
+        Map<String, String> values = cache().getAdvancedCache().getAll(keys);
+        long now = System.currentTimeMillis();
+        Map<String, OtpEntry> entries = new HashMap<>();
+        for (String userId : userIds) {
+            String value = values.get(key(realmId, userId));
+            OtpEntry entry = value != null ? decode(value) : null;
+            if (entry != null && !entry.isExpired(now)) {
+                entries.put(userId, entry);
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public boolean replace(String realmId, String userId, OtpEntry expected, OtpEntry updated) {
+        // Encoding is canonical, so equal entries have equal values
+        return cache().replace(key(realmId, userId), encode(expected), encode(updated),
+            lifespanMs(updated), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void remove(String realmId, String userId) {
+        writeCache().remove(key(realmId, userId));
+    }
+
+    @Override
+    public boolean remove(String realmId, String userId, OtpEntry expected) {
+        return cache().remove(key(realmId, userId), encode(expected));
+    }
+
+    @Override
+    public boolean markUsed(String realmId, String tokenId, long expiresAt) {
+        // Atomic on the key's primary owner, so a token is consumed once cluster-wide
+        return cache().putIfAbsent(USED_TOKEN_KEY_PREFIX + realmId + ':' + tokenId, "",
+            Math.max(1, expiresAt - System.currentTimeMillis()), TimeUnit.MILLISECONDS) == null;
+    }
+
+    static String encode(OtpEntry entry) {
+        StringBuilder value = new StringBuilder(96)
+            .append(toHex(entry.getSalt()))
+            .append(toHex(entry.getHashHigh()))
+            .append(toHex(entry.getHashLow()))
+            .append(SEPARATOR).append(entry.getIssuedAt())
+            .append(SEPARATOR).append(entry.getExpiresAt())
+            .append(SEPARATOR).append(entry.getFailedAttempts());
+        // Last, so it may contain the separator
+        if (entry.getIdempotencyKey() != null) {
+            value.append(SEPARATOR).append(entry.getIdempotencyKey());
+        }
+        return value.toString();
+    }
+
+    static OtpEntry decode(String value) {
+        try {
+            int issuedStart = value.indexOf(SEPARATOR) + 1;
+            int expiryStart = value.indexOf(SEPARATOR, issuedStart) + 1;
+            int attemptsStart = value.indexOf(SEPARATOR, expiryStart) + 1;
+            int keyStart = value.indexOf(SEPARATOR, attemptsStart) + 1;
+            if (issuedStart != 49 || expiryStart == 0 || attemptsStart == 0) {
+                return null;
+            }
+            return new OtpEntry(Long.parseUnsignedLong(value.substring(0, 16), 16),
+                Long.parseUnsignedLong(value.substring(16, 32), 16),
+                Long.parseUnsignedLong(value.substring(32, 48), 16),
+                Long.parseLong(value.substring(issuedStart, expiryStart - 1)),
+                Long.parseLong(value.substring(expiryStart, attemptsStart - 1)),
+                keyStart > 0 ? value.substring(keyStart) : null,
+                Integer.parseInt(value.substring(attemptsStart, keyStart > 0 ? keyStart - 1 : value.length())));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private Cache<String, String> cache() {
+        return session.getProvider(InfinispanConnectionProvider.class)
+            .getCache(InfinispanConnectionProvider.WORK_CACHE_NAME);
+    }
+
+    /**
+     * Cache for writes whose previous value is not needed, sparing the owner sending it back
+     */
+    private Cache<String, String> writeCache() {
+        return cache().getAdvancedCache().withFlags(Flag.IGNORE_RETURN_VALUES);
+    }
+
+    private static long lifespanMs(OtpEntry entry) {
+        return Math.max(1, entry.getExpiresAt() - System.currentTimeMillis());
+    }
+
+    private static String toHex(long value) {
+        String hex = Long.toHexString(value);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    private static String key(String realmId, String userId) {
+        return KEY_PREFIX + realmId + ':' + userId;
+    }
+}
@@ -0,0 +1,41 @@
+package com.lusatek.keycloak.otp.store;
+
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+
+/**
+ * Factory for {@link InfinispanOtpStore}, the default OTP store
+ */
+public class InfinispanOtpStoreProviderFactory implements OtpStoreProviderFactory {
+
+    public static final String PROVIDER_ID = "infinispan";
+
+    @Override
+    public OtpStore create(KeycloakSession session) {
+        return new InfinispanOtpStore(session);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+
+    @Override
+    public int order() {
+        // Preferred over the node-local store when no provider is configured
+        return 10;
+    }
+}
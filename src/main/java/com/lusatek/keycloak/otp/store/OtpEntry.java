@@ -0,0 +1,86 @@
+package com.lusatek.keycloak.otp.store;
+
+import com.lusatek.keycloak.otp.util.OtpHasher;
+
+/**
+ * Immutable OTP state held by an {@link OtpStore}, kept as primitives.
+ * The code itself is not stored, only its salt and keyed digest (see {@link OtpHasher}).
+ */
+public class OtpEntry {
+
+    private final long salt;
+    private final long hashHigh;
+    private final long hashLow;
+    private final long issuedAt;
+    private final long expiresAt;
+    private final String idempotencyKey;
+    private final int failedAttempts;
+
+    public OtpEntry(long salt, long hashHigh, long hashLow, long issuedAt, long expiresAt, String idempotencyKey,
+                    int failedAttempts) {
+        this.salt = salt;
+        this.hashHigh = hashHigh;
+        this.hashLow = hashLow;
+        this.issuedAt = issuedAt;
+        this.expiresAt = expiresAt;
+        this.idempotencyKey = idempotencyKey;
+        this.failedAttempts = failedAttempts;
+    }
+
+    public long getSalt() {
+        return salt;
+    }
+
+    /**
+     * @return First 64 bits of the code digest
+     */
+    public long getHashHigh() {
+        return hashHigh;
+    }
+
+    /**
+     * @return Second 64 bits of the code digest
+     */
+    public long getHashLow() {
+        return hashLow;
+    }
+
+    /**
+     * @return Issue time in epoch milliseconds, or 0 if unknown
+     */
+    public long getIssuedAt() {
+        return issuedAt;
+    }
+
+    /**
+     * @return Expiry time in epoch milliseconds
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * @return Idempotency-Key of the /send request that issued this OTP, or null
+     */
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    /**
+     * @return Number of wrong codes submitted for this OTP so far
+     */
+    public int getFailedAttempts() {
+        return failedAttempts;
+    }
+
+    /**
+     * @return Copy of this entry with one more failed attempt
+     */
+    public OtpEntry withFailedAttempt() {
+        return new OtpEntry(salt, hashHigh, hashLow, issuedAt, expiresAt, idempotencyKey, failedAttempts + 1);
+    }
+
+    public boolean isExpired(long now) {
+        return now > expiresAt;
+    }
+}
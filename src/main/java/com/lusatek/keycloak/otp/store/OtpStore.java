@@ -0,0 +1,85 @@
+package com.lusatek.keycloak.otp.store;
+
+import org.keycloak.provider.Provider;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Storage for issued OTPs, keyed by realm and user, and for the ids of consumed verification links.
+ * Implementations must expire entries on their own once {@link OtpEntry#getExpiresAt()} has passed.
+ */
+public interface OtpStore extends Provider {
+
+    /**
+     * Store an OTP, replacing any previous one for the same user
+     * @param realmId Realm id
+     * @param userId User id
+     * @param entry OTP to store
+     */
+    void put(String realmId, String userId, OtpEntry entry);
+
+    /**
+     * @param realmId Realm id
+     * @param userId User id
+     * @return Stored OTP, or null if none exists or it has expired
+     */
+    OtpEntry get(String realmId, String userId);
+
+    /**
+     * Read the OTPs of many users at once
+     * @param realmId Realm id
+     * @param userIds User ids
+     * @return Stored, unexpired OTPs keyed by user id; users without one are absent
+     */
+    default Map<String, OtpEntry> getAll(String realmId, Collection<String> userIds) {
+        Map<String, OtpEntry> entries = new HashMap<>();
+        for (String userId : userIds) {
+            OtpEntry entry = get(realmId, userId);
+            if (entry != null) {
+                entries.put(userId, entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Atomically replace the OTP for a user if it is still the one the caller read
+     * @param realmId Realm id
+     * @param userId User id
+     * @param expected Entry returned by {@link #get(String, String)}
+     * @param updated Entry to store instead
+     * @return true if replaced, false if the OTP was changed or removed in the meantime
+     */
+    boolean replace(String realmId, String userId, OtpEntry expected, OtpEntry updated);
+
+    /**
+     * Remove the OTP for a user, if any
+     * @param realmId Realm id
+     * @param userId User id
+     */
+    void remove(String realmId, String userId);
+
+    /**
+     * Atomically remove the OTP for a user if it is still the one the caller read
+     * @param realmId Realm id
+     * @param userId User id
+     * @param expected Entry returned by {@link #get(String, String)}
+     * @return true if removed, false if the OTP was changed or removed in the meantime
+     */
+    boolean remove(String realmId, String userId, OtpEntry expected);
+
+    /**
+     * Record that a single-use token was consumed
+     * @param realmId Realm id
+     * @param tokenId Unique id of the token
+     * @param expiresAt Expiry of the token; the record may be dropped after it
+     * @return true if this call consumed the token, false if it had been consumed before
+     */
+    boolean markUsed(String realmId, String tokenId, long expiresAt);
+
+    @Override
+    default void close() {
+    }
+}
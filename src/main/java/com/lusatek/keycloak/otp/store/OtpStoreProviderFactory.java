@@ -0,0 +1,9 @@
+package com.lusatek.keycloak.otp.store;
+
+import org.keycloak.provider.ProviderFactory;
+
+/**
+ * Factory for {@link OtpStore} implementations
+ */
+public interface OtpStoreProviderFactory extends ProviderFactory<OtpStore> {
+}
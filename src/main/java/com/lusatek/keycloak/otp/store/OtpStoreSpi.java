@@ -0,0 +1,34 @@
+package com.lusatek.keycloak.otp.store;
+
+import org.keycloak.provider.Provider;
+import org.keycloak.provider.ProviderFactory;
+import org.keycloak.provider.Spi;
+
+/**
+ * SPI for pluggable OTP storage.
+ * Select an implementation with --spi-email-otp-store-provider=&lt;id&gt;
+ */
+public class OtpStoreSpi implements Spi {
+
+    public static final String SPI_NAME = "email-otp-store";
+
+    @Override
+    public boolean isInternal() {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return SPI_NAME;
+    }
+
+    @Override
+    public Class<? extends Provider> getProviderClass() {
+        return OtpStore.class;
+    }
+
+    @Override
+    public Class<? extends ProviderFactory> getProviderFactoryClass() {
+        return OtpStoreProviderFactory.class;
+    }
+}
@@ -0,0 +1,189 @@
+package com.lusatek.keycloak.otp.util;
+
+import org.infinispan.Cache;
+import org.jboss.logging.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cluster-wide rate limiter for OTP operations backed by Keycloak's replicated Infinispan work cache.
+ *
+ * Every node counts attempts per fixed window key ({kind}:{identifier}:{window}) and combines the
+ * current and previous window into a sliding window estimate, like {@link SlidingWindowLimiter}.
+ * The decision path never writes to the cluster:
+ * - global counts are read through a local near-cache refreshed at most every flush interval
+ * - local attempts are accumulated as pending deltas and replicated in batches by {@link #cleanup()}
+ *   with compare-and-replace, so concurrent flushes from several nodes never lose increments
+ *
+ * Nodes may therefore over-admit by at most the attempts they accept during one flush interval.
+ * Once a node tracks maxKeys window keys, attempts for new identifiers are admitted untracked
+ * until finished windows are dropped.
+ * Counters live as long as two windows in the replicated cache and survive single-node restarts.
+ */
+public class ClusterRateLimiter implements RateLimiter {
+
+    private static final Logger logger = Logger.getLogger(ClusterRateLimiter.class);
+
+    private static final String KEY_PREFIX = "email-otp-rl:";
+    private static final char KIND_SEND = 's';
+    private static final char KIND_VERIFY = 'v';
+
+    private static class NearEntry {
+        final int count;
+        final long loadedAt;
+
+        NearEntry(int count, long loadedAt) {
+            this.count = count;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private final Cache<String, Integer> cache;
+    private final int maxSendAttempts;
+    private final int maxVerifyAttempts;
+    private final long windowMs;
+    private final long nearCacheTtlMs;
+    private final int maxKeys;
+
+    private final Map<String, AtomicInteger> pending = new ConcurrentHashMap<>();
+    private final Map<String, NearEntry> nearCache = new ConcurrentHashMap<>();
+
+    /**
+     * @param cache Replicated cache holding the cluster-wide counters
+     * @param maxSendAttempts Max OTP send attempts per window
+     * @param maxVerifyAttempts Max verify attempts per window
+     * @param windowMs Sliding window length in milliseconds
+     * @param nearCacheTtlMs How long a global count read from the cache is reused locally
+     * @param maxKeys Upper bound on window keys tracked by this node
+     */
+    public ClusterRateLimiter(Cache<String, Integer> cache, int maxSendAttempts, int maxVerifyAttempts,
+                              long windowMs, long nearCacheTtlMs, int maxKeys) {
+        this.cache = cache;
+        this.maxSendAttempts = maxSendAttempts;
+        this.maxVerifyAttempts = maxVerifyAttempts;
+        this.windowMs = windowMs;
+        this.nearCacheTtlMs = nearCacheTtlMs;
+        this.maxKeys = maxKeys;
+    }
+
+    @Override
+    public boolean allowSend(String identifier) {
+        return tryAcquire(KIND_SEND, identifier, maxSendAttempts);
+    }
+
+    @Override
+    public boolean allowVerify(String identifier) {
+        return tryAcquire(KIND_VERIFY, identifier, maxVerifyAttempts);
+    }
+
+    /**
+     * Replicate pending deltas to the cluster and drop state of finished windows
+     */
+    @Override
+    public int cleanup() {
+        long now = System.currentTimeMillis();
+        long oldestLiveWindow = now / windowMs - 1;
+
+        for (Map.Entry<String, AtomicInteger> entry : pending.entrySet()) {
+            AtomicInteger counter = entry.getValue();
+            int delta = counter.get();
+            if (delta > 0) {
+                try {
+                    int global = applyDelta(entry.getKey(), delta);
+                    nearCache.put(entry.getKey(), new NearEntry(global, now));
+                    // Subtract only after the near-cache reflects the delta, so counts never dip in between
+                    counter.addAndGet(-delta);
+                } catch (RuntimeException e) {
+                    logger.warnf(e, "Failed to replicate rate limit counter %s, will retry", entry.getKey());
+                }
+            }
+        }
+
+        // Finished windows no longer receive increments; drop them once fully replicated
+        int before = nearCache.size();
+        pending.entrySet().removeIf(entry -> windowOf(entry.getKey()) < oldestLiveWindow && entry.getValue().get() == 0);
+        nearCache.keySet().removeIf(key -> windowOf(key) < oldestLiveWindow);
+        return before - nearCache.size();
+    }
+
+    @Override
+    public int size() {
+        return nearCache.size();
+    }
+
+    private boolean tryAcquire(char kind, String identifier, int maxAttempts) {
+        long now = System.currentTimeMillis();
+        long window = now / windowMs;
+        long elapsed = now % windowMs;
+        String currentKey = key(kind, identifier, window);
+        String previousKey = key(kind, identifier, window - 1);
+
+        AtomicInteger counter = pending.get(currentKey);
+        if (counter == null) {
+            if (pending.size() >= maxKeys) {
+                // Admit untracked rather than lock out every new identifier until the next cleanup
+                return true;
+            }
+            counter = pending.computeIfAbsent(currentKey, k -> new AtomicInteger());
+        }
+
+        long previousCount = globalCount(previousKey, now) + pendingCount(previousKey);
+        int globalCurrent = globalCount(currentKey, now);
+        while (true) {
+            int local = counter.get();
+            long currentCount = globalCurrent + local;
+            // Same integer-scaled estimate as SlidingWindowLimiter
+            long weighted = currentCount * windowMs + previousCount * (windowMs - elapsed);
+            if (weighted + windowMs > (long) maxAttempts * windowMs) {
+                return false;
+            }
+            if (counter.compareAndSet(local, local + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private int globalCount(String key, long now) {
+        NearEntry near = nearCache.get(key);
+        if (near != null && now - near.loadedAt < nearCacheTtlMs) {
+            return near.count;
+        }
+        // Replicated cache: this read is served from the local copy, no remote call
+        Integer value = cache.get(key);
+        int count = value != null ? value : 0;
+        if (near != null || nearCache.size() < maxKeys) {
+            nearCache.put(key, new NearEntry(count, now));
+        }
+        return count;
+    }
+
+    private int pendingCount(String key) {
+        AtomicInteger counter = pending.get(key);
+        return counter != null ? counter.get() : 0;
+    }
+
+    private int applyDelta(String key, int delta) {
+        long lifespanMs = 2 * windowMs;
+        while (true) {
+            Integer current = cache.get(key);
+            if (current == null) {
+                if (cache.putIfAbsent(key, delta, lifespanMs, TimeUnit.MILLISECONDS) == null) {
+                    return delta;
+                }
+            } else if (cache.replace(key, current, current + delta, lifespanMs, TimeUnit.MILLISECONDS)) {
+                return current + delta;
+            }
+        }
+    }
+
+    private static String key(char kind, String identifier, long window) {
+        return KEY_PREFIX + kind + ':' + identifier + ':' + window;
+    }
+
+    private static long windowOf(String key) {
+        return Long.parseLong(key.substring(key.lastIndexOf(':') + 1));
+    }
+}
@@ -0,0 +1,163 @@
+package com.lusatek.keycloak.otp.util;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * Signed, expiring verification tokens for emailed links, checked by computation alone.
+ *
+ * A token is the URL-safe Base64 form of version (1 byte) || expiry in epoch milliseconds (8) ||
+ * random nonce (16) || MAC (16) || user id (UTF-8). The MAC is HMAC-SHA256 truncated to 128 bits
+ * over the realm id, the user's email at issue time and all other token fields, so a token stops
+ * working once the user's email changes. Single use is enforced by the caller recording the nonce.
+ */
+public class LinkTokenSigner {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private static final byte VERSION = 1;
+    private static final int NONCE_LENGTH = 16;
+    private static final int MAC_LENGTH = 16;
+    private static final int MAC_OFFSET = 1 + 8 + NONCE_LENGTH;
+    private static final int USER_ID_OFFSET = MAC_OFFSET + MAC_LENGTH;
+    // Keycloak user ids are at most 36 characters; federated ids can be longer
+    private static final int MAX_TOKEN_LENGTH = 512;
+
+    /**
+     * Fields of a well-formed token whose MAC has not been checked yet
+     */
+    public static final class Claims {
+        private final byte[] token;
+        private final String userId;
+        private final long expiresAt;
+
+        private Claims(byte[] token, String userId, long expiresAt) {
+            this.token = token;
+            this.userId = userId;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public long getExpiresAt() {
+            return expiresAt;
+        }
+
+        /**
+         * @return Nonce in URL-safe Base64, unique per issued token
+         */
+        public String getTokenId() {
+            return ENCODER.encodeToString(Arrays.copyOfRange(token, 9, MAC_OFFSET));
+        }
+    }
+
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+
+    /**
+     * @param key Key derived from the server secret for this purpose only
+     */
+    public LinkTokenSigner(byte[] key) {
+        this.key = new SecretKeySpec(key, ALGORITHM);
+        // Fail at startup rather than on the first request
+        newMac();
+        this.macs = ThreadLocal.withInitial(this::newMac);
+    }
+
+    /**
+     * @param realmId Realm of the user
+     * @param userId User the token verifies
+     * @param email Email address the token is sent to
+     * @param expiresAt Expiry in epoch milliseconds
+     * @return URL-safe token
+     */
+    public String sign(String realmId, String userId, String email, long expiresAt) {
+        byte[] userIdBytes = userId.getBytes(StandardCharsets.UTF_8);
+        byte[] token = new byte[USER_ID_OFFSET + userIdBytes.length];
+        token[0] = VERSION;
+        for (int i = 0; i < 8; i++) {
+            token[1 + i] = (byte) (expiresAt >>> (56 - 8 * i));
+        }
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        System.arraycopy(nonce, 0, token, 9, NONCE_LENGTH);
+        System.arraycopy(userIdBytes, 0, token, USER_ID_OFFSET, userIdBytes.length);
+        System.arraycopy(mac(realmId, email, token), 0, token, MAC_OFFSET, MAC_LENGTH);
+        return ENCODER.encodeToString(token);
+    }
+
+    /**
+     * Decode a submitted token without checking its MAC, to find the user it claims to verify
+     * @return Claims, or null if the token is malformed
+     */
+    public Claims parse(String token) {
+        if (token == null || token.isEmpty() || token.length() > MAX_TOKEN_LENGTH) {
+            return null;
+        }
+        byte[] bytes;
+        try {
+            bytes = DECODER.decode(token);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (bytes.length <= USER_ID_OFFSET || bytes[0] != VERSION) {
+            return null;
+        }
+        long expiresAt = 0;
+        for (int i = 0; i < 8; i++) {
+            expiresAt = (expiresAt << 8) | (bytes[1 + i] & 0xFF);
+        }
+        String userId = new String(bytes, USER_ID_OFFSET, bytes.length - USER_ID_OFFSET, StandardCharsets.UTF_8);
+        return new Claims(bytes, userId, expiresAt);
+    }
+
+    /**
+     * Check the MAC of parsed claims in constant time
+     * @param realmId Realm the token is submitted to
+     * @param email Current email of the user named in the claims
+     * @return true if the token was issued by a node sharing this key, for this realm and email
+     */
+    public boolean verify(String realmId, Claims claims, String email) {
+        if (email == null) {
+            return false;
+        }
+        byte[] expected = mac(realmId, email, claims.token);
+        return MessageDigest.isEqual(Arrays.copyOf(expected, MAC_LENGTH),
+            Arrays.copyOfRange(claims.token, MAC_OFFSET, USER_ID_OFFSET));
+    }
+
+    private byte[] mac(String realmId, String email, byte[] token) {
+        Mac mac = macs.get();
+        mac.update(realmId.getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        mac.update(email.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 0);
+        // Everything but the MAC itself
+        mac.update(token, 0, MAC_OFFSET);
+        mac.update(token, USER_ID_OFFSET, token.length - USER_ID_OFFSET);
+        // doFinal resets the Mac for the next call
+        return mac.doFinal();
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot initialize " + ALGORITHM, e);
+        }
+    }
+}
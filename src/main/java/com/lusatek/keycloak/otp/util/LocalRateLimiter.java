@@ -0,0 +1,45 @@
+package com.lusatek.keycloak.otp.util;
+
+/**
+ * Node-local rate limiter for OTP operations
+ * Limits the number of attempts per user/IP within a sliding window. Each Keycloak node
+ * counts independently and counters are lost on restart.
+ */
+public class LocalRateLimiter implements RateLimiter {
+
+    private final SlidingWindowLimiter sendLimiter;
+    private final SlidingWindowLimiter verifyLimiter;
+
+    /**
+     * @param maxSendAttempts Max OTP send attempts per window
+     * @param maxVerifyAttempts Max verify attempts per window
+     * @param windowMs Sliding window length in milliseconds
+     * @param maxKeys Upper bound on identifiers tracked per operation
+     * @param shards Number of shards the identifiers are striped across
+     */
+    public LocalRateLimiter(int maxSendAttempts, int maxVerifyAttempts, long windowMs, int maxKeys, int shards) {
+        this.sendLimiter = new SlidingWindowLimiter(maxSendAttempts, windowMs, maxKeys, shards);
+        this.verifyLimiter = new SlidingWindowLimiter(maxVerifyAttempts, windowMs, maxKeys, shards);
+    }
+
+    @Override
+    public boolean allowSend(String identifier) {
+        return sendLimiter.tryAcquire(identifier, System.currentTimeMillis());
+    }
+
+    @Override
+    public boolean allowVerify(String identifier) {
+        return verifyLimiter.tryAcquire(identifier, System.currentTimeMillis());
+    }
+
+    @Override
+    public int cleanup() {
+        long now = System.currentTimeMillis();
+        return sendLimiter.evictIdle(now) + verifyLimiter.evictIdle(now);
+    }
+
+    @Override
+    public int size() {
+        return sendLimiter.size() + verifyLimiter.size();
+    }
+}
@@ -0,0 +1,204 @@
+package com.lusatek.keycloak.otp.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sliding window limiter like {@link SlidingWindowLimiter}, keyed by primitive longs.
+ *
+ * Keys and packed states live in open-addressing arrays (linear probing, at most half full), so
+ * a lookup allocates nothing and an attempt is a probe plus a CAS. Keys are striped across
+ * shards; new keys are inserted under the shard lock, and {@link #evictIdle(long)} rebuilds a
+ * shard's table without its idle keys. An attempt racing with a rebuild may go uncounted.
+ *
+ * A new key that does not fit its full shard is admitted without being tracked, so a flood of
+ * new keys cannot lock out other callers. A full shard is rebuilt at most once per window on
+ * insert, since keys only become idle when the window advances.
+ */
+public class LongSlidingWindowLimiter {
+
+    private static final class Table {
+        final long[] keys;
+        // Packed state per slot; 0 marks a free slot
+        final AtomicLongArray states;
+        final int mask;
+        int size;
+
+        Table(int capacity) {
+            this.keys = new long[capacity];
+            this.states = new AtomicLongArray(capacity);
+            this.mask = capacity - 1;
+        }
+
+        int find(long key, long hash) {
+            for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+                // Read the state first: it is published after the key
+                if (states.get(slot) == 0) {
+                    return -1;
+                }
+                if (keys[slot] == key) {
+                    return slot;
+                }
+            }
+        }
+
+        void insert(long key, long hash, long state) {
+            int slot = (int) hash & mask;
+            while (states.get(slot) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            states.set(slot, state);
+            size++;
+        }
+    }
+
+    private static final class Shard {
+        volatile Table table;
+        // Window of the last rebuild on insert; guarded by the shard lock
+        long compactedWindow = -1;
+    }
+
+    private final int maxAttempts;
+    private final long windowMs;
+    private final int shardCapacity;
+    private final int tableCapacity;
+    private final Shard[] shards;
+    private final int shardMask;
+
+    public LongSlidingWindowLimiter(int maxAttempts, long windowMs, int maxKeys, int shardCount) {
+        if (maxAttempts < 1 || maxAttempts > SlidingWindowLimiter.COUNT_MASK) {
+            throw new IllegalArgumentException("maxAttempts must be between 1 and " + SlidingWindowLimiter.COUNT_MASK);
+        }
+        if (windowMs < 1) {
+            throw new IllegalArgumentException("windowMs must be positive");
+        }
+        int shardsPow2 = shardCount <= 1 ? 1 : Integer.highestOneBit(shardCount - 1) << 1;
+        this.maxAttempts = maxAttempts;
+        this.windowMs = windowMs;
+        this.shardCapacity = Math.max(1, maxKeys / shardsPow2);
+        // Power of two with room for twice the keys, so probe sequences stay short
+        this.tableCapacity = Integer.highestOneBit(shardCapacity) << 2;
+        this.shards = new Shard[shardsPow2];
+        this.shardMask = shardsPow2 - 1;
+        for (int i = 0; i < shardsPow2; i++) {
+            shards[i] = new Shard();
+            shards[i].table = new Table(tableCapacity);
+        }
+    }
+
+    /**
+     * Record an attempt for the key if it is still within the limit
+     * @param key Identifier being limited
+     * @param now Current time in epoch milliseconds
+     * @return true if allowed, false if the limit is exceeded
+     */
+    public boolean tryAcquire(long key, long now) {
+        long hash = mix(key);
+        Shard shard = shards[(int) (hash >>> 32) & shardMask];
+        Table table = shard.table;
+        int slot = table.find(key, hash);
+        if (slot < 0) {
+            synchronized (shard) {
+                table = shard.table;
+                slot = table.find(key, hash);
+                if (slot < 0) {
+                    return insert(shard, key, hash, now);
+                }
+            }
+        }
+
+        AtomicLongArray states = table.states;
+        while (true) {
+            long current = states.get(slot);
+            long next = SlidingWindowLimiter.next(current, now, windowMs, maxAttempts);
+            if (next == SlidingWindowLimiter.DENIED) {
+                return false;
+            }
+            if (states.compareAndSet(slot, current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Remove keys without attempts in the current or previous window
+     * @param now Current time in epoch milliseconds
+     * @return Number of keys removed
+     */
+    public int evictIdle(long now) {
+        long window = (now / windowMs) & SlidingWindowLimiter.WINDOW_MASK;
+        int removed = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                removed += compact(shard, window);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return Number of keys currently tracked
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.table.size;
+        }
+        return size;
+    }
+
+    private boolean insert(Shard shard, long key, long hash, long now) {
+        Table table = shard.table;
+        if (table.size >= shardCapacity) {
+            long window = (now / windowMs) & SlidingWindowLimiter.WINDOW_MASK;
+            if (shard.compactedWindow != window) {
+                shard.compactedWindow = window;
+                compact(shard, window);
+                table = shard.table;
+            }
+            if (table.size >= shardCapacity) {
+                // Admit untracked
+                return true;
+            }
+        }
+        // A new key has no history, so its first attempt is always allowed
+        long state = SlidingWindowLimiter.next(0, now, windowMs, maxAttempts);
+        table.insert(key, hash, state);
+        return true;
+    }
+
+    private int compact(Shard shard, long window) {
+        Table table = shard.table;
+        int idle = 0;
+        for (int slot = 0; slot < tableCapacity; slot++) {
+            long state = table.states.get(slot);
+            if (state != 0 && SlidingWindowLimiter.isIdle(state, window)) {
+                idle++;
+            }
+        }
+        if (idle == 0) {
+            return 0;
+        }
+        Table compacted = new Table(tableCapacity);
+        for (int slot = 0; slot < tableCapacity; slot++) {
+            long state = table.states.get(slot);
+            if (state != 0 && !SlidingWindowLimiter.isIdle(state, window)) {
+                compacted.insert(table.keys[slot], mix(table.keys[slot]), state);
+            }
+        }
+        shard.table = compacted;
+        return table.size - compacted.size;
+    }
+
+    /**
+     * Spread key bits (MurmurHash3 finalizer); high half picks the shard, low half the slot
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
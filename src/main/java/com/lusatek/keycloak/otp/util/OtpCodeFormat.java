@@ -0,0 +1,124 @@
+package com.lusatek.keycloak.otp.util;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Shape of an OTP code: its alphabet and length. A code is handled as a long holding its
+ * base-N value, so codes of up to 12 characters are generated, hashed and compared without
+ * allocating. Parsing runs in constant time like {@link OtpGenerator#parseOtp(CharSequence)}.
+ */
+public final class OtpCodeFormat {
+
+    public static final String NUMERIC = "numeric";
+    public static final String ALPHANUMERIC = "alphanumeric";
+
+    public static final int MIN_LENGTH = 4;
+    public static final int MAX_LENGTH = 12;
+
+    private static final String NUMERIC_CHARS = "0123456789";
+    // Upper case without 0/O and 1/I, which are easily confused when typed from an email
+    private static final String ALPHANUMERIC_CHARS = "23456789ABCDEFGHJKLMNPQRSTUVWXYZ";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * 6 digits, the format used when a realm does not configure one
+     */
+    public static final OtpCodeFormat DEFAULT = of(NUMERIC, 6);
+
+    private final String alphabet;
+    private final char[] chars;
+    private final int length;
+    // Character value (ASCII only) to digit, -1 for characters outside the alphabet
+    private final byte[] digits = new byte[128];
+
+    private OtpCodeFormat(String alphabet, String chars, int length) {
+        this.alphabet = alphabet;
+        this.chars = chars.toCharArray();
+        this.length = length;
+        Arrays.fill(digits, (byte) -1);
+        for (int i = 0; i < this.chars.length; i++) {
+            digits[this.chars[i]] = (byte) i;
+            // Letters are accepted in either case
+            digits[Character.toLowerCase(this.chars[i])] = (byte) i;
+        }
+    }
+
+    /**
+     * @param alphabet {@link #NUMERIC} or {@link #ALPHANUMERIC}
+     * @param length Number of characters, {@link #MIN_LENGTH} to {@link #MAX_LENGTH}
+     * @throws IllegalArgumentException if the alphabet is unknown or the length out of range
+     */
+    public static OtpCodeFormat of(String alphabet, int length) {
+        if (length < MIN_LENGTH || length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Code length must be between " + MIN_LENGTH + " and " + MAX_LENGTH);
+        }
+        if (NUMERIC.equals(alphabet)) {
+            return new OtpCodeFormat(NUMERIC, NUMERIC_CHARS, length);
+        }
+        if (ALPHANUMERIC.equals(alphabet)) {
+            return new OtpCodeFormat(ALPHANUMERIC, ALPHANUMERIC_CHARS, length);
+        }
+        throw new IllegalArgumentException("Code alphabet must be " + NUMERIC + " or " + ALPHANUMERIC);
+    }
+
+    public String getAlphabet() {
+        return alphabet;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return Random code value, uniformly distributed over all codes of this format
+     */
+    public long nextValue() {
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            value = value * chars.length + RANDOM.nextInt(chars.length);
+        }
+        return value;
+    }
+
+    /**
+     * @param value Code value from {@link #nextValue()}
+     * @return Code as shown to the user, padded to the full length
+     */
+    public String format(long value) {
+        char[] code = new char[length];
+        for (int i = length - 1; i >= 0; i--) {
+            code[i] = chars[(int) (value % chars.length)];
+            value /= chars.length;
+        }
+        return new String(code);
+    }
+
+    /**
+     * Parse a submitted code without allocation. All characters are inspected regardless of
+     * where an invalid one appears, so timing does not reveal its position.
+     * @param code Code to parse
+     * @return Code value, or -1 if the code does not match this format
+     */
+    public long parse(CharSequence code) {
+        if (code == null || code.length() != length) {
+            return -1;
+        }
+        long value = 0;
+        int invalid = 0;
+        for (int i = 0; i < length; i++) {
+            char c = code.charAt(i);
+            // Sign bit is set for non-ASCII characters and for characters outside the alphabet
+            int digit = digits[c & 0x7F];
+            invalid |= (0x7F - c) | digit;
+            value = value * chars.length + (digit & 0xFF);
+        }
+        return invalid < 0 ? -1 : value;
+    }
+
+    @Override
+    public String toString() {
+        return length + " " + alphabet;
+    }
+}
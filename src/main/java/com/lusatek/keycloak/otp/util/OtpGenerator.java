@@ -1,22 +1,38 @@
 package com.lusatek.keycloak.otp.util;
 
-import java.security.SecureRandom;
-
 /**
- * Utility class for OTP generation
+ * Utility class for OTP generation and parsing in the default 6-digit format.
+ * Realms can configure another {@link OtpCodeFormat} through their OTP policy.
+ * Codes are handled as numbers internally; parsing runs in constant time and does not allocate.
  */
 public class OtpGenerator {
-    
-    private static final SecureRandom RANDOM = new SecureRandom();
-    private static final int OTP_LENGTH = 6;
+
+    private static final OtpCodeFormat FORMAT = OtpCodeFormat.DEFAULT;
 
     /**
      * Generates a random 6-digit OTP code
-     * @return 6-digit OTP as String
+     * @return 6-digit OTP as int (000000-999999)
+     */
+    public static int generateOtpValue() {
+        return (int) FORMAT.nextValue();
+    }
+
+    /**
+     * Generates a random 6-digit OTP code
+     * @return 6-digit OTP as String, zero-padded
      */
     public static String generateOtp() {
-        int otp = RANDOM.nextInt(900000) + 100000;
-        return String.valueOf(otp);
+        return FORMAT.format(FORMAT.nextValue());
+    }
+
+    /**
+     * Parse a submitted code without regex or allocation. All characters are inspected
+     * regardless of where an invalid one appears, so timing does not reveal its position.
+     * @param otp Code to parse
+     * @return Numeric value, or -1 if the code is not exactly 6 digits
+     */
+    public static int parseOtp(CharSequence otp) {
+        return (int) FORMAT.parse(otp);
     }
 
     /**
@@ -25,9 +41,6 @@ public class OtpGenerator {
      * @return true if valid format
      */
     public static boolean isValidOtpFormat(String otp) {
-        if (otp == null || otp.length() != OTP_LENGTH) {
-            return false;
-        }
-        return otp.matches("\\d{6}");
+        return parseOtp(otp) >= 0;
     }
 }
@@ -0,0 +1,119 @@
+package com.lusatek.keycloak.otp.util;
+
+import com.lusatek.keycloak.otp.store.OtpEntry;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Keyed hashing of OTP codes so stores never hold the plain code.
+ * Each OTP gets a random 64-bit salt; the stored digest is HMAC-SHA256(secret, salt || code)
+ * truncated to 128 bits. Codes whose value fits in an int are encoded in 4 bytes, longer ones
+ * in 8. The message fits in a single SHA-256 block, so hashing costs a few hundred nanoseconds.
+ * Mac instances are kept per thread since they are not thread-safe.
+ */
+public class OtpHasher {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+    // Salt (8 bytes) followed by code (4 or 8 bytes)
+    private final ThreadLocal<byte[]> messages = ThreadLocal.withInitial(() -> new byte[12]);
+    private final ThreadLocal<byte[]> longMessages = ThreadLocal.withInitial(() -> new byte[16]);
+
+    /**
+     * @param secret Server secret shared by all nodes that read the same OTP store
+     */
+    public OtpHasher(byte[] secret) {
+        if (secret == null || secret.length == 0) {
+            throw new IllegalArgumentException("OTP hash secret must not be empty");
+        }
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        // Fail at startup rather than on the first request
+        newMac();
+        this.macs = ThreadLocal.withInitial(this::newMac);
+    }
+
+    /**
+     * Create the stored form of a newly issued code
+     * @param code Plain code
+     * @param issuedAt Issue time in epoch milliseconds, or 0 if unknown
+     * @param expiresAt Expiry time in epoch milliseconds
+     * @param idempotencyKey Idempotency-Key of the issuing request, or null
+     * @return Entry holding a fresh salt and the code's digest
+     */
+    public OtpEntry newEntry(long code, long issuedAt, long expiresAt, String idempotencyKey) {
+        long salt = RANDOM.nextLong();
+        byte[] digest = digest(salt, code);
+        return new OtpEntry(salt, readLong(digest, 0), readLong(digest, 8), issuedAt, expiresAt, idempotencyKey, 0);
+    }
+
+    /**
+     * Check a parsed submitted code against a stored entry in constant time
+     * @param entry Stored entry
+     * @param candidate Code parsed with {@link OtpCodeFormat#parse(CharSequence)}
+     * @return true if the code matches
+     */
+    public boolean matches(OtpEntry entry, long candidate) {
+        byte[] digest = digest(entry.getSalt(), candidate);
+        long diff = (readLong(digest, 0) ^ entry.getHashHigh()) | (readLong(digest, 8) ^ entry.getHashLow());
+        return diff == 0;
+    }
+
+    /**
+     * Derive a 256-bit key for another purpose from the same server secret
+     * @param purpose Distinct label per use, e.g. "outbox-encryption"
+     * @return HMAC-SHA256(secret, purpose)
+     */
+    public byte[] deriveKey(String purpose) {
+        return newMac().doFinal(purpose.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Keyed 64-bit hash of an identifier, for use as a compact map key that callers cannot
+     * steer into collisions. Use a hasher built from {@link #deriveKey(String)}, not the one
+     * hashing OTP codes.
+     * @param value Identifier such as an email address
+     * @return First 64 bits of HMAC-SHA256(secret, value)
+     */
+    public long hashIdentifier(String value) {
+        return readLong(macs.get().doFinal(value.getBytes(StandardCharsets.UTF_8)), 0);
+    }
+
+    private byte[] digest(long salt, long code) {
+        // 4-byte encoding keeps digests of 6-digit codes unchanged
+        int codeBytes = code >= 0 && code <= Integer.MAX_VALUE ? 4 : 8;
+        byte[] message = codeBytes == 4 ? messages.get() : longMessages.get();
+        for (int i = 0; i < 8; i++) {
+            message[i] = (byte) (salt >>> (56 - 8 * i));
+        }
+        for (int i = 0; i < codeBytes; i++) {
+            message[8 + i] = (byte) (code >>> (8 * (codeBytes - 1 - i)));
+        }
+        // doFinal resets the Mac for the next call
+        return macs.get().doFinal(message);
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot initialize " + ALGORITHM, e);
+        }
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,240 @@
+package com.lusatek.keycloak.otp.util;
+
+import java.util.Locale;
+
+/**
+ * Node-local rate limits checked before the user is looked up, so abusive traffic is shed
+ * without a database query. Requests are counted per client address, per authenticated client
+ * and per submitted identifier (email or user id); each scope can be disabled with a limit of 0.
+ *
+ * All keys are longs: an IPv4 address is its 32-bit value, an IPv6 address its /64 network
+ * prefix (a single host usually controls the whole /64), and client ids and identifiers are
+ * reduced to a keyed 64-bit hash, so callers cannot aim collisions at another user's counter.
+ */
+public class PreLookupLimiter {
+
+    /**
+     * Key of a remote address that is not an IP literal
+     */
+    public static final long NO_ADDRESS = -1;
+
+    /**
+     * Scope whose limit rejected a request
+     */
+    public enum Scope {
+        ADDRESS, CLIENT, IDENTIFIER
+    }
+
+    private final OtpHasher keyHasher;
+    // Null when the scope is disabled
+    private final LongSlidingWindowLimiter addresses;
+    private final LongSlidingWindowLimiter clients;
+    private final LongSlidingWindowLimiter identifiers;
+
+    /**
+     * @param keyHasher Hasher with a key dedicated to rate limiting
+     * @param maxPerAddress Max requests per client address and window, 0 to disable
+     * @param maxPerClient Max requests per authenticated client and window, 0 to disable
+     * @param maxPerIdentifier Max requests per email or user id and window, 0 to disable
+     * @param windowMs Sliding window length in milliseconds
+     * @param maxKeys Upper bound on keys tracked per scope
+     * @param shards Number of shards the keys are striped across
+     */
+    public PreLookupLimiter(OtpHasher keyHasher, int maxPerAddress, int maxPerClient, int maxPerIdentifier,
+                            long windowMs, int maxKeys, int shards) {
+        this.keyHasher = keyHasher;
+        this.addresses = maxPerAddress > 0 ? new LongSlidingWindowLimiter(maxPerAddress, windowMs, maxKeys, shards) : null;
+        this.clients = maxPerClient > 0 ? new LongSlidingWindowLimiter(maxPerClient, windowMs, maxKeys, shards) : null;
+        this.identifiers = maxPerIdentifier > 0 ? new LongSlidingWindowLimiter(maxPerIdentifier, windowMs, maxKeys, shards) : null;
+    }
+
+    /**
+     * Count a request against every enabled scope
+     * @param remoteAddress Client address as reported by the connection
+     * @param realmId Realm of the request
+     * @param clientId Authenticated client; null or empty (token without a client) skips the client limit
+     * @param email Submitted email, or null
+     * @param userId Submitted user id, or null; takes precedence over the email like the user lookup
+     * @return Scope whose limit is exceeded, or null if the request may proceed
+     */
+    public Scope check(String remoteAddress, String realmId, String clientId, String email, String userId) {
+        long now = System.currentTimeMillis();
+        if (addresses != null) {
+            long address = addressKey(remoteAddress);
+            if (address != NO_ADDRESS && !addresses.tryAcquire(address, now)) {
+                return Scope.ADDRESS;
+            }
+        }
+        // Tokens without a client would all share one counter
+        if (clients != null && clientId != null && !clientId.isEmpty()) {
+            if (!clients.tryAcquire(keyHasher.hashIdentifier("c:" + realmId + ':' + clientId), now)) {
+                return Scope.CLIENT;
+            }
+        }
+        return allowIdentifier(realmId, email, userId, now) ? null : Scope.IDENTIFIER;
+    }
+
+    /**
+     * Count a request against the identifier limit only, for batch entries whose request was
+     * checked once against the address and client limits
+     * @param realmId Realm of the request
+     * @param email Submitted email, or null
+     * @param userId Submitted user id, or null; takes precedence over the email like the user lookup
+     * @return true if the entry may proceed
+     */
+    public boolean allowIdentifier(String realmId, String email, String userId) {
+        return allowIdentifier(realmId, email, userId, System.currentTimeMillis());
+    }
+
+    private boolean allowIdentifier(String realmId, String email, String userId, long now) {
+        if (identifiers == null) {
+            return true;
+        }
+        String identifier = userId != null && !userId.isEmpty() ? "u:" + realmId + ':' + userId
+            : email != null && !email.isEmpty() ? "e:" + realmId + ':' + email.toLowerCase(Locale.ROOT)
+            : null;
+        return identifier == null || identifiers.tryAcquire(keyHasher.hashIdentifier(identifier), now);
+    }
+
+    /**
+     * Drop keys without requests in the last two windows
+     * @return Number of keys removed
+     */
+    public int cleanup() {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for (LongSlidingWindowLimiter limiter : new LongSlidingWindowLimiter[] {addresses, clients, identifiers}) {
+            if (limiter != null) {
+                removed += limiter.evictIdle(now);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return Number of keys currently tracked on this node
+     */
+    public int size() {
+        return (addresses != null ? addresses.size() : 0)
+            + (clients != null ? clients.size() : 0)
+            + (identifiers != null ? identifiers.size() : 0);
+    }
+
+    /**
+     * Encode an IP literal without allocating or resolving it. IPv4 addresses, including
+     * IPv4-mapped IPv6 ones, keep their value in the low 32 bits; other IPv6 addresses are
+     * reduced to their /64 prefix, which only collides with IPv4 for the reserved ::/32 range.
+     * @param address Dotted IPv4 or textual IPv6 address, optionally with a zone id
+     * @return Address key, or {@link #NO_ADDRESS} if the value is not an IP literal
+     */
+    public static long addressKey(String address) {
+        if (address == null) {
+            return NO_ADDRESS;
+        }
+        int zone = address.indexOf('%');
+        int end = zone >= 0 ? zone : address.length();
+        if (address.indexOf(':') < 0) {
+            return parseIpv4(address, 0, end);
+        }
+        return parseIpv6(address, end);
+    }
+
+    private static long parseIpv6(String address, int end) {
+        int[] groups = new int[8];
+        int count = 0;
+        // Index of the group the "::" stands in front of, -1 if absent
+        int gap = -1;
+        int i = 0;
+        if (address.startsWith("::")) {
+            gap = 0;
+            i = 2;
+        }
+        while (i < end) {
+            int groupStart = i;
+            int value = 0;
+            int digit;
+            while (i < end && i - groupStart < 4 && (digit = hexDigit(address.charAt(i))) >= 0) {
+                value = (value << 4) | digit;
+                i++;
+            }
+            if (i < end && address.charAt(i) == '.') {
+                // Trailing dotted IPv4 part, as in ::ffff:192.0.2.1
+                long ipv4 = count <= 6 ? parseIpv4(address, groupStart, end) : NO_ADDRESS;
+                if (ipv4 == NO_ADDRESS) {
+                    return NO_ADDRESS;
+                }
+                groups[count++] = (int) (ipv4 >>> 16);
+                groups[count++] = (int) (ipv4 & 0xFFFF);
+                break;
+            }
+            if (i == groupStart || count == 8) {
+                return NO_ADDRESS;
+            }
+            groups[count++] = value;
+            if (i == end) {
+                break;
+            }
+            if (address.charAt(i++) != ':' || i == end) {
+                return NO_ADDRESS;
+            }
+            if (address.charAt(i) == ':') {
+                if (gap >= 0) {
+                    return NO_ADDRESS;
+                }
+                gap = count;
+                i++;
+            }
+        }
+        if (gap < 0 ? count != 8 : count > 7) {
+            return NO_ADDRESS;
+        }
+        if (gap >= 0) {
+            // Move the groups after "::" to the end and zero the ones it stands for
+            int shift = 8 - count;
+            for (int j = count - 1; j >= gap; j--) {
+                groups[j + shift] = groups[j];
+                groups[j] = 0;
+            }
+        }
+        if ((groups[0] | groups[1] | groups[2] | groups[3] | groups[4]) == 0 && groups[5] == 0xFFFF) {
+            return ((long) groups[6] << 16) | groups[7];
+        }
+        return ((long) groups[0] << 48) | ((long) groups[1] << 32) | ((long) groups[2] << 16) | groups[3];
+    }
+
+    private static long parseIpv4(String address, int start, int end) {
+        long value = 0;
+        int octets = 0;
+        int i = start;
+        while (i < end) {
+            int octetStart = i;
+            int octet = 0;
+            while (i < end && i - octetStart < 3 && address.charAt(i) >= '0' && address.charAt(i) <= '9') {
+                octet = octet * 10 + (address.charAt(i) - '0');
+                i++;
+            }
+            if (i == octetStart || octet > 255 || octets == 4) {
+                return NO_ADDRESS;
+            }
+            value = (value << 8) | octet;
+            octets++;
+            if (i < end && (address.charAt(i++) != '.' || i == end)) {
+                return NO_ADDRESS;
+            }
+        }
+        return octets == 4 ? value : NO_ADDRESS;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+}
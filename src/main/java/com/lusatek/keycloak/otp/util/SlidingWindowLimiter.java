@@ -0,0 +1,173 @@
+package com.lusatek.keycloak.otp.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free sliding window counter limiting attempts per key.
+ *
+ * Each key's state is packed into a single long and updated with CAS:
+ * [window index: 32 bits][previous window count: 16 bits][current window count: 16 bits].
+ * The attempt count is estimated as the current window count plus the previous window
+ * count weighted by how much of the previous window still overlaps the sliding window.
+ *
+ * Keys are striped across shards, each shard holding at most maxKeys / shards entries.
+ * Idle keys (no attempts in the last two windows) are dropped by {@link #evictIdle(long)}.
+ * When a shard is full, a new key is admitted without being tracked rather than refused, so
+ * flooding the limiter with new keys cannot lock out other callers. A full shard is swept for
+ * idle keys at most once per window, since keys only become idle when the window advances.
+ */
+public class SlidingWindowLimiter {
+
+    static final long WINDOW_MASK = 0xFFFFFFFFL;
+    static final int COUNT_MASK = 0xFFFF;
+    // Accepted attempts always leave a non-zero count, so no valid state is zero
+    static final long DENIED = 0;
+
+    private final int maxAttempts;
+    private final long windowMs;
+    private final int shardCapacity;
+    private final Map<String, AtomicLong>[] shards;
+    private final int shardMask;
+    // Window of the last idle sweep of each full shard
+    private final AtomicLongArray sweptWindows;
+
+    @SuppressWarnings("unchecked")
+    public SlidingWindowLimiter(int maxAttempts, long windowMs, int maxKeys, int shardCount) {
+        if (maxAttempts < 1 || maxAttempts > COUNT_MASK) {
+            throw new IllegalArgumentException("maxAttempts must be between 1 and " + COUNT_MASK);
+        }
+        if (windowMs < 1) {
+            throw new IllegalArgumentException("windowMs must be positive");
+        }
+        int shardsPow2 = shardCount <= 1 ? 1 : Integer.highestOneBit(shardCount - 1) << 1;
+        this.maxAttempts = maxAttempts;
+        this.windowMs = windowMs;
+        this.shardCapacity = Math.max(1, maxKeys / shardsPow2);
+        this.shards = new Map[shardsPow2];
+        this.shardMask = shardsPow2 - 1;
+        this.sweptWindows = new AtomicLongArray(shardsPow2);
+        for (int i = 0; i < shardsPow2; i++) {
+            shards[i] = new ConcurrentHashMap<>();
+            // No window index is negative
+            sweptWindows.set(i, -1);
+        }
+    }
+
+    /**
+     * Record an attempt for the key if it is still within the limit
+     * @param key Identifier being limited
+     * @param now Current time in epoch milliseconds
+     * @return true if allowed, false if the limit is exceeded
+     */
+    public boolean tryAcquire(String key, long now) {
+        AtomicLong state = stateFor(key, now);
+        if (state == null) {
+            // Shard full: admit untracked
+            return true;
+        }
+
+        while (true) {
+            long current = state.get();
+            long next = next(current, now, windowMs, maxAttempts);
+            if (next == DENIED) {
+                return false;
+            }
+            if (state.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Compute the state after one more attempt
+     * @param current Packed state of the key
+     * @param now Current time in epoch milliseconds
+     * @return New packed state, or {@link #DENIED} if the attempt exceeds the limit
+     */
+    static long next(long current, long now, long windowMs, int maxAttempts) {
+        long window = (now / windowMs) & WINDOW_MASK;
+        long elapsed = now % windowMs;
+        long stateWindow = current >>> 32;
+        long previousCount = (current >>> 16) & COUNT_MASK;
+        long currentCount = current & COUNT_MASK;
+
+        if (stateWindow != window) {
+            previousCount = stateWindow == ((window - 1) & WINDOW_MASK) ? currentCount : 0;
+            currentCount = 0;
+        }
+
+        // currentCount + previousCount * overlap < maxAttempts, scaled by windowMs to stay in integers
+        long weighted = currentCount * windowMs + previousCount * (windowMs - elapsed);
+        if (weighted + windowMs > (long) maxAttempts * windowMs) {
+            return DENIED;
+        }
+        return (window << 32) | (previousCount << 16) | (currentCount + 1);
+    }
+
+    /**
+     * Remove keys without attempts in the current or previous window
+     * @param now Current time in epoch milliseconds
+     * @return Number of keys removed
+     */
+    public int evictIdle(long now) {
+        long window = (now / windowMs) & WINDOW_MASK;
+        int removed = 0;
+        for (Map<String, AtomicLong> shard : shards) {
+            int before = shard.size();
+            shard.values().removeIf(state -> isIdle(state.get(), window));
+            removed += before - shard.size();
+        }
+        return removed;
+    }
+
+    /**
+     * @return Number of keys currently tracked
+     */
+    public int size() {
+        int size = 0;
+        for (Map<String, AtomicLong> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return State of the key, or null if its shard is full
+     */
+    private AtomicLong stateFor(String key, long now) {
+        int index = shardIndex(key);
+        Map<String, AtomicLong> shard = shards[index];
+        AtomicLong state = shard.get(key);
+        if (state != null) {
+            return state;
+        }
+        long window = (now / windowMs) & WINDOW_MASK;
+        if (shard.size() >= shardCapacity) {
+            // Make room from idle keys, but only once per window and by one thread
+            long swept = sweptWindows.get(index);
+            if (swept != window && sweptWindows.compareAndSet(index, swept, window)) {
+                shard.values().removeIf(existing -> isIdle(existing.get(), window));
+            }
+            if (shard.size() >= shardCapacity) {
+                return null;
+            }
+        }
+        // Start in the current window so a concurrent eviction does not treat it as idle
+        AtomicLong created = new AtomicLong(window << 32);
+        AtomicLong existing = shard.putIfAbsent(key, created);
+        return existing != null ? existing : created;
+    }
+
+    private int shardIndex(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & shardMask;
+    }
+
+    static boolean isIdle(long state, long window) {
+        long stateWindow = state >>> 32;
+        return stateWindow != window && stateWindow != ((window - 1) & WINDOW_MASK);
+    }
+}
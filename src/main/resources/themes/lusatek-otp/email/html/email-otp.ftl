@@ -3,7 +3,7 @@
 <head>
     <meta charset="UTF-8">
     <meta name="viewport" content="width=device-width, initial-scale=1.0">
-    <title>${msg("emailOtpSubject")}</title>
+    <title><#if verificationLink??>${msg("emailOtpLinkSubject")}<#else>${msg("emailOtpSubject")}</#if></title>
     <style>
         body {
             margin: 0;
@@ -65,6 +65,24 @@
             margin: 15px 0;
             font-family: 'Courier New', monospace;
         }
+        .link-button {
+            display: inline-block;
+            background-color: #ffffff;
+            color: #667eea;
+            padding: 14px 32px;
+            border-radius: 8px;
+            font-size: 16px;
+            font-weight: 600;
+            text-decoration: none;
+            margin: 10px 0;
+        }
+        .link-fallback {
+            font-size: 13px;
+            color: #6c757d;
+            line-height: 1.6;
+            word-break: break-all;
+            margin-bottom: 30px;
+        }
         .expiry {
             background-color: #fff3cd;
             border-left: 4px solid #ffc107;
@@ -129,6 +147,20 @@
                 ${msg("emailOtpGreeting", userName)}
             </div>
             
+            <#if verificationLink??>
+            <div class="message">
+                ${msg("emailOtpLinkMessage", realmName)}
+            </div>
+            
+            <div class="otp-container">
+                <a class="link-button" href="${verificationLink}">${msg("emailOtpLinkButton")}</a>
+            </div>
+            
+            <div class="link-fallback">
+                ${msg("emailOtpLinkFallback")}<br>
+                ${verificationLink}
+            </div>
+            <#else>
             <div class="message">
                 ${msg("emailOtpMessage", realmName)}
             </div>
@@ -137,18 +169,19 @@
                 <div class="otp-label">${msg("emailOtpLabel")}</div>
                 <div class="otp-code">${otpCode}</div>
             </div>
+            </#if>
             
             <div class="expiry">
                 <p class="expiry-text">
                     <strong>⏱ ${msg("emailOtpExpiry")}</strong><br>
-                    ${msg("emailOtpExpiryMessage", expiryMinutes)}
+                    <#if verificationLink??>${msg("emailOtpLinkExpiryMessage", expiryMinutes)}<#else>${msg("emailOtpExpiryMessage", expiryMinutes)}</#if>
                 </p>
             </div>
             
             <div class="warning">
                 <p class="warning-text">
                     <strong>🔒 ${msg("emailOtpSecurityTitle")}</strong><br>
-                    ${msg("emailOtpSecurityMessage")}
+                    <#if verificationLink??>${msg("emailOtpLinkSecurityMessage")}<#else>${msg("emailOtpSecurityMessage")}</#if>
                 </p>
             </div>
             
@@ -2,6 +2,17 @@ ${msg("emailOtpTitle")}
 
 ${msg("emailOtpGreeting", userName)}
 
+<#if verificationLink??>
+${msg("emailOtpLinkMessage", realmName)}
+
+${verificationLink}
+
+${msg("emailOtpExpiry")}
+${msg("emailOtpLinkExpiryMessage", expiryMinutes)}
+
+${msg("emailOtpSecurityTitle")}
+${msg("emailOtpLinkSecurityMessage")}
+<#else>
 ${msg("emailOtpMessage", realmName)}
 
 ${msg("emailOtpLabel")}: ${otpCode}
@@ -11,6 +22,7 @@ ${msg("emailOtpExpiryMessage", expiryMinutes)}
 
 ${msg("emailOtpSecurityTitle")}
 ${msg("emailOtpSecurityMessage")}
+</#if>
 
 ${msg("emailOtpHelp")}
 
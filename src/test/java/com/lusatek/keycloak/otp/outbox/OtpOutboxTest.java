@@ -0,0 +1,180 @@
+package com.lusatek.keycloak.otp.outbox;
+
+import com.lusatek.keycloak.otp.metrics.OtpMetrics;
+import com.lusatek.keycloak.otp.service.EmailDispatcher;
+import com.lusatek.keycloak.otp.service.OtpComponents;
+import com.lusatek.keycloak.otp.service.OtpEmail;
+import com.lusatek.keycloak.otp.service.OtpPolicy;
+import com.lusatek.keycloak.otp.service.OtpPolicyCache;
+import com.lusatek.keycloak.otp.service.OtpService;
+import com.lusatek.keycloak.otp.service.SmtpConnectionPool;
+import com.lusatek.keycloak.otp.store.InMemoryOtpStore;
+import com.lusatek.keycloak.otp.store.OtpEntry;
+import com.lusatek.keycloak.otp.util.OtpCodeFormat;
+import com.lusatek.keycloak.otp.util.OtpHasher;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class OtpOutboxTest {
+
+    private final OtpHasher hasher = new OtpHasher("test-secret".getBytes(StandardCharsets.UTF_8));
+    private final OtpMetrics metrics = new OtpMetrics(new SimpleMeterRegistry());
+    private final OtpOutbox outbox = new OtpOutbox(hasher.deriveKey("email-otp-outbox"));
+    private final InMemoryOtpStore store = new InMemoryOtpStore();
+    private final OutboxDatabase database = new OutboxDatabase(store);
+    private final OutboxWorker worker = new OutboxWorker(database.getSessionFactory(), outbox,
+        new EmailDispatcher(database.getSessionFactory(), metrics, new SmtpConnectionPool(0, 0, 0, 0), 1, 1, 60000, 10),
+        metrics, 10, 3, 0, 0, 60000, 60000);
+
+    @AfterEach
+    void closeDatabase() {
+        database.close();
+    }
+
+    private static OtpEmail email(String recipient) {
+        return new OtpEmail(OutboxDatabase.REALM_ID, recipient, Map.of(), "Your code", "123456", "<p>123456</p>");
+    }
+
+    private String enqueue(String userId, String recipient, long expiresAt) {
+        return database.inTransaction(session -> outbox.enqueue(session, email(recipient), userId, expiresAt));
+    }
+
+    @Test
+    void newerEmailSupersedesPendingOnesOfTheSameUser() {
+        long expiresAt = System.currentTimeMillis() + 60000;
+        String first = enqueue("user", "user@example.com", expiresAt);
+        String other = enqueue("other", "other@example.com", expiresAt);
+        String second = enqueue("user", "user@example.com", expiresAt);
+
+        OtpOutboxEntity superseded = database.find(first);
+        assertEquals(OtpOutbox.SUPERSEDED, superseded.getStatus());
+        // The old code is not kept around
+        assertNull(superseded.getPayload());
+        assertEquals(OtpOutbox.PENDING, database.find(second).getStatus());
+        assertEquals(OtpOutbox.PENDING, database.find(other).getStatus());
+
+        worker.drain();
+        assertEquals(List.of("other@example.com", "user@example.com"), sorted(database.getSentTo()));
+        assertEquals(EmailDispatcher.Status.SUPERSEDED, status(first));
+        assertEquals(EmailDispatcher.Status.SENT, status(second));
+    }
+
+    @Test
+    void sentEmailsAreNotSuperseded() {
+        long expiresAt = System.currentTimeMillis() + 60000;
+        String first = enqueue("user", "user@example.com", expiresAt);
+        worker.drain();
+        enqueue("user", "user@example.com", expiresAt);
+        assertEquals(OtpOutbox.SENT, database.find(first).getStatus());
+    }
+
+    @Test
+    void statusIsOnlyVisibleInTheRealmOfTheEmail() {
+        String id = enqueue("user", "user@example.com", System.currentTimeMillis() + 60000);
+        assertEquals(EmailDispatcher.Status.QUEUED, status(id));
+        assertNull(database.inTransaction(session -> outbox.getStatus(session, "other-realm", id)));
+        assertNull(status("unknown"));
+    }
+
+    @Test
+    void rollbackLeavesNoRowNoEmailAndNoOtp() {
+        UserModel user = user("user");
+        KeycloakSession session = database.getSessionFactory().create();
+        session.getTransactionManager().begin();
+        OtpService service = otpService(session);
+        store.put(OutboxDatabase.REALM_ID, "user", newEntry());
+        String id = service.enqueue(user, email("user@example.com"));
+        session.getTransactionManager().rollback();
+        session.close();
+
+        assertNull(database.find(id));
+        // Otherwise it would suppress the resend of a code that was never emailed
+        assertNull(store.get(OutboxDatabase.REALM_ID, "user"));
+        worker.drain();
+        assertEquals(Collections.emptyList(), database.getSentTo());
+    }
+
+    @Test
+    void rollbackKeepsANewerOtp() {
+        UserModel user = user("user");
+        KeycloakSession session = database.getSessionFactory().create();
+        session.getTransactionManager().begin();
+        store.put(OutboxDatabase.REALM_ID, "user", newEntry());
+        otpService(session).enqueue(user, email("user@example.com"));
+
+        // Issued by a concurrent request before this one rolled back
+        OtpEntry newer = newEntry();
+        store.put(OutboxDatabase.REALM_ID, "user", newer);
+        session.getTransactionManager().rollback();
+        session.close();
+
+        assertSame(newer, store.get(OutboxDatabase.REALM_ID, "user"));
+    }
+
+    @Test
+    void commitKeepsRowAndOtp() {
+        UserModel user = user("user");
+        OtpEntry issued = newEntry();
+        String id = database.inTransaction(session -> {
+            store.put(OutboxDatabase.REALM_ID, "user", issued);
+            return otpService(session).enqueue(user, email("user@example.com"));
+        });
+
+        assertNotNull(database.find(id));
+        assertSame(issued, store.get(OutboxDatabase.REALM_ID, "user"));
+        worker.drain();
+        assertEquals(List.of("user@example.com"), database.getSentTo());
+    }
+
+    private EmailDispatcher.Status status(String id) {
+        return database.inTransaction(session -> outbox.getStatus(session, OutboxDatabase.REALM_ID, id));
+    }
+
+    private OtpEntry newEntry() {
+        long now = System.currentTimeMillis();
+        return hasher.newEntry(123456, now, now + 60000, null);
+    }
+
+    private OtpService otpService(KeycloakSession session) {
+        OtpPolicy policy = new OtpPolicy(OtpCodeFormat.DEFAULT, OtpPolicy.DEFAULT_TTL_SECONDS, 30,
+            OtpPolicy.DEFAULT_MAX_ATTEMPTS, OtpPolicy.DEFAULT_TEMPLATE, OtpPolicy.DEFAULT_COMPANY_NAME);
+        OtpComponents components = new OtpComponents(null, null, null, null, metrics, hasher, null, null, null, outbox,
+            new OtpPolicyCache(policy), null, null, null, 0);
+        RealmModel realm = proxy(RealmModel.class, method ->
+            "getAttributes".equals(method) ? Collections.emptyMap() : OutboxDatabase.REALM_ID);
+        return new OtpService(session, realm, components);
+    }
+
+    private static UserModel user(String id) {
+        return proxy(UserModel.class, method -> "getId".equals(method) ? id : id + "@example.com");
+    }
+
+    private interface Handler {
+        Object invoke(String method);
+    }
+
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+            (proxy, method, args) -> handler.invoke(method.getName())));
+    }
+
+    private static List<String> sorted(List<String> values) {
+        return values.stream().sorted().collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,59 @@
+package com.lusatek.keycloak.otp.outbox;
+
+import org.junit.jupiter.api.Test;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class OutboxCipherTest {
+
+    private static final byte[] KEY = key(1);
+
+    private static byte[] key(int value) {
+        byte[] key = new byte[32];
+        Arrays.fill(key, (byte) value);
+        return key;
+    }
+
+    @Test
+    void roundTrip() throws Exception {
+        OutboxCipher cipher = new OutboxCipher(KEY);
+        String payload = "{\"text\":\"Your code is 123456 – ünïcode\"}";
+        String encrypted = cipher.encrypt(payload);
+        assertEquals(payload, cipher.decrypt(encrypted));
+        // Another node with the same key can read it
+        assertEquals(payload, new OutboxCipher(KEY).decrypt(encrypted));
+    }
+
+    @Test
+    void samePayloadGetsAFreshIv() throws Exception {
+        OutboxCipher cipher = new OutboxCipher(KEY);
+        assertNotEquals(cipher.encrypt("123456"), cipher.encrypt("123456"));
+    }
+
+    @Test
+    void otherKeyCannotDecrypt() throws Exception {
+        String encrypted = new OutboxCipher(KEY).encrypt("123456");
+        assertThrows(GeneralSecurityException.class, () -> new OutboxCipher(key(2)).decrypt(encrypted));
+    }
+
+    @Test
+    void tamperedPayloadIsRejected() throws Exception {
+        OutboxCipher cipher = new OutboxCipher(KEY);
+        byte[] encrypted = Base64.getDecoder().decode(cipher.encrypt("123456"));
+        encrypted[encrypted.length - 1] ^= 1;
+        String tampered = Base64.getEncoder().encodeToString(encrypted);
+        assertThrows(GeneralSecurityException.class, () -> cipher.decrypt(tampered));
+    }
+
+    @Test
+    void truncatedPayloadIsRejected() {
+        String tooShort = Base64.getEncoder().encodeToString(new byte[12]);
+        assertThrows(GeneralSecurityException.class, () -> new OutboxCipher(KEY).decrypt(tooShort));
+    }
+}
@@ -0,0 +1,175 @@
+package com.lusatek.keycloak.otp.outbox;
+
+import com.lusatek.keycloak.otp.store.OtpStore;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.Persistence;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.connections.jpa.JpaKeycloakTransaction;
+import org.keycloak.email.EmailException;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.KeycloakTransactionManager;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.RealmProvider;
+import org.keycloak.services.DefaultKeycloakTransactionManager;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * In-memory H2 database holding the outbox table, with Keycloak sessions whose transaction
+ * manager commits or rolls back a JPA transaction on it when the session is closed, like
+ * Keycloak's own sessions. Emails sent through a session are recorded instead of delivered.
+ */
+class OutboxDatabase implements AutoCloseable {
+
+    static final String REALM_ID = "realm";
+
+    private final EntityManagerFactory entityManagerFactory;
+    private final OtpStore store;
+    private final List<String> sentTo = new CopyOnWriteArrayList<>();
+    private final KeycloakSessionFactory sessionFactory;
+    private volatile EmailException sendFailure;
+
+    /**
+     * @param store OTP store returned by the sessions; may be null
+     */
+    OutboxDatabase(OtpStore store) {
+        // Unique per instance, so tests never see each other's rows
+        this.entityManagerFactory = Persistence.createEntityManagerFactory("email-otp-test",
+            Map.of("jakarta.persistence.jdbc.url", "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1"));
+        this.store = store;
+        this.sessionFactory = proxy(KeycloakSessionFactory.class, (method, args) ->
+            "create".equals(method) ? createSession() : null);
+    }
+
+    KeycloakSessionFactory getSessionFactory() {
+        return sessionFactory;
+    }
+
+    /**
+     * @return Recipients of the emails sent so far, in order
+     */
+    List<String> getSentTo() {
+        return sentTo;
+    }
+
+    /**
+     * @param failure Thrown by every following send; null lets them succeed again
+     */
+    void failSends(EmailException failure) {
+        this.sendFailure = failure;
+    }
+
+    /**
+     * Run a task in a session whose transaction is committed afterwards
+     */
+    <T> T inTransaction(Function<KeycloakSession, T> task) {
+        KeycloakSession session = sessionFactory.create();
+        try {
+            session.getTransactionManager().begin();
+            return task.apply(session);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Read a row in a new transaction
+     */
+    OtpOutboxEntity find(String id) {
+        return inTransaction(session -> OtpOutbox.entityManager(session).find(OtpOutboxEntity.class, id));
+    }
+
+    @Override
+    public void close() {
+        entityManagerFactory.close();
+    }
+
+    private KeycloakSession createSession() {
+        EntityManager em = entityManagerFactory.createEntityManager();
+        JpaConnectionProvider jpa = proxy(JpaConnectionProvider.class, (method, args) ->
+            "getEntityManager".equals(method) ? em : null);
+        EmailSenderProvider sender = proxy(EmailSenderProvider.class, (method, args) -> {
+            if ("send".equals(method)) {
+                EmailException failure = sendFailure;
+                if (failure != null) {
+                    throw failure;
+                }
+                sentTo.add((String) args[1]);
+            }
+            return null;
+        });
+        Map<String, String> smtpConfig = Map.of("host", "localhost", "from", "noreply@example.com");
+        RealmModel realm = proxy(RealmModel.class, (method, args) -> {
+            switch (method) {
+                case "getId":
+                    return REALM_ID;
+                case "getSmtpConfig":
+                    return smtpConfig;
+                default:
+                    return null;
+            }
+        });
+        RealmProvider realms = proxy(RealmProvider.class, (method, args) ->
+            "getRealm".equals(method) && REALM_ID.equals(args[0]) ? realm : null);
+
+        KeycloakTransactionManager[] transactionManager = new KeycloakTransactionManager[1];
+        KeycloakSession session = proxy(KeycloakSession.class, (method, args) -> {
+            switch (method) {
+                case "getProvider":
+                    return args[0] == JpaConnectionProvider.class ? jpa
+                        : args[0] == EmailSenderProvider.class ? sender
+                        : args[0] == OtpStore.class ? store : null;
+                case "getTransactionManager":
+                    return transactionManager[0];
+                case "realms":
+                    return realms;
+                case "getKeycloakSessionFactory":
+                    return sessionFactory;
+                case "close":
+                    complete(transactionManager[0]);
+                    em.close();
+                    return null;
+                default:
+                    return null;
+            }
+        });
+        transactionManager[0] = new DefaultKeycloakTransactionManager(session);
+        transactionManager[0].enlist(new JpaKeycloakTransaction(em));
+        return session;
+    }
+
+    private static void complete(KeycloakTransactionManager transactionManager) {
+        if (!transactionManager.isActive()) {
+            return;
+        }
+        if (transactionManager.getRollbackOnly()) {
+            transactionManager.rollback();
+        } else {
+            transactionManager.commit();
+        }
+    }
+
+    private interface Handler {
+        Object invoke(String method, Object[] args) throws Exception;
+    }
+
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+            (proxy, method, args) -> {
+                if (method.getDeclaringClass() == Object.class) {
+                    return "equals".equals(method.getName()) ? proxy == args[0]
+                        : "hashCode".equals(method.getName()) ? System.identityHashCode(proxy) : type.getSimpleName();
+                }
+                Object result = handler.invoke(method.getName(), args);
+                return result == null && method.getReturnType() == boolean.class ? Boolean.FALSE : result;
+            }));
+    }
+}
@@ -0,0 +1,228 @@
+package com.lusatek.keycloak.otp.outbox;
+
+import com.lusatek.keycloak.otp.metrics.OtpMetrics;
+import com.lusatek.keycloak.otp.service.EmailDispatcher;
+import com.lusatek.keycloak.otp.service.OtpEmail;
+import com.lusatek.keycloak.otp.service.SmtpConnectionPool;
+import com.lusatek.keycloak.otp.util.OtpHasher;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.email.EmailException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboxWorkerTest {
+
+    private static final long MINUTE_MS = 60000;
+
+    private final OtpHasher hasher = new OtpHasher("test-secret".getBytes(StandardCharsets.UTF_8));
+    private final OtpMetrics metrics = new OtpMetrics(new SimpleMeterRegistry());
+    private final OtpOutbox outbox = new OtpOutbox(hasher.deriveKey("email-otp-outbox"));
+    private final OutboxDatabase database = new OutboxDatabase(null);
+    private final EmailDispatcher dispatcher = new EmailDispatcher(database.getSessionFactory(), metrics,
+        new SmtpConnectionPool(0, 0, 0, 0), 1, 1, MINUTE_MS, 10);
+
+    @AfterEach
+    void closeDatabase() {
+        database.close();
+    }
+
+    private OutboxWorker worker(OtpOutbox outbox, int batchSize, int maxAttempts, long backoffMs) {
+        return new OutboxWorker(database.getSessionFactory(), outbox, dispatcher, metrics, batchSize, maxAttempts,
+            backoffMs, backoffMs, MINUTE_MS, MINUTE_MS);
+    }
+
+    private String enqueue(OtpOutbox outbox, String userId, long expiresAt) {
+        OtpEmail email = new OtpEmail(OutboxDatabase.REALM_ID, userId + "@example.com", Map.of(), "Your code",
+            "123456", "<p>123456</p>");
+        return database.inTransaction(session -> outbox.enqueue(session, email, userId, expiresAt));
+    }
+
+    private String enqueue(String userId) {
+        return enqueue(outbox, userId, System.currentTimeMillis() + MINUTE_MS);
+    }
+
+    @Test
+    void failedDeliveryIsRetriedUntilMaxAttempts() {
+        OutboxWorker worker = worker(outbox, 10, 3, 0);
+        String id = enqueue("user");
+        database.failSends(new EmailException("Connection refused"));
+
+        worker.drain();
+        OtpOutboxEntity row = database.find(id);
+        assertEquals(OtpOutbox.PENDING, row.getStatus());
+        assertEquals(1, row.getAttempts());
+        assertTrue(row.getLastError().contains("Connection refused"));
+        assertNotNull(row.getPayload());
+
+        worker.drain();
+        assertEquals(OtpOutbox.PENDING, database.find(id).getStatus());
+        worker.drain();
+        row = database.find(id);
+        assertEquals(OtpOutbox.FAILED, row.getStatus());
+        assertEquals(3, row.getAttempts());
+        assertNull(row.getPayload());
+
+        // Given up for good, even once the server is back
+        database.failSends(null);
+        worker.drain();
+        assertEquals(Collections.emptyList(), database.getSentTo());
+        assertEquals(OtpOutbox.FAILED, database.find(id).getStatus());
+    }
+
+    @Test
+    void retryDeliversOnceTheServerIsBack() {
+        OutboxWorker worker = worker(outbox, 10, 3, 0);
+        String id = enqueue("user");
+        database.failSends(new EmailException("Connection refused"));
+        worker.drain();
+
+        database.failSends(null);
+        worker.drain();
+        OtpOutboxEntity row = database.find(id);
+        assertEquals(OtpOutbox.SENT, row.getStatus());
+        assertEquals(2, row.getAttempts());
+        assertEquals(List.of("user@example.com"), database.getSentTo());
+    }
+
+    @Test
+    void retryIsNotScheduledAfterTheOtpExpires() {
+        // The shortest possible backoff is half an hour, the OTP expires in a minute
+        OutboxWorker worker = worker(outbox, 10, 8, 60 * MINUTE_MS);
+        String id = enqueue("user");
+        database.failSends(new EmailException("Connection refused"));
+
+        worker.drain();
+        OtpOutboxEntity row = database.find(id);
+        assertEquals(OtpOutbox.FAILED, row.getStatus());
+        assertEquals(1, row.getAttempts());
+    }
+
+    @Test
+    void expiredOtpIsNotDelivered() {
+        OutboxWorker worker = worker(outbox, 10, 3, 0);
+        String id = enqueue(outbox, "user", System.currentTimeMillis() - 1);
+
+        worker.drain();
+        OtpOutboxEntity row = database.find(id);
+        assertEquals(OtpOutbox.FAILED, row.getStatus());
+        assertEquals("OTP expired before delivery", row.getLastError());
+        assertEquals(Collections.emptyList(), database.getSentTo());
+    }
+
+    @Test
+    void payloadOfAnotherSecretIsNotDelivered() {
+        OtpOutbox otherNode = new OtpOutbox(new OtpHasher("other-secret".getBytes(StandardCharsets.UTF_8))
+            .deriveKey("email-otp-outbox"));
+        String id = enqueue(otherNode, "user", System.currentTimeMillis() + MINUTE_MS);
+
+        worker(outbox, 10, 3, 0).drain();
+        OtpOutboxEntity row = database.find(id);
+        assertEquals(OtpOutbox.FAILED, row.getStatus());
+        assertEquals("Payload cannot be decrypted", row.getLastError());
+        assertEquals(Collections.emptyList(), database.getSentTo());
+    }
+
+    @Test
+    void claimWithAStaleVersionIsRejected() {
+        String id = enqueue("user");
+        int version = database.find(id).getVersion();
+        long now = System.currentTimeMillis();
+
+        assertEquals(1, claim(id, version, now + MINUTE_MS));
+        // A second node that read the row before the first one claimed it
+        assertEquals(0, claim(id, version, now + MINUTE_MS));
+        assertEquals(version + 1, database.find(id).getVersion());
+
+        // Claimed by the other node, so not delivered here
+        worker(outbox, 10, 3, 0).drain();
+        assertEquals(Collections.emptyList(), database.getSentTo());
+        assertEquals(OtpOutbox.SENDING, database.find(id).getStatus());
+    }
+
+    @Test
+    void timedOutClaimIsTakenOver() {
+        String id = enqueue("user");
+        int version = database.find(id).getVersion();
+        // The node that claimed it died before the claim ran out
+        assertEquals(1, claim(id, version, System.currentTimeMillis() - 1));
+
+        worker(outbox, 10, 3, 0).drain();
+        assertEquals(List.of("user@example.com"), database.getSentTo());
+        OtpOutboxEntity row = database.find(id);
+        assertEquals(OtpOutbox.SENT, row.getStatus());
+
+        // The outcome of the node that lost its claim no longer applies
+        int updated = database.inTransaction(session -> OtpOutbox.entityManager(session)
+            .createNamedQuery("emailOtpOutboxFinish")
+            .setParameter("status", OtpOutbox.FAILED)
+            .setParameter("attempts", 1)
+            .setParameter("lastError", "Connection refused")
+            .setParameter("now", System.currentTimeMillis())
+            .setParameter("id", id)
+            .setParameter("version", version + 1)
+            .executeUpdate());
+        assertEquals(0, updated);
+        assertEquals(OtpOutbox.SENT, database.find(id).getStatus());
+    }
+
+    @Test
+    void concurrentWorkersDeliverEachEmailOnce() throws Exception {
+        int emails = 40;
+        for (int i = 0; i < emails; i++) {
+            enqueue("user" + i);
+        }
+        List<OutboxWorker> nodes = List.of(worker(outbox, 5, 3, 0), worker(outbox, 5, 3, 0),
+            worker(outbox, 5, 3, 0));
+        ExecutorService executor = Executors.newFixedThreadPool(nodes.size());
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> runs = new ArrayList<>();
+            for (OutboxWorker node : nodes) {
+                runs.add(executor.submit(() -> {
+                    start.await();
+                    node.drain();
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> run : runs) {
+                run.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        // A run that failed on a lock leaves its rows to the next one
+        nodes.get(0).drain();
+
+        List<String> sentTo = database.getSentTo();
+        assertEquals(emails, sentTo.size());
+        assertEquals(emails, new HashSet<>(sentTo).size());
+    }
+
+    private int claim(String id, int version, long claimedUntil) {
+        return database.inTransaction(session -> OtpOutbox.entityManager(session)
+            .createNamedQuery("emailOtpOutboxClaim")
+            .setParameter("sending", OtpOutbox.SENDING)
+            .setParameter("claimedUntil", claimedUntil)
+            .setParameter("now", System.currentTimeMillis())
+            .setParameter("id", id)
+            .setParameter("version", version)
+            .executeUpdate());
+    }
+}
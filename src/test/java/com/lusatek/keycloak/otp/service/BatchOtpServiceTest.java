@@ -0,0 +1,131 @@
+package com.lusatek.keycloak.otp.service;
+
+import com.lusatek.keycloak.otp.model.BatchItemResult;
+import com.lusatek.keycloak.otp.model.SendOtpRequest;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class BatchOtpServiceTest {
+
+    private static SendOtpRequest byEmail(String email) {
+        SendOtpRequest request = new SendOtpRequest();
+        request.setEmail(email);
+        return request;
+    }
+
+    private static SendOtpRequest byUserId(String userId) {
+        SendOtpRequest request = new SendOtpRequest();
+        request.setUserId(userId);
+        return request;
+    }
+
+    private static List<BatchItemResult> send(OtpFixture fixture, SendOtpRequest... items) {
+        return new BatchOtpService(fixture.session, fixture.realm, fixture.components)
+            .sendChunk(Arrays.asList(items), 0, new HashSet<>());
+    }
+
+    private static List<String> recipients(OtpFixture fixture) {
+        return fixture.delivered().stream().map(OtpEmail::getRecipient).collect(Collectors.toList());
+    }
+
+    @Test
+    void resultsFollowInputOrder() {
+        OtpFixture fixture = new OtpFixture(30, 5);
+        fixture.user("a");
+        fixture.user("b");
+        Set<String> seenUserIds = new HashSet<>();
+        BatchOtpService service = new BatchOtpService(fixture.session, fixture.realm, fixture.components);
+        service.sendChunk(List.of(byUserId("a")), 0, seenUserIds);
+
+        // Second chunk of the batch, starting at entry 1
+        List<BatchItemResult> results = service.sendChunk(Arrays.asList(byEmail("b@example.com"), new SendOtpRequest(),
+            byEmail("unknown@example.com"), byEmail("a@example.com"), null), 1, seenUserIds);
+
+        assertEquals(List.of(1, 2, 3, 4, 5), results.stream().map(BatchItemResult::getIndex).collect(Collectors.toList()));
+        assertEquals("b@example.com", results.get(0).getEmail());
+        assertEquals(EmailDispatcher.Status.QUEUED.name(), results.get(0).getStatus());
+        assertNotNull(results.get(0).getDispatchId());
+        assertEquals("MISSING_IDENTIFIER", results.get(1).getErrorCode());
+        assertEquals("USER_NOT_FOUND", results.get(2).getErrorCode());
+        // Listed in the first chunk
+        assertEquals("DUPLICATE_ENTRY", results.get(3).getErrorCode());
+        assertEquals("MISSING_IDENTIFIER", results.get(4).getErrorCode());
+        assertEquals(List.of("a@example.com", "b@example.com"), recipients(fixture));
+    }
+
+    @Test
+    void recentCodeIsReportedInsteadOfSent() {
+        OtpFixture fixture = new OtpFixture(30, 5);
+        fixture.issue(fixture.user("a"), 123456, null);
+        fixture.user("b");
+
+        List<BatchItemResult> results = send(fixture, byUserId("a"), byUserId("b"));
+        assertEquals(OtpService.ALREADY_SENT, results.get(0).getStatus());
+        assertNull(results.get(0).getDispatchId());
+        assertEquals(EmailDispatcher.Status.QUEUED.name(), results.get(1).getStatus());
+        assertEquals(List.of("b@example.com"), recipients(fixture));
+    }
+
+    @Test
+    void sendLimitAppliesPerEntry() {
+        OtpFixture fixture = new OtpFixture(0, 5, 1, 100, 100);
+        fixture.user("a");
+        fixture.user("b");
+        // An earlier /send for user a used up the budget
+        fixture.components.getRateLimiter().allowSend("a");
+
+        List<BatchItemResult> results = send(fixture, byUserId("a"), byUserId("b"));
+        assertEquals("RATE_LIMIT_EXCEEDED", results.get(0).getErrorCode());
+        assertEquals(EmailDispatcher.Status.QUEUED.name(), results.get(1).getStatus());
+        assertEquals(List.of("b@example.com"), recipients(fixture));
+    }
+
+    @Test
+    void identifierLimitAppliesPerEntry() {
+        OtpFixture fixture = new OtpFixture(0, 5, 100, 1, 100);
+        fixture.user("a");
+        fixture.user("b");
+
+        // Identifiers are counted before the lookup; emails regardless of case
+        List<BatchItemResult> results = send(fixture, byEmail("a@example.com"), byEmail("A@example.com"),
+            byUserId("b"));
+        assertEquals(EmailDispatcher.Status.QUEUED.name(), results.get(0).getStatus());
+        assertEquals("RATE_LIMIT_EXCEEDED", results.get(1).getErrorCode());
+        assertEquals(EmailDispatcher.Status.QUEUED.name(), results.get(2).getStatus());
+        assertEquals(List.of("a@example.com", "b@example.com"), recipients(fixture));
+    }
+
+    @Test
+    void rejectedChunkIsReportedAndKeepsNoOtp() {
+        // One chunk of two is delivered, one waits; the third does not fit
+        OtpFixture fixture = new OtpFixture(30, 5, 100, 100, 1);
+        SendOtpRequest[] items = new SendOtpRequest[5];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = byUserId(fixture.user("user" + i).getId());
+        }
+        fixture.holdDeliveries();
+
+        List<BatchItemResult> results = send(fixture, items);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(EmailDispatcher.Status.QUEUED.name(), results.get(i).getStatus());
+            assertNotNull(results.get(i).getDispatchId());
+        }
+        assertEquals("QUEUE_FULL", results.get(4).getErrorCode());
+        assertNull(results.get(4).getDispatchId());
+        // Otherwise it would suppress the retry of a code that was never sent
+        assertNull(fixture.store.get(OtpFixture.REALM_ID, "user4"));
+
+        fixture.releaseDeliveries();
+        assertEquals(List.of("user0@example.com", "user1@example.com", "user2@example.com", "user3@example.com"),
+            recipients(fixture));
+    }
+}
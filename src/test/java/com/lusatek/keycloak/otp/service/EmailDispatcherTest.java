@@ -0,0 +1,77 @@
+package com.lusatek.keycloak.otp.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class EmailDispatcherTest {
+
+    private static OtpEmail email(int i) {
+        return new OtpEmail(OtpFixture.REALM_ID, "user" + i + "@example.com", Map.of(), "Your code", "123456",
+            "<p>123456</p>");
+    }
+
+    private static List<OtpEmail> emails(int count) {
+        List<OtpEmail> emails = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            emails.add(email(i));
+        }
+        return emails;
+    }
+
+    @Test
+    void batchIdsFollowInputOrder() {
+        OtpFixture fixture = new OtpFixture(30, 5);
+        List<OtpEmail> emails = emails(5);
+        List<String> ids = fixture.dispatcher.submitBatch(emails);
+        assertEquals(5, ids.size());
+        assertEquals(5, ids.stream().distinct().count());
+
+        List<OtpEmail> delivered = fixture.delivered();
+        assertEquals(emails.stream().map(OtpEmail::getRecipient).collect(Collectors.toList()),
+            delivered.stream().map(OtpEmail::getRecipient).collect(Collectors.toList()));
+        for (String id : ids) {
+            assertEquals(EmailDispatcher.Status.SENT, fixture.dispatcher.getStatus(OtpFixture.REALM_ID, id));
+        }
+    }
+
+    @Test
+    void chunksThatDoNotFitGetNoIds() {
+        // One chunk of two is delivered, one waits in the queue
+        OtpFixture fixture = new OtpFixture(30, 5, 100, 100, 1);
+        fixture.holdDeliveries();
+
+        List<String> ids = fixture.dispatcher.submitBatch(emails(7));
+        assertEquals(7, ids.size());
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(ids.get(i));
+            assertEquals(EmailDispatcher.Status.QUEUED, fixture.dispatcher.getStatus(OtpFixture.REALM_ID, ids.get(i)));
+        }
+        for (int i = 4; i < 7; i++) {
+            assertNull(ids.get(i));
+        }
+        assertThrows(DispatchRejectedException.class, () -> fixture.dispatcher.submit(email(7)));
+
+        fixture.releaseDeliveries();
+        assertEquals(List.of("user0@example.com", "user1@example.com", "user2@example.com", "user3@example.com"),
+            fixture.delivered().stream().map(OtpEmail::getRecipient).collect(Collectors.toList()));
+    }
+
+    @Test
+    void statusIsOnlyVisibleInTheRealmOfTheEmail() throws Exception {
+        OtpFixture fixture = new OtpFixture(30, 5);
+        String id = fixture.dispatcher.submit(email(0));
+        fixture.delivered();
+        assertEquals(EmailDispatcher.Status.SENT, fixture.dispatcher.getStatus(OtpFixture.REALM_ID, id));
+        assertNull(fixture.dispatcher.getStatus("other-realm", id));
+        assertNull(fixture.dispatcher.getStatus(OtpFixture.REALM_ID, "unknown"));
+    }
+}
@@ -0,0 +1,281 @@
+package com.lusatek.keycloak.otp.service;
+
+import com.lusatek.keycloak.otp.metrics.OtpMetrics;
+import com.lusatek.keycloak.otp.store.InMemoryOtpStore;
+import com.lusatek.keycloak.otp.store.OtpStore;
+import com.lusatek.keycloak.otp.util.LocalRateLimiter;
+import com.lusatek.keycloak.otp.util.OtpCodeFormat;
+import com.lusatek.keycloak.otp.util.OtpHasher;
+import com.lusatek.keycloak.otp.util.PreLookupLimiter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.keycloak.email.EmailSenderProvider;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.ThemeManager;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.UserProvider;
+import org.keycloak.theme.Theme;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Realm, users and shared components for service tests: a real OTP store, hasher, email templates
+ * and dispatch queue behind proxies of the Keycloak interfaces the services call. Emails are
+ * recorded instead of sent.
+ */
+class OtpFixture {
+
+    static final String REALM_ID = "realm";
+
+    private static final String THEME_PATH = "/themes/lusatek-otp/email/";
+    private static final Map<String, String> SMTP_CONFIG = Map.of("host", "localhost", "from", "noreply@example.com");
+    private static final Pattern CODE = Pattern.compile("Verification Code: (\\S+)");
+
+    final InMemoryOtpStore store = new InMemoryOtpStore();
+    final OtpHasher hasher = new OtpHasher("test-secret".getBytes(StandardCharsets.UTF_8));
+    final OtpMetrics metrics = new OtpMetrics(new SimpleMeterRegistry());
+    final OtpPolicy policy;
+    final RealmModel realm;
+    final KeycloakSession session;
+    final EmailDispatcher dispatcher;
+    final OtpComponents components;
+    final List<OtpEmail> sent = new CopyOnWriteArrayList<>();
+
+    private final Map<String, UserModel> users = new HashMap<>();
+    private volatile CountDownLatch deliveryGate = new CountDownLatch(0);
+
+    /**
+     * @param resendIntervalSeconds Minimum time between two codes for a user
+     * @param maxAttempts Wrong codes accepted before an OTP is burned
+     */
+    OtpFixture(int resendIntervalSeconds, int maxAttempts) {
+        this(resendIntervalSeconds, maxAttempts, 100, 100, 100);
+    }
+
+    /**
+     * @param resendIntervalSeconds Minimum time between two codes for a user
+     * @param maxAttempts Wrong codes accepted before an OTP is burned
+     * @param maxSendsPerUser Sends allowed per user and minute
+     * @param maxPerIdentifier Requests allowed per submitted email or user id and minute
+     * @param queueCapacity Dispatch tasks waiting for the single delivery worker; batches are
+     *                      delivered in chunks of two emails
+     */
+    OtpFixture(int resendIntervalSeconds, int maxAttempts, int maxSendsPerUser, int maxPerIdentifier,
+               int queueCapacity) {
+        policy = new OtpPolicy(OtpCodeFormat.DEFAULT, OtpPolicy.DEFAULT_TTL_SECONDS, resendIntervalSeconds,
+            maxAttempts, OtpPolicy.DEFAULT_TEMPLATE, OtpPolicy.DEFAULT_COMPANY_NAME);
+        // One instance, so the policy cache keeps its snapshot
+        Map<String, String> attributes = Collections.emptyMap();
+        realm = proxy(RealmModel.class, (method, args) -> {
+            switch (method) {
+                case "getId":
+                case "getName":
+                    return REALM_ID;
+                case "getAttributes":
+                case "getRealmLocalizationTextsByLocale":
+                    return attributes;
+                case "getSmtpConfig":
+                    return SMTP_CONFIG;
+                default:
+                    return null;
+            }
+        });
+        UserProvider userProvider = proxy(UserProvider.class, (method, args) -> {
+            switch (method) {
+                case "getUserById":
+                    return users.get((String) args[1]);
+                case "getUserByEmail":
+                    return users.values().stream()
+                        .filter(user -> user.getEmail().equalsIgnoreCase((String) args[1]))
+                        .findFirst().orElse(null);
+                default:
+                    return null;
+            }
+        });
+        Theme theme = theme();
+        ThemeManager themes = proxy(ThemeManager.class, (method, args) -> theme);
+        KeycloakContext context = proxy(KeycloakContext.class, (method, args) ->
+            "resolveLocale".equals(method) ? Locale.ENGLISH : null);
+        session = proxy(KeycloakSession.class, (method, args) -> {
+            switch (method) {
+                case "getProvider":
+                    return args[0] == OtpStore.class ? store : null;
+                case "theme":
+                    return themes;
+                case "getContext":
+                    return context;
+                case "users":
+                    return userProvider;
+                default:
+                    return null;
+            }
+        });
+
+        EmailSenderProvider sender = proxy(EmailSenderProvider.class, (method, args) -> {
+            if ("send".equals(method)) {
+                @SuppressWarnings("unchecked")
+                Map<String, String> config = (Map<String, String>) args[0];
+                sent.add(new OtpEmail(REALM_ID, (String) args[1], config, (String) args[2], (String) args[3],
+                    (String) args[4]));
+            }
+            return null;
+        });
+        KeycloakSession deliverySession = proxy(KeycloakSession.class, (method, args) ->
+            "getProvider".equals(method) && args[0] == EmailSenderProvider.class ? sender : null);
+        KeycloakSessionFactory sessionFactory = proxy(KeycloakSessionFactory.class, (method, args) -> {
+            if (!"create".equals(method)) {
+                return null;
+            }
+            try {
+                deliveryGate.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return deliverySession;
+        });
+        dispatcher = new EmailDispatcher(sessionFactory, metrics, new SmtpConnectionPool(0, 0, 0, 0), 1,
+            queueCapacity, 60000, 2);
+
+        components = new OtpComponents(dispatcher, new LocalRateLimiter(maxSendsPerUser, 100, 60000, 1000, 1),
+            new PreLookupLimiter(hasher, 0, 0, maxPerIdentifier, 60000, 1000, 1), new EmailTemplateCache(60000, 10),
+            metrics, hasher, null, null, null, null, new OtpPolicyCache(policy), null, null, null, 0);
+    }
+
+    OtpService otpService() {
+        return new OtpService(session, realm, components);
+    }
+
+    /**
+     * Keep the delivery worker from starting on its next task until {@link #releaseDeliveries()}
+     */
+    void holdDeliveries() {
+        deliveryGate = new CountDownLatch(1);
+    }
+
+    void releaseDeliveries() {
+        deliveryGate.countDown();
+    }
+
+    /**
+     * Wait for the queued emails to be delivered; nothing can be queued afterwards
+     * @return Emails sent so far, in delivery order
+     */
+    List<OtpEmail> delivered() {
+        dispatcher.shutdown(10000);
+        return sent;
+    }
+
+    /**
+     * @return Code in the plain text body of an email
+     */
+    static String codeIn(OtpEmail email) {
+        Matcher matcher = CODE.matcher(email.getTextBody());
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    /**
+     * User with an email address, kept for lookups by id and email
+     */
+    UserModel user(String id) {
+        return users.computeIfAbsent(id, key -> {
+            String email = id + "@example.com";
+            boolean[] emailVerified = new boolean[1];
+            return proxy(UserModel.class, (method, args) -> {
+                switch (method) {
+                    case "getId":
+                        return id;
+                    case "getEmail":
+                    case "getUsername":
+                        return email;
+                    case "isEmailVerified":
+                        return emailVerified[0];
+                    case "setEmailVerified":
+                        emailVerified[0] = (Boolean) args[0];
+                        return null;
+                    case "getAttributes":
+                        return Collections.emptyMap();
+                    default:
+                        return null;
+                }
+            });
+        });
+    }
+
+    /**
+     * Store an OTP for the user as /send would
+     */
+    void issue(UserModel user, long code, String idempotencyKey) {
+        long now = System.currentTimeMillis();
+        store.put(REALM_ID, user.getId(), hasher.newEntry(code, now, now + policy.getTtlMs(), idempotencyKey));
+    }
+
+    /**
+     * The email theme of this extension, loaded from the classpath
+     */
+    private static Theme theme() {
+        Properties messages = new Properties();
+        try (InputStream in = OtpFixture.class.getResourceAsStream(THEME_PATH + "messages/messages_en.properties")) {
+            messages.load(new InputStreamReader(in, StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return proxy(Theme.class, (method, args) -> {
+            switch (method) {
+                case "getName":
+                    return "lusatek-otp";
+                case "getTemplate":
+                    return OtpFixture.class.getResource(THEME_PATH + args[0]);
+                case "getMessages":
+                case "getEnhancedMessages":
+                    return messages;
+                case "getProperties":
+                    return new Properties();
+                default:
+                    return null;
+            }
+        });
+    }
+
+    interface Handler {
+        Object invoke(String method, Object[] args);
+    }
+
+    static <T> T proxy(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+            (proxy, method, args) -> {
+                if (method.getDeclaringClass() == Object.class) {
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            return type.getSimpleName();
+                    }
+                }
+                Object result = handler.invoke(method.getName(), args);
+                // Unstubbed primitive getters answer false/0 instead of failing on null
+                if (result == null && method.getReturnType() == boolean.class) {
+                    return false;
+                }
+                return result;
+            }));
+    }
+}
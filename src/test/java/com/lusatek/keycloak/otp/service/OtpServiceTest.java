@@ -0,0 +1,208 @@
+package com.lusatek.keycloak.otp.service;
+
+import com.lusatek.keycloak.otp.metrics.OtpMetrics.VerifyResult;
+import com.lusatek.keycloak.otp.store.OtpEntry;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OtpServiceTest {
+
+    private static final long CODE = 123456;
+
+    @Test
+    void codeIsBurnedAfterMaxAttempts() {
+        OtpFixture fixture = new OtpFixture(30, 3);
+        UserModel user = fixture.user("user");
+        fixture.issue(user, CODE, null);
+        OtpService service = fixture.otpService();
+
+        assertEquals(VerifyResult.INVALID_CODE, service.verify(user, "000001"));
+        assertEquals(VerifyResult.INVALID_CODE, service.verify(user, "000002"));
+        assertEquals(VerifyResult.ATTEMPTS_EXCEEDED, service.verify(user, "000003"));
+
+        // The right code no longer helps, and the OTP no longer counts as pending
+        assertEquals(VerifyResult.ATTEMPTS_EXCEEDED, service.verify(user, "123456"));
+        assertFalse(user.isEmailVerified());
+        assertNull(service.getPendingOtp(user));
+    }
+
+    @Test
+    void wrongCodesAreNotForgottenByLaterRequests() {
+        OtpFixture fixture = new OtpFixture(30, 5);
+        UserModel user = fixture.user("user");
+        fixture.issue(user, CODE, null);
+
+        // Each request uses a new service, like each HTTP request does
+        assertEquals(VerifyResult.INVALID_CODE, fixture.otpService().verify(user, "000001"));
+        assertEquals(VerifyResult.INVALID_CODE, fixture.otpService().verify(user, "000002"));
+        assertEquals(2, fixture.store.get(OtpFixture.REALM_ID, "user").getFailedAttempts());
+
+        // A malformed code is rejected before the OTP is read and does not count
+        assertEquals(VerifyResult.MALFORMED, fixture.otpService().verify(user, "12ab"));
+        assertEquals(2, fixture.store.get(OtpFixture.REALM_ID, "user").getFailedAttempts());
+    }
+
+    @Test
+    void staleReadStillCountsTheWrongCode() {
+        OtpFixture fixture = new OtpFixture(30, 5);
+        UserModel user = fixture.user("user");
+        fixture.issue(user, CODE, null);
+        OtpEntry stale = fixture.store.get(OtpFixture.REALM_ID, "user");
+
+        // Two batch verifies read the OTP before either of them counted its wrong code
+        assertEquals(VerifyResult.INVALID_CODE, fixture.otpService().verify(user, "000001", stale));
+        assertEquals(VerifyResult.INVALID_CODE, fixture.otpService().verify(user, "000002", stale));
+        assertEquals(2, fixture.store.get(OtpFixture.REALM_ID, "user").getFailedAttempts());
+    }
+
+    @Test
+    void correctCodeIsConsumedOnce() {
+        OtpFixture fixture = new OtpFixture(30, 5);
+        UserModel user = fixture.user("user");
+        fixture.issue(user, CODE, null);
+        OtpEntry read = fixture.store.get(OtpFixture.REALM_ID, "user");
+
+        // Both requests read the OTP before either consumed it
+        assertEquals(VerifyResult.VERIFIED, fixture.otpService().verify(user, "123456", read));
+        assertEquals(VerifyResult.NOT_FOUND, fixture.otpService().verify(user, "123456", read));
+        assertTrue(user.isEmailVerified());
+    }
+
+    @Test
+    void concurrentCorrectVerifiesSucceedOnce() throws Exception {
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < 50; round++) {
+                OtpFixture fixture = new OtpFixture(30, 5);
+                UserModel user = fixture.user("user");
+                fixture.issue(user, CODE, null);
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<VerifyResult>> results = new ArrayList<>();
+                for (int i = 0; i < threads; i++) {
+                    results.add(executor.submit(() -> {
+                        start.await();
+                        return fixture.otpService().verify(user, "123456");
+                    }));
+                }
+                start.countDown();
+
+                int verified = 0;
+                for (Future<VerifyResult> result : results) {
+                    if (result.get() == VerifyResult.VERIFIED) {
+                        verified++;
+                    } else {
+                        assertEquals(VerifyResult.NOT_FOUND, result.get());
+                    }
+                }
+                assertEquals(1, verified);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void newCodeIsNotConsumedByVerifyOfTheOldOne() {
+        OtpFixture fixture = new OtpFixture(30, 5);
+        UserModel user = fixture.user("user");
+        fixture.issue(user, CODE, null);
+        OtpEntry old = fixture.store.get(OtpFixture.REALM_ID, "user");
+
+        // A resend replaced the code after the verify read the old one
+        fixture.issue(user, 654321, null);
+        assertEquals(VerifyResult.INVALID_CODE, fixture.otpService().verify(user, "123456", old));
+        assertEquals(1, fixture.store.get(OtpFixture.REALM_ID, "user").getFailedAttempts());
+        assertEquals(VerifyResult.VERIFIED, fixture.otpService().verify(user, "654321"));
+    }
+
+    @Test
+    void replayWithTheSameKeyIsAnsweredWithTheFirstCode() throws Exception {
+        // No resend interval, so only the key suppresses the second code
+        OtpFixture fixture = new OtpFixture(0, 5);
+        UserModel user = fixture.user("user");
+        String dispatchId = send(fixture, user, "key-1");
+        assertNotNull(dispatchId);
+        assertNotEquals(OtpService.ALREADY_SENT, dispatchId);
+        OtpEntry issued = fixture.store.get(OtpFixture.REALM_ID, "user");
+
+        assertEquals(OtpService.ALREADY_SENT, send(fixture, user, "key-1"));
+        assertSame(issued, fixture.store.get(OtpFixture.REALM_ID, "user"));
+
+        List<OtpEmail> delivered = fixture.delivered();
+        assertEquals(1, delivered.size());
+        assertEquals(VerifyResult.VERIFIED, fixture.otpService().verify(user, OtpFixture.codeIn(delivered.get(0))));
+    }
+
+    @Test
+    void otherKeyInsideResendIntervalIsSuppressed() throws Exception {
+        OtpFixture fixture = new OtpFixture(30, 5);
+        UserModel user = fixture.user("user");
+        send(fixture, user, "key-1");
+        OtpEntry issued = fixture.store.get(OtpFixture.REALM_ID, "user");
+
+        assertEquals(OtpService.ALREADY_SENT, send(fixture, user, "key-2"));
+        assertEquals(OtpService.ALREADY_SENT, send(fixture, user, null));
+        assertSame(issued, fixture.store.get(OtpFixture.REALM_ID, "user"));
+        assertEquals(1, fixture.delivered().size());
+    }
+
+    @Test
+    void otherKeyAfterResendIntervalGetsANewCode() throws Exception {
+        OtpFixture fixture = new OtpFixture(0, 5);
+        UserModel user = fixture.user("user");
+        send(fixture, user, "key-1");
+        assertNotEquals(OtpService.ALREADY_SENT, send(fixture, user, "key-2"));
+
+        List<OtpEmail> delivered = fixture.delivered();
+        assertEquals(2, delivered.size());
+        String first = OtpFixture.codeIn(delivered.get(0));
+        String second = OtpFixture.codeIn(delivered.get(1));
+        // Codes are random, so they may repeat
+        if (!first.equals(second)) {
+            assertEquals(VerifyResult.INVALID_CODE, fixture.otpService().verify(user, first));
+        }
+        assertEquals(VerifyResult.VERIFIED, fixture.otpService().verify(user, second));
+    }
+
+    @Test
+    void burnedOrExpiredCodeIsNotReused() {
+        OtpFixture fixture = new OtpFixture(30, 1);
+        UserModel user = fixture.user("user");
+        fixture.issue(user, CODE, "key-1");
+        assertEquals(VerifyResult.ATTEMPTS_EXCEEDED, fixture.otpService().verify(user, "000001"));
+        assertNull(fixture.otpService().findReusableOtp(user, "key-1"));
+
+        long now = System.currentTimeMillis();
+        fixture.store.put(OtpFixture.REALM_ID, "user", fixture.hasher.newEntry(CODE, now - 2000, now - 1000, "key-1"));
+        assertNull(fixture.otpService().findReusableOtp(user, "key-1"));
+    }
+
+    /**
+     * Answer a send the way /send does: report a reusable OTP, otherwise issue and queue a new one
+     * @return Dispatch id of the new email, or ALREADY_SENT
+     */
+    private static String send(OtpFixture fixture, UserModel user, String idempotencyKey)
+            throws DispatchRejectedException {
+        OtpService service = fixture.otpService();
+        if (service.findReusableOtp(user, idempotencyKey) != null) {
+            return OtpService.ALREADY_SENT;
+        }
+        return service.generateAndSendOtp(user, idempotencyKey);
+    }
+}
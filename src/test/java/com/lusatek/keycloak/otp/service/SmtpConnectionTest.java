@@ -0,0 +1,123 @@
+package com.lusatek.keycloak.otp.service;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.email.EmailException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SmtpConnectionTest {
+
+    /**
+     * Point at which the fake server stops answering properly
+     */
+    private enum Failure {
+        NONE, MAIL_FROM, AFTER_DATA
+    }
+
+    private ServerSocket server;
+    private Thread serverThread;
+
+    @AfterEach
+    void stopServer() throws Exception {
+        server.close();
+        serverThread.join(5000);
+    }
+
+    /**
+     * Start a single-connection SMTP server on a free local port
+     */
+    private Map<String, String> startServer(Failure failure) throws IOException {
+        server = new ServerSocket(0);
+        serverThread = new Thread(() -> {
+            try (Socket socket = server.accept();
+                 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                 PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+                reply(out, "220 test ESMTP");
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String command = line.toUpperCase();
+                    if (command.startsWith("EHLO") || command.startsWith("HELO")) {
+                        reply(out, "250 test");
+                    } else if (command.startsWith("MAIL FROM")) {
+                        reply(out, failure == Failure.MAIL_FROM ? "550 sender refused" : "250 OK");
+                    } else if (command.startsWith("RCPT TO")) {
+                        reply(out, "250 OK");
+                    } else if (command.equals("DATA")) {
+                        reply(out, "354 go ahead");
+                        while ((line = in.readLine()) != null && !line.equals(".")) {
+                            // Message content
+                        }
+                        if (failure == Failure.AFTER_DATA) {
+                            // Connection lost before the final reply: the server may have queued the message
+                            return;
+                        }
+                        reply(out, "250 queued");
+                    } else if (command.equals("QUIT")) {
+                        reply(out, "221 bye");
+                        return;
+                    } else {
+                        reply(out, "250 OK");
+                    }
+                }
+            } catch (IOException e) {
+                // Server closed by the test
+            }
+        });
+        serverThread.start();
+
+        Map<String, String> config = new HashMap<>();
+        config.put("host", "127.0.0.1");
+        config.put("port", String.valueOf(server.getLocalPort()));
+        config.put("from", "noreply@example.com");
+        return config;
+    }
+
+    private static void reply(PrintWriter out, String line) {
+        out.print(line + "\r\n");
+        out.flush();
+    }
+
+    private static OtpEmail email(Map<String, String> config) {
+        return new OtpEmail("realm", "user@example.com", config, "Your code", "123456", null);
+    }
+
+    @Test
+    void sendsOverTheConnection() throws Exception {
+        Map<String, String> config = startServer(Failure.NONE);
+        // Without auth or TLS the session is not used
+        try (SmtpConnection connection = SmtpConnection.open(null, config)) {
+            connection.send(email(config));
+            assertTrue(connection.isConnected());
+        }
+    }
+
+    @Test
+    void refusedSenderIsNotHandedOver() throws Exception {
+        Map<String, String> config = startServer(Failure.MAIL_FROM);
+        try (SmtpConnection connection = SmtpConnection.open(null, config)) {
+            EmailException e = assertThrows(EmailException.class, () -> connection.send(email(config)));
+            assertFalse(e instanceof SmtpConnection.PossiblyDeliveredException);
+        }
+    }
+
+    @Test
+    void failureAfterDataMayHaveDelivered() throws Exception {
+        Map<String, String> config = startServer(Failure.AFTER_DATA);
+        try (SmtpConnection connection = SmtpConnection.open(null, config)) {
+            assertThrows(SmtpConnection.PossiblyDeliveredException.class, () -> connection.send(email(config)));
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.lusatek.keycloak.otp.store;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InMemoryOtpStoreTest {
+
+    private static OtpEntry entry(long salt, long expiresAt) {
+        return new OtpEntry(salt, 2, 3, 0, expiresAt, null, 0);
+    }
+
+    @Test
+    void conditionalRemoveOnlyRemovesTheEntryRead() {
+        InMemoryOtpStore store = new InMemoryOtpStore();
+        long expiresAt = System.currentTimeMillis() + 60000;
+        store.put("realm", "user", entry(1, expiresAt));
+        OtpEntry read = store.get("realm", "user");
+
+        // A concurrent verify counted a failure
+        assertTrue(store.replace("realm", "user", read, read.withFailedAttempt()));
+        assertFalse(store.remove("realm", "user", read));
+        OtpEntry current = store.get("realm", "user");
+        assertEquals(1, current.getFailedAttempts());
+
+        // A concurrent send issued a new code
+        OtpEntry fresh = entry(4, expiresAt);
+        store.put("realm", "user", fresh);
+        assertFalse(store.remove("realm", "user", current));
+        assertSame(fresh, store.get("realm", "user"));
+
+        assertTrue(store.remove("realm", "user", fresh));
+        assertNull(store.get("realm", "user"));
+    }
+
+    @Test
+    void sweepDropsExpiredEntries() {
+        InMemoryOtpStore store = new InMemoryOtpStore();
+        long now = System.currentTimeMillis();
+        store.put("realm", "old", entry(1, now - 1));
+        store.put("realm", "new", entry(2, now + 60000));
+        assertEquals(1, store.sweep(now));
+        assertEquals(1, store.size());
+    }
+}
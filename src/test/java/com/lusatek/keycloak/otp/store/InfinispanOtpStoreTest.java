@@ -0,0 +1,143 @@
+package com.lusatek.keycloak.otp.store;
+
+import com.lusatek.keycloak.otp.util.EmbeddedInfinispanCluster;
+import org.infinispan.Cache;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InfinispanOtpStoreTest {
+
+    private static EmbeddedInfinispanCluster cluster;
+
+    @BeforeAll
+    static void startCluster() {
+        cluster = new EmbeddedInfinispanCluster(2);
+    }
+
+    @AfterAll
+    static void stopCluster() {
+        cluster.close();
+    }
+
+    /**
+     * Store on one node of the cluster
+     */
+    private static InfinispanOtpStore store(int node) {
+        Cache<String, String> cache = cluster.cache(node);
+        InfinispanConnectionProvider connections = proxy(InfinispanConnectionProvider.class, (method, args) ->
+            "getCache".equals(method) ? cache : null);
+        KeycloakSession session = proxy(KeycloakSession.class, (method, args) ->
+            "getProvider".equals(method) && args[0] == InfinispanConnectionProvider.class ? connections : null);
+        return new InfinispanOtpStore(session);
+    }
+
+    private interface Handler {
+        Object invoke(String method, Object[] args);
+    }
+
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+            (proxy, method, args) -> handler.invoke(method.getName(), args)));
+    }
+
+    private static OtpEntry entry(String idempotencyKey) {
+        long now = System.currentTimeMillis();
+        return new OtpEntry(0x0123456789ABCDEFL, -1L, 42L, now, now + 60000, idempotencyKey, 0);
+    }
+
+    private static void assertSameEntry(OtpEntry expected, OtpEntry actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getSalt(), actual.getSalt());
+        assertEquals(expected.getHashHigh(), actual.getHashHigh());
+        assertEquals(expected.getHashLow(), actual.getHashLow());
+        assertEquals(expected.getIssuedAt(), actual.getIssuedAt());
+        assertEquals(expected.getExpiresAt(), actual.getExpiresAt());
+        assertEquals(expected.getIdempotencyKey(), actual.getIdempotencyKey());
+        assertEquals(expected.getFailedAttempts(), actual.getFailedAttempts());
+    }
+
+    @Test
+    void encodeRoundTrips() {
+        OtpEntry withoutKey = entry(null).withFailedAttempt().withFailedAttempt();
+        assertSameEntry(withoutKey, InfinispanOtpStore.decode(InfinispanOtpStore.encode(withoutKey)));
+
+        OtpEntry withKey = entry("request-1");
+        assertSameEntry(withKey, InfinispanOtpStore.decode(InfinispanOtpStore.encode(withKey)));
+
+        // The idempotency key comes last and may contain the separator
+        OtpEntry withSeparator = entry("a|b|12");
+        assertSameEntry(withSeparator, InfinispanOtpStore.decode(InfinispanOtpStore.encode(withSeparator)));
+
+        // An empty key is kept apart from no key
+        assertEquals("", InfinispanOtpStore.decode(InfinispanOtpStore.encode(entry(""))).getIdempotencyKey());
+    }
+
+    @Test
+    void encodingIsCanonical() {
+        OtpEntry entry = entry("request-1");
+        String value = InfinispanOtpStore.encode(entry);
+        assertEquals(value, InfinispanOtpStore.encode(InfinispanOtpStore.decode(value)));
+        assertTrue(value.startsWith("0123456789abcdefffffffffffffffff000000000000002a|"));
+    }
+
+    @Test
+    void decodeRejectsMalformedValues() {
+        String valid = InfinispanOtpStore.encode(entry(null));
+        assertNull(InfinispanOtpStore.decode(""));
+        assertNull(InfinispanOtpStore.decode(valid.substring(1)));
+        assertNull(InfinispanOtpStore.decode(valid.substring(0, valid.lastIndexOf('|'))));
+        assertNull(InfinispanOtpStore.decode(valid.replace('a', 'x')));
+        assertNull(InfinispanOtpStore.decode(valid.substring(0, valid.lastIndexOf('|') + 1) + "x"));
+    }
+
+    @Test
+    void entriesAreSharedAcrossNodes() {
+        InfinispanOtpStore first = store(0);
+        InfinispanOtpStore second = store(1);
+        OtpEntry entry = entry("request-1");
+        first.put("realm", "shared", entry);
+        assertSameEntry(entry, second.get("realm", "shared"));
+        assertSameEntry(entry, second.getAll("realm", List.of("shared", "absent")).get("shared"));
+
+        second.remove("realm", "shared");
+        assertNull(first.get("realm", "shared"));
+    }
+
+    @Test
+    void staleEntriesCannotBeReplacedOrRemovedFromAnotherNode() {
+        InfinispanOtpStore first = store(0);
+        InfinispanOtpStore second = store(1);
+        first.put("realm", "user", entry(null));
+        OtpEntry readByFirst = first.get("realm", "user");
+        OtpEntry readBySecond = second.get("realm", "user");
+
+        // The second node counts a failed attempt; the first one's copy is now stale
+        assertTrue(second.replace("realm", "user", readBySecond, readBySecond.withFailedAttempt()));
+        assertFalse(first.replace("realm", "user", readByFirst, readByFirst.withFailedAttempt()));
+        assertFalse(first.remove("realm", "user", readByFirst));
+        assertEquals(1, first.get("realm", "user").getFailedAttempts());
+
+        assertTrue(first.remove("realm", "user", first.get("realm", "user")));
+        assertNull(second.get("realm", "user"));
+    }
+
+    @Test
+    void tokensAreConsumedOnceAcrossNodes() {
+        long expiresAt = System.currentTimeMillis() + 60000;
+        assertTrue(store(0).markUsed("realm", "token-1", expiresAt));
+        assertFalse(store(1).markUsed("realm", "token-1", expiresAt));
+        assertTrue(store(1).markUsed("realm", "token-2", expiresAt));
+    }
+}
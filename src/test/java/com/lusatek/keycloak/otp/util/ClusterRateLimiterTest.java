@@ -0,0 +1,141 @@
+package com.lusatek.keycloak.otp.util;
+
+import org.infinispan.Cache;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ClusterRateLimiterTest {
+
+    // Long enough that no test crosses a window boundary in practice
+    private static final long WINDOW_MS = TimeUnit.HOURS.toMillis(1);
+
+    private static EmbeddedInfinispanCluster cluster;
+
+    @BeforeAll
+    static void startCluster() {
+        cluster = new EmbeddedInfinispanCluster(2);
+    }
+
+    @AfterAll
+    static void stopCluster() {
+        cluster.close();
+    }
+
+    @BeforeEach
+    void clearCounters() {
+        cluster.cache(0).clear();
+    }
+
+    private static ClusterRateLimiter limiter(int node, int maxVerify, long nearCacheTtlMs) {
+        Cache<String, Integer> cache = cluster.cache(node);
+        return new ClusterRateLimiter(cache, 1, maxVerify, WINDOW_MS, nearCacheTtlMs, 1000);
+    }
+
+    private static int acquire(RateLimiter limiter, String identifier, int attempts) {
+        int allowed = 0;
+        for (int i = 0; i < attempts; i++) {
+            if (limiter.allowVerify(identifier)) {
+                allowed++;
+            }
+        }
+        return allowed;
+    }
+
+    @Test
+    void nodesShareTheLimitOnceReplicated() {
+        ClusterRateLimiter first = limiter(0, 4, 0);
+        ClusterRateLimiter second = limiter(1, 4, 0);
+        assertTrue(first.allowVerify("user"));
+        assertTrue(first.allowVerify("user"));
+        first.cleanup();
+
+        assertTrue(second.allowVerify("user"));
+        assertTrue(second.allowVerify("user"));
+        assertFalse(second.allowVerify("user"));
+        second.cleanup();
+        assertFalse(first.allowVerify("user"));
+
+        // Kinds and identifiers are counted separately
+        assertTrue(first.allowVerify("other"));
+        assertTrue(first.allowSend("user"));
+    }
+
+    @Test
+    void concurrentFlushesFromAllNodesLoseNoIncrements() throws Exception {
+        int limitersPerNode = 4;
+        int attemptsPerLimiter = 25;
+        List<ClusterRateLimiter> limiters = new ArrayList<>();
+        for (int i = 0; i < 2 * limitersPerNode; i++) {
+            ClusterRateLimiter limiter = limiter(i % 2, 1000, 0);
+            for (int j = 0; j < attemptsPerLimiter; j++) {
+                assertTrue(limiter.allowVerify("user"));
+            }
+            limiters.add(limiter);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(limiters.size());
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> flushes = new ArrayList<>();
+            for (ClusterRateLimiter limiter : limiters) {
+                flushes.add(executor.submit(() -> {
+                    start.await();
+                    return limiter.cleanup();
+                }));
+            }
+            start.countDown();
+            for (Future<?> flush : flushes) {
+                flush.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Exactly one attempt left cluster-wide
+        int total = limiters.size() * attemptsPerLimiter;
+        ClusterRateLimiter observer = limiter(1, total + 1, 0);
+        assertTrue(observer.allowVerify("user"));
+        assertFalse(observer.allowVerify("user"));
+    }
+
+    @Test
+    void flushKeepsLocalCountWithStaleNearCache() {
+        // The near-cache is never reloaded, so only the flush itself may update it
+        ClusterRateLimiter limiter = limiter(0, 3, WINDOW_MS);
+        assertTrue(limiter.allowVerify("user"));
+        assertTrue(limiter.allowVerify("user"));
+        limiter.cleanup();
+        // The flushed attempts are neither lost nor counted twice
+        assertTrue(limiter.allowVerify("user"));
+        assertFalse(limiter.allowVerify("user"));
+        limiter.cleanup();
+        limiter.cleanup();
+        assertFalse(limiter.allowVerify("user"));
+    }
+
+    @Test
+    void fullLimiterAdmitsNewIdentifiersUntracked() {
+        Cache<String, Integer> cache = cluster.cache(0);
+        ClusterRateLimiter limiter = new ClusterRateLimiter(cache, 1, 1, WINDOW_MS, 0, 2);
+        assertTrue(limiter.allowVerify("a"));
+        assertTrue(limiter.allowVerify("b"));
+        assertFalse(limiter.allowVerify("a"));
+        assertEquals(1000, acquire(limiter, "c", 1000));
+        // Tracked identifiers are still limited
+        assertFalse(limiter.allowVerify("b"));
+    }
+}
@@ -0,0 +1,64 @@
+package com.lusatek.keycloak.otp.util;
+
+import org.infinispan.Cache;
+import org.infinispan.configuration.cache.CacheMode;
+import org.infinispan.configuration.cache.ConfigurationBuilder;
+import org.infinispan.configuration.global.GlobalConfigurationBuilder;
+import org.infinispan.manager.DefaultCacheManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Cache managers joined into one cluster inside the test JVM, each holding a replicated cache
+ * configured like Keycloak's work cache
+ */
+public class EmbeddedInfinispanCluster implements AutoCloseable {
+
+    public static final String CACHE_NAME = "work";
+
+    private final List<DefaultCacheManager> managers = new ArrayList<>();
+
+    /**
+     * @param nodes Number of cache managers to start
+     */
+    public EmbeddedInfinispanCluster(int nodes) {
+        // Unique per cluster, so clusters of different tests never see each other
+        String clusterName = "email-otp-test-" + UUID.randomUUID();
+        try {
+            for (int i = 0; i < nodes; i++) {
+                GlobalConfigurationBuilder global = GlobalConfigurationBuilder.defaultClusteredBuilder();
+                global.transport().clusterName(clusterName).nodeName("node-" + i)
+                    .addProperty("configurationFile", "test-jgroups.xml");
+                ConfigurationBuilder cache = new ConfigurationBuilder();
+                cache.clustering().cacheMode(CacheMode.REPL_SYNC);
+                DefaultCacheManager manager = new DefaultCacheManager(global.build(), false);
+                managers.add(manager);
+                manager.defineConfiguration(CACHE_NAME, cache.build());
+                manager.start();
+                // Returns once the node took part in the state transfer of the cache
+                manager.getCache(CACHE_NAME);
+            }
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param node Index of the node
+     * @return The node's copy of the replicated cache
+     */
+    public <K, V> Cache<K, V> cache(int node) {
+        return managers.get(node).getCache(CACHE_NAME);
+    }
+
+    @Override
+    public void close() {
+        for (int i = managers.size() - 1; i >= 0; i--) {
+            managers.get(i).stop();
+        }
+        managers.clear();
+    }
+}
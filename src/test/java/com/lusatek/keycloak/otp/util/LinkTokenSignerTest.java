@@ -0,0 +1,81 @@
+package com.lusatek.keycloak.otp.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LinkTokenSignerTest {
+
+    private static final LinkTokenSigner SIGNER = new LinkTokenSigner("link-key".getBytes(StandardCharsets.UTF_8));
+    private static final long EXPIRES_AT = 1_700_000_000_000L;
+
+    @Test
+    void signedTokenVerifies() {
+        String token = SIGNER.sign("realm", "user-1", "User@Example.com", EXPIRES_AT);
+        LinkTokenSigner.Claims claims = SIGNER.parse(token);
+        assertNotNull(claims);
+        assertEquals("user-1", claims.getUserId());
+        assertEquals(EXPIRES_AT, claims.getExpiresAt());
+        // Email case does not matter
+        assertTrue(SIGNER.verify("realm", claims, "user@example.com"));
+    }
+
+    @Test
+    void tokensAreUnique() {
+        LinkTokenSigner.Claims first = SIGNER.parse(SIGNER.sign("realm", "user-1", "user@example.com", EXPIRES_AT));
+        LinkTokenSigner.Claims second = SIGNER.parse(SIGNER.sign("realm", "user-1", "user@example.com", EXPIRES_AT));
+        assertNotEquals(first.getTokenId(), second.getTokenId());
+    }
+
+    @Test
+    void rejectsOtherRealmEmailOrKey() {
+        LinkTokenSigner.Claims claims = SIGNER.parse(SIGNER.sign("realm", "user-1", "user@example.com", EXPIRES_AT));
+        assertFalse(SIGNER.verify("other-realm", claims, "user@example.com"));
+        assertFalse(SIGNER.verify("realm", claims, "new@example.com"));
+        assertFalse(SIGNER.verify("realm", claims, null));
+        LinkTokenSigner otherKey = new LinkTokenSigner("other-key".getBytes(StandardCharsets.UTF_8));
+        assertFalse(otherKey.verify("realm", claims, "user@example.com"));
+    }
+
+    @Test
+    void rejectsTamperedTokens() {
+        byte[] token = Base64.getUrlDecoder().decode(SIGNER.sign("realm", "user-1", "user@example.com", EXPIRES_AT));
+        for (int i = 1; i < token.length; i++) {
+            byte[] tampered = token.clone();
+            tampered[i] ^= 1;
+            LinkTokenSigner.Claims claims = SIGNER.parse(Base64.getUrlEncoder().withoutPadding().encodeToString(tampered));
+            assertFalse(claims != null && SIGNER.verify("realm", claims, "user@example.com"), "byte " + i);
+        }
+    }
+
+    @Test
+    void extendedExpiryDoesNotVerify() {
+        byte[] token = Base64.getUrlDecoder().decode(SIGNER.sign("realm", "user-1", "user@example.com", EXPIRES_AT));
+        // Last byte of the expiry
+        token[8] += 1;
+        LinkTokenSigner.Claims claims = SIGNER.parse(Base64.getUrlEncoder().withoutPadding().encodeToString(token));
+        assertEquals(EXPIRES_AT + 1, claims.getExpiresAt());
+        assertFalse(SIGNER.verify("realm", claims, "user@example.com"));
+    }
+
+    @Test
+    void parseRejectsMalformedTokens() {
+        assertNull(SIGNER.parse(null));
+        assertNull(SIGNER.parse(""));
+        assertNull(SIGNER.parse("not base64!"));
+        assertNull(SIGNER.parse("AAAA"));
+        assertNull(SIGNER.parse("A".repeat(600)));
+        // Unknown version
+        byte[] token = Base64.getUrlDecoder().decode(SIGNER.sign("realm", "user-1", "user@example.com", EXPIRES_AT));
+        token[0] = 2;
+        assertNull(SIGNER.parse(Base64.getUrlEncoder().withoutPadding().encodeToString(token)));
+    }
+}
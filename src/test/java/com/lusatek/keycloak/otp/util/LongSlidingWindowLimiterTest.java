@@ -0,0 +1,71 @@
+package com.lusatek.keycloak.otp.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LongSlidingWindowLimiterTest {
+
+    private static final long WINDOW_MS = 1000;
+
+    @Test
+    void limitsEachKeySeparately() {
+        LongSlidingWindowLimiter limiter = new LongSlidingWindowLimiter(2, WINDOW_MS, 1000, 4);
+        long now = 10 * WINDOW_MS;
+        assertTrue(limiter.tryAcquire(1, now));
+        assertTrue(limiter.tryAcquire(1, now));
+        assertFalse(limiter.tryAcquire(1, now));
+        assertTrue(limiter.tryAcquire(2, now));
+        assertEquals(2, limiter.size());
+    }
+
+    @Test
+    void fullShardAdmitsNewKeysUntracked() {
+        // One shard holding two keys
+        LongSlidingWindowLimiter limiter = new LongSlidingWindowLimiter(1, WINDOW_MS, 2, 1);
+        long now = 10 * WINDOW_MS;
+        assertTrue(limiter.tryAcquire(1, now));
+        assertTrue(limiter.tryAcquire(2, now));
+
+        // An attacker submitting fresh keys neither gets refused nor evicts anyone
+        for (long key = 100; key < 1100; key++) {
+            assertTrue(limiter.tryAcquire(key, now));
+        }
+        assertEquals(2, limiter.size());
+        assertTrue(limiter.tryAcquire(3, now));
+        // Keys tracked before the shard filled up are still limited
+        assertFalse(limiter.tryAcquire(1, now));
+    }
+
+    @Test
+    void fullShardReclaimsIdleKeysInALaterWindow() {
+        LongSlidingWindowLimiter limiter = new LongSlidingWindowLimiter(1, WINDOW_MS, 2, 1);
+        long now = 10 * WINDOW_MS;
+        limiter.tryAcquire(1, now);
+        limiter.tryAcquire(2, now);
+
+        long later = now + 2 * WINDOW_MS;
+        assertTrue(limiter.tryAcquire(3, later));
+        assertFalse(limiter.tryAcquire(3, later));
+        assertEquals(1, limiter.size());
+    }
+
+    @Test
+    void evictIdleKeepsActiveKeys() {
+        LongSlidingWindowLimiter limiter = new LongSlidingWindowLimiter(5, WINDOW_MS, 1000, 2);
+        long now = 10 * WINDOW_MS;
+        for (long key = 0; key < 50; key++) {
+            limiter.tryAcquire(key, now);
+        }
+        limiter.tryAcquire(7, now + WINDOW_MS);
+        assertEquals(49, limiter.evictIdle(now + 2 * WINDOW_MS));
+        assertEquals(1, limiter.size());
+        // The surviving key kept its count: 1 attempt in the previous window, 5 allowed
+        for (int i = 0; i < 4; i++) {
+            assertTrue(limiter.tryAcquire(7, now + 2 * WINDOW_MS));
+        }
+        assertFalse(limiter.tryAcquire(7, now + 2 * WINDOW_MS));
+    }
+}
@@ -0,0 +1,67 @@
+package com.lusatek.keycloak.otp.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class OtpCodeFormatTest {
+
+    @Test
+    void parseIsTheInverseOfFormat() {
+        for (OtpCodeFormat format : new OtpCodeFormat[] {OtpCodeFormat.DEFAULT,
+                OtpCodeFormat.of(OtpCodeFormat.NUMERIC, OtpCodeFormat.MAX_LENGTH),
+                OtpCodeFormat.of(OtpCodeFormat.ALPHANUMERIC, OtpCodeFormat.MIN_LENGTH),
+                OtpCodeFormat.of(OtpCodeFormat.ALPHANUMERIC, OtpCodeFormat.MAX_LENGTH)}) {
+            for (int i = 0; i < 1000; i++) {
+                long value = format.nextValue();
+                String code = format.format(value);
+                assertEquals(format.getLength(), code.length());
+                assertEquals(value, format.parse(code));
+            }
+        }
+    }
+
+    @Test
+    void parseKeepsLeadingZeros() {
+        assertEquals(42, OtpCodeFormat.DEFAULT.parse("000042"));
+        assertEquals("000042", OtpCodeFormat.DEFAULT.format(42));
+    }
+
+    @Test
+    void parseAcceptsLowerCaseLetters() {
+        OtpCodeFormat format = OtpCodeFormat.of(OtpCodeFormat.ALPHANUMERIC, 6);
+        assertEquals(format.parse("AB2XYZ"), format.parse("ab2xyz"));
+    }
+
+    @Test
+    void parseRejectsCodesOutsideTheFormat() {
+        OtpCodeFormat numeric = OtpCodeFormat.DEFAULT;
+        assertEquals(-1, numeric.parse(null));
+        assertEquals(-1, numeric.parse(""));
+        assertEquals(-1, numeric.parse("12345"));
+        assertEquals(-1, numeric.parse("1234567"));
+        assertEquals(-1, numeric.parse("12a456"));
+        assertEquals(-1, numeric.parse("12 456"));
+        assertEquals(-1, numeric.parse("-12345"));
+        // Full-width and other non-ASCII digits
+        assertEquals(-1, numeric.parse("12345６"));
+        assertEquals(-1, numeric.parse("12345٦"));
+        // Maps to '6' when the high bits are masked off
+        assertEquals(-1, numeric.parse("12345¶"));
+
+        OtpCodeFormat alphanumeric = OtpCodeFormat.of(OtpCodeFormat.ALPHANUMERIC, 6);
+        // 0, 1, I and O are left out of the alphabet as easily confused
+        assertEquals(-1, alphanumeric.parse("AB0XYZ"));
+        assertEquals(-1, alphanumeric.parse("AB1XYZ"));
+        assertEquals(-1, alphanumeric.parse("ABIXYZ"));
+        assertEquals(-1, alphanumeric.parse("ABOXYZ"));
+    }
+
+    @Test
+    void ofRejectsUnsupportedFormats() {
+        assertThrows(IllegalArgumentException.class, () -> OtpCodeFormat.of(OtpCodeFormat.NUMERIC, OtpCodeFormat.MIN_LENGTH - 1));
+        assertThrows(IllegalArgumentException.class, () -> OtpCodeFormat.of(OtpCodeFormat.NUMERIC, OtpCodeFormat.MAX_LENGTH + 1));
+        assertThrows(IllegalArgumentException.class, () -> OtpCodeFormat.of("hex", 6));
+    }
+}
@@ -0,0 +1,95 @@
+package com.lusatek.keycloak.otp.util;
+
+import com.lusatek.keycloak.otp.store.OtpEntry;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OtpHasherTest {
+
+    private static final byte[] SECRET = "test-secret".getBytes(StandardCharsets.UTF_8);
+    private static final OtpHasher HASHER = new OtpHasher(SECRET);
+
+    @Test
+    void entryMatchesOnlyItsCode() {
+        OtpEntry entry = HASHER.newEntry(123456, 1000, 2000, "request-1");
+        assertTrue(HASHER.matches(entry, 123456));
+        assertFalse(HASHER.matches(entry, 123457));
+        assertFalse(HASHER.matches(entry, 0));
+        assertEquals(1000, entry.getIssuedAt());
+        assertEquals(2000, entry.getExpiresAt());
+        assertEquals("request-1", entry.getIdempotencyKey());
+        assertEquals(0, entry.getFailedAttempts());
+    }
+
+    @Test
+    void sameCodeGetsAFreshSalt() {
+        OtpEntry first = HASHER.newEntry(123456, 0, 1, null);
+        OtpEntry second = HASHER.newEntry(123456, 0, 1, null);
+        assertNotEquals(first.getSalt(), second.getSalt());
+        assertNotEquals(first.getHashHigh(), second.getHashHigh());
+    }
+
+    @Test
+    void digestIsTruncatedHmacOfSaltAndCode() throws Exception {
+        OtpEntry entry = HASHER.newEntry(123456, 0, 1, null);
+        // Codes that fit in an int are encoded in 4 bytes
+        byte[] expected = hmac(ByteBuffer.allocate(12).putLong(entry.getSalt()).putInt(123456).array());
+        assertEquals(ByteBuffer.wrap(expected).getLong(0), entry.getHashHigh());
+        assertEquals(ByteBuffer.wrap(expected).getLong(8), entry.getHashLow());
+
+        long longCode = 1L << 40;
+        OtpEntry longEntry = HASHER.newEntry(longCode, 0, 1, null);
+        expected = hmac(ByteBuffer.allocate(16).putLong(longEntry.getSalt()).putLong(longCode).array());
+        assertEquals(ByteBuffer.wrap(expected).getLong(0), longEntry.getHashHigh());
+        assertTrue(HASHER.matches(longEntry, longCode));
+        // Not confused with the code's low 32 bits
+        assertFalse(HASHER.matches(longEntry, 0));
+    }
+
+    @Test
+    void otherSecretDoesNotMatch() {
+        OtpEntry entry = HASHER.newEntry(123456, 0, 1, null);
+        assertFalse(new OtpHasher("other-secret".getBytes(StandardCharsets.UTF_8)).matches(entry, 123456));
+        assertTrue(new OtpHasher(SECRET).matches(entry, 123456));
+    }
+
+    @Test
+    void derivedKeysDifferPerPurpose() {
+        byte[] outbox = HASHER.deriveKey("email-otp-outbox");
+        assertEquals(32, outbox.length);
+        assertArrayEquals(outbox, new OtpHasher(SECRET).deriveKey("email-otp-outbox"));
+        assertFalse(Arrays.equals(outbox, HASHER.deriveKey("email-otp-link")));
+    }
+
+    @Test
+    void identifierHashIsStable() {
+        OtpHasher keyed = new OtpHasher(HASHER.deriveKey("email-otp-pre-lookup"));
+        assertEquals(keyed.hashIdentifier("user@example.com"), keyed.hashIdentifier("user@example.com"));
+        assertNotEquals(keyed.hashIdentifier("user@example.com"), keyed.hashIdentifier("User@example.com"));
+        assertNotEquals(keyed.hashIdentifier("user@example.com"), HASHER.hashIdentifier("user@example.com"));
+    }
+
+    @Test
+    void emptySecretIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new OtpHasher(new byte[0]));
+        assertThrows(IllegalArgumentException.class, () -> new OtpHasher(null));
+    }
+
+    private static byte[] hmac(byte[] message) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(SECRET, "HmacSHA256"));
+        return mac.doFinal(message);
+    }
+}
@@ -0,0 +1,91 @@
+package com.lusatek.keycloak.otp.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PreLookupLimiterTest {
+
+    private static final OtpHasher HASHER = new OtpHasher("test-secret".getBytes(StandardCharsets.UTF_8));
+
+    @Test
+    void limitsEachScope() {
+        PreLookupLimiter limiter = new PreLookupLimiter(HASHER, 3, 1, 1, 60000, 1000, 4);
+        assertNull(limiter.check("10.0.0.1", "realm", "client", "a@example.com", null));
+        assertEquals(PreLookupLimiter.Scope.IDENTIFIER,
+            limiter.check("10.0.0.1", "realm", "other", "A@Example.com", null));
+        assertEquals(PreLookupLimiter.Scope.CLIENT, limiter.check("10.0.0.1", "realm", "client", null, null));
+        assertEquals(PreLookupLimiter.Scope.ADDRESS, limiter.check("10.0.0.1", "realm", null, null, null));
+        assertNull(limiter.check("10.0.0.2", "realm", null, null, null));
+    }
+
+    @Test
+    void batchEntriesShareTheIdentifierCounter() {
+        PreLookupLimiter limiter = new PreLookupLimiter(HASHER, 1, 1, 2, 60000, 1000, 4);
+        assertNull(limiter.check("10.0.0.1", "realm", "client", "a@example.com", null));
+        // Address and client limits are not touched
+        assertTrue(limiter.allowIdentifier("realm", "A@example.com", null));
+        assertFalse(limiter.allowIdentifier("realm", "a@example.com", null));
+        assertTrue(limiter.allowIdentifier("realm", null, "a@example.com"));
+        assertTrue(limiter.allowIdentifier("other", "a@example.com", null));
+        assertTrue(limiter.allowIdentifier("realm", null, null));
+    }
+
+    @Test
+    void tokensWithoutClientSkipTheClientLimit() {
+        PreLookupLimiter limiter = new PreLookupLimiter(HASHER, 0, 1, 0, 60000, 1000, 4);
+        for (int i = 0; i < 10; i++) {
+            assertNull(limiter.check("10.0.0.1", "realm", "", null, null));
+            assertNull(limiter.check("10.0.0.1", "realm", null, null, null));
+        }
+        assertNull(limiter.check("10.0.0.1", "realm", "client", null, null));
+        assertEquals(PreLookupLimiter.Scope.CLIENT, limiter.check("10.0.0.1", "realm", "client", null, null));
+    }
+
+    @Test
+    void randomIdentifiersCannotLockOutOtherUsers() {
+        // Room for 16 identifiers in total
+        PreLookupLimiter limiter = new PreLookupLimiter(HASHER, 0, 0, 2, 60000, 16, 16);
+        for (int i = 0; i < 10000; i++) {
+            limiter.check("10.0.0.1", "realm", null, "random" + i + "@example.com", null);
+        }
+        assertNull(limiter.check("10.0.0.2", "realm", null, "victim@example.com", null));
+        assertNull(limiter.check("10.0.0.2", "realm", null, null, "victim-id"));
+    }
+
+    @Test
+    void addressKeyOfIpv4() {
+        assertEquals(0xC0000201L, PreLookupLimiter.addressKey("192.0.2.1"));
+        assertEquals(0L, PreLookupLimiter.addressKey("0.0.0.0"));
+        assertEquals(0xFFFFFFFFL, PreLookupLimiter.addressKey("255.255.255.255"));
+        // IPv4-mapped IPv6 addresses count as the IPv4 address
+        assertEquals(0xC0000201L, PreLookupLimiter.addressKey("::ffff:192.0.2.1"));
+        assertEquals(0xC0000201L, PreLookupLimiter.addressKey("::FFFF:c000:201"));
+        assertEquals(0xC0000201L, PreLookupLimiter.addressKey("0:0:0:0:0:ffff:192.0.2.1"));
+    }
+
+    @Test
+    void addressKeyOfIpv6IsThePrefix() {
+        long prefix = 0x20010DB800010002L;
+        assertEquals(prefix, PreLookupLimiter.addressKey("2001:db8:1:2::1"));
+        assertEquals(prefix, PreLookupLimiter.addressKey("2001:0DB8:0001:0002:ffff:ffff:ffff:ffff"));
+        assertEquals(prefix, PreLookupLimiter.addressKey("2001:db8:1:2:3:4:5:6%eth0"));
+        assertEquals(0x20010DB800000000L, PreLookupLimiter.addressKey("2001:db8::"));
+        assertEquals(0L, PreLookupLimiter.addressKey("::1"));
+        assertEquals(0xFE80000000000000L, PreLookupLimiter.addressKey("fe80::1%1"));
+    }
+
+    @Test
+    void addressKeyRejectsOtherValues() {
+        for (String address : new String[] {null, "", "localhost", "192.0.2", "192.0.2.1.5", "192.0.2.256",
+                "192.0.2.", ".192.0.2", "192.0.2.1/24", "1:2:3:4:5:6:7", "1:2:3:4:5:6:7:8:9", "1::2::3",
+                "12345::1", "2001:db8:::1", "2001:db8:", ":1", "::ffff:192.0.2", "g::1"}) {
+            assertEquals(PreLookupLimiter.NO_ADDRESS, PreLookupLimiter.addressKey(address), String.valueOf(address));
+        }
+    }
+}
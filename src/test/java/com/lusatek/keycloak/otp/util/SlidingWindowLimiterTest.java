@@ -0,0 +1,104 @@
+package com.lusatek.keycloak.otp.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SlidingWindowLimiterTest {
+
+    private static final long WINDOW_MS = 1000;
+
+    @Test
+    void allowsUpToMaxAttemptsPerWindow() {
+        SlidingWindowLimiter limiter = new SlidingWindowLimiter(3, WINDOW_MS, 100, 1);
+        long now = 10 * WINDOW_MS;
+        assertTrue(limiter.tryAcquire("user", now));
+        assertTrue(limiter.tryAcquire("user", now + 1));
+        assertTrue(limiter.tryAcquire("user", now + 2));
+        assertFalse(limiter.tryAcquire("user", now + 3));
+        // Other keys are counted separately
+        assertTrue(limiter.tryAcquire("other", now + 3));
+    }
+
+    @Test
+    void previousWindowWeighsByOverlap() {
+        SlidingWindowLimiter limiter = new SlidingWindowLimiter(4, WINDOW_MS, 100, 1);
+        long start = 10 * WINDOW_MS;
+        for (int i = 0; i < 4; i++) {
+            assertTrue(limiter.tryAcquire("user", start + i));
+        }
+        // A quarter into the next window, the 4 previous attempts still count as 3
+        assertTrue(limiter.tryAcquire("user", start + WINDOW_MS + WINDOW_MS / 4));
+        assertFalse(limiter.tryAcquire("user", start + WINDOW_MS + WINDOW_MS / 4));
+        // Three quarters in, they count as 1, plus the one accepted above
+        assertTrue(limiter.tryAcquire("user", start + WINDOW_MS + 3 * WINDOW_MS / 4));
+        assertTrue(limiter.tryAcquire("user", start + WINDOW_MS + 3 * WINDOW_MS / 4));
+        assertFalse(limiter.tryAcquire("user", start + WINDOW_MS + 3 * WINDOW_MS / 4));
+    }
+
+    @Test
+    void nextPacksWindowPreviousAndCurrentCount() {
+        long window = 42;
+        long now = window * WINDOW_MS + 100;
+        long state = SlidingWindowLimiter.next(0, now, WINDOW_MS, 10);
+        assertEquals(window, state >>> 32);
+        assertEquals(0, (state >>> 16) & SlidingWindowLimiter.COUNT_MASK);
+        assertEquals(1, state & SlidingWindowLimiter.COUNT_MASK);
+
+        state = SlidingWindowLimiter.next(state, now, WINDOW_MS, 10);
+        assertEquals(2, state & SlidingWindowLimiter.COUNT_MASK);
+
+        // The current count moves to the previous slot in the next window
+        long rolled = SlidingWindowLimiter.next(state, now + WINDOW_MS, WINDOW_MS, 10);
+        assertEquals(window + 1, rolled >>> 32);
+        assertEquals(2, (rolled >>> 16) & SlidingWindowLimiter.COUNT_MASK);
+        assertEquals(1, rolled & SlidingWindowLimiter.COUNT_MASK);
+
+        // A gap of two windows forgets both counts
+        long reset = SlidingWindowLimiter.next(state, now + 2 * WINDOW_MS, WINDOW_MS, 10);
+        assertEquals(0, (reset >>> 16) & SlidingWindowLimiter.COUNT_MASK);
+        assertEquals(1, reset & SlidingWindowLimiter.COUNT_MASK);
+    }
+
+    @Test
+    void nextDeniesAtTheLimit() {
+        long now = 5 * WINDOW_MS;
+        long state = (5L << 32) | 2;
+        assertEquals(SlidingWindowLimiter.DENIED, SlidingWindowLimiter.next(state, now, WINDOW_MS, 2));
+        assertEquals((5L << 32) | 3, SlidingWindowLimiter.next(state, now, WINDOW_MS, 3));
+    }
+
+    @Test
+    void idleKeysAreEvicted() {
+        SlidingWindowLimiter limiter = new SlidingWindowLimiter(3, WINDOW_MS, 100, 4);
+        long now = 10 * WINDOW_MS;
+        limiter.tryAcquire("a", now);
+        limiter.tryAcquire("b", now);
+        assertEquals(0, limiter.evictIdle(now + WINDOW_MS));
+        assertEquals(2, limiter.evictIdle(now + 2 * WINDOW_MS));
+        assertEquals(0, limiter.size());
+    }
+
+    @Test
+    void fullShardAdmitsNewKeysUntracked() {
+        SlidingWindowLimiter limiter = new SlidingWindowLimiter(1, WINDOW_MS, 2, 1);
+        long now = 10 * WINDOW_MS;
+        assertTrue(limiter.tryAcquire("a", now));
+        assertTrue(limiter.tryAcquire("b", now));
+        assertEquals(2, limiter.size());
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire("new" + i, now));
+        }
+        assertEquals(2, limiter.size());
+        // Tracked keys are still limited
+        assertFalse(limiter.tryAcquire("a", now));
+
+        // Once the tracked keys go idle, the next new key takes their place
+        long later = now + 2 * WINDOW_MS;
+        assertTrue(limiter.tryAcquire("c", later));
+        assertFalse(limiter.tryAcquire("c", later));
+    }
+}